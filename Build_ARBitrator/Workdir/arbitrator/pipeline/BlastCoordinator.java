@@ -28,13 +28,13 @@ import java.io.*;
 import java.util.regex.Pattern;
 import java.util.regex.Matcher;
 
-import org.omg.CORBA.RepositoryIdHelper;
-
 import arbitrator.utils.*;
 
 
 //
 // Blasts each representative in a separate thread, taking advantage of parallelism on the NCBI side. 
+// The search itself is delegated to a SearchBackend: NCBI's BLAST URL API by default, or a local
+// BLAST+ installation, in which case the parallelism is across local cores.
 //
 
 
@@ -46,17 +46,24 @@ public class BlastCoordinator
 	private boolean 						verbose;	
 	private int								hitListSize;
 	private double							expect;
-	private String							apiKey;
+	private SearchBackend					backend;
 	
 	
 	public BlastCoordinator(Collection<String> representativeGIs, File blastResultsDirf, 
 				int hitListSize, double expect, String apiKey)
+	{
+		this(representativeGIs, blastResultsDirf, hitListSize, expect, new NCBIBlastSearchBackend(apiKey));
+	}
+	
+	
+	public BlastCoordinator(Collection<String> representativeGIs, File blastResultsDirf, 
+				int hitListSize, double expect, SearchBackend backend)
 	{
 		this.representativeGIs = representativeGIs;
 		this.blastResultsDirf = blastResultsDirf;
 		this.hitListSize = hitListSize;
 		this.expect = expect;
-		this.apiKey = apiKey;
+		this.backend = backend;
 	}
 	
 	
@@ -87,38 +94,7 @@ public class BlastCoordinator
 		
 		private void doRun() throws IOException, ConversionException
 		{
-			// Set up for blast request.  Submit with getResponsePageAsString().
-			BlastHTTPClient client = BlastHTTPClient.forInitiateTabularBlast(representativeGI, hitListSize, expect, apiKey);
-			NCBISnooze.beforeNewRequest(client.getURLString());
-			Date startTime = new Date();
-			sop("Starting blast thread for representative " + representativeGI + " at " + startTime);
-			if (verbose)
-				sop("1st URL: " + client.getURLString());
-
-			String firstResponse = client.getResponsePageAsString();
-			RidAndRtoe rr = extractRIDAndRTOE(firstResponse);
-				
-			// Wait for results.
-			sop("  " + representativeGI + " got 1st response: " + rr);
-			boolean resultsReady = false;
-			while (!resultsReady)
-			{
-				client = BlastHTTPClient.forRetrieveTabularBlastResults(rr.rid, hitListSize, apiKey);
-				NCBISnooze.beforePolling(client.getURLString());
-				if (verbose)
-					sop("2nd URL: " + client.getURLString());
-				LineNumberReader possibleBlastResultsLNR = client.getLineNumberReaderForResponse();
-				if (isCompletedBlastPage(possibleBlastResultsLNR))
-					resultsReady = true;
-				possibleBlastResultsLNR.close();
-				client.close();
-			}
-			
-			// Retrieve results to a file.
-			client = BlastHTTPClient.forRetrieveTabularBlastResults(rr.rid, hitListSize, apiKey);
-			NCBISnooze.beforeNewRequest(client.getURLString());
-			File blastResultsFile = getBlastResultsFile(representativeGI);
-			client.writeResponsePageToFile(blastResultsFile);
+			backend.search(representativeGI, hitListSize, expect, getBlastResultsFile(representativeGI));
 			nUnfinishedBlasts--;		// atomic
 		}
 	}  // End of inner class SingleRepresentativeBlaster
@@ -164,22 +140,6 @@ public class BlastCoordinator
 	}	
 		
 
-	// Ruins the lnr but leaves it open.
-	private boolean isCompletedBlastPage(LineNumberReader lnr) throws IOException
-	{
-		String omen = "# Query:";
-		String line = null;
-		while ((line = lnr.readLine()) != null)
-		{
-			if (line.contains(omen))
-			{
-				return true;
-			}
-		}
-		return false;
-	}
-	
-	
 	private static void snoozeMinutes(int nMins)
 	{
 		snoozeSecs(60*nMins);
@@ -190,7 +150,7 @@ public class BlastCoordinator
 	{
 		try
 		{
-			Thread.sleep(nSecs*1000);
+			Clock.sleep(nSecs*1000L);
 		}
 		catch (InterruptedException x) { }
 	}
@@ -200,16 +160,18 @@ public class BlastCoordinator
 	public void blastRepresentativesBlockUntilDone() throws IOException
 	{
 		nUnfinishedBlasts = 0;
+		Vector<String> unblasted = new Vector<String>();
 		for (String gi: representativeGIs)
+			if (!getBlastResultsFile(gi).exists())
+				unblasted.add(gi);
+		backend.prepare(unblasted.size());
+		dsop("Blasting " + unblasted.size() + " representative(s) with " + backend);
+		for (String gi: unblasted)
 		{
-			File resultsFile = getBlastResultsFile(gi);
-			if (!resultsFile.exists())
-			{
-				nUnfinishedBlasts++;
-				(new SingleBlaster(gi)).start();
-				//jmagasin: Removed unneeded NCBISnooze.beforeNewRequest().
-				//          See snooze in doRun().
-			}
+			nUnfinishedBlasts++;
+			(new SingleBlaster(gi)).start();
+			//jmagasin: Removed unneeded NCBISnooze.beforeNewRequest().
+			//          See snooze in doRun().
 		}
 		
 		// Less efficient than a producer/consumer design pattern, but there's little for the CPU to
@@ -223,9 +185,9 @@ public class BlastCoordinator
 	}	
 	
 	
-	public void setVerbose(boolean verbose)			{ this.verbose = verbose;				}
+	public void setVerbose(boolean verbose)			{ this.verbose = verbose; backend.setVerbose(verbose); }
 	public void setHitListSize(int n)				{ this.hitListSize = n;					}
-	static void sop(Object x)						{ System.out.println(x);       			}
+	static void sop(Object x)						{ Log.info(x);       			}
 	static void dsop(Object x)						{ sop(new java.util.Date() + ": " + x); } 
 
 	
@@ -240,7 +202,7 @@ public class BlastCoordinator
 			String rep = "443146";
 			Set<String> reps = new HashSet<String>();
 			reps.add(rep);
-			BlastCoordinator coord = new BlastCoordinator(reps, Pipeline.getResultsDirf(), 100, 1.0e-1, null);
+			BlastCoordinator coord = new BlastCoordinator(reps, Pipeline.getResultsDirf(), 100, 1.0e-1, (String)null);
 			coord.setVerbose(true);
 			coord.blastRepresentativesBlockUntilDone();
 		}
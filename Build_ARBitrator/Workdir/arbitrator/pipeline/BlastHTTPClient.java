@@ -25,33 +25,42 @@ package arbitrator.pipeline;
 
 import java.net.*;
 import java.io.*;
+import javax.xml.stream.*;
 import arbitrator.utils.*;
 
 public class BlastHTTPClient
 {
 	private String					surl;
 	private String					apiKey;
-	private URLConnection			urlConn;
 	private InputStreamReader		isr;
 	private boolean					closed;
+	private RequestClass			requestClass;
+	private boolean					polling;
 	
 	public BlastHTTPClient(String surl, String apiKey)
+	{
+		this(surl, apiKey, RequestClass.forUrl(surl, false));
+	}
+	
+	
+	public BlastHTTPClient(String surl, String apiKey, RequestClass requestClass)
 	{
 		this.surl = surl; 
 		this.apiKey = apiKey;
+		this.requestClass = requestClass;
 	}
 
 
 	public static BlastHTTPClient forInitiateTabularBlast(String seedGI, int hitListSize, double eValue, String apiKey)
 	{
 		String surl = buildInitiateTabularBlastSurl(seedGI, hitListSize, eValue, apiKey);
-		return new BlastHTTPClient(surl, apiKey);
+		return new BlastHTTPClient(surl, apiKey, RequestClass.BLAST_SUBMIT);
 	}
 	
 	
 	private static String buildInitiateTabularBlastSurl(String seedGI, int hitListSize, double eValue, String apiKey)
 	{
-		String surl = "https://blast.ncbi.nlm.nih.gov/Blast.cgi?QUERY=" + seedGI +
+		String surl = NCBIUrls.blast() + "?QUERY=" + seedGI +
 		       	      "&DATABASE=nr&PROGRAM=blastp" +
 			      "&EXPECT=" + eValue +
 			      "&HITLIST_SIZE=" + hitListSize + 
@@ -65,13 +74,13 @@ public class BlastHTTPClient
 	public static BlastHTTPClient forRetrieveTabularBlastResults(String rid, int hitListSize, String apiKey)
 	{
 		String surl = buildRetrieveTabularResultsSurl(rid, hitListSize, apiKey);
-		return new BlastHTTPClient(surl, apiKey);
+		return new BlastHTTPClient(surl, apiKey, RequestClass.BLAST_FETCH);
 	}
 	
 
 	private static String buildRetrieveTabularResultsSurl(String rid, int hitListSize, String apiKey)
 	{
-		String surl = "https://blast.ncbi.nlm.nih.gov/Blast.cgi?" + 
+		String surl = NCBIUrls.blast() + "?" + 
 			      "&CMD=Get" +
 			      "&RID=" + rid + 
 			      "&DESCRIPTIONS=" + hitListSize + 
@@ -85,13 +94,13 @@ public class BlastHTTPClient
 	public static BlastHTTPClient forInitiateGPLookup(String accession, String apiKey)
 	{
 		String surl = buildInitiateGPLookupSurl(accession, apiKey);
-		return new BlastHTTPClient(surl, apiKey);
+		return new BlastHTTPClient(surl, apiKey, RequestClass.ESEARCH);
 	}
 		
 		
 	private static String buildInitiateGPLookupSurl(String accession, String apiKey)
 	{
-		String surl = "https://eutils.ncbi.nlm.nih.gov/entrez/eutils/esearch.fcgi?" +
+		String surl = NCBIUrls.eutils("esearch.fcgi") + "?" +
 			      "&rettype=gp&usehistory=n&db=protein&term=" + accession;
 		return appendToolAndEmailToUrl(appendApiKeyToUrl(surl, apiKey));
 	}
@@ -99,49 +108,142 @@ public class BlastHTTPClient
 	
 	public static BlastHTTPClient forRetrieveGPFromEntrez(String accession, String apiKey)
 	{
-		String surl = buildRetrieveGPFromEntrez(accession, apiKey);
-		return new BlastHTTPClient(surl, apiKey);
+		String surl = buildRetrieveGPFromEntrez(accession, "text", apiKey);
+		return new BlastHTTPClient(surl, apiKey, RequestClass.EFETCH_PROTEIN);
 	}
 
 		
-	private static String buildRetrieveGPFromEntrez(String euID, String apiKey)
+	// Retmode is "text" for a GenPept flat file or "xml" for GBSeq XML.
+	private static String buildRetrieveGPFromEntrez(String euID, String retmode, String apiKey)
 	{
 		// jmagasin May 2019: If want a GenPept flat file, then also
 		// specify retmode=text per Table 1 at:
 		//    https://www.ncbi.nlm.nih.gov/books/NBK25499/
-		String surl = "https://eutils.ncbi.nlm.nih.gov/entrez/eutils/efetch.fcgi?" +
-			      "&rettype=gp&retmode=text&db=protein&id=" + euID;
+		String surl = NCBIUrls.eutils("efetch.fcgi") + "?" +
+			      "&rettype=gp&retmode=" + retmode + "&db=protein&id=" + euID;
 		return appendToolAndEmailToUrl(appendApiKeyToUrl(surl, apiKey));
 	}
 	
 	
 	public static String getProteinGPPage(String accessionOrGI, String apiKey) throws IOException, ConversionException
 	{		
-		// Use eUtils to retrieve .gp page. 1st response page is XML. Retrieve 1st ID in <ID> tag.
-		BlastHTTPClient client = forInitiateGPLookup(accessionOrGI, apiKey);
-		String eutilsInitialResponse = client.getResponsePageAsString();
-		if (eutilsInitialResponse == null)
-			throw new ConversionException(ConversionFailure.PROTEIN_GP_PAGE_NO_INITIAL_RESPONSE);
-		client.close();
-		int index = eutilsInitialResponse.indexOf("<Id>");
-		if (index < 0)
-			throw new ConversionException(ConversionFailure.PROTEIN_GP_PAGE_NO_ID_TAG_IN_INITIAL_RESPONSE);
-		index += "<Id>".length();
-		eutilsInitialResponse = eutilsInitialResponse.substring(index);
-		String euID = "";
-		int n = 0;
-		while (Character.isJavaIdentifierPart(eutilsInitialResponse.charAt(n)))
-			euID += eutilsInitialResponse.charAt(n++);
+		String euID = lookupEntrezID(accessionOrGI, apiKey);
 		
 		// Retrieve the .gp protein page from Entrez. It contains a "coded_by" tag that contains 
 		// the nucleotide accession #, range, and strand that we need.
-		client = forRetrieveGPFromEntrez(euID, apiKey);
+		BlastHTTPClient client = forRetrieveGPFromEntrez(euID, apiKey);
 		String gpPage = client.getResponsePageAsString();
 		if (gpPage == null)
 			throw new ConversionException(ConversionFailure.PROTEIN_GP_PAGE_NO_GP_PAGE);
 		client.close();
 		return gpPage;
 	}
+	
+	
+	// Like getProteinGPPage(), but fetches the XML form and parses it as it streams in, without 
+	// holding the page. Malformed XML is a permanent failure; it would be malformed on retry too.
+	public static GenPeptRecord getProteinGPRecord(String accessionOrGI, String apiKey) throws IOException, ConversionException
+	{
+		String euID = lookupEntrezID(accessionOrGI, apiKey);
+		String surl = buildRetrieveGPFromEntrez(euID, "xml", apiKey);
+		BlastHTTPClient client = new BlastHTTPClient(surl, apiKey, RequestClass.EFETCH_PROTEIN);
+		try
+		{
+			return client.getParsedResponse(new NCBIHttp.ResponseParser<GenPeptRecord>()
+			{
+				public GenPeptRecord parse(InputStream in) throws IOException
+				{
+					return GenPeptRecord.parseXML(in);
+				}
+			});
+		}
+		catch (GenPeptRecord.MalformedGenPeptException x)
+		{
+			throw new ConversionException(ConversionFailure.PROTEIN_GP_PAGE_MALFORMED);
+		}
+		catch (IOException x)
+		{
+			throw new ConversionException(ConversionFailure.PROTEIN_GP_PAGE_NO_GP_PAGE);
+		}
+	}
+	
+	
+	// Use eUtils esearch to map an accession or GI to an Entrez UID: the 1st <Id> in the response. 
+	// Parsed with StAX off the stream. A genuine miss still has <Count>0</Count>; a page without 
+	// it is an error page, which is usually NCBI throttling us.
+	private static String lookupEntrezID(String accessionOrGI, String apiKey) throws ConversionException
+	{
+		BlastHTTPClient client = forInitiateGPLookup(accessionOrGI, apiKey);
+		String[] countAndId;
+		try
+		{
+			countAndId = client.getParsedResponse(new NCBIHttp.ResponseParser<String[]>()
+			{
+				public String[] parse(InputStream in) throws IOException
+				{
+					return parseESearchCountAndFirstId(in);
+				}
+			});
+		}
+		catch (IOException x)
+		{
+			throw new ConversionException(ConversionFailure.PROTEIN_GP_PAGE_NO_INITIAL_RESPONSE);
+		}
+		if (countAndId[1] == null)
+		{
+			if (countAndId[0] == null)
+				NCBISnooze.onThrottled(client.getURLString());
+			throw new ConversionException(ConversionFailure.PROTEIN_GP_PAGE_NO_ID_TAG_IN_INITIAL_RESPONSE);
+		}
+		return countAndId[1];
+	}
+	
+	
+	// Returns { text of 1st <Count>, text of 1st <Id> }, either of which may be null. Stops reading at 
+	// the 1st <Id>.
+	static String[] parseESearchCountAndFirstId(InputStream in) throws IOException
+	{
+		String[] ret = new String[2];
+		try
+		{
+			XMLStreamReader reader = GenPeptRecord.createXMLReader(in);
+			try
+			{
+				while (reader.hasNext())
+				{
+					if (reader.next() != XMLStreamConstants.START_ELEMENT)
+						continue;
+					String name = reader.getLocalName();
+					if (name.equals("Count")  &&  ret[0] == null)
+						ret[0] = reader.getElementText().trim();
+					else if (name.equals("Id"))
+					{
+						ret[1] = reader.getElementText().trim();
+						break;
+					}
+				}
+			}
+			finally
+			{
+				reader.close();
+			}
+		}
+		catch (XMLStreamException x)
+		{
+			// E.g. NCBI's JSON error body when throttling. Report what we have.
+		}
+		return ret;
+	}
+	
+	
+	// Snoozes, then runs the parser on the response stream. Failures partway are retried by NCBIHttp.
+	public <T> T getParsedResponse(NCBIHttp.ResponseParser<T> parser) throws IOException
+	{
+		snooze();
+		T ret = NCBIHttp.fetchParsed(surl, parser);
+		close();
+		return ret;
+	}
 		
 	
 	public LineNumberReader getLineNumberReaderForResponse() throws MalformedURLException, IOException
@@ -150,9 +252,8 @@ public class BlastHTTPClient
 		// jmagasin May 2019: Added because NCBI was ignoring requests for nucleotide
 		// pages (in getProteinGPPage(), during EMBL file generation) because it seems
 		// we were (as of 2019) making too frequent requests.
-		NCBISnooze.beforeNewRequest(surl);
-		urlConn = url.openConnection();
-		isr = new InputStreamReader(urlConn.getInputStream());
+		snooze();
+		isr = new InputStreamReader(NCBIHttp.open(url.toString()));
 		return new LineNumberReader(isr);
 	}
 	
@@ -169,21 +270,11 @@ public class BlastHTTPClient
 	{
 		try
 		{
-			LineNumberReader lnr = getLineNumberReaderForResponse();
-			StringBuilder sb = new StringBuilder();
-			String line = null;
-			int nLines = 0;
-			while ((line = lnr.readLine()) != null)
-			{
-				sb.append(line);
-				if (!line.endsWith("\n"))
-					sb.append("\n");
-				if (maxLines > 0  &&  ++nLines >= maxLines)
-					break;
-			}
-			lnr.close();
+			// Whole-page reads are retried by NCBIHttp if the response stalls or breaks off.
+			snooze();
+			String page = NCBIHttp.fetchString(surl, maxLines);
 			close();
-			return sb.toString();
+			return page;
 		}
 		catch (IOException x)
 		{
@@ -194,20 +285,27 @@ public class BlastHTTPClient
 	
 	public void writeResponsePageToFile(File f) throws MalformedURLException, IOException
 	{
-		FileWriter fw = new FileWriter(f);
-		LineNumberReader lnr = getLineNumberReaderForResponse();
-		String line = null;
-		while ((line = lnr.readLine()) != null)
-		{
-			if (!line.endsWith("\n"))
-				line = line + "\n";
-			fw.write(line);
-		}
-			
-		lnr.close();
+		new URL(surl);		// throws MalformedURLException
+		snooze();
+		NCBIHttp.fetchToFile(surl, f);
 		close();
-		fw.flush();
-		fw.close();
+	}
+	
+	
+	// Polls sleep the per-RID poll interval first. Either way the request then queues at the priority 
+	// of its class.
+	private void snooze()
+	{
+		if (polling)
+			NCBISnooze.beforePolling(surl, RequestClass.BLAST_POLL);
+		else
+			NCBISnooze.beforeNewRequest(surl, requestClass);
+	}
+	
+	
+	public void setPolling(boolean polling)
+	{
+		this.polling = polling;
 	}
 	
 	
@@ -241,7 +339,7 @@ public class BlastHTTPClient
 	//     assumption that BUA supported API keys. Everything ran fine.
 	private static String appendApiKeyToUrl(String surl, String apiKey)
 	{
-		if (apiKey != null && surl.contains("eutils.ncbi.nlm.nih.gov")) {
+		if (apiKey != null && NCBIEndpoint.forUrl(surl) == NCBIEndpoint.EUTILS) {
 			surl = surl + "&api_key=" + apiKey;
 		}
 		return surl;
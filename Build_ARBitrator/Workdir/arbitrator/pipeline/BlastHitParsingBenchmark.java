@@ -0,0 +1,178 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    BlastHitParsingBenchmark.java
+ *
+ */
+
+
+package arbitrator.pipeline;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.*;
+import arbitrator.utils.*;
+
+
+//
+// Compares blast hit ingestion the old way (split("\\t") and SynonymousHitGroup's String constructor) 
+// with TabularHitCursor, in place of a JMH harness (not a dependency of this build). Checks that both 
+// parsers agree on every accession and e-value, warms both up, then times and measures allocation of 
+// each over the same file.
+//
+
+
+public class BlastHitParsingBenchmark 
+{
+	// Old ingestion: Pipeline's split("\\t") checks and the String constructor.
+	private static int parseWithSplit(File f) throws IOException
+	{
+		BufferedReader br = new BufferedReader(new FileReader(f));
+		String line = null;
+		int n = 0;
+		while ((line = br.readLine()) != null)
+		{
+			if (line.startsWith("#") || line.split("\\t").length < 13)
+				continue;
+			try
+			{
+				if (new SynonymousHitGroup(line).e >= 0)
+					n++;
+			}
+			catch (IllegalArgumentException x) { }
+		}
+		br.close();
+		return n;
+	}
+	
+	
+	private static int parseWithCursor(File f, AccessionDictionary dict) throws IOException
+	{
+		TabularHitCursor cursor = new TabularHitCursor(f);
+		int n = 0;
+		while (cursor.next())
+		{
+			if (!cursor.isValidHit())
+				continue;
+			if (new SynonymousHitGroup(cursor.internField(TabularHitCursor.SUBJECT, dict), 
+									   cursor.getDouble(TabularHitCursor.EVALUE)).e >= 0)
+				n++;
+		}
+		cursor.close();
+		return n;
+	}
+	
+	
+	private static long allocatedBytes()
+	{
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean)
+			return ((com.sun.management.ThreadMXBean)bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+		return 0;
+	}
+	
+	
+	// Writes a synthetic outfmt 7 file shaped like NCBI's (accessions drawn from a pool, so that they 
+	// repeat as they do across representatives).
+	private static void writeSyntheticBlastHits(File f, int nLines) throws IOException
+	{
+		Random rand = new Random(11);
+		PrintWriter pw = new PrintWriter(new BufferedWriter(new FileWriter(f)));
+		pw.println("# BLASTP 2.14.0+");
+		pw.println("# Query: WP_011611922.1");
+		pw.println("# Fields: query acc.ver, subject acc.ver, % identity, alignment length, mismatches, gap opens, " +
+			"q. start, q. end, s. start, s. end, evalue, bit score, % positives");
+		for (int i=0; i<nLines; i++)
+		{
+			int acc = rand.nextInt(nLines / 3);
+			int len = 200 + rand.nextInt(100);
+			pw.println("WP_011611922.1\tWP_" + (100000000 + acc) + ".1\t" + (50 + rand.nextInt(5000)/100.0) + "\t" + 
+				len + "\t" + rand.nextInt(80) + "\t" + rand.nextInt(4) + "\t1\t" + len + "\t1\t" + len + "\t" + 
+				(1 + rand.nextInt(9)) + "." + rand.nextInt(10) + "e-" + (5 + rand.nextInt(170)) + "\t" + 
+				(100 + rand.nextInt(400)) + "\t" + (60 + rand.nextInt(4000)/100.0));
+		}
+		pw.close();
+	}
+	
+	
+	// Usage: [blast_hits_file] (default: a synthetic 100K-line file).
+	public static void main(String[] args)
+	{
+		try
+		{
+			File f;
+			if (args.length > 0)
+				f = new File(args[0]);
+			else
+			{
+				f = File.createTempFile("blast_hits_bench", ".txt");
+				f.deleteOnExit();
+				writeSyntheticBlastHits(f, 100000);
+			}
+			
+			// Agreement.
+			BufferedReader br = new BufferedReader(new FileReader(f));
+			TabularHitCursor cursor = new TabularHitCursor(f);
+			AccessionDictionary dict = new AccessionDictionary();
+			String line = null;
+			int nChecked = 0;
+			double maxRelErr = 0;
+			while ((line = br.readLine()) != null  &&  cursor.next())
+			{
+				if (line.startsWith("#") || line.split("\\t").length < 13)
+					continue;
+				SynonymousHitGroup old = new SynonymousHitGroup(line);
+				if (!old.get(0).equals(cursor.internField(TabularHitCursor.SUBJECT, dict)))
+					throw new RuntimeException("Accession mismatch at: " + line);
+				double e = cursor.getDouble(TabularHitCursor.EVALUE);
+				if (old.e != e)
+					maxRelErr = Math.max(maxRelErr, Math.abs(old.e - e) / old.e);
+				nChecked++;
+			}
+			br.close();
+			cursor.close();
+			System.out.println("Parsers agree on " + nChecked + " lines; max e-value relative difference = " + maxRelErr);
+			
+			for (int i=0; i<5; i++)
+			{
+				parseWithSplit(f);
+				parseWithCursor(f, new AccessionDictionary());
+			}
+			int nReps = 10;
+			long bytes = allocatedBytes();
+			long start = System.nanoTime();
+			for (int i=0; i<nReps; i++)
+				parseWithSplit(f);
+			long splitNanos = (System.nanoTime() - start) / nReps;
+			long splitBytes = (allocatedBytes() - bytes) / nReps;
+			bytes = allocatedBytes();
+			start = System.nanoTime();
+			for (int i=0; i<nReps; i++)
+				parseWithCursor(f, new AccessionDictionary());
+			long cursorNanos = (System.nanoTime() - start) / nReps;
+			long cursorBytes = (allocatedBytes() - bytes) / nReps;
+			System.out.println("split + String constructor:  " + (splitNanos/1000000) + " msecs/file, " + 
+				(splitBytes/nChecked) + " bytes allocated/line");
+			System.out.println("TabularHitCursor:            " + (cursorNanos/1000000) + " msecs/file, " + 
+				(cursorBytes/nChecked) + " bytes allocated/line (including the groups themselves)");
+		}
+		catch (IOException x)
+		{
+			x.printStackTrace();
+		}
+	}
+}
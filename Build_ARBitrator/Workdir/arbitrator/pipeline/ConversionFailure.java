@@ -31,7 +31,27 @@ public enum ConversionFailure
 	PROTEIN_GP_PAGE_NO_GP_PAGE,
 	PROTEIN_GP_PAGE_NO_CODED_BY_TAG,
 	PROTEIN_GP_PAGE_BAD_NUMBER_FORMAT,
+	PROTEIN_GP_PAGE_MALFORMED,
 	NUCLEOTIDE_PAGE_NOT_RECEIVED,
 	NUCLEOTIDE_PAGE_NOT_CONVERTED_TO_EMBL,
-	EMBL_FILE_MISSING
+	EMBL_FILE_MISSING;
+	
+	
+	// Transient failures are usually NCBI throttling us: an error page instead of a response, or a page 
+	// cut short (which is how a missing coded_by tag usually happens). They mostly go away on retry.
+	// Permanent failures are in the record itself and would fail the same way every time.
+	public boolean isTransient()
+	{
+		switch (this)
+		{
+			case PROTEIN_GP_PAGE_NO_INITIAL_RESPONSE:
+			case PROTEIN_GP_PAGE_NO_ID_TAG_IN_INITIAL_RESPONSE:
+			case PROTEIN_GP_PAGE_NO_GP_PAGE:
+			case PROTEIN_GP_PAGE_NO_CODED_BY_TAG:
+			case NUCLEOTIDE_PAGE_NOT_RECEIVED:
+				return true;
+			default:
+				return false;
+		}
+	}
 }
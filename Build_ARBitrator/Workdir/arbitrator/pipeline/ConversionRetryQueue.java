@@ -0,0 +1,136 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    ConversionRetryQueue.java
+ *
+ */
+
+
+package arbitrator.pipeline;
+
+import java.util.*;
+
+import arbitrator.utils.*;
+
+
+//
+// Accessions whose EMBL conversion failed in a transient way (see ConversionFailure.isTransient()),
+// waiting to be tried again. The delay before the nth retry is baseDelay * 2^(n-1). The pipeline retries
+// due accessions between other records when NCBI isn't throttling us, and drains the queue at the end 
+// of the EMBL stage, waiting as needed. An accession that's still failing after maxRetries retries is 
+// given up on, like a permanent failure.
+//
+
+
+class ConversionRetryQueue 
+{
+	final static int				DEFAULT_MAX_RETRIES			= 3;
+	final static int				DEFAULT_BASE_DELAY_SECS		= 30;
+	
+	private int						maxRetries;
+	private long					baseDelayMillis;
+	private Map<String, Integer>	accToNRetries = new HashMap<String, Integer>();
+	private PriorityQueue<Deferred>	queue = new PriorityQueue<Deferred>();
+	int								nDeferred;
+	
+	
+	private static class Deferred implements Comparable<Deferred>
+	{
+		String						accession;
+		long						dueMillis;
+		
+		Deferred(String accession, long dueMillis)
+		{
+			this.accession = accession;
+			this.dueMillis = dueMillis;
+		}
+		
+		public int compareTo(Deferred that)
+		{
+			return Long.compare(this.dueMillis, that.dueMillis);
+		}
+	}
+	
+	
+	ConversionRetryQueue(int maxRetries, int baseDelaySecs)
+	{
+		if (maxRetries < 0)
+			throw new IllegalArgumentException("Retries can't be negative: " + maxRetries);
+		if (baseDelaySecs < 0)
+			throw new IllegalArgumentException("Retry delay can't be negative: " + baseDelaySecs);
+		this.maxRetries = maxRetries;
+		this.baseDelayMillis = 1000L * baseDelaySecs;
+	}
+	
+	
+	// Returns false if the failure is permanent or the accession is out of retries.
+	boolean defer(String accession, ConversionFailure failure)
+	{
+		if (!failure.isTransient())
+			return false;
+		Integer nRetries = accToNRetries.get(accession);
+		int n = (nRetries == null)  ?  1  :  nRetries + 1;
+		if (n > maxRetries)
+			return false;
+		accToNRetries.put(accession, n);
+		long delay = baseDelayMillis << (n - 1);
+		queue.add(new Deferred(accession, Clock.now() + delay));
+		nDeferred++;
+		Metrics.increment("conversion.deferred");
+		Log.debug("Deferred " + accession + " after " + failure + ", retry " + n + " of " + maxRetries + 
+			" in " + delay/1000 + " secs");
+		return true;
+	}
+	
+	
+	// Returns the next accession whose retry is due, or null.
+	String pollDue()
+	{
+		if (queue.isEmpty()  ||  queue.peek().dueMillis > Clock.now())
+			return null;
+		return queue.poll().accession;
+	}
+	
+	
+	// Blocks until the next retry is due, and returns its accession. Null if the queue is empty.
+	String takeWhenDue() throws InterruptedException
+	{
+		if (queue.isEmpty())
+			return null;
+		Clock.sleep(queue.peek().dueMillis - Clock.now());
+		return queue.poll().accession;
+	}
+	
+	
+	boolean isEmpty()
+	{
+		return queue.isEmpty();
+	}
+	
+	
+	int size()
+	{
+		return queue.size();
+	}
+	
+	
+	public String toString()
+	{
+		return "Transient EMBL conversion failures retried up to " + maxRetries + " times, " + 
+			baseDelayMillis/1000 + " secs apart and doubling";
+	}
+}
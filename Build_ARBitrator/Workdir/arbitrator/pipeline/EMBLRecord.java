@@ -54,6 +54,7 @@ public class EMBLRecord
     private PrintStream			nullPrintStream = new PrintStream(new NullOutputStream());
     private boolean				verbose;
     private String				apiKey;
+    private AccessionLedger		ledger;							// null => no record of progress
 
 		
     EMBLRecord(String proteinGI, String apiKey)
@@ -93,27 +94,54 @@ public class EMBLRecord
 	//
 	public void convertToNucleotideEmbl() throws ConversionException, IOException
 	{
-		// jmagasin May 2017 : Reuse existing GP file (if retainIntermediateFiles is true)
-		if (!nucleotideGPFile.exists()) {
-			// Retrieve protein gp page. It's only used for extracting info from the "coded_by" tag for
-			// requesting the nucleotide page.
-			String proteinGPPage = BlastHTTPClient.getProteinGPPage(proteinGI, apiKey);
+		fetchNucleotidePage();
+		convertNucleotidePage();
+	}
+	
+	
+	// The network half of conversion. Safe to run for several records at once.
+	void fetchNucleotidePage() throws ConversionException, IOException
+	{
+		// jmagasin May 2017 : Reuse existing GP file (if retainIntermediateFiles is true). With a ledger,
+		// only if the ledger says it was completely written.
+		boolean haveNucleotideGP = nucleotideGPFile.exists()  &&  
+			(ledger == null  ||  ledger.hasReached(proteinGI, AccessionLedger.State.NUCLEOTIDE_FETCHED));
+		if (!haveNucleotideGP) {
+			// Retrieve the protein gp record. It's only used for extracting info from the "coded_by" tag for
+			// requesting the nucleotide page. It's fetched as XML and parsed as it arrives.
+			GenPeptRecord proteinGP = BlastHTTPClient.getProteinGPRecord(proteinGI, apiKey);
 			if (verbose)
-				sop("convertToNucleotideEmbl() wrote protein GP page to " + proteinGPFile.getAbsolutePath());
+				sop("convertToNucleotideEmbl() got protein GP record " + proteinGP);
+			if (ledger != null)
+				ledger.advance(proteinGI, AccessionLedger.State.PROTEIN_FETCHED, proteinGP.getCodedByAccession());
 		
-			// Parse "coded_by" field, and use resulting info to request nucleotide sequence. Store
-			// nucleotide page in a file. URL is e.g. 
-			//     https://eutils.ncbi.nlm.nih.gov/entrez/eutils/efetch.cgi?db=nucleotide&id=JX626159.1&rettype=gbwithparts&seq_start=1&seq_stop=378&strand=1
-			String nukeFetchSurl = extractNukeFetchQueryFromProteinGPCodedBy(proteinGPPage);	
-			BlastHTTPClient client = new BlastHTTPClient(nukeFetchSurl, apiKey);
-			String nucleotidesPage = client.getResponsePageAsString();
-			client.close();
-			StringUtils.textToFile(nucleotidesPage, nucleotideGPFile); 
+			// Use "coded_by" info to request nucleotide sequence. Store nucleotide page in a file. URL is e.g. 
+			//     https://eutils.ncbi.nlm.nih.gov/entrez/eutils/efetch.cgi?db=nuccore&id=JX626159.1&rettype=gbwithparts&seq_start=1&seq_stop=378&strand=1
+			String nukeFetchSurl = buildNukeFetchSurl(proteinGP);	
+			BlastHTTPClient client = new BlastHTTPClient(nukeFetchSurl, apiKey, RequestClass.EFETCH_NUCLEOTIDE);
+			try
+			{
+				client.writeResponsePageToFile(nucleotideGPFile);		// streamed, not held in memory
+			}
+			catch (IOException x)
+			{
+				nucleotideGPFile.delete();
+				throw new ConversionException(ConversionFailure.NUCLEOTIDE_PAGE_NOT_RECEIVED);
+			}
+			if (ledger != null)
+				ledger.advance(proteinGI, AccessionLedger.State.NUCLEOTIDE_FETCHED);
 			if (verbose)
 				sop("convertToNucleotideEmbl() wrote nucleotide GP page to " + nucleotideGPFile.getAbsolutePath());
 		} else if (verbose) {
 			sop("convertToNucleotideEmbl() used existing GP page " + nucleotideGPFile.getAbsolutePath());
 		}
+	}
+	
+	
+	// The local half of conversion, after fetchNucleotidePage(). Not safe to run for several records at
+	// once, since readseq is run with stderr redirected.
+	void convertNucleotidePage() throws ConversionException, IOException
+	{
 		// Run nucleotide file through readseq to generate C__rawEMBL_id.ebi. Command line is e.g.
 		// 		java -cp readseq.jar run -f em /tmp/142330.gp -o /tmp/142330.embl
 		// which can be passed into the run class as args[]. Redirect stderr, because readseq emits
@@ -151,9 +179,16 @@ public class EMBLRecord
 		// necessary. Create another intermediate file.
 		EMBLQuoteMerger.merge(emblFile, mergedQuotesEmblFile);
 		
-		// In case of multiple coding sequences, get rid of all but widest. Create another intermediate file.
+		// In case of multiple coding sequences, get rid of all but widest. The final file is written under
+		// a temporary name and renamed, so if it exists it's complete.
 		EMBLDuplicateFeatureResolver resolver = new EMBLDuplicateFeatureResolver(mergedQuotesEmblFile);
-		resolver.resolve(finalEmblFile);
+		File partialEmblFile = new File(EMBLS_DIRF, finalEmblFile.getName() + ".partial");
+		resolver.resolve(partialEmblFile);
+		finalEmblFile.delete();
+		if (!partialEmblFile.renameTo(finalEmblFile))
+			throw new IOException("Can't rename " + partialEmblFile.getAbsolutePath() + " to " + finalEmblFile.getName());
+		if (ledger != null)
+			ledger.advance(proteinGI, AccessionLedger.State.CONVERTED);
 		
 		// Delete intermediate files.
 		if (!retainIntermediateFiles)
@@ -195,273 +230,48 @@ public class EMBLRecord
 			
 			
 	
-	// Given a protein gp page containing a "coded_by" field, generates an eUtils http query for retrieving
-	// the nucleotide coding sequence. The gp page can be plaintext or xml.
-	private String extractNukeFetchQueryFromProteinGPCodedBy(String gpPage) 
-		throws ConversionException, IOException
-	{		
-		int codonStart = getCodonStartFromGPPage(gpPage);
-		return (new LineIterator(gpPage).nextLine().contains("xml"))  ?
-			extractNukeFetchQueryFromProteinGPCodedByXMLFormat(gpPage, codonStart)  :
-			extractNukeFetchQueryFromProteinGPCodedByTextFormat(gpPage);
-	}
-	
-	
 	//
-	//	If successful, returns a URL string for fetching a nucleotide sequence. Parses a line like:
+	//	If successful, returns a URL string for fetching a nucleotide sequence, given a record whose coded_by
+	//  was e.g.
 	//
 	//         /coded_by="M11579.1:525..1397"
 	//                   or
 	//         /coded_by="complement(NC_014248.1:3907725..3908705)"
 	//
+	//  The range is adjusted for codon_start (default 1) and trimmed to a whole number of codons.
 	//  Throws ConversionException if failure. Most common failure mode is missing "coded_by" field
 	//	in older records.
 	//	
-	private String extractNukeFetchQueryFromProteinGPCodedByTextFormat(String gpPage) 
-		throws ConversionException
-	{		
-		// Extract coding start position, to be used later for adjusting the DNA sequence.
-		int codingStart = getCodonStartFromGPPage(gpPage);
-		LineIterator iter = new LineIterator(gpPage);		
-		String line = null;  
-		while ((line = iter.readLine()) != null)
-		{
-			line = line.trim();
-			if (line.startsWith("/coded_by"))
-			{
-				// Found "Coded by" section.
-				line = StringUtils.crunch(line, "<>");		// Delete > and <
-				String strand = (line.contains("complement"))  ?  "2"  :   "1";
-				line = line.substring(line.indexOf('\"') + 1);
-				if (!line.endsWith("\""))
-				{
-					// Malformed.
-					throw new ConversionException(ConversionFailure.PROTEIN_GP_PAGE_NO_CODED_BY_TAG);
-				}
-				line = line.substring(0, line.length()-1); 		// quotes now stripped
-				if (strand.equals("2"))
-				{
-					// Range spec for reverse strand has parens in it:
-					// /coded_by="complement(NC_014248.1:3907725..3908705)"
-					int indStart = line.indexOf('(') + 1;
-					int indEnd = line.indexOf(')');
-					line = line.substring(indStart, indEnd);
-				}
-				String[] pieces = line.split(":");				// accession# : range
-				String accession = pieces[0];
-				String range = pieces[1];
-				try
-				{
-					// Compute from & to as if start at 1.
-					String sFrom = range.substring(0, range.indexOf("."));
-					int from = Integer.parseInt(sFrom);
-					String sTo = range.substring(1+range.lastIndexOf("."));
-					int to = Integer.parseInt(sTo);
-					// Adjust from & to for coding start.
-					if (strand.equals("1"))
-					{
-						from += codingStart - 1;					// codonStart is 1 2 or 3
-						while ((to-from+1) % 3 != 0)
-							to--;
-					}
-					else
-					{
-						assert strand.equals("2");
-						to = to - codingStart + 1;
-						while ((to-from+1) % 3 != 0)
-							from++;
-					}
-					// jmagasin May 2019: Specify retmode=text (or you'll get xml), and change
-					// db from nucelotide --> nuccore.
-					String surl = "https://eutils.ncbi.nlm.nih.gov/entrez/eutils/efetch.cgi?";
-					surl += "db=nucleotide&id=" + accession + "&rettype=gbwithparts&retmode=text";
-					surl += "&seq_start=" + from + "&seq_stop=" + to + "&strand=" + strand;
-					return surl;								// error-free return
-				}
-				catch (NumberFormatException x)
-				{				
-					throw new ConversionException(ConversionFailure.PROTEIN_GP_PAGE_BAD_NUMBER_FORMAT);
-				}
-			}
-		}
-		
-		throw new ConversionException(ConversionFailure.PROTEIN_GP_PAGE_NO_CODED_BY_TAG);
-	}
-	
-	
-	//
-	// In XML format, "coded by" looks like this:
-	// 
-    // <GBQualifier_name>coded_by</GBQualifier_name>
-    // <GBQualifier_value>FN649279.1:&lt;1..&gt;429</GBQualifier_value>
-	//
-	// This corresponds to plaintext /coded_by="FN649279.1:<1..>429"
-	//
-	private String extractNukeFetchQueryFromProteinGPCodedByXMLFormat(String gpPage, int codingStart) 
-		throws ConversionException
-	{
-		// Find line.
-		LineIterator iter = new LineIterator(gpPage);		
-		String line = null;  
-		boolean found = false;
-		while ((line = iter.readLine()) != null)
-		{
-			line = line.trim();
-			if (line.contains("coded_by"))
-			{
-				line = iter.readLine();
-				found = true;
-				break;
-			}
-		}
-		if (!found)
-			throw new ConversionException(ConversionFailure.PROTEIN_GP_PAGE_NO_CODED_BY_TAG);
-		
-		// Parse.
-		line = line.trim();
-		if (!line.startsWith("<GBQualifier_value>"))
-			throw new ConversionException(ConversionFailure.PROTEIN_GP_PAGE_NO_CODED_BY_TAG);
-		if (!line.endsWith("</GBQualifier_value>"))
-			throw new ConversionException(ConversionFailure.PROTEIN_GP_PAGE_NO_CODED_BY_TAG);
-		line = line.substring(line.indexOf(">")+1, line.indexOf("</GBQ"));
-		StringBuilder sb = new StringBuilder();
-		int n = 0;
-		while (n < line.length())
-		{
-			if (line.substring(n).startsWith("&lt;"))
-			{
-				sb.append("<");
-				n += 4;
-			}
-			else if (line.substring(n).startsWith("&gt;"))
-			{
-				sb.append(">");
-				n += 4;
-			}
-			else
-			{
-				sb.append(line.charAt(n));
-				n += 1;
-			}
-		}
-		
-		// Delegate.
-		String plaintext = "/coded_by=\"" + sb + "\"";
-		return extractNukeFetchQueryFromCodedByLine(plaintext, codingStart);
-	}
-	
-	
-	// Assumes line format is as in text file e.g. /coded_by="M11579.1:525..1397". If parsing an
-	// XML file, field is encoded and should first be decoded.
-	private String extractNukeFetchQueryFromCodedByLine(String line, int codingStart) 
-		throws ConversionException
+	static String buildNukeFetchSurl(GenPeptRecord rec) throws ConversionException
 	{
-		line = line.trim();
-		assert line.startsWith("/coded_by");
-
-		line = StringUtils.crunch(line, "<>");		// Delete > and <
-		String strand = (line.contains("complement"))  ?  "2"  :   "1";
-		line = line.substring(line.indexOf('\"') + 1);
-		if (!line.endsWith("\""))
-		{
-			// Malformed.
+		if (!rec.hasCodedBy())
 			throw new ConversionException(ConversionFailure.PROTEIN_GP_PAGE_NO_CODED_BY_TAG);
-		}
-		line = line.substring(0, line.length()-1); 		// quotes now stripped
-		if (strand.equals("2"))
-		{
-			// Range spec for rev strand has parens in it:
-			// /coded_by="complement(NC_014248.1:3907725..3908705)"
-			int indStart = line.indexOf('(') + 1;
-			int indEnd = line.indexOf(')');
-			line = line.substring(indStart, indEnd);
-		}
-		String[] pieces = line.split(":");				// accession# : range
-		String accession = pieces[0];
-		String range = pieces[1];
-		try
-		{
-			// Compute from & to as if start at 1.
-			String sFrom = range.substring(0, range.indexOf("."));
-			int from = Integer.parseInt(sFrom);
-			String sTo = range.substring(1+range.lastIndexOf("."));
-			int to = Integer.parseInt(sTo);
-			// Adjust from & to for coding start.
-			if (strand.equals("1"))
-			{
-				from += codingStart - 1;					// codonStart is 1 2 or 3
-				while ((to-from+1) % 3 != 0)
-					to--;
-			}
-			else
-			{
-				assert strand.equals("2");
-				to = to - codingStart + 1;
-				while ((to-from+1) % 3 != 0)
-					from++;
-			}
-			// jmagasin May 2019: Specify retmode=text (or you'll get xml), and change
-			// db from nucelotide --> nuccore.
-			String surl = "https://eutils.ncbi.nlm.nih.gov/entrez/eutils/efetch.cgi?";
-			surl += "db=nuccore&id=" + accession + "&rettype=gbwithparts&retmode=text";
-			surl += "&seq_start=" + from + "&seq_stop=" + to + "&strand=" + strand;
-			return surl;								// error-free return
-		}
-		catch (NumberFormatException x)
-		{				
+		if (rec.hasCodedByBadNumber())
 			throw new ConversionException(ConversionFailure.PROTEIN_GP_PAGE_BAD_NUMBER_FORMAT);
-		}
-	}
-	
-	
-	//
-	// Looks for a line like 
-	//    /codon_start=3   (plaintext)
-	// or
-    //    <GBQualifier_name>codon_start</GBQualifier_name>
-	//    <GBQualifier_value>3</GBQualifier_value>
-	// The default codon start position is 1, and the "/codon_start=" line is optional. So the
-	// only easiest approach is to read the entire file just in case it contains the line.
-	//
-	private int getCodonStartFromGPPage(String gpPage)
-	{
-		// Plaintext.
-		if (!gpPage.substring(0, 50).contains("xml"))
+		
+		// Adjust from & to for coding start.
+		int codingStart = rec.getCodonStart();
+		int from = rec.getCodedByFrom();
+		int to = rec.getCodedByTo();
+		String strand = rec.isCodedByComplement()  ?  "2"  :  "1";
+		if (strand.equals("1"))
 		{
-			LineIterator iter = new LineIterator(gpPage);		
-			int ret = 1;			// default	
-			String line = null;
-			while ((line = iter.nextLine()) != null)
-			{
-				line = line.trim();
-				if (!line.contains("codon_start"))
-					continue;
-				int index = line.indexOf('=') + 1;
-				char ch = line.charAt(index);
-				ret = ch - '0';
-				break;
-			}
-			return ret;
+			from += codingStart - 1;					// codonStart is 1 2 or 3
+			while ((to-from+1) % 3 != 0)
+				to--;
 		}
-		
-		// XML.
 		else
-		{			
-			LineIterator iter = new LineIterator(gpPage);		
-			int ret = 1;			// default	
-			String line = null;
-			while ((line = iter.nextLine()) != null)
-			{
-				line = line.trim();
-				if (!line.contains("codon_start"))
-					continue;
-				line = iter.nextLine();							// <GBQualifier_value>3</GBQualifier_value>
-				line = line.substring(1+line.indexOf(">"));		// 3</GBQualifier_value>
-				line = line.substring(0, line.indexOf("<"));	// 3
-				return Integer.parseInt(line);
-			}
-			return ret;
+		{
+			to = to - codingStart + 1;
+			while ((to-from+1) % 3 != 0)
+				from++;
 		}
+		// jmagasin May 2019: Specify retmode=text (or you'll get xml), and change
+		// db from nucelotide --> nuccore.
+		String surl = NCBIUrls.eutils("efetch.cgi") + "?";
+		surl += "db=nuccore&id=" + rec.getCodedByAccession() + "&rettype=gbwithparts&retmode=text";
+		surl += "&seq_start=" + from + "&seq_stop=" + to + "&strand=" + strand;
+		return surl;
 	}
 	
 	
@@ -584,33 +394,7 @@ public class EMBLRecord
 				sop("getAASequenceLengthFromGenBankFile() wrote protein GP page to " + proteinGPFile.getAbsolutePath());
 		}		
 
-		FileReader fr = new FileReader(proteinGPFile);
-		BufferedReader br = new BufferedReader(fr);
-		String line = null;
-		String sret = null;
-		while ((line = br.readLine()) != null)
-		{
-			if (!line.startsWith("LOCUS"))
-				continue;
-			String[] pieces = line.split("\\s");
-			Stack<String> stack = new Stack<String>();
-			for (String piece: pieces)
-			{
-				if (piece.trim().length() == 0)
-					continue;
-				else if (piece.equals("aa"))
-				{
-					sret = stack.pop();
-					break;
-				}
-				else
-					stack.push(piece);
-			}
-		}
-		br.close();
-		fr.close();
-		
-		return (sret == null)  ?  -1  :  Integer.parseInt(sret);
+		return GenPeptRecord.parse(proteinGPFile).getLocusLength();			// -1 if no LOCUS length
 	}
 	
 	
@@ -620,7 +404,8 @@ public class EMBLRecord
 	public boolean isConverted()					{ return finalEmblFile.exists(); }
 	public void setRetainIntermediates(boolean b)	{ retainIntermediateFiles = b;	 }
 	public void setVerbose(boolean b)				{ verbose = b;					 }
-	static void sop(Object x)						{ System.out.println(x); 		 }
+	public void setLedger(AccessionLedger ledger)	{ this.ledger = ledger;			 }
+	static void sop(Object x)						{ Log.info(x); 		 }
 	
 	
 	public static void main(String[] args)
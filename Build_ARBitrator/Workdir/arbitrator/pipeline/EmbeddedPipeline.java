@@ -0,0 +1,221 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    EmbeddedPipeline.java
+ *
+ */
+
+
+package arbitrator.pipeline;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+import arbitrator.utils.*;
+
+
+//
+// Library entry point. Runs a Pipeline on a background thread and returns its results as a Stream, in 
+// the order they're produced: every classified accession as soon as its group is called, then each EMBL
+// record as it's converted (only if -oe is given). Downstream jobs can consume results incrementally 
+// instead of waiting for the final -ol/-oe files, which are still written.
+//
+// Results pass through a bounded queue, so a slow consumer applies backpressure: the pipeline blocks
+// rather than buffering without limit. Closing the stream (e.g. try-with-resources, or a short-circuiting
+// operation followed by close()) cancels the pipeline at its next result or progress report. The pipeline
+// thread isn't interrupted, since an interrupt closes whatever NIO channel it's using, including the
+// shared rate file that other pipelines in the JVM depend on. If the pipeline fails, the stream throws an
+// UncheckedIOException or the pipeline's RuntimeException when it reaches the failure.
+//
+// Args are the command-line args. Configuration errors throw IllegalArgumentException from stream() 
+// rather than exiting the JVM. Calls in one JVM share warm caches, as PipelineService jobs do, and run 
+// with the process-wide NCBI rate limiter.
+//
+//     try (Stream<PipelineResult> results = EmbeddedPipeline.stream("-q", "2", "-s", "3", ...))
+//     {
+//         results.filter(r -> r.type == PipelineResult.Type.EMBL_FINISHED).forEach(r -> align(r.emblFile));
+//     }
+//
+
+
+public class EmbeddedPipeline 
+{
+	public final static int					DEFAULT_QUEUE_CAPACITY	= 1024;
+	
+	private final static long				OFFER_POLL_MILLIS		= 1000;
+	private final static SharedCaches		CACHES					= new SharedCaches();
+	private final static Object				END						= new Object();
+	
+	
+	public static Stream<PipelineResult> stream(String... args) throws IllegalArgumentException
+	{
+		return stream(DEFAULT_QUEUE_CAPACITY, args);
+	}
+	
+	
+	public static Stream<PipelineResult> stream(int queueCapacity, String... args) throws IllegalArgumentException
+	{
+		Pipeline pipeline = new Pipeline(args, null, CACHES, false);
+		final BlockingQueue<Object> queue = new ArrayBlockingQueue<Object>(queueCapacity);
+		final QueueingListener listener = new QueueingListener(queue);
+		pipeline.addListener(listener);
+		final Thread runner = new Thread(new PipelineRunner(pipeline, listener), "embedded-pipeline");
+		runner.setDaemon(true);
+		runner.start();
+		
+		Spliterator<PipelineResult> spliterator = 
+			new Spliterators.AbstractSpliterator<PipelineResult>(Long.MAX_VALUE, Spliterator.ORDERED | Spliterator.NONNULL)
+		{
+			private boolean			done;
+			
+			public boolean tryAdvance(Consumer<? super PipelineResult> action)
+			{
+				if (done)
+					return false;
+				Object next;
+				try
+				{
+					next = queue.take();
+				}
+				catch (InterruptedException x)
+				{
+					Thread.currentThread().interrupt();
+					throw new CancellationException("Interrupted while waiting for pipeline results");
+				}
+				if (next == END)
+				{
+					done = true;
+					return false;
+				}
+				if (next instanceof Throwable)
+				{
+					done = true;
+					if (next instanceof IOException)
+						throw new UncheckedIOException((IOException)next);
+					if (next instanceof RuntimeException)
+						throw (RuntimeException)next;
+					throw new RuntimeException((Throwable)next);
+				}
+				action.accept((PipelineResult)next);
+				return true;
+			}
+		};
+		return StreamSupport.stream(spliterator, false).onClose(new Runnable()
+		{
+			public void run()
+			{
+				listener.cancelled = true;
+				queue.clear();			// unblocks a full queue; the pipeline sees the flag at its next put
+			}
+		});
+	}
+	
+	
+	// Runs the pipeline, then queues END or the exception. Nothing is queued after a cancellation.
+	private static class PipelineRunner implements Runnable
+	{
+		private Pipeline					pipeline;
+		private QueueingListener			listener;
+		
+		PipelineRunner(Pipeline pipeline, QueueingListener listener)
+		{
+			this.pipeline = pipeline;
+			this.listener = listener;
+		}
+		
+		public void run()
+		{
+			Object last = END;
+			try
+			{
+				pipeline.runPipeline();
+			}
+			catch (Throwable x)
+			{
+				if (listener.cancelled)
+					return;
+				Log.error("Embedded pipeline failed: " + x);
+				last = x;
+			}
+			listener.offer(last);
+		}
+	}
+	
+	
+	// Blocks the pipeline while the queue is full. Results can come from any pipeline thread (e.g. the
+	// embl-convert thread under -overlap), so each one checks for cancellation while it waits.
+	private static class QueueingListener implements PipelineListener
+	{
+		private BlockingQueue<Object>		queue;
+		volatile boolean					cancelled;
+		
+		QueueingListener(BlockingQueue<Object> queue)
+		{
+			this.queue = queue;
+		}
+		
+		// Returns false if the stream was closed before there was room.
+		boolean offer(Object item)
+		{
+			try
+			{
+				while (!cancelled)
+					if (queue.offer(item, OFFER_POLL_MILLIS, TimeUnit.MILLISECONDS))
+						return true;
+			}
+			catch (InterruptedException x)
+			{
+				Thread.currentThread().interrupt();
+			}
+			return false;
+		}
+		
+		private void put(PipelineResult result)
+		{
+			if (!offer(result))
+				throw new CancellationException("Result stream closed");
+		}
+		
+		private void checkCancelled()
+		{
+			if (cancelled)
+				throw new CancellationException("Result stream closed");
+		}
+		
+		public void stageStarted(String stage, int nItems)									{ checkCancelled(); }
+		public void progress(String stage, int nDone, int nItems)							{ checkCancelled(); }
+		public void finished()																{ }
+		
+		public void hitClassified(String accession, boolean positive, double e, String representative)
+		{
+			put(PipelineResult.classified(accession, positive, e, representative));
+		}
+		
+		public void emblRecordFinished(String accession, File emblFile)
+		{
+			put(PipelineResult.emblFinished(accession, emblFile));
+		}
+		
+		public void emblRecordFailed(String accession, String failureMode)
+		{
+			put(PipelineResult.emblFailed(accession, failureMode));
+		}
+	}
+}
@@ -0,0 +1,542 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    GenPeptRecord.java
+ *
+ */
+
+
+package arbitrator.pipeline;
+
+import java.io.*;
+import javax.xml.stream.*;
+
+
+//
+// The fields of a GenPept (protein .gp) page that EMBL conversion needs, extracted in a single pass.
+// EMBLRecord used to rescan the page once per field (codon_start twice, coded_by, LOCUS, and a first
+// line check for XML), with a substring per line each time. Handles both the plaintext flat file and
+// the XML (GBSeq) forms; XML is pulled with StAX, straight off the HTTP stream when fetched with
+// parseXML(InputStream). Parsing a page never throws; missing fields are left at their defaults and
+// callers decide which absences are failures.
+//
+//   LOCUS       AAA26476                 290 aa            linear   BCT 26-APR-1993
+//   ...
+//                        /organism="Trichodesmium sp."
+//   ...
+//                        /codon_start=1
+//                        /coded_by="complement(M11579.1:<525..>1397)"
+//
+// becomes locusLength=290, organism="Trichodesmium sp.", codonStart=1, codedByAccession="M11579.1",
+// codedByFrom=525, codedByTo=1397, codedByComplement, codedByPartialStart, codedByPartialEnd.
+// The translation is the /translation qualifier if there is one, else the ORIGIN sequence.
+//
+
+
+public class GenPeptRecord 
+{
+	private boolean				xml;
+	private int					locusLength = -1;
+	private int					codonStart = 1;				// default if no /codon_start
+	private String				codedBy;					// raw value, e.g. "complement(M11579.1:<525..>1397)"
+	private String				codedByAccession;
+	private int					codedByFrom = -1;
+	private int					codedByTo = -1;
+	private boolean				codedByComplement;
+	private boolean				codedByPartialStart;		// "<" before from
+	private boolean				codedByPartialEnd;			// ">" before to
+	private boolean				codedByBadNumber;
+	private String				organism;
+	private String				translation;
+	
+	
+	private GenPeptRecord()		{ }
+	
+	
+	public static GenPeptRecord parse(CharSequence page)
+	{
+		GenPeptRecord rec = new GenPeptRecord();
+		rec.xml = looksLikeXML(page);
+		if (rec.xml)
+		{
+			try
+			{
+				rec.parseXML(createXMLReader(new StringReader(page.toString())));
+			}
+			catch (XMLStreamException x) { }		// keep whatever was parsed before the problem
+		}
+		else
+			rec.parseText(page);
+		if (rec.codedBy != null)
+			rec.parseCodedBy();
+		return rec;
+	}
+	
+	
+	// A page that arrived but isn't well-formed GBSeq XML. Not a network failure, so NCBIHttp doesn't
+	// retry it or count it against E-utilities.
+	public static class MalformedGenPeptException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+		
+		MalformedGenPeptException(String msg)
+		{
+			super(msg);
+		}
+	}
+	
+	
+	// Parses the first GBSeq of an XML GenPept response as it streams in. Stops reading at the end of
+	// that GBSeq. A page cut off by the network throws the network's IOException; a malformed page
+	// throws MalformedGenPeptException.
+	public static GenPeptRecord parseXML(InputStream in) throws IOException
+	{
+		GenPeptRecord rec = new GenPeptRecord();
+		rec.xml = true;
+		try
+		{
+			rec.parseXML(createXMLReader(in));
+		}
+		catch (XMLStreamException x)
+		{
+			if (x.getNestedException() instanceof IOException)
+				throw (IOException)x.getNestedException();
+			throw new MalformedGenPeptException("Malformed GenPept XML: " + x.getMessage());
+		}
+		if (rec.codedBy != null)
+			rec.parseCodedBy();
+		return rec;
+	}
+	
+	
+	public static GenPeptRecord parse(File gpFile) throws IOException
+	{
+		Reader reader = new BufferedReader(new FileReader(gpFile));
+		StringBuilder sb = new StringBuilder((int)gpFile.length());
+		char[] buf = new char[8192];
+		int n;
+		while ((n = reader.read(buf)) > 0)
+			sb.append(buf, 0, n);
+		reader.close();
+		return parse(sb);
+	}
+	
+	
+	// Same test EMBLRecord always used: "xml" on the first line.
+	private static boolean looksLikeXML(CharSequence page)
+	{
+		int limit = Math.min(page.length(), 200);
+		for (int i=0; i<limit-2; i++)
+		{
+			char c = page.charAt(i);
+			if (c == '\n')
+				return false;
+			if (c == 'x'  &&  page.charAt(i+1) == 'm'  &&  page.charAt(i+2) == 'l')
+				return true;
+		}
+		return false;
+	}
+	
+	
+	
+	
+	
+	
+	
+	
+		    ///////////////////////////////////////////////////////////////////////////////////
+		    //                                                                               //
+		    //                                   PLAINTEXT                                   //
+		    //                                                                               //
+		    ///////////////////////////////////////////////////////////////////////////////////
+	
+	
+	
+	// Walks the page line by line by index; only values we keep are copied out.
+	private void parseText(CharSequence page)
+	{
+		int n = page.length();
+		int pos = 0;
+		String pendingQualifier = null;			// a quoted value that continues on the next line
+		StringBuilder pendingValue = null;
+		boolean inOrigin = false;
+		StringBuilder origin = null;
+		
+		while (pos < n)
+		{
+			int eol = pos;
+			while (eol < n  &&  page.charAt(eol) != '\n')
+				eol++;
+			int start = pos;
+			while (start < eol  &&  Character.isWhitespace(page.charAt(start)))
+				start++;
+			int end = eol;
+			while (end > start  &&  Character.isWhitespace(page.charAt(end-1)))
+				end--;
+			pos = eol + 1;
+			if (start == end)
+				continue;
+			
+			if (pendingQualifier != null)
+			{
+				boolean closed = page.charAt(end-1) == '"';
+				appendValue(pendingQualifier, pendingValue, page, start, closed ? end-1 : end);
+				if (closed)
+				{
+					setQualifier(pendingQualifier, pendingValue.toString());
+					pendingQualifier = null;
+				}
+			}
+			else if (inOrigin)
+			{
+				if (startsWith(page, start, end, "//"))
+					inOrigin = false;
+				else
+				{
+					for (int i=start; i<end; i++)
+					{
+						char c = page.charAt(i);
+						if (Character.isLetter(c))
+							origin.append(Character.toUpperCase(c));
+					}
+				}
+			}
+			else if (startsWith(page, start, end, "LOCUS"))
+				parseLocus(page, start, end);
+			else if (startsWith(page, start, end, "ORIGIN"))
+			{
+				inOrigin = true;
+				origin = new StringBuilder();
+			}
+			else if (page.charAt(start) == '/')
+			{
+				// Qualifier: /name=value or /name="value..."
+				int eq = start + 1;
+				while (eq < end  &&  page.charAt(eq) != '=')
+					eq++;
+				if (eq >= end)
+					continue;
+				String name = qualifierOfInterest(page, start+1, eq);
+				if (name == null  ||  alreadySet(name))
+					continue;
+				int vStart = eq + 1;
+				if (vStart < end  &&  page.charAt(vStart) == '"')
+				{
+					vStart++;
+					boolean closed = end - 1 >= vStart  &&  page.charAt(end-1) == '"';
+					StringBuilder value = new StringBuilder();
+					appendValue(name, value, page, vStart, closed ? end-1 : end);
+					if (closed)
+						setQualifier(name, value.toString());
+					else
+					{
+						pendingQualifier = name;
+						pendingValue = value;
+					}
+				}
+				else
+					setQualifier(name, page.subSequence(vStart, end).toString());
+			}
+		}
+		
+		if (translation == null  &&  origin != null  &&  origin.length() > 0)
+			translation = origin.toString();
+	}
+	
+	
+	// Continuation lines of /translation are joined without whitespace, other values with one space.
+	private static void appendValue(String name, StringBuilder sb, CharSequence page, int start, int end)
+	{
+		if (sb.length() > 0  &&  !name.equals("translation"))
+			sb.append(' ');
+		sb.append(page, start, end);
+	}
+	
+	
+	private static String qualifierOfInterest(CharSequence page, int start, int end)
+	{
+		for (String name: new String[] { "codon_start", "coded_by", "organism", "translation" })
+			if (end - start == name.length()  &&  startsWith(page, start, end, name))
+				return name;
+		return null;
+	}
+	
+	
+	private boolean alreadySet(String name)
+	{
+		if (name.equals("coded_by"))
+			return codedBy != null;
+		else if (name.equals("organism"))
+			return organism != null;
+		else if (name.equals("translation"))
+			return translation != null;
+		else
+			return false;			// codon_start: last one wins, as before only one is expected
+	}
+	
+	
+	private void setQualifier(String name, String value)
+	{
+		if (name.equals("codon_start"))
+		{
+			int cs = parseIntOrMinus1(value.trim());
+			if (cs >= 1  &&  cs <= 3)
+				codonStart = cs;
+		}
+		else if (name.equals("coded_by"))
+			codedBy = value.trim();
+		else if (name.equals("organism"))
+			organism = value.trim();
+		else if (name.equals("translation"))
+			translation = value.replaceAll("\\s", "");
+	}
+	
+	
+	// LOCUS       1G20_A                   492 aa            linear   BCT 27-DEC-2012
+	// The length is the token before "aa".
+	private void parseLocus(CharSequence page, int start, int end)
+	{
+		int prevStart = -1, prevEnd = -1;
+		int i = start;
+		while (i < end)
+		{
+			while (i < end  &&  Character.isWhitespace(page.charAt(i)))
+				i++;
+			int tStart = i;
+			while (i < end  &&  !Character.isWhitespace(page.charAt(i)))
+				i++;
+			if (i - tStart == 2  &&  page.charAt(tStart) == 'a'  &&  page.charAt(tStart+1) == 'a')
+			{
+				if (prevStart >= 0)
+					locusLength = parseIntOrMinus1(page.subSequence(prevStart, prevEnd));
+				return;
+			}
+			prevStart = tStart;
+			prevEnd = i;
+		}
+	}
+	
+	
+	
+	
+	
+	
+	
+	
+		    ///////////////////////////////////////////////////////////////////////////////////
+		    //                                                                               //
+		    //                                      XML                                      //
+		    //                                                                               //
+		    ///////////////////////////////////////////////////////////////////////////////////
+	
+	
+	
+	// NCBI XML names an external DTD. Never fetch it; the predefined entities (&lt; etc.) are all
+	// GenPept uses.
+	static XMLStreamReader createXMLReader(Object src) throws XMLStreamException
+	{
+		XMLInputFactory factory = XMLInputFactory.newInstance();
+		factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+		factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+		factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+		return (src instanceof InputStream)  ?  
+			factory.createXMLStreamReader((InputStream)src)  :  
+			factory.createXMLStreamReader((Reader)src);
+	}
+	
+	
+	// GBSeq XML. Qualifiers are
+	//     <GBQualifier_name>coded_by</GBQualifier_name>
+	//     <GBQualifier_value>FN649279.1:&lt;1..&gt;429</GBQualifier_value>
+	// StAX decodes the entities.
+	private void parseXML(XMLStreamReader reader) throws XMLStreamException
+	{
+		String pendingQualifier = null;
+		try
+		{
+			while (reader.hasNext())
+			{
+				int event = reader.next();
+				if (event == XMLStreamConstants.END_ELEMENT  &&  reader.getLocalName().equals("GBSeq"))
+					return;
+				if (event != XMLStreamConstants.START_ELEMENT)
+					continue;
+				String name = reader.getLocalName();
+				if (name.equals("GBSeq_length"))
+					locusLength = parseIntOrMinus1(reader.getElementText().trim());
+				else if (name.equals("GBSeq_organism")  &&  organism == null)
+					organism = reader.getElementText().trim();
+				else if (name.equals("GBSeq_sequence")  &&  translation == null)
+					translation = reader.getElementText().trim().toUpperCase();
+				else if (name.equals("GBQualifier_name"))
+				{
+					String qualifier = reader.getElementText().trim();
+					pendingQualifier = qualifierOfInterest(qualifier, 0, qualifier.length());
+				}
+				else if (name.equals("GBQualifier_value")  &&  pendingQualifier != null)
+				{
+					String value = reader.getElementText();
+					if (!alreadySet(pendingQualifier))
+						setQualifier(pendingQualifier, value);
+					pendingQualifier = null;
+				}
+			}
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+	
+	
+	
+	
+	
+	
+	
+	
+	
+	
+		    ///////////////////////////////////////////////////////////////////////////////////
+		    //                                                                               //
+		    //                                   CODED_BY                                    //
+		    //                                                                               //
+		    ///////////////////////////////////////////////////////////////////////////////////
+	
+	
+	
+	// M11579.1:525..1397   or   complement(NC_014248.1:<3907725..>3908705)
+	// Same rules EMBLRecord always applied: from is before the first '.', to is after the last.
+	private void parseCodedBy()
+	{
+		String s = codedBy;
+		codedByComplement = s.contains("complement");
+		if (codedByComplement)
+		{
+			int indStart = s.indexOf('(') + 1;
+			int indEnd = s.indexOf(')');
+			if (indEnd < indStart)
+				indEnd = s.length();
+			s = s.substring(indStart, indEnd);
+		}
+		int colon = s.indexOf(':');
+		if (colon < 0)
+		{
+			codedByBadNumber = true;
+			return;
+		}
+		codedByAccession = s.substring(0, colon);
+		String range = s.substring(colon + 1);
+		int firstDot = range.indexOf('.');
+		int lastDot = range.lastIndexOf('.');
+		if (firstDot < 0)
+		{
+			codedByBadNumber = true;
+			return;
+		}
+		String sFrom = range.substring(0, firstDot);
+		String sTo = range.substring(lastDot + 1);
+		codedByPartialStart = sFrom.startsWith("<")  ||  sFrom.startsWith(">");
+		codedByPartialEnd = sTo.startsWith(">")  ||  sTo.startsWith("<");
+		codedByFrom = parseIntOrMinus1(sFrom.replace("<", "").replace(">", ""));
+		codedByTo = parseIntOrMinus1(sTo.replace("<", "").replace(">", ""));
+		if (codedByFrom < 0  ||  codedByTo < 0)
+			codedByBadNumber = true;
+	}
+	
+	
+	
+	
+	
+	
+	
+	
+		    ///////////////////////////////////////////////////////////////////////////////////
+		    //                                                                               //
+		    //                                CHAR SEQUENCES                                 //
+		    //                                                                               //
+		    ///////////////////////////////////////////////////////////////////////////////////
+	
+	
+	
+	private static boolean startsWith(CharSequence cs, int start, int end, String prefix)
+	{
+		if (end - start < prefix.length())
+			return false;
+		for (int i=0; i<prefix.length(); i++)
+			if (cs.charAt(start+i) != prefix.charAt(i))
+				return false;
+		return true;
+	}
+	
+	
+	// Digits only, else -1.
+	private static int parseIntOrMinus1(CharSequence cs)
+	{
+		if (cs.length() == 0  ||  cs.length() > 9)
+			return -1;
+		int ret = 0;
+		for (int i=0; i<cs.length(); i++)
+		{
+			char c = cs.charAt(i);
+			if (c < '0'  ||  c > '9')
+				return -1;
+			ret = 10*ret + (c - '0');
+		}
+		return ret;
+	}
+	
+	
+	public boolean isXML()						{ return xml;						}
+	public int getLocusLength()					{ return locusLength;				}
+	public int getCodonStart()					{ return codonStart;				}
+	public boolean hasCodedBy()					{ return codedBy != null;			}
+	public String getCodedBy()					{ return codedBy;					}
+	public String getCodedByAccession()			{ return codedByAccession;			}
+	public int getCodedByFrom()					{ return codedByFrom;				}
+	public int getCodedByTo()					{ return codedByTo;					}
+	public boolean isCodedByComplement()		{ return codedByComplement;			}
+	public boolean isCodedByPartialStart()		{ return codedByPartialStart;		}
+	public boolean isCodedByPartialEnd()		{ return codedByPartialEnd;			}
+	public boolean hasCodedByBadNumber()		{ return codedByBadNumber;			}
+	public String getOrganism()					{ return organism;					}
+	public String getTranslation()				{ return translation;				}
+	
+	
+	public String toString()
+	{
+		return "GenPeptRecord: " + (xml ? "xml" : "text") + ", length=" + locusLength + ", codon_start=" + codonStart + 
+			", coded_by=" + codedBy + " -> " + codedByAccession + ":" + codedByFrom + ".." + codedByTo + 
+			(codedByComplement ? " complement" : "") + (codedByPartialStart ? " <" : "") + (codedByPartialEnd ? " >" : "") +
+			", organism=" + organism + ", translation=" + 
+			((translation == null) ? "null" : (translation.length() + " aa"));
+	}
+	
+	
+	// Parses a .gp file (text or XML) named on the command line.
+	public static void main(String[] args)
+	{
+		try
+		{
+			System.out.println(parse(new File(args[0])));
+		}
+		catch (IOException x)
+		{
+			x.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,214 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    HSPPrefilter.java
+ *
+ */
+
+
+package arbitrator.pipeline;
+
+import java.io.*;
+import java.util.*;
+
+import arbitrator.utils.*;
+
+
+//
+// Rejects blast hits that couldn't survive downstream QC (fragments, short partial hits, distant
+// homologs) during ingestion, before they cost a CD-Search slot or E-utilities requests. A subject whose
+// alignment to the representative is split into several HSPs (common for multi-domain and gapped hits)
+// is judged once, on all of its HSPs together. Only fields already in the tabular blast output are used:
+//   -- Query coverage: query positions covered by the union of the HSPs / query length, like blast's 
+//      qcovs. Tabular output has no query length, so it's estimated as the largest q. end among the
+//      representative's hits. Representatives are in the searched database, so their self hit makes 
+//      this exact in practice.
+//   -- Alignment length in residues, summed over the HSPs.
+//   -- % identity, averaged over the HSPs weighted by alignment length.
+// A threshold of 0 disables that test. Every rejected subject is written, with the failing value, to a 
+// rejects file in the work dir, and per-reason counts go to Metrics.
+//
+
+
+class HSPPrefilter 
+{
+	final static String				REASON_COVERAGE			= "coverage";
+	final static String				REASON_LENGTH			= "alnlen";
+	final static String				REASON_IDENTITY			= "identity";
+	
+	private double					minQueryCoverage;		// fraction, 0-1
+	private int						minAlignmentLength;
+	private double					minPctIdentity;			// 0-100
+	private PrintWriter				rejectsWriter;
+	int								nPassed;
+	int								nRejected;
+	
+	
+	HSPPrefilter(double minQueryCoverage, int minAlignmentLength, double minPctIdentity)
+	{
+		this.minQueryCoverage = minQueryCoverage;
+		this.minAlignmentLength = minAlignmentLength;
+		this.minPctIdentity = minPctIdentity;
+	}
+	
+	
+	boolean isEnabled()
+	{
+		return minQueryCoverage > 0  ||  minAlignmentLength > 0  ||  minPctIdentity > 0;
+	}
+	
+	
+	// Ingestion is redone every run, so the rejects file is rewritten rather than appended to.
+	void openRejectsFile(File rejectsFile) throws IOException
+	{
+		rejectsWriter = new PrintWriter(new BufferedWriter(new FileWriter(rejectsFile)));
+		rejectsWriter.println("# query\tsubject\treason\tvalue\tevalue");
+	}
+	
+	
+	void closeRejectsFile()
+	{
+		if (rejectsWriter != null)
+			rejectsWriter.close();
+		rejectsWriter = null;
+	}
+	
+	
+	static int estimateQueryLength(BlastHitStore hits)
+	{
+		int len = 0;
+		for (int row=0; row<hits.size(); row++)
+			len = Math.max(len, Math.max(hits.getQStart(row), hits.getQEnd(row)));
+		return len;
+	}
+	
+	
+	// Returns whether each row passes. Every HSP of a subject gets the same answer. queryLength should
+	// come from estimateQueryLength().
+	boolean[] accept(BlastHitStore hits, int queryLength)
+	{
+		Map<String, Vector<Integer>> subjectToRows = new LinkedHashMap<String, Vector<Integer>>();
+		for (int row=0; row<hits.size(); row++)
+		{
+			Vector<Integer> rows = subjectToRows.get(hits.getSubject(row));
+			if (rows == null)
+			{
+				rows = new Vector<Integer>();
+				subjectToRows.put(hits.getSubject(row), rows);
+			}
+			rows.add(row);
+		}
+		boolean[] ret = new boolean[hits.size()];
+		for (Vector<Integer> rows: subjectToRows.values())
+		{
+			boolean passed = accept(hits, rows, queryLength);
+			for (int row: rows)
+				ret[row] = passed;
+		}
+		return ret;
+	}
+	
+	
+	private boolean accept(BlastHitStore hits, Vector<Integer> rows, int queryLength)
+	{
+		int alignmentLength = 0;
+		double identities = 0;
+		double bestEvalue = Double.POSITIVE_INFINITY;
+		for (int row: rows)
+		{
+			alignmentLength += hits.getAlignmentLength(row);
+			identities += hits.getPctIdentity(row) * hits.getAlignmentLength(row);
+			bestEvalue = Math.min(bestEvalue, hits.getEvalue(row));
+		}
+		double pctIdentity = (alignmentLength > 0)  ?  identities / alignmentLength  :  0;
+		
+		String reason = null;
+		double value = 0;
+		if (minQueryCoverage > 0  &&  queryLength > 0)
+		{
+			double coverage = getCoveredLength(hits, rows) / (double)queryLength;
+			if (coverage < minQueryCoverage)
+			{
+				reason = REASON_COVERAGE;
+				value = coverage;
+			}
+		}
+		if (reason == null  &&  alignmentLength < minAlignmentLength)
+		{
+			reason = REASON_LENGTH;
+			value = alignmentLength;
+		}
+		if (reason == null  &&  pctIdentity < minPctIdentity)
+		{
+			reason = REASON_IDENTITY;
+			value = pctIdentity;
+		}
+		
+		if (reason == null)
+		{
+			nPassed++;
+			return true;
+		}
+		nRejected++;
+		Metrics.increment("prefilter.hsp.rejected." + reason);
+		int row = rows.firstElement();
+		if (rejectsWriter != null)
+			rejectsWriter.println(hits.getQuery(row) + "\t" + hits.getSubject(row) + "\t" + reason + "\t" + 
+								  (float)value + "\t" + bestEvalue);
+		return false;
+	}
+	
+	
+	// Query positions covered by at least one of the rows' HSPs. Overlapping HSPs aren't counted twice.
+	static int getCoveredLength(BlastHitStore hits, Vector<Integer> rows)
+	{
+		int[][] intervals = new int[rows.size()][];
+		for (int i=0; i<rows.size(); i++)
+		{
+			int row = rows.get(i);
+			int qStart = hits.getQStart(row);
+			int qEnd = hits.getQEnd(row);
+			intervals[i] = new int[] { Math.min(qStart, qEnd), Math.max(qStart, qEnd) };
+		}
+		Arrays.sort(intervals, new Comparator<int[]>()
+		{
+			public int compare(int[] i1, int[] i2)
+			{
+				return Integer.compare(i1[0], i2[0]);
+			}
+		});
+		int covered = 0;
+		int coveredTo = Integer.MIN_VALUE;			// last position counted so far
+		for (int[] interval: intervals)
+		{
+			int from = Math.max(interval[0], coveredTo + 1);
+			if (interval[1] >= from)
+			{
+				covered += interval[1] - from + 1;
+				coveredTo = interval[1];
+			}
+		}
+		return covered;
+	}
+	
+	
+	public String toString()
+	{
+		return "HSP prefilter: query coverage >= " + minQueryCoverage + ", alignment length >= " + minAlignmentLength +
+			", identity >= " + minPctIdentity + "%";
+	}
+}
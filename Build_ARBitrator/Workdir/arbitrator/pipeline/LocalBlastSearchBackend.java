@@ -0,0 +1,171 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    LocalBlastSearchBackend.java
+ *
+ */
+
+
+package arbitrator.pipeline;
+
+import java.io.*;
+import java.util.concurrent.Semaphore;
+
+import arbitrator.utils.*;
+
+
+//
+// Blasts a representative against a local protein database (e.g. a mirror of nr) with the BLAST+
+// blastp executable. The database must have been built with "makeblastdb -parse_seqids" so that
+// blastdbcmd can pull the representative's sequence out by accession. To try this backend without
+// a mirror, build a small database from any protein FASTA that contains the representatives:
+//
+//     makeblastdb -in tiny.faa -dbtype prot -parse_seqids -out tinydb
+//
+// blastp is asked for the same 13 tabular fields that the BLAST URL API returns, so the results file
+// looks exactly like a BUA results file to Pipeline ingestion (which checks the "# Fields:" line).
+// Output is streamed from blastp's stdout into a temporary file that is renamed when blastp exits
+// cleanly, so an interrupted search never leaves a results file that looks finished.
+//
+// The BlastCoordinator runs all representatives at once. Cores are divided among them: at most
+// nCores blastp processes run at a time, and each gets nCores/nConcurrent threads via -num_threads.
+//
+
+
+public class LocalBlastSearchBackend implements SearchBackend
+{
+	private final static String		OUTFMT						= 
+		"7 qaccver saccver pident length mismatch gapopen qstart qend sstart send evalue bitscore ppos";
+	
+	private String					database;
+	private File					binDirf;		// null => executables are on the PATH
+	private int						nCores;
+	private int						threadsPerSearch;
+	private Semaphore				processPermits;
+	private boolean					verbose;
+	
+	
+	public LocalBlastSearchBackend(String database, File binDirf, int nCores)
+	{
+		this.database = database;
+		this.binDirf = binDirf;
+		this.nCores = Math.max(1, nCores);
+		prepare(1);
+	}
+	
+	
+	public void prepare(int nSearches)
+	{
+		int nConcurrent = Math.max(1, Math.min(nSearches, nCores));
+		threadsPerSearch = Math.max(1, nCores / nConcurrent);
+		processPermits = new Semaphore(nConcurrent, true);
+	}
+	
+	
+	public void search(String representative, int hitListSize, double expect, File resultsFile) 
+		throws IOException, ConversionException
+	{
+		try
+		{
+			processPermits.acquire();
+		}
+		catch (InterruptedException x)
+		{
+			throw new IOException("Interrupted while waiting to blast " + representative);
+		}
+		
+		File queryFile = new File(resultsFile.getParentFile(), "query_" + representative + ".faa");
+		File partialFile = new File(resultsFile.getParentFile(), resultsFile.getName() + ".partial");
+		try
+		{
+			extractQuery(representative, queryFile);
+			sop("Starting local blastp for representative " + representative + " with " + 
+				threadsPerSearch + " thread(s) at " + new java.util.Date());
+			String[] cmd =
+			{
+				executable("blastp"), "-db", database, "-query", queryFile.getAbsolutePath(),
+				"-evalue", String.valueOf(expect), "-max_target_seqs", String.valueOf(hitListSize),
+				"-num_threads", String.valueOf(threadsPerSearch), "-outfmt", OUTFMT
+			};
+			runToFile(cmd, partialFile);
+			if (!partialFile.renameTo(resultsFile))
+				throw new IOException("Couldn't rename " + partialFile + " to " + resultsFile);
+			sop("Finished local blastp for representative " + representative + " at " + new java.util.Date());
+		}
+		finally
+		{
+			partialFile.delete();
+			queryFile.delete();
+			processPermits.release();
+		}
+	}
+	
+	
+	// Writes the representative's sequence in FASTA format. A missing entry is fatal for this
+	// representative only, like a failed BUA submission.
+	private void extractQuery(String representative, File queryFile) throws IOException
+	{
+		String[] cmd = { executable("blastdbcmd"), "-db", database, "-entry", representative };
+		runToFile(cmd, queryFile);
+		if (queryFile.length() == 0)
+			throw new IOException("Representative " + representative + " is not in local database " + database);
+	}
+	
+	
+	private void runToFile(String[] cmd, File dest) throws IOException
+	{
+		if (verbose)
+			sop("Exec: " + String.join(" ", cmd));
+		SystemCaller caller = new SystemCaller(cmd);
+		caller.execute();
+		BufferedWriter bw = new BufferedWriter(new FileWriter(dest));
+		String line = null;
+		while ((line = caller.readStdoutLine()) != null)
+		{
+			bw.write(line);
+			bw.write('\n');
+		}
+		bw.flush();
+		bw.close();
+		caller.close();
+		int exitValue = 0;
+		try
+		{
+			exitValue = caller.blockUntilCompletion();
+		}
+		catch (InterruptedException x)
+		{
+			throw new IOException("Interrupted: " + cmd[0]);
+		}
+		if (exitValue != 0)
+		{
+			dest.delete();
+			throw new IOException(cmd[0] + " exited with status " + exitValue);
+		}
+	}
+	
+	
+	private String executable(String name)
+	{
+		return (binDirf == null)  ?  name  :  new File(binDirf, name).getAbsolutePath();
+	}
+	
+	
+	public void setVerbose(boolean verbose)			{ this.verbose = verbose;				}
+	public String toString()						{ return "local blastp against " + database + " on " + nCores + " core(s)"; }
+	static void sop(Object x)						{ Log.info(x);       			}
+}
@@ -0,0 +1,119 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    NCBIBlastSearchBackend.java
+ *
+ */
+
+
+package arbitrator.pipeline;
+
+import java.io.*;
+import java.util.*;
+
+import arbitrator.utils.*;
+
+
+//
+// Blasts a representative against nr using the NCBI BLAST URL API (BUA). This is the search that
+// used to live in BlastCoordinator.SingleBlaster: submit, poll until the "# Query:" omen appears,
+// then retrieve the tabular page to the results file. All requests go through NCBISnooze (the
+// client snoozes at the priority of the request's class).
+//
+
+
+public class NCBIBlastSearchBackend implements SearchBackend
+{
+	private String					apiKey;
+	private boolean					verbose;
+	
+	
+	public NCBIBlastSearchBackend(String apiKey)
+	{
+		this.apiKey = apiKey;
+	}
+	
+	
+	// Parallelism is on the NCBI side, so nothing to size here.
+	public void prepare(int nSearches)	{ }
+	
+	
+	public void search(String representativeGI, int hitListSize, double expect, File blastResultsFile) 
+		throws IOException, ConversionException
+	{
+		// Set up for blast request.  Submit with getResponsePageAsString().
+		BlastHTTPClient client = BlastHTTPClient.forInitiateTabularBlast(representativeGI, hitListSize, expect, apiKey);
+		Date startTime = new Date();
+		sop("Starting blast thread for representative " + representativeGI + " at " + startTime);
+		if (verbose)
+			sop("1st URL: " + client.getURLString());
+
+		String firstResponse = client.getResponsePageAsString();
+		RidAndRtoe rr = null;
+		try
+		{
+			rr = BlastCoordinator.extractRIDAndRTOE(firstResponse);
+		}
+		catch (IllegalArgumentException x)
+		{
+			// No RID usually means BUA turned the submission away.
+			NCBISnooze.onThrottled(client.getURLString());
+			throw x;
+		}
+			
+		// Wait for results.
+		sop("  " + representativeGI + " got 1st response: " + rr);
+		boolean resultsReady = false;
+		while (!resultsReady)
+		{
+			client = BlastHTTPClient.forRetrieveTabularBlastResults(rr.rid, hitListSize, apiKey);
+			client.setPolling(true);
+			if (verbose)
+				sop("2nd URL: " + client.getURLString());
+			LineNumberReader possibleBlastResultsLNR = client.getLineNumberReaderForResponse();
+			if (isCompletedBlastPage(possibleBlastResultsLNR))
+				resultsReady = true;
+			possibleBlastResultsLNR.close();
+			client.close();
+		}
+		
+		// Retrieve results to a file.
+		client = BlastHTTPClient.forRetrieveTabularBlastResults(rr.rid, hitListSize, apiKey);
+		client.writeResponsePageToFile(blastResultsFile);
+	}
+	
+
+	// Ruins the lnr but leaves it open.
+	private boolean isCompletedBlastPage(LineNumberReader lnr) throws IOException
+	{
+		String omen = "# Query:";
+		String line = null;
+		while ((line = lnr.readLine()) != null)
+		{
+			if (line.contains(omen))
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	
+	public void setVerbose(boolean verbose)			{ this.verbose = verbose;				}
+	public String toString()						{ return "NCBI BLAST URL API (nr)";		}
+	static void sop(Object x)						{ Log.info(x);       			}
+}
@@ -0,0 +1,156 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    PSSMPrefilter.java
+ *
+ */
+
+
+package arbitrator.pipeline;
+
+import java.io.*;
+import java.util.*;
+
+import arbitrator.utils.*;
+
+
+//
+// Classifies clear-cut hits in the JVM so that only ambiguous ones go to CD-Search. PSSMs are loaded
+// from a directory of psiblast ASCII PSSM files named <accession>.pssm (see PSSM). Every positive
+// domain must be present. Uninformative domains and any other .pssm files in the directory (e.g. 
+// competing families such as cd02032 BchL) are loaded too.
+//
+// The superiority measure is the one in Pipeline.classifyBatch(): log10(eOther) - log10(eTarget).
+// RPS-BLAST e-values are K*L*N*exp(-lambda*S) for query length L and CDD size N, which are the same
+// for every domain, so superiority reduces to (bitsTarget - bitsOther) * log10(2) and needs no CDD 
+// size. As in classifyBatch(), uninformative domains are not competitors.
+//
+// A call is only made offline when it can't plausibly differ from CD-Search's:
+//   -- Negative if the best positive-domain score is below negativeMaxBits. At that score CD-Search 
+//      would not report a positive-domain hit at its e=0.01 cutoff, so the 1st informative hit can't
+//      be to a positive domain.
+//   -- Positive if the best positive-domain score is at least positiveMinBits and its superiority
+//      over every loaded competitor exceeds the threshold by SUPERIORITY_MARGIN. A domain missing from
+//      the PSSM directory could still outscore it, which is why positiveMinBits should be high.
+// Everything else is ambiguous and returns null.
+//
+
+
+class PSSMPrefilter 
+{
+	final static double				DEFAULT_POSITIVE_MIN_BITS	= 150;
+	final static double				DEFAULT_NEGATIVE_MAX_BITS	=  25;
+	private final static double		SUPERIORITY_MARGIN			=   5;		// log10 units, i.e. ~17 bits
+	private final static double		LOG10_2						= Math.log10(2);
+	
+	private Vector<PSSM>			positives;
+	private Vector<PSSM>			competitors;
+	private double					superiorityThreshold;
+	private double					positiveMinBits = DEFAULT_POSITIVE_MIN_BITS;
+	private double					negativeMaxBits = DEFAULT_NEGATIVE_MAX_BITS;
+	private PSSMScorer				scorer;
+	int								nPositive;
+	int								nNegative;
+	int								nAmbiguous;
+	
+	
+	static class Call
+	{
+		Boolean						positive;		// null => ambiguous
+		double						positiveBits;
+		double						superiority;
+		
+		public String toString()	{ return "bits=" + Math.round(positiveBits) + " superiority=" + superiority; }
+	}
+	
+	
+	PSSMPrefilter(File pssmDirf, Set<String> positiveDomains, Set<String> uninformativeDomains, 
+				  double superiorityThreshold) throws IOException
+	{
+		this.superiorityThreshold = superiorityThreshold;
+		positives = new Vector<PSSM>();
+		competitors = new Vector<PSSM>();
+		scorer = new PSSMScorer();
+		
+		File[] kids = pssmDirf.listFiles();
+		if (kids == null)
+			throw new IOException("No such PSSM directory: " + pssmDirf.getAbsolutePath());
+		Set<String> loaded = new HashSet<String>();
+		for (File kid: kids)
+		{
+			if (!kid.getName().endsWith(".pssm"))
+				continue;
+			PSSM pssm = PSSM.load(kid);
+			loaded.add(pssm.getAccession());
+			if (positiveDomains.contains(pssm.getAccession()))
+				positives.add(pssm);
+			else if (!uninformativeDomains.contains(pssm.getAccession()))
+				competitors.add(pssm);
+		}
+		for (String domain: positiveDomains)
+			if (!loaded.contains(domain))
+				throw new IOException("No PSSM for positive domain " + domain + " in " + pssmDirf.getAbsolutePath());
+		for (String domain: uninformativeDomains)
+			if (!loaded.contains(domain))
+				sop("No PSSM for uninformative domain " + domain + " (not needed for superiority).");
+	}
+	
+	
+	Call call(String sequence)
+	{
+		byte[] encoded = PSSM.encode(sequence);
+		Call ret = new Call();
+		ret.positiveBits = bestBits(positives, encoded);
+		double otherBits = bestBits(competitors, encoded);
+		ret.superiority = (ret.positiveBits - otherBits) * LOG10_2;		// +inf if no competitors
+		
+		if (ret.positiveBits < negativeMaxBits)
+		{
+			ret.positive = Boolean.FALSE;
+			nNegative++;
+		}
+		else if (ret.positiveBits >= positiveMinBits  &&  ret.superiority >= superiorityThreshold + SUPERIORITY_MARGIN)
+		{
+			ret.positive = Boolean.TRUE;
+			nPositive++;
+		}
+		else
+			nAmbiguous++;
+		return ret;
+	}
+	
+	
+	private double bestBits(Vector<PSSM> pssms, byte[] encoded)
+	{
+		double best = Double.NEGATIVE_INFINITY;
+		for (PSSM pssm: pssms)
+			best = Math.max(best, pssm.toBits(scorer.score(pssm, encoded)));
+		return best;
+	}
+	
+	
+	void setPositiveMinBits(double bits)	{ positiveMinBits = bits; }
+	void setNegativeMaxBits(double bits)	{ negativeMaxBits = bits; }
+	static void sop(Object x)				{ Log.info(x); }
+	
+	
+	public String toString()
+	{
+		return "PSSM prefilter: " + positives.size() + " positive and " + competitors.size() + 
+			" competing PSSM(s), positive if >= " + positiveMinBits + " bits, negative if < " + negativeMaxBits + " bits";
+	}
+}
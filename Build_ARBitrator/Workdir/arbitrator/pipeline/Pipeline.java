@@ -27,6 +27,7 @@ import iubio.readseq.WriteseqOpts;
 
 import java.util.*;
 import java.io.*;
+import java.util.concurrent.CancellationException;
 import arbitrator.utils.*;
 
 
@@ -39,6 +40,11 @@ public class Pipeline
 	{
 		new File(WORK_DIRF, "PositiveCheckpoint.txt"), new File(WORK_DIRF, "NegativeCheckpoint.txt") 
 	};
+	private final static String		HSP_REJECTS_FILENAME		= "hsp_prefilter_rejects.txt";
+	private final static String		TAIL_SKIPPED_FILENAME		= "tail_skipped.txt";
+	private final static String		LEDGER_FILENAME				= "ledger.log";
+	private final static int		EMBL_STAGE_CAPACITY			= 200;
+	private final static int		LISTENER_PROGRESS_INTERVAL	= 1000;
 	// March 2023: Increase from 50K to 100K because we are probably missing
     	// valid nifH, since all the blast results are hitting 50K (if -q 2).
     	// The maintainerNotes.txt have more information.
@@ -48,9 +54,17 @@ public class Pipeline
 	// increasing the batch size from the original 250 to 2K failed (http error
 	// 414).
 	private final static int		RPS_BLAST_BATCH_SIZE 		=   250;	// worked nicely for nifH and nifD
+	// Local rpsblast has no URL limit, but each process pays a few seconds to load CDD, so give every
+	// worker process a full CD-Search-sized batch.
+	private final static int		LOCAL_RPS_BLAST_BATCH_SIZE_PER_WORKER	=   250;
 	private final static String[]	CL_ARG_NAMES				= 
 	{ 
-		"-q", "-s", "-replistfile", "-posdom", "-uninfdom", "-ol", "-oe", "-oefails", "-ignore", "-norecovery", "-apikey"
+		"-q", "-s", "-replistfile", "-posdom", "-uninfdom", "-ol", "-oe", "-oefails", "-ignore", "-norecovery", "-apikey",
+		"-blastdb", "-blastbin", "-threads", "-cdddb",
+		"-pssmdir", "-pssmposbits", "-pssmnegbits", "-metricsinterval",
+		"-loglevel", "-sharedrate", "-priorities", "-mincov", "-minalnlen", "-minident", "-order",
+		"-tailfloor", "-tailwindow", "-retries", "-retrydelay", "-overlap", "-fetchthreads",
+		"-ncbiurl", "-record", "-replay", "-replaylatency"
 	};
 
 	private double					qualityThreshold;
@@ -66,8 +80,40 @@ public class Pipeline
 	private Set<String>				positiveCallGIs;
 	private Set<String>				negativeCallGIs;
 	private Set<String>				conversionFailurePositiveCallGIs; // jmagasin Apr 2017: Long -> String
+	private IncrementalOutputFile	listOutput;						// -ol, appended as positives are called
+	private IncrementalOutputFile	emblOutput;						// -oe, appended as records are converted
+	private boolean					resumingOutputs;				// false => outputs start empty
+	private AccessionLedger			ledger;							// null => trouble opening it, run without
+	private volatile boolean		ledgerDisabled;					// true => trouble writing it, run without
+	private int						maxConversionRetries = ConversionRetryQueue.DEFAULT_MAX_RETRIES;
+	private ConversionRetryQueue	retryQueue;
+	private volatile int			nGoodWrites;					// EMBL records written this run
+	private volatile int			nBadWrites;						// EMBL conversions given up on
+	private boolean					overlapEmbl;					// true => EMBL generation starts with classification
+	private int						nFetchThreads = 1;
+	private BoundedStage<String, ?>	emblStages;						// null unless generating EMBL
+	private Set<String>				emblSubmitted;
+	private volatile int			nEmblSubmitted;
 	private boolean					noRecovery;
 	private String					apiKey;
+	private String					localBlastDb;					// null => blast nr at NCBI
+	private File					localBlastBinDirf;				// null => BLAST+ executables on PATH
+	private int						nThreads;
+	private String					localCddDb;						// null => classify with CD-Search at NCBI
+	private boolean					exitOnConfigError;				// false => throw IllegalArgumentException
+	
+	private SharedCaches			caches = new SharedCaches();	// shared by all profiles if -targets
+	private String					profileName;					// null => single target, not -targets
+	private Vector<PipelineListener>	listeners = new Vector<PipelineListener>();
+	private PSSMPrefilter			pssmPrefilter;					// null => send every unknown hit to CD-Search
+	private int						metricsIntervalSecs = 300;
+	private File					sharedRateFile;					// null => rate limit within this process only
+	private static NCBIRecorder		ncbiRecorder;					// -record, process-wide like NCBIUrls
+	private static NCBIReplayServer	ncbiReplayServer;				// -replay, process-wide like NCBIUrls
+	private HSPPrefilter			hspPrefilter;					// null => classify every hit
+	private boolean					orderByEvalue;					// false => blast results file order
+	private Map<String, Double>		bestEvalues;					// accession => best e-value, if orderByEvalue
+	private TailCutoff				tailCutoff;						// null => classify every representative's full list
 	
 	
 					
@@ -87,15 +133,17 @@ public class Pipeline
 	
 	
 	
-	// Args are command-line arguments. Call with "-help" for explanation.
-	private Pipeline(String[] args)
+	// Args are command-line arguments. Call with "-help" for explanation. Configuration errors exit the
+	// JVM if exitOnConfigError, else throw IllegalArgumentException.
+	private Pipeline(String[] args, boolean exitOnConfigError)
 	{
+		this.exitOnConfigError = exitOnConfigError;
 		for (String arg: args)
 		{
 			if (arg.equals("-help"))
 			{
 				printUsage();
-				System.exit(0);
+				exit(0);
 			}
 		}
 		
@@ -106,7 +154,7 @@ public class Pipeline
 		if (argnameToValue.containsKey("-help"))
 		{
 			printUsage();
-			System.exit(0);
+			exit(0);
 		}
 		
 		// Quality threshold.
@@ -118,15 +166,14 @@ public class Pipeline
 			}
 			catch (NumberFormatException x)
 			{
-				sop("Illegal quality threshold: " + argnameToValue.get("-q"));
-				System.exit(1);
+				configFail("Illegal quality threshold: " + argnameToValue.get("-q"));
 			}
 		}
 		else
 		{
 			sop("No quality threshold specified in command line.");
 			printUsage();
-			System.exit(0);
+			exit(0);
 		}
 		
 		// Superiority threshold.
@@ -138,15 +185,14 @@ public class Pipeline
 			}
 			catch (NumberFormatException x)
 			{
-				sop("Illegal superiority threshold: " + argnameToValue.get("-s"));
-				System.exit(1);
+				configFail("Illegal superiority threshold: " + argnameToValue.get("-s"));
 			}
 		}
 		else
 		{
 			sop("No superiority threshold specified in command line.");
 			printUsage();
-			System.exit(0);
+			exit(0);
 		}
 		
 		// Representatives.
@@ -169,15 +215,14 @@ public class Pipeline
 			}
 			catch (IOException x)
 			{
-				sop("Trouble reading representatives from file " + repFile);
-				System.exit(1);
+				configFail("Trouble reading representatives from file " + repFile);
 			}
 		}
 		else
 		{
 			sop("No superiority threshold specified in command line.");
 			printUsage();
-			System.exit(0);
+			exit(0);
 		}
 		
 		// Positive domains.
@@ -260,11 +305,224 @@ public class Pipeline
 		// API key.
 		if (argnameToValue.containsKey("-apikey"))
 			apiKey = argnameToValue.get("-apikey");
+		
+		// Host-wide rate limiting.
+		if (argnameToValue.containsKey("-sharedrate"))
+		{
+			sharedRateFile = new File(argnameToValue.get("-sharedrate"));
+			try
+			{
+				NCBISnooze.useSharedRateFile(sharedRateFile);
+			}
+			catch (IOException x)
+			{
+				configFail("Can't use shared rate file " + sharedRateFile.getAbsolutePath() + ": " + x.getMessage());
+			}
+		}
+		
+		// NCBI request priorities.
+		if (argnameToValue.containsKey("-priorities"))
+		{
+			try
+			{
+				NCBISnooze.setPriorities(argnameToValue.get("-priorities"));
+			}
+			catch (IllegalArgumentException x)
+			{
+				configFail("Illegal priorities: " + argnameToValue.get("-priorities") + " (" + x.getMessage() + ")");
+			}
+		}
+		
+		// Where NCBI requests go, and recording or replaying them.
+		if (argnameToValue.containsKey("-record")  &&  argnameToValue.containsKey("-replay"))
+			configFail("-record and -replay can't be used together");
+		if (argnameToValue.containsKey("-ncbiurl")  &&  argnameToValue.containsKey("-replay"))
+			configFail("-ncbiurl and -replay can't be used together");
+		if (argnameToValue.containsKey("-replaylatency")  &&  !argnameToValue.containsKey("-replay"))
+			configFail("-replaylatency requires -replay");
+		if (argnameToValue.containsKey("-replay")  &&  !new File(argnameToValue.get("-replay")).exists())
+			configFail("No fixture archive " + argnameToValue.get("-replay"));
+		try
+		{
+			useNCBIFixtures(argnameToValue);
+		}
+		catch (IllegalArgumentException x)
+		{
+			configFail("Illegal NCBI URL or replay setting: " + x.getMessage());
+		}
+		catch (IOException x)
+		{
+			configFail("Can't record or replay NCBI responses: " + x.getMessage());
+		}
+		
+		// Local search.
+		if (argnameToValue.containsKey("-blastdb"))
+			localBlastDb = argnameToValue.get("-blastdb");
+		if (argnameToValue.containsKey("-blastbin"))
+			localBlastBinDirf = new File(argnameToValue.get("-blastbin"));
+		if (argnameToValue.containsKey("-cdddb"))
+			localCddDb = argnameToValue.get("-cdddb");
+		
+		// PSSM prefilter.
+		if (argnameToValue.containsKey("-pssmdir"))
+		{
+			File pssmDirf = new File(argnameToValue.get("-pssmdir"));
+			try
+			{
+				pssmPrefilter = new PSSMPrefilter(pssmDirf, positiveDomains, uninformativeDomains, superiorityThreshold);
+				if (argnameToValue.containsKey("-pssmposbits"))
+					pssmPrefilter.setPositiveMinBits(Double.parseDouble(argnameToValue.get("-pssmposbits")));
+				if (argnameToValue.containsKey("-pssmnegbits"))
+					pssmPrefilter.setNegativeMaxBits(Double.parseDouble(argnameToValue.get("-pssmnegbits")));
+			}
+			catch (IOException x)
+			{
+				configFail("Trouble loading PSSMs from " + pssmDirf.getAbsolutePath() + ": " + x.getMessage());
+			}
+			catch (NumberFormatException x)
+			{
+				configFail("Illegal PSSM bit score threshold: " + x.getMessage());
+			}
+		}
+		
+		// HSP prefilter.
+		double minCoverage = 0;
+		int minAlnLen = 0;
+		double minIdentity = 0;
+		try
+		{
+			if (argnameToValue.containsKey("-mincov"))
+				minCoverage = Double.parseDouble(argnameToValue.get("-mincov"));
+			if (argnameToValue.containsKey("-minalnlen"))
+				minAlnLen = Integer.parseInt(argnameToValue.get("-minalnlen"));
+			if (argnameToValue.containsKey("-minident"))
+				minIdentity = Double.parseDouble(argnameToValue.get("-minident"));
+		}
+		catch (NumberFormatException x)
+		{
+			configFail("Illegal HSP prefilter threshold: " + x.getMessage());
+		}
+		if (minCoverage > 1)
+		{
+			configFail("Illegal query coverage: " + minCoverage + " (must be a fraction between 0 and 1)");
+		}
+		HSPPrefilter hspf = new HSPPrefilter(minCoverage, minAlnLen, minIdentity);
+		if (hspf.isEnabled())
+			hspPrefilter = hspf;
+		
+		// Processing order.
+		if (argnameToValue.containsKey("-order"))
+		{
+			String order = argnameToValue.get("-order");
+			if (order.equalsIgnoreCase("evalue"))
+				orderByEvalue = true;
+			else if (!order.equalsIgnoreCase("file"))
+			{
+				configFail("Illegal order: " + order + " (must be file or evalue)");
+			}
+		}
+		
+		// Tail cutoff.
+		if (argnameToValue.containsKey("-tailfloor"))
+		{
+			try
+			{
+				tailCutoff = new TailCutoff(Double.parseDouble(argnameToValue.get("-tailfloor")));
+				if (argnameToValue.containsKey("-tailwindow"))
+					tailCutoff.setWindowSize(Integer.parseInt(argnameToValue.get("-tailwindow")));
+			}
+			catch (IllegalArgumentException x)
+			{
+				configFail("Illegal tail cutoff setting: " + x.getMessage());
+			}
+		}
+		
+		// Retry of transient EMBL conversion failures.
+		try
+		{
+			int retryDelaySecs = ConversionRetryQueue.DEFAULT_BASE_DELAY_SECS;
+			if (argnameToValue.containsKey("-retries"))
+				maxConversionRetries = Integer.parseInt(argnameToValue.get("-retries"));
+			if (argnameToValue.containsKey("-retrydelay"))
+				retryDelaySecs = Integer.parseInt(argnameToValue.get("-retrydelay"));
+			retryQueue = new ConversionRetryQueue(maxConversionRetries, retryDelaySecs);
+		}
+		catch (IllegalArgumentException x)
+		{
+			configFail("Illegal retry setting: " + x.getMessage());
+		}
+		
+		// EMBL stages.
+		if (argnameToValue.containsKey("-overlap"))
+			overlapEmbl = argnameToValue.get("-overlap").equalsIgnoreCase("true");
+		if (argnameToValue.containsKey("-fetchthreads"))
+		{
+			try
+			{
+				nFetchThreads = Integer.parseInt(argnameToValue.get("-fetchthreads"));
+				if (nFetchThreads < 1)
+					throw new NumberFormatException();
+			}
+			catch (NumberFormatException x)
+			{
+				configFail("Illegal fetch thread count: " + argnameToValue.get("-fetchthreads"));
+			}
+		}
+		
+		// Logging.
+		if (argnameToValue.containsKey("-loglevel"))
+		{
+			try
+			{
+				Log.setLevel(Log.Level.valueOf(argnameToValue.get("-loglevel").toUpperCase()));
+			}
+			catch (IllegalArgumentException x)
+			{
+				configFail("Illegal log level: " + argnameToValue.get("-loglevel"));
+			}
+		}
+		
+		// Metrics.
+		if (argnameToValue.containsKey("-metricsinterval"))
+		{
+			try
+			{
+				metricsIntervalSecs = Integer.parseInt(argnameToValue.get("-metricsinterval"));
+			}
+			catch (NumberFormatException x)
+			{
+				configFail("Illegal metrics interval: " + argnameToValue.get("-metricsinterval"));
+			}
+		}
+		
+		nThreads = Runtime.getRuntime().availableProcessors();
+		if (argnameToValue.containsKey("-threads"))
+		{
+			try
+			{
+				nThreads = Integer.parseInt(argnameToValue.get("-threads"));
+			}
+			catch (NumberFormatException x)
+			{
+				configFail("Illegal thread count: " + argnameToValue.get("-threads"));
+			}
+		}
+	}
+	
+	
+	// For a target profile in a -targets run, a PipelineService job or an EmbeddedPipeline. The work dir is
+	// shared, so only the 1st profile of a -targets run may clear it. Only a -targets run should exit on a
+	// configuration error; the others must just fail the job.
+	Pipeline(String[] args, String profileName, SharedCaches caches, boolean exitOnConfigError)
+	{
+		this(args, exitOnConfigError);
+		this.profileName = profileName;
+		this.caches = caches;
 	}
 	
 	
 	// Keys are arg names, e.g. "-q". Values are arg values as strings, e.g. "2.0".
-	private static Map<String, String> tokenizeCommandLine(String[] args)
+	private Map<String, String> tokenizeCommandLine(String[] args)
 	{
 		if (args.length % 2 != 0)
 			claFail();
@@ -283,8 +541,14 @@ public class Pipeline
 	}
 	
 	
+	static boolean isArgName(String argname)
+	{
+		return Arrays.asList(CL_ARG_NAMES).contains(argname);
+	}
+	
+	
 	// Exits if trouble.
-	private static void validateArgs(Map<String, String> argnameToValue)
+	private void validateArgs(Map<String, String> argnameToValue)
 	{
 		Set<String> validArgNames = new HashSet<String>();
 		for (String validName: CL_ARG_NAMES)
@@ -301,11 +565,81 @@ public class Pipeline
 	}
 	
 	
-	private static void claFail()
+	// -ncbiurl, -record and -replay. They're process-wide, so with -targets only the 1st profile's take 
+	// effect.
+	static void useNCBIFixtures(Map<String, String> argnameToValue) throws IOException
+	{
+		if (argnameToValue.containsKey("-ncbiurl"))
+			NCBIUrls.setRoots(argnameToValue.get("-ncbiurl"));
+		if (argnameToValue.containsKey("-record")  &&  ncbiRecorder == null)
+			ncbiRecorder = NCBIRecorder.install(new File(argnameToValue.get("-record")));
+		if (argnameToValue.containsKey("-replay")  &&  ncbiReplayServer == null)
+		{
+			NCBIFixtureArchive archive = new NCBIFixtureArchive(new File(argnameToValue.get("-replay")));
+			NCBIReplayServer server = new NCBIReplayServer(archive, 0);
+			if (argnameToValue.containsKey("-replaylatency"))
+				server.setLatency(argnameToValue.get("-replaylatency"));
+			NCBIUrls.setRoots(server.start());
+			ncbiReplayServer = server;
+		}
+	}
+	
+	
+	// The replay server's threads would keep the JVM alive.
+	static void stopNCBIFixtures()
+	{
+		try
+		{
+			if (ncbiRecorder != null)
+			{
+				sop(ncbiRecorder);
+				ncbiRecorder.uninstall();
+			}
+		}
+		catch (IOException x)
+		{
+			sop("Couldn't close NCBI fixture archive: " + x.getMessage());
+		}
+		if (ncbiReplayServer != null)
+		{
+			sop(ncbiReplayServer);
+			ncbiReplayServer.stop();
+		}
+		ncbiRecorder = null;
+		ncbiReplayServer = null;
+	}
+	
+	
+	// Configuration errors exit the JVM, except in a PipelineService or EmbeddedPipeline, where they must
+	// only fail the job.
+	private void configFail(String msg)
+	{
+		configFail(msg, exitOnConfigError);
+	}
+	
+	
+	private static void configFail(String msg, boolean exitOnConfigError)
+	{
+		sop(msg);
+		if (!exitOnConfigError)
+			throw new IllegalArgumentException(msg);
+		System.exit(1);
+	}
+	
+	
+	private void exit(int status)
+	{
+		if (!exitOnConfigError)
+			throw new IllegalArgumentException("Invalid pipeline configuration; see usage");
+		System.exit(status);
+	}
+	
+	
+	private void claFail()
 	{
 		assert false : "cla fail";
 		printUsage();
-		System.exit(1);
+		exit(1);
 	}
 	
 	
@@ -316,7 +650,14 @@ public class Pipeline
 			"-replistfile representative_GI_filename -posdom positive_domain_list " +
 			"-uninfdom uninformative_domain_list -ol list_output_file" +
 			"-oe embl_output_file -oefails EMBL_failures_file -ignore ignore_file_list -norecovery true/false " +
-			"-apikey your_key";
+			"-apikey your_key -blastdb local_protein_db -blastbin blast_bin_dir -threads n " +
+			"-cdddb local_cdd_db -pssmdir pssm_dir -pssmposbits bits -pssmnegbits bits " +
+			"-metricsinterval secs -loglevel debug/info/warn/error -sharedrate rate_file -priorities CLASS=weight,... " +
+			"-mincov fraction -minalnlen residues -minident percent -order file/evalue -tailfloor fraction -tailwindow n " +
+			"-retries n -retrydelay secs -overlap true/false -fetchthreads n " +
+			"-ncbiurl root_url -record fixture_archive -replay fixture_archive -replaylatency recorded/msecs/SERVICE=msecs,...\n" +
+			"   or: java arbitrator.pipeline.Pipeline -targets target_profiles_file [args for all profiles]\n" +
+			"   or: java arbitrator.pipeline.Pipeline -serve port [args for all jobs]";
 		sop(s);
 		sop("\n  GIs of representative protein sequences should be 1 per line in file specified by \"replistfile\"");
 		sop("\n  Positive and uninformative domain lists are comma-separated with no spaces. At least 1");
@@ -325,6 +666,8 @@ public class Pipeline
 		sop("  \"-ol\" specifies output as a list of nucleotide GIs, 1 per line.");
 		sop("  \"-oe\" specifies output as an ARB-compatible EMBL file.");
 		sop("  1 or both of \"-ol\" and \"-oe\" must be specified.");
+		sop("  Both are appended to as results are produced, so partial output is usable during a run. Each has a");
+		sop("  small <file>.commit log; after a crash, a resumed run drops any incomplete last record and carries on.");
 		sop("  Sometimes records cannot be converted to EMBL. Use -oefails to request a list of these " +
 			"GIs to the specified file.");
 		sop("\n  For incremental execution, any number of ignore files may be specified. These are");
@@ -332,21 +675,86 @@ public class Pipeline
 		sop("  The list of ignore files should be comma-separated with no spaces.\n");
 		sop("  \"-norecovery=true\" (UNIX only) deletes recovery checkpoint files, forcing a fresh complete run.\n"  +
 				"  Under Windows, checkpoint files must be deleted manually (remove \"work\" subdir and contents)."  +
-				"\n  Omit or use \"-norecovery=false\" to use checkpoint files and restart a prematurely termainated run.\n");
+				"\n  Omit or use \"-norecovery=false\" to use checkpoint files and restart a prematurely termainated run."  +
+				"\n  The work dir's ledger.log records each accession's progress (classified, fetched, converted, failed), so a"  +
+				"\n  restarted run picks up each accession where it stopped.\n");
+		sop("  EMBL conversions that fail in ways that are usually NCBI throttling (no response, or a truncated page)");
+		sop("  are retried at the end of the EMBL stage, or sooner when NCBI isn't throttling. \"-retries\" (default " + 
+			ConversionRetryQueue.DEFAULT_MAX_RETRIES + ") sets");
+		sop("  how many times; \"-retrydelay\" (default " + ConversionRetryQueue.DEFAULT_BASE_DELAY_SECS + 
+			") sets the secs before the 1st retry, doubling after each. Use -retries 0 to disable.\n");
+		sop("  \"-overlap true\" starts generating EMBL for positives as soon as they're called, instead of after");
+		sop("  classification. \"-fetchthreads\" (default 1) sets how many NCBI record fetches for EMBL generation");
+		sop("  may be in progress at once; all are still paced by the NCBI rate limit.\n");
+		sop("  \"-ncbiurl\" sends NCBI requests to another root URL, e.g. a proxy: either 1 for every service, e.g.");
+		sop("  http://localhost:8080, or per service, e.g. EUTILS=http://localhost:8080,BUA=...,CDSEARCH=....");
+		sop("  \"-record\" appends every NCBI response to the named fixture archive. \"-replay\" serves a fixture");
+		sop("  archive from a local server instead of NCBI, so a recorded run can be repeated with no network.");
+		sop("  \"-replaylatency\" delays each replayed response by its recorded latency (\"recorded\", the default),");
+		sop("  by msecs, or by msecs per service, e.g. BUA=2000,CDSEARCH=1500,EUTILS=300. The replay server can");
+		sop("  also be run on its own: java arbitrator.utils.NCBIReplayServer archive [port] [latency]\n");
 		sop("  \"-apikey\" is optionally used to specify an API KEY specific to your NCBI account. This has two");
 		sop("  advantages: (1) NCBI permits higher request rates for E-utilities when an API key is used, so");
 		sop("  ARBitrator will run faster. (2) If your network is such all traffic to NCBI appears to come from");
 		sop("  one IP address, the max request rate allowed by NCBI will be shared across applications, and NCBI");
 		sop("  may reject requests if the rate is too high. API keys allow NCBI to monitor the request rate for");
 		sop("  the user associated with the key and should avoid this issue.  Note that ARBitrator monitors its");
-		sop("  request rate so that it does not exceed max rates allowed by NCBI.\n");
+		sop("  request rate so that it does not exceed max rates allowed by NCBI, and slows down if NCBI");
+		sop("  signals that requests are coming too fast.\n");
+		sop("  \"-sharedrate\" names a file through which every ARBitrator on this host shares NCBI's per-IP");
+		sop("  request rate. Use the same file (writable by all users) for concurrent runs; each run then gets");
+		sop("  a fair share of the rate instead of all of them together exceeding it.\n");
+		sop("  \"-priorities\" sets the relative share of NCBI requests for each kind of request when several");
+		sop("  are waiting, e.g. -priorities BLAST_POLL=1,EFETCH_NUCLEOTIDE=10. The default weights, which favor");
+		sop("  finishing in-flight work over polling over starting new work, are:");
+		sop("    " + RequestClass.weightsToString() + "\n");
+		sop("  \"-blastdb\" blasts representatives with a local BLAST+ blastp against the specified protein");
+		sop("  database instead of nr at NCBI. The database must be built with makeblastdb -parse_seqids and");
+		sop("  must contain the representatives. \"-blastbin\" is the directory holding blastp and blastdbcmd");
+		sop("  (default: search the PATH). \"-threads\" is the number of cores to use (default: all).\n");
+		sop("  \"-cdddb\" classifies hits with a local BLAST+ rpsblast against the specified CDD database");
+		sop("  instead of Batch CD-Search at NCBI. Queries are split across \"-threads\" rpsblast processes.");
+		sop("  Hit sequences come from the \"-blastdb\" database if specified, else from E-utilities.\n");
+		sop("  \"-pssmdir\" enables an in-JVM prefilter that scores hit sequences against psiblast ASCII PSSMs");
+		sop("  named <domain>.pssm, which must include every positive domain. Hits whose best positive-domain");
+		sop("  score is below \"-pssmnegbits\" (default " + PSSMPrefilter.DEFAULT_NEGATIVE_MAX_BITS + ") are called negative, and hits");
+		sop("  scoring at least \"-pssmposbits\" (default " + PSSMPrefilter.DEFAULT_POSITIVE_MIN_BITS + ") and clearly superior to every other");
+		sop("  loaded domain are called positive. Only the rest are sent for domain classification.\n");
+		sop("  \"-mincov\", \"-minalnlen\" and \"-minident\" drop blast hits whose query coverage (0-1), alignment");
+		sop("  length or % identity is below the given minimum before they are classified, so fragments and");
+		sop("  partial hits never use CD-Search or E-utilities. A hit split into several HSPs is judged on all of");
+		sop("  them together; coverage is of their union, as in blast's qcovs. Query length is taken from the");
+		sop("  representative's self hit. Rejected hits and the reason are written to " + 
+			new File(WORK_DIRF, HSP_REJECTS_FILENAME).getPath() + ".\n");
+		sop("  \"-order evalue\" classifies hits and generates EMBL records in order of each accession's best");
+		sop("  e-value across all representatives, so an interrupted or time-boxed run has done the most");
+		sop("  significant hits. The default, \"-order file\", goes representative by representative.\n");
+		sop("  \"-tailfloor\" stops classifying a representative's low-significance tail once the fraction of");
+		sop("  positive calls among its last \"-tailwindow\" (default " + TailCutoff.DEFAULT_WINDOW_SIZE + ") calls drops below the floor,");
+		sop("  e.g. -tailfloor 0.01. Skipped accessions are listed in " + new File(WORK_DIRF, TAIL_SKIPPED_FILENAME).getPath() + " for auditing.\n");
+		sop("  \"-targets\" classifies several gene families in one run. Each line of the file is a profile");
+		sop("  name followed by that profile's args (-q, -s, -replistfile, -posdom, -uninfdom, -ol, -oe, etc.):");
+		sop("    nifH -q 2 -s 3 -replistfile nifh_reps.txt -posdom cd02040 -uninfdom cd02117 -oe nifH.embl");
+		sop("  Other command-line args apply to every profile. Profiles share CD-Search results and caches, so");
+		sop("  an accession in several profiles' blast results is only searched once. Checkpoints and reports");
+		sop("  in the work dir are prefixed by profile name.\n");
+		sop("  \"-serve\" runs ARBitrator as a long-lived service on localhost:port that accepts jobs as JSON");
+		sop("  (POST /jobs, e.g. {\"representatives\": [\"WP_011611922.1\"], \"q\": 2, \"s\": 3, \"posdom\": [\"cd02040\"]})");
+		sop("  and streams their progress and results (GET /jobs/<id>/events). Caches and the NCBI rate");
+		sop("  limiter stay warm across jobs. Other command-line args are defaults for every job.\n");
+		sop("  \"-metricsinterval\" is how often to print a one-line METRICS summary of request counts and");
+		sop("  latencies, rate-limiter waits, throughput, etc. (default 300 secs, 0 to disable). The same");
+		sop("  metrics are always available over JMX as arbitrator:type=Metrics (e.g. with jconsole).\n");
+		sop("  \"-loglevel\" sets log verbosity (default info). At info, long loops print a progress line");
+		sop("  every few seconds. Use debug to also log every group, call, and EMBL record.\n");
 	}
 	
 	
 	public String toString()
 	{
 		// Thresholds.
-		String s = "Pipeline: quality/superiority thresholds = " + qualityThreshold + "/" + superiorityThreshold + "\n";
+		String s = (profileName == null)  ?  ""  :  "Target profile " + profileName + ":\n";
+		s += "Pipeline: quality/superiority thresholds = " + qualityThreshold + "/" + superiorityThreshold + "\n";
 		s += "  E-value for blast = " + getExpect();
 		
 		// Representatives.
@@ -395,6 +803,33 @@ public class Pipeline
 		} else {
 			s += "\n  An API key will be used so ARBitrator can make up to 10 NCBI requests per sec.";
 		}
+		if (sharedRateFile != null)
+			s += "\n  NCBI request rate is shared host-wide through " + sharedRateFile.getAbsolutePath();
+		s += "\n  NCBI request priorities: " + RequestClass.weightsToString();
+		if (ncbiReplayServer != null)
+			s += "\n  " + ncbiReplayServer;
+		else if (!NCBIUrls.isDefault())
+			s += "\n  NCBI requests go to " + NCBIUrls.rootsToString();
+		if (ncbiRecorder != null)
+			s += "\n  " + ncbiRecorder;
+		
+		// Search backend.
+		s += "\n  Representatives will be blasted with " + getSearchBackend();
+		if (localCddDb == null)
+			s += "\n  Hits will be classified with NCBI Batch CD-Search";
+		else
+			s += "\n  Hits will be classified with local rpsblast against " + localCddDb + " using " + nThreads + " process(es)";
+		if (pssmPrefilter != null)
+			s += "\n  " + pssmPrefilter;
+		if (hspPrefilter != null)
+			s += "\n  " + hspPrefilter;
+		if (tailCutoff != null)
+			s += "\n  " + tailCutoff;
+		s += "\n  " + retryQueue;
+		if (emblOutputFile != null)
+			s += "\n  EMBL generation will " + (overlapEmbl ? "overlap" : "follow") + " classification, with " + 
+				nFetchThreads + " fetch thread(s)";
+		s += "\n  Hits will be processed in " + (orderByEvalue ? "best e-value" : "blast results file") + " order";
 		return s;
 	}
 	
@@ -483,7 +918,28 @@ public class Pipeline
 	
 	
 	public void runPipeline() throws IOException
-	{			
+	{
+		try
+		{
+			runStages();
+		}
+		finally
+		{
+			// Only still set if something went wrong.
+			if (emblStages != null)
+			{
+				emblStages.abort();
+				emblStages = null;
+			}
+		}
+	}
+	
+	
+	private void runStages() throws IOException
+	{
+		Metrics.registerMBean();
+		Metrics.startPeriodicSummary(metricsIntervalSecs);
+		
 		// Delete recovery files from last run unless doing recovery.
 		if (noRecovery)
 		{
@@ -491,8 +947,7 @@ public class Pipeline
 			if (osName.toLowerCase().startsWith("windows"))
 			{
 				sop("Can't programmatically remove recovery files under Windows.");
-				sop("Please manually delete " + WORK_DIRF.getAbsolutePath() + " and its contents.");
-				System.exit(1);
+				configFail("Please manually delete " + WORK_DIRF.getAbsolutePath() + " and its contents.");
 			}			
 			String cl = "rm -rf " + WORK_DIRF.getAbsolutePath();
 			SystemCaller caller = new SystemCaller(cl);
@@ -514,90 +969,107 @@ public class Pipeline
 			EMBLS_DIRF.mkdirs();
 		
 		// Blast if necessary.
+		for (PipelineListener listener: listeners)
+			listener.stageStarted(PipelineListener.STAGE_BLAST, representatives.size());
 		double expect = getExpect();
-		BlastCoordinator blastCoordinator = new BlastCoordinator(representatives, WORK_DIRF, HIT_LIST_SIZE, expect, apiKey);
+		BlastCoordinator blastCoordinator = 
+			new BlastCoordinator(representatives, WORK_DIRF, HIT_LIST_SIZE, expect, getSearchBackend());
 		blastCoordinator.blastRepresentativesBlockUntilDone();
 		
 		// Sequences probably appear in blast results for most/all representatives. Retain positive and
 		// negative calls from all blasts, for instant classification when sequences reappear in later blasts.
-		// Initialize with any checkpointed calls from a prior (and presumably aborted) run.
+		// Initialize with any checkpointed calls from a prior (and presumably aborted) run. The ledger
+		// knows every call that reached it, including those made after the last checkpoint.
+		ledgerDisabled = false;
+		try
+		{
+			ledger = new AccessionLedger(getProfileFile(LEDGER_FILENAME));
+		}
+		catch (IOException x)
+		{
+			sop("Trouble opening ledger, running without it: " + x.getMessage());
+			ledger = null;
+		}
+		resumingOutputs = getCheckpointFile(0).exists()  ||  getCheckpointFile(1).exists()  ||  
+			(ledger != null  &&  !ledger.isNew());
 		positiveCallGIs = new TreeSet<String>();
-		if (CHECKPOINT_FILES[0].exists())
-			loadGIsFromFile(positiveCallGIs, CHECKPOINT_FILES[0]);
+		if (getCheckpointFile(0).exists())
+			loadGIsFromFile(positiveCallGIs, getCheckpointFile(0));
+		if (ledger != null)
+			positiveCallGIs.addAll(ledger.getAccessions(AccessionLedger.State.POSITIVE, AccessionLedger.State.PROTEIN_FETCHED,
+				AccessionLedger.State.NUCLEOTIDE_FETCHED, AccessionLedger.State.CONVERTED, AccessionLedger.State.FAILED));
 		negativeCallGIs = new TreeSet<String>();
-		if (CHECKPOINT_FILES[1].exists())
-			loadGIsFromFile(negativeCallGIs, CHECKPOINT_FILES[1]);
-		conversionFailurePositiveCallGIs = new TreeSet<String>(); // jmagasin Apr 2017: Long -> String
+		if (getCheckpointFile(1).exists())
+			loadGIsFromFile(negativeCallGIs, getCheckpointFile(1));
+		if (ledger != null)
+			negativeCallGIs.addAll(ledger.getAccessions(AccessionLedger.State.NEGATIVE));
+		conversionFailurePositiveCallGIs = Collections.synchronizedSet(new TreeSet<String>());
+		if (ledger != null)
+			conversionFailurePositiveCallGIs.addAll(ledger.getAccessions(AccessionLedger.State.FAILED));
+		if (ledger != null  &&  !ledger.isNew())
+			sop("Resuming from ledger of " + ledger.size() + " accessions: " + positiveCallGIs.size() + 
+				" positive and " + negativeCallGIs.size() + " negative calls.");
+		
+		// The list output is written as positives are called, so it's usable at any time. When resuming,
+		// it already holds the positives called before the restart.
+		if (listOutputFile != null)
+		{
+			try
+			{
+				listOutput = new IncrementalOutputFile(listOutputFile, resumingOutputs);
+			}
+			catch (IOException x)
+			{
+				sop("Trouble writing list output file " + listOutputFile.getAbsolutePath() + ": " + x.getMessage());
+			}
+		}
+		if (emblOutputFile != null  &&  overlapEmbl)
+			startEmblStages();
 		
 		// Read blast results html file for each representative. Collect synonymous groups.
 		Vector<SynonymousHitGroup> synoGroups = new Vector<SynonymousHitGroup>();
+		AccessionDictionary accessions = caches.accessions;
+		if (hspPrefilter != null)
+			hspPrefilter.openRejectsFile(getProfileFile(HSP_REJECTS_FILENAME));
 		for (String repGI: representatives)
 		{
 			File blastResultsFile = new File(WORK_DIRF, "blast_hits_" + repGI);
 			assert blastResultsFile.exists()  :  "No such file: " + blastResultsFile.getAbsolutePath();
-			FileReader fr = new FileReader(blastResultsFile);
-			BufferedReader br = new BufferedReader(fr);
-			String line = null;
-			while ((line = br.readLine()) != null)
-			{
-			    // jmagasin 25 Apr 2019:  If this is the fields line, then make sure it
-			    // is as expected with respect to order and required fields being present.
-			    // The SynonymousHitGroup requires this!
-			    if (line.startsWith("# Fields: ")) {
-				String expectedFields = "# Fields: query acc.ver, subject acc.ver, % identity, " +
-				    "alignment length, mismatches, gap opens, q. start, q. end, s. start, " +
-				    "s. end, evalue, bit score, % positives";
-				if (!line.equalsIgnoreCase(expectedFields)) {
-				    sop("Error:  Expected BLAST results should have fields\n" +
-					expectedFields + "\n" +
-					"but that is not what is seen in" + 
-					blastResultsFile.getAbsolutePath() + " which had\n" + line);
-				}
-			    }
-			    
-			    // jmagasin 25 Apr 2019:  Collect accessions from this line if it looks
-			    // okay.  I have seen truncated HSP lines returned by NCBI.  Note that a
-			    // line with just the query field will not be detected.
-			    if (line.startsWith("#") || line.split("\\t").length < 13) {
-				if (line.split("\\t").length > 1 && !line.trim().startsWith("Status=")) {
-				    sop("Error: Incomplete HSP line in " +
-					blastResultsFile.getAbsolutePath() + ".  Expected >= 13 fields. " +
-					"If this occurred on the last line of the file, then it could " +
-					"indicate subsequent lines were lost entirely.  The incomplete line " +
-					"is: " + line);
-				}
-				continue;
-			    }
-				SynonymousHitGroup hitGroup = null;
-				try
-				{
-					hitGroup = new SynonymousHitGroup(line);
-				}
-				catch (IllegalArgumentException x)
-				{
-					// jmagasin Apr 2017: Have seen bad line just that *after*
-					// the one reported (truncated mid-line)
-					sop("Error: " + blastResultsFile.getAbsolutePath() +
-					    ": Couldn't parse:\n" + line);
-					continue;
-				}
-				assert hitGroup != null;
-				synoGroups.add(hitGroup);
-			} // end of for-each-line-in-file loop
-			br.close();
-			fr.close();
+			BlastHitStore hits = loadBlastHits(blastResultsFile, accessions);
+			collectSynonymousHitGroups(repGI, hits, synoGroups);
+		}
+		syncLedger();
+		if (hspPrefilter != null)
+		{
+			hspPrefilter.closeRejectsFile();
+			sop("HSP prefilter passed " + hspPrefilter.nPassed + " and rejected " + hspPrefilter.nRejected + " subjects; see " +
+				getProfileFile(HSP_REJECTS_FILENAME).getAbsolutePath());
 		}
-		sop("Collected " + synoGroups.size() + " synonymous hit groups. Will RPSBlast in batches of " + RPS_BLAST_BATCH_SIZE);
+		if (orderByEvalue)
+			synoGroups = orderByBestEvalue(synoGroups);
+		sop("Collected " + synoGroups.size() + " synonymous hit groups. Will RPSBlast in batches of " + getRPSBlastBatchSize());
 		
 		// Classify each hit group. There's a nice efficiency benefit to batching the RPS-BLAST requests.
 		// Batch size of 250 worked well for nifH and nifD.
 		int nSynoGroups = 0;
 		int totalSynoGroups = synoGroups.size();
+		if (tailCutoff != null)
+			tailCutoff.openSkippedFile(getProfileFile(TAIL_SKIPPED_FILENAME));
+		for (PipelineListener listener: listeners)
+			listener.stageStarted(PipelineListener.STAGE_CLASSIFY, totalSynoGroups);
 		Vector<SynonymousHitGroup> batch = new Vector<SynonymousHitGroup>();
-		while (!synoGroups.isEmpty())
+		for (int i=0; i<totalSynoGroups; i++)
 		{
-			SynonymousHitGroup shg = synoGroups.remove(0);
+			// remove(0) was quadratic; null out instead so processed groups can still be collected.
+			SynonymousHitGroup shg = synoGroups.set(i, null);
 			nSynoGroups++;
+			Metrics.increment(Metrics.GROUPS_PROCESSED);
+			if (nSynoGroups % LISTENER_PROGRESS_INTERVAL == 0)
+				for (PipelineListener listener: listeners)
+					listener.progress(PipelineListener.STAGE_CLASSIFY, nSynoGroups, totalSynoGroups);
+			if (Log.progressDue("groups"))
+				dsop("Group " + nSynoGroups + " of " + totalSynoGroups + ": " + positiveCallGIs.size() + 
+					" positive and " + negativeCallGIs.size() + " negative calls so far.");
 			for (String gi: shg)
 			{
 				// If any member of the group has already been called, this group's call is known.
@@ -614,18 +1086,26 @@ public class Pipeline
 				}
 				if (known)
 				{
-					sop("Group " + nSynoGroups + " of " + totalSynoGroups + " = " + shg + " is known " + 
-						(call ? "positive" : "negative"));
+					if (Log.isDebugEnabled())
+						Log.debug("Group " + nSynoGroups + " of " + totalSynoGroups + " = " + shg + " is known " + 
+							(call ? "positive" : "negative"));
 					shg.classify(call);
 					recordCallsForSynoGroup(shg);
 					break;
 				}
 			}
 			if (shg.isCalled)
+			{
+				Metrics.increment(Metrics.CLASSIFY_CACHE_HITS);
+				continue;
+			}
+			if (tailCutoff != null  &&  tailCutoff.skip(shg))
 				continue;
+			Metrics.increment(Metrics.CLASSIFY_CACHE_MISSES);
 			batch.add(shg);
-			sop("Add to batch: Group " + nSynoGroups + " of " + totalSynoGroups + " = " + shg);
-			if (batch.size() == RPS_BLAST_BATCH_SIZE)
+			if (Log.isDebugEnabled())
+				Log.debug("Add to batch: Group " + nSynoGroups + " of " + totalSynoGroups + " = " + shg);
+			if (batch.size() == getRPSBlastBatchSize())
 			{
 				dsop("Checkpointing " + positiveCallGIs.size() + " positive and " + negativeCallGIs.size() +
 					" negative calls to filesystem.");
@@ -636,96 +1116,302 @@ public class Pipeline
 		}
 		if (!batch.isEmpty())
 			classifyBatch(batch);
+		checkpointCalls();
+		for (PipelineListener listener: listeners)
+			listener.progress(PipelineListener.STAGE_CLASSIFY, totalSynoGroups, totalSynoGroups);
+		if (tailCutoff != null)
+		{
+			tailCutoff.closeSkippedFile();
+			sop("Tail cutoff skipped " + tailCutoff.nSkipped + " groups; see " + 
+				getProfileFile(TAIL_SKIPPED_FILENAME).getAbsolutePath());
+		}
 		
-		// Output list.
+		// Finish the list output. Checkpointed positives that weren't in this run's hits go at the end.
 		assert listOutputFile != null  ||  emblOutputFile != null;
 		positiveCallGIs.removeAll(ignoreGIs);
 		dsop("\n\nFinished classifying, will write output.");
-		if (listOutputFile != null)
+		if (listOutput != null)
 		{
+			for (String gi: positiveCallGIs)
+				appendToListOutput(gi);
 			try
 			{
-				FileWriter listFW = new FileWriter(listOutputFile);
-				for (String gi: positiveCallGIs)
-					listFW.write(gi + "\n");
-				listFW.flush();
-				listFW.close();
+				listOutput.close();
 			}
 			catch (IOException x)
 			{
 				sop("Trouble writing list output file " + listOutputFile.getAbsolutePath() + ": " + x.getMessage());
 			}
+			listOutput = null;
 		}
 		
-		// Output EMBL. First write one file per record, then concatenate.
-		if (emblOutputFile != null)
+		// Output EMBL. Each record is appended to the output file as soon as it's converted. With -overlap,
+		// the EMBL stages have been running since classification began.
+		if (emblOutputFile != null  &&  !overlapEmbl)
+			startEmblStages();
+		if (emblStages != null)
+			finishEmblStages();
+		
+		// Output EMBL conversion failures. Failures from earlier runs are listed too, if there's a ledger
+		// that remembers them.
+		if (emblConversionFailuresFile != null)
 		{
-			int nGoodWrites = 0;
-			int nBadWrites = 0;
-			try
+			FileWriter failuresFW = new FileWriter(emblConversionFailuresFile);
+			// jmagasin Apr 2017: "gi" is now a String (not Long)
+			for (String gi: new TreeSet<String>(conversionFailurePositiveCallGIs))
+				if (positiveCallGIs.contains(gi))
+					failuresFW.write(gi + "\n");
+			failuresFW.flush();
+			failuresFW.close();
+		}
+		sop("Finished generating EMBL files.");  // jmagasin May 2017
+		if (ledger != null)
+		{
+			ledger.close();
+			ledger = null;
+		}
+		for (PipelineListener listener: listeners)
+			listener.finished();
+	}	
+	
+	
+	// EMBL generation is a chain of stages fed with positive accessions: fetching (several threads, paced 
+	// by the NCBI rate limiter) and then conversion and output (1 thread, since readseq isn't thread safe).
+	// Queues between stages are bounded, so a slow stage holds back the ones before it.
+	private void startEmblStages() throws IOException
+	{
+		nGoodWrites = 0;
+		nBadWrites = 0;
+		nEmblSubmitted = 0;
+		emblSubmitted = new HashSet<String>();
+		emblOutput = new IncrementalOutputFile(emblOutputFile, resumingOutputs);
+		for (PipelineListener listener: listeners)
+			listener.stageStarted(PipelineListener.STAGE_EMBL, positiveCallGIs.size());
+		BoundedStage<String, FetchedEmbl> fetchStage = new BoundedStage<String, FetchedEmbl>("embl-fetch", nFetchThreads, EMBL_STAGE_CAPACITY,
+			new BoundedStage.Worker<String, FetchedEmbl>()
 			{
-				// Generate an individual EMBL file for each record.
-				for (String gi: positiveCallGIs)
+				public FetchedEmbl process(String gi) throws IOException
 				{
-					try
-					{
-						EMBLRecord rec = new EMBLRecord(gi, apiKey);
-						if (rec.isConverted()) {
-							sop("Already have EMBL for accession or gi =" + gi + "...");
-						} else {
-							sop("Generating EMBL for " + (1+nGoodWrites+nBadWrites) + " of " + 
-							    positiveCallGIs.size() + ", accession or gi =" + gi + "...");
-							rec.convertToNucleotideEmblUnlessAlreadyConverted();
-						}
-						nGoodWrites++;
-						sop("  ... Success:  Successes/Failures = " + nGoodWrites + "/" + nBadWrites);
-					}
-					catch (ConversionException x)
-					{
-						nBadWrites++;
-						sop("  ... Failed: " + x.toString() + "   Successes/Failures = " + 
-							nGoodWrites + "/" + nBadWrites);
-						// jmagasin Apr 2017: Changed getMessage to toString. Next, removed
-						// Long.parseLong(gi) since now using accessions (in gi).
-						conversionFailurePositiveCallGIs.add(gi);
-					}
+					return fetchForEmbl(gi);
 				}
-				// Concatenate.
-				FileWriter emblFW = new FileWriter(emblOutputFile);
-				int nAppends = 0;
-				for (String kid: EMBLS_DIRF.list())
+			});
+		BoundedStage<FetchedEmbl, Object> convertStage = new BoundedStage<FetchedEmbl, Object>("embl-convert", 1, 
+			EMBL_STAGE_CAPACITY, new BoundedStage.Worker<FetchedEmbl, Object>()
+			{
+				public Object process(FetchedEmbl fetched) throws IOException
 				{
-					if (kid.endsWith(".embl"))
-					{
-						File kidf = new File(EMBLS_DIRF, kid);
-						append(emblFW, kidf);
-						if (++nAppends % 100 == 0)
-							sop("Concatenated " + nAppends + " individual EMBL records.");
-					}
+					finishEmbl(fetched);
+					retryDueEmbls();
+					return null;
 				}
-				emblFW.flush();
-				emblFW.close();
-			}
-			catch (IOException x)
+			});
+		fetchStage.then(convertStage);
+		convertStage.start();
+		fetchStage.start();
+		emblStages = fetchStage;
+	}
+	
+	
+	// Queues an accession for EMBL generation, unless it's already queued. Blocks while the EMBL stages
+	// are backed up.
+	private void submitForEmbl(String gi)
+	{
+		if (emblStages == null  ||  ignoreGIs.contains(gi)  ||  !emblSubmitted.add(gi))
+			return;
+		try
+		{
+			nEmblSubmitted++;
+			emblStages.put(gi);
+		}
+		catch (InterruptedException x)
+		{
+			Thread.currentThread().interrupt();
+			throw new CancellationException("Interrupted while queueing EMBL generation");
+		}
+	}
+	
+	
+	// Queues the positives that haven't been queued yet, waits for the stages to finish, then retries
+	// deferred transient failures, waiting out the backoff.
+	private void finishEmblStages() throws IOException
+	{
+		for (String gi: getEmblGenerationOrder())
+			submitForEmbl(gi);
+		emblStages.finish();
+		try
+		{
+			emblStages.await();
+			emblStages = null;
+			if (!retryQueue.isEmpty())
+				sop("Retrying " + retryQueue.size() + " deferred EMBL conversion(s).");
+			String due;
+			while ((due = retryQueue.takeWhenDue()) != null)
+				finishEmbl(fetchForEmbl(due));
+			if (retryQueue.nDeferred > 0)
+				sop("Deferred " + retryQueue.nDeferred + " transient EMBL conversion failure(s) for retry.");
+			emblOutput.close();
+			emblOutput = null;
+		}
+		catch (InterruptedException x)
+		{
+			// Abandoned accessions aren't marked failed, so the next run retries them.
+			sop("Interrupted with " + retryQueue.size() + " deferred EMBL conversion(s) not retried.");
+			Thread.currentThread().interrupt();
+		}
+		catch (IOException x)
+		{
+			sop("Trouble writing embl output file " + x.getMessage());
+			if (nGoodWrites + nBadWrites < positiveCallGIs.size())
+			    sop("Unable to finish getting EMBL files.");
+		}
+		catch (RuntimeException x)
+		{
+			throw x;
+		}
+		catch (Exception x)
+		{
+			throw new IOException(x);
+		}
+	}
+	
+	
+	// Output of the fetch stage.
+	private static class FetchedEmbl
+	{
+		String					gi;
+		EMBLRecord				rec;
+		ConversionException		failure;				// from fetching
+		String					earlierFailure;			// permanent failure in an earlier run, so not fetched
+	}
+	
+	
+	// Runs in the fetch stage. Conversion failures are passed on, for the convert stage to handle.
+	private FetchedEmbl fetchForEmbl(String gi) throws IOException
+	{
+		FetchedEmbl fetched = new FetchedEmbl();
+		fetched.gi = gi;
+		
+		// Failed in an earlier run. Transient failures get another chance; permanent ones would fail the
+		// same way again.
+		AccessionLedger ledger = getLedger();
+		AccessionLedger.Entry entry = (ledger == null)  ?  null  :  ledger.get(gi);
+		if (entry != null  &&  entry.state == AccessionLedger.State.FAILED)
+		{
+			if (!isTransientFailure(entry.detail)  ||  maxConversionRetries == 0)
 			{
-  			        sop("Trouble writing embl output file " + x.getMessage());
-				if (nGoodWrites + nBadWrites < positiveCallGIs.size())
-				    sop("Unable to finish getting EMBL files.");
+				fetched.earlierFailure = entry.detail;
+				return fetched;
 			}
+			resetLedger(gi, AccessionLedger.State.POSITIVE);
+			conversionFailurePositiveCallGIs.remove(gi);
 		}
 		
-		// Output EMBL conversion failures.
-		if (emblConversionFailuresFile != null)
+		fetched.rec = new EMBLRecord(gi, apiKey);
+		fetched.rec.setLedger(ledger);
+		try
 		{
-			FileWriter failuresFW = new FileWriter(emblConversionFailuresFile);
-			// jmagasin Apr 2017: "gi" is now a String (not Long)
-			for (String gi: conversionFailurePositiveCallGIs)
-				failuresFW.write(gi + "\n");
-			failuresFW.flush();
-			failuresFW.close();
+			if (!fetched.rec.isConverted())
+				fetched.rec.fetchNucleotidePage();
 		}
-		sop("Finished generating EMBL files.");  // jmagasin May 2017
-	}	
+		catch (ConversionException x)
+		{
+			fetched.failure = x;
+		}
+		return fetched;
+	}
+	
+	
+	// Runs in the convert stage: converts to EMBL if necessary and appends to the EMBL output. A transient 
+	// failure is deferred for retry if the accession has retries left; otherwise the failure is final.
+	private void finishEmbl(FetchedEmbl fetched) throws IOException
+	{
+		String gi = fetched.gi;
+		if ((nGoodWrites + nBadWrites) % LISTENER_PROGRESS_INTERVAL == 0)
+			for (PipelineListener listener: listeners)
+				listener.progress(PipelineListener.STAGE_EMBL, nGoodWrites + nBadWrites, nEmblSubmitted);
+		if (fetched.earlierFailure != null)
+		{
+			nBadWrites++;
+			if (Log.isDebugEnabled())
+				Log.debug(gi + "  ... Failed in an earlier run: " + fetched.earlierFailure);
+			for (PipelineListener listener: listeners)
+				listener.emblRecordFailed(gi, fetched.earlierFailure);
+			return;
+		}
+		EMBLRecord rec = fetched.rec;
+		try
+		{
+			if (fetched.failure != null)
+				throw fetched.failure;
+			if (rec.isConverted()) {
+				advanceLedger(gi, AccessionLedger.State.CONVERTED, null);	// e.g. by another profile
+				if (Log.isDebugEnabled())
+					Log.debug("Already have EMBL for accession or gi =" + gi + "...");
+			} else {
+				String msg = "Generating EMBL for " + (1+nGoodWrites+nBadWrites) + " of " + 
+				    nEmblSubmitted + ", accession or gi =" + gi + "...";
+				if (Log.progressDue("embl"))
+					dsop(msg);
+				else
+					Log.debug(msg);
+				rec.convertNucleotidePage();
+				Metrics.increment(Metrics.EMBLS_CONVERTED);
+			}
+			nGoodWrites++;
+			emblOutput.append(gi, rec.getConvertedFile());
+			emblOutput.commit();
+			syncLedger();
+			for (PipelineListener listener: listeners)
+				listener.emblRecordFinished(gi, rec.getConvertedFile());
+			if (Log.isDebugEnabled())
+				Log.debug("  ... Success:  Successes/Failures = " + nGoodWrites + "/" + nBadWrites);
+		}
+		catch (ConversionException x)
+		{
+			Metrics.increment("conversion.failure." + x.getFailureMode());
+			if (retryQueue.defer(gi, x.getFailureMode()))
+			{
+				Log.info(gi + "  ... Failed: " + x.toString() + ", will retry");
+				return;
+			}
+			nBadWrites++;
+			Log.warn(gi + "  ... Failed: " + x.toString() + "   Successes/Failures = " + 
+				nGoodWrites + "/" + nBadWrites);
+			// jmagasin Apr 2017: Changed getMessage to toString. Next, removed
+			// Long.parseLong(gi) since now using accessions (in gi).
+			conversionFailurePositiveCallGIs.add(gi);
+			advanceLedger(gi, AccessionLedger.State.FAILED, String.valueOf(x.getFailureMode()));
+			syncLedger();
+			for (PipelineListener listener: listeners)
+				listener.emblRecordFailed(gi, String.valueOf(x.getFailureMode()));
+		}
+	}
+	
+	
+	// Runs in the convert stage. Retries deferred accessions that are due, whenever NCBI isn't throttling us.
+	private void retryDueEmbls() throws IOException
+	{
+		while (NCBISnooze.getRateFraction(NCBIEndpoint.EUTILS) >= 1)
+		{
+			String due = retryQueue.pollDue();
+			if (due == null)
+				break;
+			finishEmbl(fetchForEmbl(due));
+		}
+	}
+	
+	
+	private static boolean isTransientFailure(String failureName)
+	{
+		try
+		{
+			return ConversionFailure.valueOf(failureName).isTransient();
+		}
+		catch (RuntimeException x)
+		{
+			return false;
+		}
+	}
 	
 	
 	// Guards against crashes or hangups in the NCBI RPSBlast service. Writes all positive and
@@ -739,35 +1425,202 @@ public class Pipeline
 		
 		for (int i=0; i<2; i++)
 		{
-			FileWriter fw = new FileWriter(CHECKPOINT_FILES[i]);
+			FileWriter fw = new FileWriter(getCheckpointFile(i));
 			for (String gi: callSets.get(i))
 				fw.write(gi + "\n");
 			fw.flush();
 			fw.close();
 		}
+		if (listOutput != null)
+			listOutput.commit();
+		syncLedger();
 	}
 	
 	
-	private static void append(FileWriter fw, File appendMe) throws IOException
+	private int countPositives()
 	{
-		FileReader fr = new FileReader(appendMe);
-		BufferedReader br = new BufferedReader(fr);
-		String line = null;
-		while ((line = br.readLine()) != null)
-			fw.write(line + "\n");
-		br.close();
-		fr.close();
+		return positiveCallGIs.size();
 	}
 	
 	
-	private int countPositives()
+	//
+	// Returns one representative's blast hits. The first time, the tabular text is parsed with a 
+	// TabularHitCursor (no per-line Strings except interned accessions and error messages) into a
+	// columnar BlastHitStore next to it; later runs just map the store. Mapped stores stay in the
+	// SharedCaches, for other target profiles and service jobs, until every Pipeline using them releases
+	// them (only a PipelineService does).
+	//
+	private BlastHitStore loadBlastHits(File blastResultsFile, AccessionDictionary accessions) throws IOException
 	{
-		return positiveCallGIs.size();
+		BlastHitStore store = caches.getHitStore(blastResultsFile, this);
+		if (store != null  &&  store.isCurrentFor(blastResultsFile))
+			return store;
+		store = BlastHitStore.openIfCurrent(blastResultsFile, accessions);
+		if (store != null)
+		{
+			Metrics.increment("hitstore.mapped");
+			caches.putHitStore(blastResultsFile, store, this);
+			return store;
+		}
+		
+		BlastHitStore.Builder builder = new BlastHitStore.Builder(blastResultsFile, accessions);
+		TabularHitCursor cursor = new TabularHitCursor(blastResultsFile);
+		while (cursor.next())
+		{
+		    // jmagasin 25 Apr 2019:  If this is the fields line, then make sure it
+		    // is as expected with respect to order and required fields being present.
+		    // The SynonymousHitGroup requires this!
+		    if (cursor.lineStartsWith("# Fields: ")) {
+			String expectedFields = "# Fields: query acc.ver, subject acc.ver, % identity, " +
+			    "alignment length, mismatches, gap opens, q. start, q. end, s. start, " +
+			    "s. end, evalue, bit score, % positives";
+			String line = cursor.getLine();
+			if (!line.equalsIgnoreCase(expectedFields)) {
+			    sop("Error:  Expected BLAST results should have fields\n" +
+				expectedFields + "\n" +
+				"but that is not what is seen in" + 
+				blastResultsFile.getAbsolutePath() + " which had\n" + line);
+			}
+		    }
+		    
+		    // jmagasin 25 Apr 2019:  Collect accessions from this line if it looks
+		    // okay.  I have seen truncated HSP lines returned by NCBI.  Note that a
+		    // line with just the query field will not be detected.
+		    if (cursor.isComment() || cursor.getNFields() < TabularHitCursor.N_FIELDS) {
+			if (cursor.getNFields() > 1 && !cursor.trimmedLineStartsWith("Status=")) {
+			    sop("Error: Incomplete HSP line in " +
+				blastResultsFile.getAbsolutePath() + ".  Expected >= 13 fields. " +
+				"If this occurred on the last line of the file, then it could " +
+				"indicate subsequent lines were lost entirely.  The incomplete line " +
+				"is: " + cursor.getLine());
+			}
+			continue;
+		    }
+		    if (!cursor.isValidHit())
+		    {
+				// jmagasin Apr 2017: Have seen bad line just that *after*
+				// the one reported (truncated mid-line)
+				sop("Error: " + blastResultsFile.getAbsolutePath() +
+				    ": Couldn't parse:\n" + cursor.getLine());
+				continue;
+		    }
+		    builder.add(cursor);
+		}
+		cursor.close();
+		Metrics.increment("hitstore.built");
+		store = builder.build();
+		caches.putHitStore(blastResultsFile, store, this);
+		return store;
+	}
+	
+	
+	// Keeps 1 group per accession, with the best e-value seen for it across all representatives, most
+	// significant first. Remembers the e-values so EMBL generation can follow the same order.
+	private Vector<SynonymousHitGroup> orderByBestEvalue(Vector<SynonymousHitGroup> synoGroups)
+	{
+		Map<String, SynonymousHitGroup> accToBest = new HashMap<String, SynonymousHitGroup>();
+		for (SynonymousHitGroup shg: synoGroups)
+		{
+			SynonymousHitGroup best = accToBest.get(shg.firstElement());
+			if (best == null  ||  shg.e < best.e)
+				accToBest.put(shg.firstElement(), shg);
+		}
+		Vector<SynonymousHitGroup> ordered = new Vector<SynonymousHitGroup>(accToBest.values());
+		Collections.sort(ordered, new Comparator<SynonymousHitGroup>()
+		{
+			public int compare(SynonymousHitGroup g1, SynonymousHitGroup g2)
+			{
+				int cmp = Double.compare(g1.e, g2.e);
+				return (cmp != 0)  ?  cmp  :  g1.firstElement().compareTo(g2.firstElement());
+			}
+		});
+		bestEvalues = new HashMap<String, Double>();
+		for (SynonymousHitGroup shg: ordered)
+			bestEvalues.put(shg.firstElement(), shg.e);
+		Metrics.add("order.duplicate_hits_dropped", synoGroups.size() - ordered.size());
+		return ordered;
+	}
+	
+	
+	// Positive calls in best e-value order if -order evalue, else in accession order. Positives with no
+	// e-value in this run's hits (e.g. from checkpoints) go last.
+	private Collection<String> getEmblGenerationOrder()
+	{
+		if (!orderByEvalue)
+			return positiveCallGIs;
+		Vector<String> ordered = new Vector<String>(positiveCallGIs);
+		Collections.sort(ordered, new Comparator<String>()
+		{
+			public int compare(String acc1, String acc2)
+			{
+				Double e1 = bestEvalues.get(acc1);
+				Double e2 = bestEvalues.get(acc2);
+				if (e1 == null)
+					e1 = Double.POSITIVE_INFINITY;
+				if (e2 == null)
+					e2 = Double.POSITIVE_INFINITY;
+				int cmp = e1.compareTo(e2);
+				return (cmp != 0)  ?  cmp  :  acc1.compareTo(acc2);
+			}
+		});
+		return ordered;
+	}
+	
+	
+	// One synonymous hit group (1 subject each) per HSP that passes the HSP prefilter, if any.
+	private void collectSynonymousHitGroups(String repGI, BlastHitStore hits, Vector<SynonymousHitGroup> synoGroups)
+	{
+		boolean[] accepted = null;
+		if (hspPrefilter != null)
+			accepted = hspPrefilter.accept(hits, HSPPrefilter.estimateQueryLength(hits));
+		for (int row=0; row<hits.size(); row++)
+		{
+			if (accepted != null  &&  !accepted[row])
+				continue;
+			SynonymousHitGroup shg = new SynonymousHitGroup(hits.getSubject(row), hits.getEvalue(row));
+			shg.representative = repGI;
+			advanceLedger(shg.firstElement(), AccessionLedger.State.HIT, null);
+			synoGroups.add(shg);
+		}
 	}
 	
 	
 	private void classifyBatch(Vector<SynonymousHitGroup> batch) throws IOException
 	{
+		Metrics.record("classify.batch_size", batch.size());
+		
+		// Groups whose domain hits are already known (from an earlier batch, run, or target profile) are
+		// classified right away.
+		CDSearchCache cdSearchCache = caches.getCDSearchCache(localCddDb);
+		Vector<SynonymousHitGroup> unsearched = new Vector<SynonymousHitGroup>();
+		int nBatchPositives = 0;
+		for (SynonymousHitGroup shg: batch)
+		{
+			Vector<RPSTabularRecord> hits = cdSearchCache.get(shg.firstElement());
+			if (hits == null)
+			{
+				unsearched.add(shg);
+				continue;
+			}
+			Metrics.increment("cdsearch.cache_hits");
+			classifyFromDomainHits(shg, hits, "Cached group");
+			nBatchPositives += shg.calledPositive  ?  1  :  0;
+		}
+		if (unsearched.size() < batch.size())
+			dsop("Classified " + (batch.size() - unsearched.size()) + " of " + batch.size() + 
+				" groups from cached domain hits, " + nBatchPositives + " positive.");
+		batch = unsearched;
+		if (batch.isEmpty())
+			return;
+		
+		// Call the clear-cut groups offline. The rest go to CD-Search.
+		if (pssmPrefilter != null)
+		{
+			batch = prefilterBatch(batch);
+			if (batch.isEmpty())
+				return;
+		}
+		
 		// Blast the batch. Each synonymous group is blasted by blasting the first GI in the group.
 		int nGIs = 0;
 		for (SynonymousHitGroup shg: batch)
@@ -777,21 +1630,31 @@ public class Pipeline
 		Vector<String> gis = new Vector<String>();
 		for (SynonymousHitGroup shg: batch)
 			gis.add(shg.firstElement());
-		NCBIRPSBlaster batchBlaster = new NCBIRPSBlaster(gis, apiKey);
-		Vector<RPSTabularRecord> batchResults = batchBlaster.blast();
-				
-		// Remove hits to uninformative domains.
-		RPSTabularRecord.retainSpecificAndNonspecificCDHits(batchResults);		
-		Set<RPSTabularRecord> uninformatives = new HashSet<RPSTabularRecord>();
-		for (RPSTabularRecord rec: batchResults)
-			if (cdIsUninformative(rec.accession))
-				uninformatives.add(rec);
-		batchResults.removeAll(uninformatives);
+		Vector<RPSTabularRecord> batchResults = null;
+		Set<String> unfetched = new HashSet<String>();
+		if (localCddDb == null)
+		{
+			NCBIRPSBlaster batchBlaster = new NCBIRPSBlaster(gis, apiKey);
+			batchResults = batchBlaster.blast();
+		}
+		else
+		{
+			batchResults = getLocalRPSBlaster().blast(gis, caches.getSequences(gis, getProteinSequenceFetcher()), unfetched);
+		}
 		
-		// Collect by query #.
+		// Collect by query #, and cache unfiltered so that every target profile can use them. Queries
+		// that weren't searched because their sequence couldn't be retrieved have no hits, but aren't
+		// negative: they're neither cached nor classified, so a later run tries them again.
 		Map<Integer, Vector<RPSTabularRecord>> queryNumToHits = new TreeMap<Integer, Vector<RPSTabularRecord>>();
 		for (Integer i=1; i<=batch.size(); i++)
-			queryNumToHits.put(i, new Vector<RPSTabularRecord>());
+			if (!unfetched.contains(gis.get(i-1)))
+				queryNumToHits.put(i, new Vector<RPSTabularRecord>());
+		if (!unfetched.isEmpty())
+		{
+			Metrics.add("classify.unfetched", unfetched.size());
+			sop("Couldn't retrieve sequences for " + unfetched.size() + " of " + batch.size() + 
+				" groups, leaving them unclassified: " + unfetched);
+		}
 		for (RPSTabularRecord rec: batchResults)
 		{
 			String numberedQuery = rec.query;		// e.g. "Q#1 - 1065303"
@@ -799,43 +1662,101 @@ public class Pipeline
 			Integer qnum = Integer.valueOf(pieces[0]);
 			queryNumToHits.get(qnum).add(rec);
 		}
+		for (Integer qnum: queryNumToHits.keySet())
+			cdSearchCache.put(gis.get(qnum-1), queryNumToHits.get(qnum));
+		cdSearchCache.flush();
 		
 		// Classify.
+		nBatchPositives = 0;
 		for (Integer qnum: queryNumToHits.keySet())
 		{
 			SynonymousHitGroup synoGroup = batch.get(qnum-1);
-			Vector<RPSTabularRecord> hits = queryNumToHits.get(qnum);
-			if (hits.isEmpty()  ||  !cdHitIsPositive(hits.firstElement()))
-			{
-				// 1st informative hit is not to target domain => classify as false.
-				synoGroup.classify(false);
-				sop("Group " + qnum + ": 1st informative hit not to positive domain => classify negative.");
-			}
-			else if (hits.size() == 1)
-			{
-				// 1st informative hit is to target domain and is the only hit => classify as true
-				synoGroup.classify(true);
-				sop("Group " + qnum + ": only 1 hit, which is to positive domain => classify positive.");
+			classifyFromDomainHits(synoGroup, queryNumToHits.get(qnum), "Group " + qnum);
+			nBatchPositives += synoGroup.calledPositive  ?  1  :  0;
+		}
+		dsop("Batch of " + batch.size() + " called " + nBatchPositives + " positive, " + 
+			(queryNumToHits.size() - nBatchPositives) + " negative.");
+	}
+	
+	
+	// Classifies and records a group from its first member's domain hits, which aren't modified. 
+	// Label is for debug logging.
+	private void classifyFromDomainHits(SynonymousHitGroup synoGroup, Vector<RPSTabularRecord> domainHits, String label)
+	{
+		// Remove hits to uninformative domains.
+		Vector<RPSTabularRecord> hits = new Vector<RPSTabularRecord>(domainHits);
+		RPSTabularRecord.retainSpecificAndNonspecificCDHits(hits);		
+		Set<RPSTabularRecord> uninformatives = new HashSet<RPSTabularRecord>();
+		for (RPSTabularRecord rec: hits)
+			if (cdIsUninformative(rec.accession))
+				uninformatives.add(rec);
+		hits.removeAll(uninformatives);
+		
+		if (hits.isEmpty()  ||  !cdHitIsPositive(hits.firstElement()))
+		{
+			// 1st informative hit is not to target domain => classify as false.
+			synoGroup.classify(false);
+			Log.debug(label + ": 1st informative hit not to positive domain => classify negative.");
+		}
+		else if (hits.size() == 1)
+		{
+			// 1st informative hit is to target domain and is the only hit => classify as true
+			synoGroup.classify(true);
+			Log.debug(label + ": only 1 hit, which is to positive domain => classify positive.");
+		}
+		else
+		{
+			// 1st informative hit is to target domain => classify as true if superiority >= threshold.
+			// April 2022: Superiority should only be over hits from non-positive domains. As described
+			// in the paper, consider the top 3 hits. (Previous code compared to hit #2.)
+			double eTarget = hits.get(0).expect;
+			double eOther = Double.POSITIVE_INFINITY;  // eTarget = 0 results in superiority = inf + inf
+			for (Integer i = 1; i <= 2 && i < hits.size(); i++) {
+				if (!cdHitIsPositive(hits.get(i))) {
+					eOther = hits.get(i).expect;
+					break;
+				}
 			}
-			else
+			double superiority = Math.log10(eOther) - Math.log10(eTarget);
+			synoGroup.classify(superiority >= superiorityThreshold);	
+			if (Log.isDebugEnabled())
+				Log.debug(label + " called " + synoGroup.callToString() + " based on superiority=" + superiority);
+		}
+		recordCallsForSynoGroup(synoGroup);
+	}
+	
+	
+	// Classifies and records groups that the PSSM prefilter can call. Returns the ambiguous groups,
+	// including any whose sequence couldn't be retrieved.
+	private Vector<SynonymousHitGroup> prefilterBatch(Vector<SynonymousHitGroup> batch) throws IOException
+	{
+		Vector<String> gis = new Vector<String>();
+		for (SynonymousHitGroup shg: batch)
+			gis.add(shg.firstElement());
+		Map<String, String> giToSeq = caches.getSequences(gis, getProteinSequenceFetcher());
+		
+		Vector<SynonymousHitGroup> ambiguous = new Vector<SynonymousHitGroup>();
+		for (SynonymousHitGroup shg: batch)
+		{
+			String seq = giToSeq.get(shg.firstElement());
+			PSSMPrefilter.Call call = (seq == null)  ?  null  :  pssmPrefilter.call(seq);
+			if (call == null  ||  call.positive == null)
 			{
-				// 1st informative hit is to target domain => classify as true if superiority >= threshold.
-				// April 2022: Superiority should only be over hits from non-positive domains. As described
-				// in the paper, consider the top 3 hits. (Previous code compared to hit #2.)
-				double eTarget = hits.get(0).expect;
-				double eOther = Double.POSITIVE_INFINITY;  // eTarget = 0 results in superiority = inf + inf
-				for (Integer i = 1; i <= 2 && i < hits.size(); i++) {
-					if (!cdHitIsPositive(hits.get(i))) {
-						eOther = hits.get(i).expect;
-						break;
-					}
-				}
-				double superiority = Math.log10(eOther) - Math.log10(eTarget);
-				synoGroup.classify(superiority >= superiorityThreshold);	
-				sop("Group " + qnum + " called " + synoGroup.callToString() + " based on superiority=" + superiority);
+				Metrics.increment("prefilter.pssm.ambiguous");
+				ambiguous.add(shg);
+				continue;
 			}
-			recordCallsForSynoGroup(synoGroup);
+			shg.superiority = call.superiority;
+			shg.classify(call.positive);
+			Metrics.increment("prefilter.pssm." + shg.callToString());
+			if (Log.isDebugEnabled())
+				Log.debug(shg + " called " + shg.callToString() + " by PSSM prefilter: " + call);
+			recordCallsForSynoGroup(shg);
 		}
+		dsop("PSSM prefilter called " + (batch.size() - ambiguous.size()) + " of " + batch.size() + 
+			" groups. Totals: " + pssmPrefilter.nPositive + " positive, " + pssmPrefilter.nNegative + 
+			" negative, " + pssmPrefilter.nAmbiguous + " ambiguous.");
+		return ambiguous;
 	}
 	
 	
@@ -864,6 +1785,102 @@ public class Pipeline
 			positiveCallGIs.addAll(synoGroup);
 		else
 			negativeCallGIs.addAll(synoGroup);
+		for (String gi: synoGroup)
+			advanceLedger(gi, synoGroup.calledPositive ? AccessionLedger.State.POSITIVE : AccessionLedger.State.NEGATIVE, null);
+		if (tailCutoff != null)
+			tailCutoff.recordCall(synoGroup);
+		if (synoGroup.calledPositive)
+			for (String gi: synoGroup)
+			{
+				appendToListOutput(gi);
+				submitForEmbl(gi);
+			}
+		for (PipelineListener listener: listeners)
+			for (String gi: synoGroup)
+				listener.hitClassified(gi, synoGroup.calledPositive, synoGroup.e, synoGroup.representative);
+	}
+	
+	
+	// Not durable until the next checkpoint. Trouble stops list output but not the run, as before.
+	private void appendToListOutput(String gi)
+	{
+		if (listOutput == null  ||  ignoreGIs.contains(gi))
+			return;
+		try
+		{
+			listOutput.append(gi, gi + "\n");
+		}
+		catch (IOException x)
+		{
+			sop("Trouble writing list output file " + listOutputFile.getAbsolutePath() + ": " + x.getMessage());
+			listOutput = null;
+		}
+	}
+	
+	
+	// Trouble stops the ledger but not the run; a restart then falls back on checkpoints and files.
+	private void advanceLedger(String gi, AccessionLedger.State state, String detail)
+	{
+		AccessionLedger ledger = getLedger();
+		if (ledger == null)
+			return;
+		try
+		{
+			ledger.advance(gi, state, detail);
+		}
+		catch (IOException x)
+		{
+			disableLedger(x);
+		}
+	}
+	
+	
+	// Unlike advanceLedger(), can move an accession back, e.g. a failure that's to be retried.
+	private void resetLedger(String gi, AccessionLedger.State state)
+	{
+		AccessionLedger ledger = getLedger();
+		if (ledger == null)
+			return;
+		try
+		{
+			ledger.set(gi, state, null);
+		}
+		catch (IOException x)
+		{
+			disableLedger(x);
+		}
+	}
+	
+	
+	private void syncLedger()
+	{
+		AccessionLedger ledger = getLedger();
+		if (ledger == null)
+			return;
+		try
+		{
+			ledger.sync();
+		}
+		catch (IOException x)
+		{
+			disableLedger(x);
+		}
+	}
+	
+	
+	// The ledger is used by the EMBL stage threads as well as the main thread, so it's disabled with a 
+	// flag rather than by nulling the field under them. Callers read it once into a local.
+	private AccessionLedger getLedger()
+	{
+		return ledgerDisabled  ?  null  :  ledger;
+	}
+	
+	
+	private void disableLedger(IOException x)
+	{
+		if (!ledgerDisabled)
+			sop("Trouble writing ledger, running without it: " + x.getMessage());
+		ledgerDisabled = true;
 	}
 	
 	
@@ -877,6 +1894,60 @@ public class Pipeline
 	}
 	
 	
+	private SearchBackend getSearchBackend()
+	{
+		if (localBlastDb == null)
+			return new NCBIBlastSearchBackend(apiKey);
+		else
+			return new LocalBlastSearchBackend(localBlastDb, localBlastBinDirf, nThreads);
+	}
+	
+	
+	private int getRPSBlastBatchSize()
+	{
+		return (localCddDb == null)  ?  RPS_BLAST_BATCH_SIZE  :  LOCAL_RPS_BLAST_BATCH_SIZE_PER_WORKER * nThreads;
+	}
+	
+	
+	private LocalRPSBlaster getLocalRPSBlaster()
+	{
+		if (caches.localRPSBlaster == null)
+			caches.localRPSBlaster = new LocalRPSBlaster(localCddDb, localBlastBinDirf, nThreads);
+		return caches.localRPSBlaster;
+	}
+	
+	
+	private ProteinSequenceFetcher getProteinSequenceFetcher()
+	{
+		if (caches.proteinSequenceFetcher == null)
+		{
+			caches.proteinSequenceFetcher = (localBlastDb != null)  ?  
+				new ProteinSequenceFetcher(localBlastDb, localBlastBinDirf)  :  
+				new ProteinSequenceFetcher(apiKey);
+		}
+		return caches.proteinSequenceFetcher;
+	}
+	
+	
+	void addListener(PipelineListener listener)
+	{
+		listeners.add(listener);
+	}
+	
+	
+	// Profiles in a -targets run keep their own checkpoints and reports, prefixed by profile name.
+	private File getProfileFile(String filename)
+	{
+		return new File(WORK_DIRF, (profileName == null)  ?  filename  :  profileName + "_" + filename);
+	}
+	
+	
+	private File getCheckpointFile(int i)
+	{
+		return (profileName == null)  ?  CHECKPOINT_FILES[i]  :  getProfileFile(CHECKPOINT_FILES[i].getName());
+	}
+	
+	
 	private double getExpect()
 	{
 		return Math.pow(10, -qualityThreshold);
@@ -886,10 +1957,72 @@ public class Pipeline
 	static File getResultsDirf()		{ return WORK_DIRF; }
 	static File getEMBLSDirf()			{ return EMBLS_DIRF; }
 	static File getIntermediatesDirf()	{ return INTERMEDIATES_DIRF; }
-	static void sop(Object x)			{ System.out.println(x); }
+	static void sop(Object x)			{ Log.info(x); }
 	static void dsop(Object x)			{ sop(new java.util.Date() + ": " + x); } 
 	
 	
+	//
+	// Returns null unless args include "-targets file". Each non-blank line of the file that doesn't start
+	// with # is a target profile: a name, then that profile's args, e.g.
+	//     nifH -q 2 -s 3 -replistfile nifh_reps.txt -posdom cd02040 -uninfdom cd02117 -oe nifH.embl
+	// The other command-line args apply to every profile, which may override them. Profiles run in file
+	// order and share one SharedCaches, so an accession is only searched once however many profiles' 
+	// blast results it's in. Exits if trouble.
+	//
+	private static Vector<Pipeline> buildTargetProfiles(String[] args)
+	{
+		Vector<String> commonArgs = new Vector<String>();
+		File targetsFile = null;
+		for (int i=0; i<args.length; i++)
+		{
+			if (args[i].equals("-targets")  &&  i+1 < args.length)
+				targetsFile = new File(args[++i]);
+			else
+				commonArgs.add(args[i]);
+		}
+		if (targetsFile == null)
+			return null;
+		
+		Vector<Pipeline> profiles = new Vector<Pipeline>();
+		SharedCaches caches = new SharedCaches();
+		Set<String> names = new HashSet<String>();
+		try
+		{
+			BufferedReader br = new BufferedReader(new FileReader(targetsFile));
+			String line = null;
+			while ((line = br.readLine()) != null)
+			{
+				line = line.trim();
+				if (line.isEmpty()  ||  line.startsWith("#"))
+					continue;
+				String[] pieces = line.split("\\s+");
+				String name = pieces[0];
+				if (!name.matches("[\\w.-]+")  ||  !names.add(name))
+				{
+					configFail("Illegal or duplicate target profile name in " + targetsFile.getAbsolutePath() + ": " + name, true);
+				}
+				Vector<String> profileArgs = new Vector<String>(commonArgs);
+				for (int i=1; i<pieces.length; i++)
+					profileArgs.add(pieces[i]);
+				Pipeline profile = new Pipeline(profileArgs.toArray(new String[0]), name, caches, true);
+				if (!profiles.isEmpty())
+					profile.noRecovery = false;			// only the 1st profile may clear the work dir
+				profiles.add(profile);
+			}
+			br.close();
+		}
+		catch (IOException x)
+		{
+			configFail("Trouble reading target profiles from " + targetsFile.getAbsolutePath() + ": " + x.getMessage(), true);
+		}
+		if (profiles.isEmpty())
+		{
+			configFail("No target profiles in " + targetsFile.getAbsolutePath(), true);
+		}
+		return profiles;
+	}
+	
+	
 	/***
 	private final static String			S_TEST_ARGS =
 		"-q 2 -s 1 -posdom cd02040 -uninfdom cd02117 -ol listout_short.txt " +
@@ -914,9 +2047,32 @@ public class Pipeline
 			}
 
 			dsop("Starting the ARBitrator pipeline: " + args.length + " args");
-			Pipeline pipeline = new Pipeline(args);
-			sop("----------\n" + pipeline + "\n----------\n");
-			pipeline.runPipeline();
+			for (int i=0; i+1<args.length; i++)
+			{
+				if (args[i].equals("-serve"))
+				{
+					Vector<String> defaultArgs = new Vector<String>(Arrays.asList(args));
+					defaultArgs.remove(i);
+					defaultArgs.remove(i);
+					new PipelineService(defaultArgs.toArray(new String[0])).serve(Integer.parseInt(args[i+1]));
+				}
+			}
+			Vector<Pipeline> profiles = buildTargetProfiles(args);
+			if (profiles == null)
+			{
+				Pipeline pipeline = new Pipeline(args, true);
+				sop("----------\n" + pipeline + "\n----------\n");
+				pipeline.runPipeline();
+			}
+			else
+			{
+				for (Pipeline profile: profiles)
+				{
+					sop("----------\n" + profile + "\n----------\n");
+					profile.runPipeline();
+				}
+				profiles.firstElement().caches.close();
+			}
 			sop("-----------------------------\n" +
 			    "Normal completion of pipeline" +
 			    "\n----------------------------\n"); // jmagasin added
@@ -924,11 +2080,14 @@ public class Pipeline
 		catch (Exception x)
 		{
 			sop("Stress: " + x.getMessage());
+			Log.flush();
 			x.printStackTrace();
 		}
 		finally
 		{
+			stopNCBIFixtures();
 			sop("DONE");
+			Log.flush();
 		}
 	}
 }
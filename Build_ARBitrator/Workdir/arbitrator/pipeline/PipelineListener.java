@@ -0,0 +1,61 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    PipelineListener.java
+ *
+ */
+
+
+package arbitrator.pipeline;
+
+import java.io.File;
+
+
+//
+// Receives a Pipeline's progress and results as they happen, on the thread running the pipeline, so
+// implementations should be quick (e.g. hand off to a queue). PipelineService uses one per job to
+// stream progress to clients. Stages are STAGE_BLAST, STAGE_CLASSIFY and STAGE_EMBL, in that order.
+//
+
+
+public interface PipelineListener 
+{
+	final static String			STAGE_BLAST			= "blast";
+	final static String			STAGE_CLASSIFY		= "classify";
+	final static String			STAGE_EMBL			= "embl";
+	
+	
+	public void stageStarted(String stage, int nItems);
+	
+	
+	// Every 1000 items and at the end of the stage.
+	public void progress(String stage, int nDone, int nItems);
+	
+	
+	// Once per accession as its group is called, whether by CD-Search, prefilter or an earlier call.
+	public void hitClassified(String accession, boolean positive, double e, String representative);
+	
+	
+	public void emblRecordFinished(String accession, File emblFile);
+	
+	
+	public void emblRecordFailed(String accession, String failureMode);
+	
+	
+	// After all output files are written.
+	public void finished();
+}
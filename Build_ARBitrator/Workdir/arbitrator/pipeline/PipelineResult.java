@@ -0,0 +1,90 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    PipelineResult.java
+ *
+ */
+
+
+package arbitrator.pipeline;
+
+import java.io.File;
+
+
+//
+// One item from EmbeddedPipeline's result stream: a classified accession, or a finished or failed EMBL
+// record. Fields that don't apply to the type are null/NaN/false.
+//
+
+
+public class PipelineResult 
+{
+	public enum Type		{ CLASSIFIED, EMBL_FINISHED, EMBL_FAILED }
+	
+	public final Type		type;
+	public final String		accession;
+	public final boolean	positive;
+	public final double		e;					// best blast e-value, for CLASSIFIED
+	public final String		representative;		// whose blast results the hit came from, for CLASSIFIED
+	public final File		emblFile;			// for EMBL_FINISHED
+	public final String		failureMode;		// for EMBL_FAILED, a ConversionFailure name
+	
+	
+	private PipelineResult(Type type, String accession, boolean positive, double e, String representative, 
+						   File emblFile, String failureMode)
+	{
+		this.type = type;
+		this.accession = accession;
+		this.positive = positive;
+		this.e = e;
+		this.representative = representative;
+		this.emblFile = emblFile;
+		this.failureMode = failureMode;
+	}
+	
+	
+	static PipelineResult classified(String accession, boolean positive, double e, String representative)
+	{
+		return new PipelineResult(Type.CLASSIFIED, accession, positive, e, representative, null, null);
+	}
+	
+	
+	static PipelineResult emblFinished(String accession, File emblFile)
+	{
+		return new PipelineResult(Type.EMBL_FINISHED, accession, true, Double.NaN, null, emblFile, null);
+	}
+	
+	
+	static PipelineResult emblFailed(String accession, String failureMode)
+	{
+		return new PipelineResult(Type.EMBL_FAILED, accession, true, Double.NaN, null, null, failureMode);
+	}
+	
+	
+	public String toString()
+	{
+		switch (type)
+		{
+			case CLASSIFIED:
+				return accession + " " + (positive ? "positive" : "negative") + " e=" + e + " rep=" + representative;
+			case EMBL_FINISHED:
+				return accession + " EMBL " + emblFile;
+			default:
+				return accession + " EMBL failed: " + failureMode;
+		}
+	}
+}
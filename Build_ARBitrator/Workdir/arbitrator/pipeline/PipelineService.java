@@ -0,0 +1,552 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    PipelineService.java
+ *
+ */
+
+
+package arbitrator.pipeline;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.sun.net.httpserver.*;
+
+import arbitrator.utils.*;
+
+
+//
+// Long-running service mode ("-serve port"). One warm JVM keeps the SharedCaches (accession dictionary, 
+// mapped blast hit stores, CD-Search results, sequence fetcher) and the NCBI rate limiter resident, and
+// runs jobs submitted over a local HTTP/JSON API, so several users share one correctly rate-limited
+// process instead of racing each other from separate JVMs. Jobs run one at a time, in submission order.
+//
+// Endpoints (localhost only):
+//   POST /jobs              Submit a job. Body is a JSON object: "representatives" (array of accessions)
+//                           and any Pipeline args without the leading "-", e.g.
+//                             {"name": "nifH", "representatives": ["WP_011611922.1"], "q": 2, "s": 3,
+//                              "posdom": ["cd02040"], "uninfdom": ["cd02117"], "oe": "nifH.embl"}
+//                           Arrays become comma-separated values. Output files ("ol", "oe", "oefails")
+//                           are plain file names, written to work/jobs prefixed by the job name. With
+//                           neither "ol" nor "oe", positives are listed there. Returns the job status.
+//   GET  /jobs              Status of every job. Finished and failed jobs are forgotten after an hour,
+//                           or sooner when more than 100 have piled up.
+//   GET  /jobs/<id>         Status of 1 job.
+//   GET  /jobs/<id>/events  Newline-delimited JSON events from the start of the job, streamed until it
+//                           ends: stage, progress, positive (1 per positive accession), embl, 
+//                           embl_failed, finished or failed.
+//
+// Settings that belong to the whole process (-sharedrate, -priorities, -loglevel, -metricsinterval, and
+// -ncbiurl, -record and -replay) are given on the command line, along with defaults for every job (e.g.
+// -apikey, -blastdb). Jobs can't change process settings or clear the shared work dir. Nor can they name
+// binaries or input files (-blastbin, -blastdb, -cdddb, -pssmdir, -ignore), which only the command line
+// sets, so a client can't make the service run or read anything it wasn't started with. Jobs with the
+// same name share checkpoints, so resubmitting an interrupted job resumes it.
+//
+
+
+class PipelineService 
+{
+	private final static Set<String>		PROCESS_ARGS		= new HashSet<String>(Arrays.asList(
+		"-sharedrate", "-priorities", "-loglevel", "-metricsinterval", "-ncbiurl", "-record", "-replay", "-replaylatency"));
+	private final static Set<String>		NON_JOB_ARGS		= new HashSet<String>(Arrays.asList(
+		"norecovery", "targets", "serve", "sharedrate", "priorities", "loglevel", "metricsinterval", "replistfile", 
+		"ncbiurl", "record", "replay", "replaylatency", "blastbin", "blastdb", "cdddb", "pssmdir", "ignore"));
+	private final static Set<String>		OUTPUT_JOB_ARGS		= new HashSet<String>(Arrays.asList("ol", "oe", "oefails"));
+	private final static String[]			REQUIRED_JOB_ARGS	= { "q", "s", "posdom" };
+	private final static long				EVENT_WAIT_MSECS	= 30000;
+	private final static int				MAX_DONE_JOBS		= 100;
+	private final static long				DONE_JOB_MSECS		= 60 * 60 * 1000L;		// kept for status this long
+	
+	private String[]						defaultArgs;
+	private SharedCaches					caches = new SharedCaches();
+	private ExecutorService					jobRunner = Executors.newSingleThreadExecutor();
+	private Map<String, Job>				idToJob = new LinkedHashMap<String, Job>();
+	private int								nextJobId = 1;
+	private File							jobsDirf = new File(Pipeline.getResultsDirf(), "jobs");
+	
+	
+	
+	
+	
+	
+	
+	
+		    ///////////////////////////////////////////////////////////////////////////////////
+		    //                                                                               //
+		    //                                     JOBS                                      //
+		    //                                                                               //
+		    ///////////////////////////////////////////////////////////////////////////////////
+	
+	
+	
+	private class Job implements PipelineListener, Runnable
+	{
+		String						id;
+		String						name;
+		Pipeline					pipeline;
+		File						listOutputFile;
+		String						state = "queued";			// queued, running, finished, failed
+		String						stage;
+		int							nDone;
+		int							nItems;
+		int							nPositives;
+		int							nNegatives;
+		int							nEmbls;
+		int							nEmblFailures;
+		String						error;
+		long						doneTime;
+		Vector<String>				events = new Vector<String>();
+		
+		
+		public void run()
+		{
+			setState("running", null);
+			try
+			{
+				pipeline.runPipeline();
+				setState("finished", null);
+			}
+			catch (Throwable x)
+			{
+				// Errors too (e.g. OutOfMemoryError), or the job would stay "running" and its event 
+				// clients would poll forever. The executor would swallow a rethrown one anyway.
+				Log.error("Job " + id + " failed: " + x);
+				setState("failed", x.toString());
+			}
+			finally
+			{
+				// The job's status and events are kept for a while, but not its Pipeline or hit stores.
+				caches.releaseHitStores(pipeline);
+				pipeline = null;
+			}
+		}
+		
+		
+		private synchronized void setState(String state, String error)
+		{
+			this.state = state;
+			this.error = error;
+			if (isDone())
+				doneTime = System.currentTimeMillis();
+			if (state.equals("failed"))
+				addEvent("{\"event\": \"failed\", \"error\": " + Json.quote(error) + "}");
+			notifyAll();
+		}
+		
+		
+		synchronized boolean isDone()
+		{
+			return state.equals("finished")  ||  state.equals("failed");
+		}
+		
+		
+		private synchronized void addEvent(String json)
+		{
+			events.add(json);
+			notifyAll();
+		}
+		
+		
+		public synchronized void stageStarted(String stage, int nItems)
+		{
+			this.stage = stage;
+			this.nDone = 0;
+			this.nItems = nItems;
+			addEvent("{\"event\": \"stage\", \"stage\": " + Json.quote(stage) + ", \"items\": " + nItems + "}");
+		}
+		
+		
+		public synchronized void progress(String stage, int nDone, int nItems)
+		{
+			this.nDone = nDone;
+			addEvent("{\"event\": \"progress\", \"stage\": " + Json.quote(stage) + ", \"done\": " + nDone + 
+				", \"items\": " + nItems + "}");
+		}
+		
+		
+		// Negatives are only counted; there are far too many to stream.
+		public synchronized void hitClassified(String accession, boolean positive, double e, String representative)
+		{
+			if (!positive)
+			{
+				nNegatives++;
+				return;
+			}
+			nPositives++;
+			addEvent("{\"event\": \"positive\", \"accession\": " + Json.quote(accession) + ", \"evalue\": " + 
+				Json.number(e) + ", \"representative\": " + Json.quote(representative) + "}");
+		}
+		
+		
+		public synchronized void emblRecordFinished(String accession, File emblFile)
+		{
+			nEmbls++;
+			addEvent("{\"event\": \"embl\", \"accession\": " + Json.quote(accession) + ", \"file\": " + 
+				Json.quote(emblFile.getAbsolutePath()) + "}");
+		}
+		
+		
+		public synchronized void emblRecordFailed(String accession, String failureMode)
+		{
+			nEmblFailures++;
+			addEvent("{\"event\": \"embl_failed\", \"accession\": " + Json.quote(accession) + ", \"failure\": " + 
+				Json.quote(failureMode) + "}");
+		}
+		
+		
+		public synchronized void finished()
+		{
+			addEvent("{\"event\": \"finished\", \"positives\": " + nPositives + ", \"negatives\": " + nNegatives + 
+				", \"embls\": " + nEmbls + ", \"embl_failures\": " + nEmblFailures + "}");
+		}
+		
+		
+		synchronized String toJson()
+		{
+			return "{\"id\": " + Json.quote(id) + ", \"name\": " + Json.quote(name) + ", \"state\": " + Json.quote(state) + 
+				", \"stage\": " + Json.quote(stage) + ", \"done\": " + nDone + ", \"items\": " + nItems + 
+				", \"positives\": " + nPositives + ", \"negatives\": " + nNegatives + ", \"embls\": " + nEmbls + 
+				", \"embl_failures\": " + nEmblFailures + ", \"error\": " + Json.quote(error) +
+				(listOutputFile == null  ?  ""  :  ", \"list_output\": " + Json.quote(listOutputFile.getAbsolutePath())) + "}";
+		}
+	}
+	
+	
+	// Applies the process-wide args now. The rest, plus the harmless -loglevel and -metricsinterval, are
+	// defaults for every job. The work dir is shared by every job, so -norecovery is ignored.
+	PipelineService(String[] args) throws IOException
+	{
+		Vector<String> jobDefaults = new Vector<String>();
+		Map<String, String> fixtureArgs = new HashMap<String, String>();
+		for (int i=0; i+1<args.length; i+=2)
+		{
+			String name = args[i];
+			String value = args[i+1];
+			if (name.equals("-norecovery"))
+				continue;
+			if (!PROCESS_ARGS.contains(name)  ||  name.equals("-loglevel")  ||  name.equals("-metricsinterval"))
+			{
+				jobDefaults.add(name);
+				jobDefaults.add(value);
+			}
+			if (name.equals("-sharedrate"))
+				NCBISnooze.useSharedRateFile(new File(value));
+			else if (name.equals("-priorities"))
+				NCBISnooze.setPriorities(value);
+			else if (name.equals("-loglevel"))
+				Log.setLevel(Log.Level.valueOf(value.toUpperCase()));
+			else if (name.equals("-metricsinterval"))
+				Metrics.startPeriodicSummary(Integer.parseInt(value));
+			else if (PROCESS_ARGS.contains(name))
+				fixtureArgs.put(name, value);
+		}
+		Pipeline.useNCBIFixtures(fixtureArgs);
+		defaultArgs = jobDefaults.toArray(new String[0]);
+		Metrics.registerMBean();
+	}
+	
+	
+	// Builds and validates the job's Pipeline. Throws IllegalArgumentException if the job is bad. The
+	// spec is checked before anything is written.
+	private Job createJob(Map<String, Object> spec) throws IOException
+	{
+		Job job = new Job();
+		synchronized (this)
+		{
+			job.id = String.valueOf(nextJobId++);
+		}
+		Object name = spec.get("name");
+		job.name = (name == null)  ?  "job" + job.id  :  name.toString();
+		if (!isSafeFileName(job.name))
+			throw new IllegalArgumentException("Illegal job name: " + job.name);
+		
+		Object reps = spec.get("representatives");
+		if (!(reps instanceof List)  ||  ((List<?>)reps).isEmpty())
+			throw new IllegalArgumentException("A job needs a non-empty \"representatives\" array");
+		for (Object rep: (List<?>)reps)
+			if (!String.valueOf(rep).matches("[\\w.|]+"))
+				throw new IllegalArgumentException("Illegal representative: " + rep);
+		
+		Vector<String> args = new Vector<String>(Arrays.asList(defaultArgs));
+		for (String required: REQUIRED_JOB_ARGS)
+			if (!spec.containsKey(required)  &&  !args.contains("-" + required))
+				throw new IllegalArgumentException("A job needs \"" + required + "\"");
+		File repFile = new File(jobsDirf, job.name + "_" + job.id + "_representatives.txt");
+		args.add("-replistfile");
+		args.add(repFile.getPath());
+		for (String key: spec.keySet())
+		{
+			if (key.equals("name")  ||  key.equals("representatives"))
+				continue;
+			if (NON_JOB_ARGS.contains(key))
+				throw new IllegalArgumentException("\"" + key + "\" can't be set per job");
+			if (!Pipeline.isArgName("-" + key))
+				throw new IllegalArgumentException("Unknown arg \"" + key + "\"");
+			String value = toArgValue(spec.get(key));
+			if (OUTPUT_JOB_ARGS.contains(key))
+			{
+				// Named by job name rather than id, so a resubmitted job resumes its outputs.
+				if (!isSafeFileName(value))
+					throw new IllegalArgumentException("\"" + key + "\" must be a plain file name; it's written to " + jobsDirf.getPath());
+				value = new File(jobsDirf, job.name + "_" + value).getPath();
+				if (key.equals("ol"))
+					job.listOutputFile = new File(value);
+			}
+			args.add("-" + key);
+			args.add(value);
+		}
+		if (!spec.containsKey("ol")  &&  !spec.containsKey("oe"))
+		{
+			job.listOutputFile = new File(jobsDirf, job.name + "_" + job.id + "_positives.txt");
+			args.add("-ol");
+			args.add(job.listOutputFile.getPath());
+		}
+		
+		jobsDirf.mkdirs();
+		PrintWriter pw = new PrintWriter(new FileWriter(repFile));
+		for (Object rep: (List<?>)reps)
+			pw.println(rep);
+		pw.close();
+		job.pipeline = new Pipeline(args.toArray(new String[0]), job.name, caches, false);
+		job.pipeline.addListener(job);
+		return job;
+	}
+	
+	
+	// No separators and no leading dot, so it can't leave the directory it's put in.
+	private static boolean isSafeFileName(String name)
+	{
+		return name.matches("[\\w-][\\w.-]*");
+	}
+	
+	
+	private static String toArgValue(Object value)
+	{
+		if (value instanceof List)
+		{
+			String s = "";
+			for (Object piece: (List<?>)value)
+				s += (s.isEmpty() ? "" : ",") + toArgValue(piece);
+			return s;
+		}
+		if (value instanceof Double)
+			return Json.number((Double)value);
+		return String.valueOf(value);
+	}
+	
+	
+	
+	
+	
+	
+	
+	
+		    ///////////////////////////////////////////////////////////////////////////////////
+		    //                                                                               //
+		    //                                     HTTP                                      //
+		    //                                                                               //
+		    ///////////////////////////////////////////////////////////////////////////////////
+	
+	
+	
+	// Blocks forever.
+	void serve(int port) throws IOException, InterruptedException
+	{
+		HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/jobs", new HttpHandler()
+		{
+			public void handle(HttpExchange x) throws IOException
+			{
+				try
+				{
+					handleJobs(x);
+				}
+				catch (RuntimeException e)
+				{
+					Log.warn("Service request " + x.getRequestURI() + " failed: " + e);
+					respond(x, 500, "{\"error\": " + Json.quote(e.toString()) + "}");
+				}
+				finally
+				{
+					x.close();
+				}
+			}
+		});
+		server.setExecutor(Executors.newCachedThreadPool());		// event streams hold a thread each
+		server.start();
+		Pipeline.sop("ARBitrator service listening on http://localhost:" + server.getAddress().getPort() + "/jobs");
+		synchronized (this)
+		{
+			while (true)
+				wait();
+		}
+	}
+	
+	
+	private void handleJobs(HttpExchange x) throws IOException
+	{
+		String[] path = x.getRequestURI().getPath().replaceAll("/+$", "").split("/");	// "", "jobs", id, ...
+		String method = x.getRequestMethod();
+		if (path.length == 2  &&  method.equals("POST"))
+		{
+			Job job;
+			try
+			{
+				job = createJob(Json.parseObject(readBody(x)));
+			}
+			catch (IllegalArgumentException e)
+			{
+				respond(x, 400, "{\"error\": " + Json.quote(e.getMessage()) + "}");
+				return;
+			}
+			catch (IOException e)
+			{
+				// E.g. the job's files couldn't be written. The client still gets an answer.
+				Log.warn("Couldn't create job: " + e);
+				respond(x, 500, "{\"error\": " + Json.quote(e.toString()) + "}");
+				return;
+			}
+			synchronized (idToJob)
+			{
+				pruneJobs();
+				idToJob.put(job.id, job);
+			}
+			jobRunner.submit(job);
+			Pipeline.sop("Queued job " + job.id + " (" + job.name + ")");
+			respond(x, 202, job.toJson());
+		}
+		else if (path.length == 2  &&  method.equals("GET"))
+		{
+			String json = "[";
+			synchronized (idToJob)
+			{
+				pruneJobs();
+				for (Job job: idToJob.values())
+					json += (json.length() > 1 ? ", " : "") + job.toJson();
+			}
+			respond(x, 200, json + "]");
+		}
+		else if (path.length >= 3  &&  method.equals("GET"))
+		{
+			Job job;
+			synchronized (idToJob)
+			{
+				job = idToJob.get(path[2]);
+			}
+			if (job == null)
+				respond(x, 404, "{\"error\": \"No such job\"}");
+			else if (path.length == 3)
+				respond(x, 200, job.toJson());
+			else if (path.length == 4  &&  path[3].equals("events"))
+				streamEvents(x, job);
+			else
+				respond(x, 404, "{\"error\": \"No such resource\"}");
+		}
+		else
+			respond(x, 405, "{\"error\": \"Unsupported request\"}");
+	}
+	
+	
+	// Forgets finished and failed jobs after DONE_JOB_MSECS, or sooner, oldest first, when there are more 
+	// than MAX_DONE_JOBS. Caller must hold idToJob.
+	private void pruneJobs()
+	{
+		int nDone = 0;
+		for (Job job: idToJob.values())
+			if (job.isDone())
+				nDone++;
+		long now = System.currentTimeMillis();
+		Iterator<Job> iter = idToJob.values().iterator();
+		while (iter.hasNext())
+		{
+			Job job = iter.next();
+			synchronized (job)
+			{
+				if (!job.isDone())
+					continue;
+				if (nDone > MAX_DONE_JOBS  ||  now - job.doneTime > DONE_JOB_MSECS)
+				{
+					iter.remove();
+					nDone--;
+				}
+			}
+		}
+	}
+	
+	
+	// Sends every event so far, then new ones as they happen, until the job is done.
+	private void streamEvents(HttpExchange x, Job job) throws IOException
+	{
+		x.getResponseHeaders().set("Content-Type", "application/x-ndjson");
+		x.sendResponseHeaders(200, 0);
+		Writer writer = new OutputStreamWriter(x.getResponseBody(), "UTF-8");
+		int nSent = 0;
+		while (true)
+		{
+			Vector<String> toSend = new Vector<String>();
+			boolean done;
+			synchronized (job)
+			{
+				try
+				{
+					if (nSent == job.events.size()  &&  !job.isDone())
+						job.wait(EVENT_WAIT_MSECS);
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+				toSend.addAll(job.events.subList(nSent, job.events.size()));
+				done = job.isDone();
+			}
+			for (String event: toSend)
+				writer.write(event + "\n");
+			writer.flush();			// also detects clients that went away
+			nSent += toSend.size();
+			if (done)
+				break;
+		}
+		writer.close();
+	}
+	
+	
+	private static String readBody(HttpExchange x) throws IOException
+	{
+		Reader reader = new InputStreamReader(x.getRequestBody(), "UTF-8");
+		StringBuilder sb = new StringBuilder();
+		char[] buf = new char[4096];
+		int n;
+		while ((n = reader.read(buf)) > 0)
+			sb.append(buf, 0, n);
+		return sb.toString();
+	}
+	
+	
+	private static void respond(HttpExchange x, int status, String json) throws IOException
+	{
+		byte[] bytes = (json + "\n").getBytes("UTF-8");
+		x.getResponseHeaders().set("Content-Type", "application/json");
+		x.sendResponseHeaders(status, bytes.length);
+		OutputStream out = x.getResponseBody();
+		out.write(bytes);
+		out.close();
+	}
+}
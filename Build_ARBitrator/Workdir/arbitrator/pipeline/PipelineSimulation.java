@@ -0,0 +1,464 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    PipelineSimulation.java
+ *
+ */
+
+
+package arbitrator.pipeline;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+
+import arbitrator.utils.*;
+
+
+//
+// Projects how long a run would take, without NCBI and without waiting. Real runs take days, so this is
+// how changes to NCBISnooze, the request scheduler, batching or concurrency can be compared. A 
+// VirtualClock replaces the wall clock and a SimulatedNCBI replaces HTTP, beneath the real request 
+// path: the real BLAST backend, CD-Search client and E-utilities fetches, paced by the real NCBISnooze
+// and scheduler, with the real retries and circuit breakers. What's modeled rather than run is the
+// local work (reading hits, classifying, readseq), which takes little time next to NCBI, and the 
+// data: hits are counted rather than read, and which groups are positive is random.
+//
+// The run mirrors the pipeline's stages: all representatives blast at once (1 thread each, as in
+// BlastCoordinator); then the distinct groups are classified in CD-Search batches, one at a time; then
+// positives are fetched for EMBL by -fetchthreads threads, or while classification is still going with
+// -overlap true. Reported are the projected wall clock time, request counts and mean rate limiter waits
+// by request class, refusals and retries, and each stage's span and utilization (the fraction of its 
+// threads' time with a request in flight, the rest being rate limiter waits and poll intervals).
+//
+// Usage: java arbitrator.pipeline.PipelineSimulation [-hits 1000000] [-reps 10] [-unique 0.3] 
+//            [-positive 0.1] [-batch 250] [-fetchthreads 1] [-overlap false] [-apikey true] 
+//            [-latency BUA=2000,CDSEARCH=1500,EUTILS=300] [-ncbirate BUA=1,CDSEARCH=1,EUTILS=10] 
+//            [-failrate 0.01] [-blastqueue secs] [-cdsqueue secs] [-spread 0.5] [-priorities spec] [-seed 1]
+//
+
+
+public class PipelineSimulation 
+{
+	private final static String			SIMULATED_API_KEY		= "SIMULATED";
+	private final static int			EMBL_QUEUE_CAPACITY		= 200;
+	private final static String[]		ARG_NAMES				=
+	{
+		"-hits", "-reps", "-unique", "-positive", "-batch", "-fetchthreads", "-overlap", "-apikey", "-latency", 
+		"-ncbirate", "-failrate", "-blastqueue", "-cdsqueue", "-spread", "-priorities", "-seed", "-loglevel"
+	};
+	
+	private long						nHits					= 1000000;
+	private int							nReps					= 10;
+	private double						uniqueFraction			= 0.3;
+	private double						positiveFraction		= 0.1;
+	private int							batchSize				= 250;
+	private int							nFetchThreads			= 1;
+	private boolean						overlap;
+	private String						apiKey					= SIMULATED_API_KEY;
+	private long						seed					= 1;
+	private VirtualClock				clock;
+	private SimulatedNCBI				ncbi;
+	private File						tempDirf;
+	private Vector<Stage>				stages					= new Vector<Stage>();
+	private Vector<Thread>				threads					= new Vector<Thread>();
+	private int							nPositives;
+	private int							nEmblFailures;
+	
+	
+	// Timing for 1 stage. Requests of the stage's classes are the stage's.
+	private class Stage
+	{
+		String							name;
+		int								nThreads;
+		EnumSet<RequestClass>			requestClasses;
+		long							start = -1;
+		long							end;
+		int								nRunning;
+		
+		Stage(String name, int nThreads, RequestClass... requestClasses)
+		{
+			this.name = name;
+			this.nThreads = nThreads;
+			this.requestClasses = EnumSet.copyOf(Arrays.asList(requestClasses));
+			stages.add(this);
+		}
+		
+		synchronized void threadStarted()
+		{
+			if (start < 0)
+				start = Clock.now();
+			nRunning++;
+		}
+		
+		synchronized void threadFinished()
+		{
+			if (--nRunning == 0)
+				end = Clock.now();
+		}
+		
+		long span()
+		{
+			return Math.max(0, end - start);
+		}
+	}
+	
+	
+	// A bounded queue whose waits are on the virtual clock. Like BoundedStage's queue, a full queue blocks
+	// the producer.
+	private static class HandoffQueue
+	{
+		private LinkedList<String>		items = new LinkedList<String>();
+		private int						capacity;
+		private boolean					closed;
+		
+		HandoffQueue(int capacity)		{ this.capacity = capacity; }
+		
+		synchronized void put(String item) throws InterruptedException
+		{
+			while (items.size() >= capacity)
+				Clock.waitOn(this, 0);
+			items.add(item);
+			Clock.notifyAllOn(this);
+		}
+		
+		// Null once closed and empty.
+		synchronized String take() throws InterruptedException
+		{
+			while (items.isEmpty()  &&  !closed)
+				Clock.waitOn(this, 0);
+			String ret = items.poll();
+			Clock.notifyAllOn(this);
+			return ret;
+		}
+		
+		synchronized void close()
+		{
+			closed = true;
+			Clock.notifyAllOn(this);
+		}
+	}
+	
+	
+	PipelineSimulation(String[] args)
+	{
+		ncbi = new SimulatedNCBI(seed);
+		if (args.length % 2 != 0)
+			throw new IllegalArgumentException("Expected -name value pairs");
+		for (int i=0; i<args.length; i+=2)
+		{
+			String name = args[i];
+			String value = args[i+1];
+			if (!Arrays.asList(ARG_NAMES).contains(name))
+				throw new IllegalArgumentException("Unknown argument " + name + ", expected one of " + Arrays.asList(ARG_NAMES));
+			if (name.equals("-hits"))
+				nHits = Long.parseLong(value);
+			else if (name.equals("-reps"))
+				nReps = Integer.parseInt(value);
+			else if (name.equals("-unique"))
+				uniqueFraction = Double.parseDouble(value);
+			else if (name.equals("-positive"))
+				positiveFraction = Double.parseDouble(value);
+			else if (name.equals("-batch"))
+				batchSize = Integer.parseInt(value);
+			else if (name.equals("-fetchthreads"))
+				nFetchThreads = Integer.parseInt(value);
+			else if (name.equals("-overlap"))
+				overlap = value.equalsIgnoreCase("true");
+			else if (name.equals("-apikey"))
+				apiKey = value.equalsIgnoreCase("true")  ?  SIMULATED_API_KEY  :  null;
+			else if (name.equals("-latency"))
+				ncbi.setLatency(value);
+			else if (name.equals("-ncbirate"))
+				ncbi.setMaxRates(value);
+			else if (name.equals("-failrate"))
+				ncbi.setFailureRate(Double.parseDouble(value));
+			else if (name.equals("-blastqueue"))
+				ncbi.setMeanBlastQueueSecs(Double.parseDouble(value));
+			else if (name.equals("-cdsqueue"))
+				ncbi.setMeanCDSearchQueueSecs(Double.parseDouble(value));
+			else if (name.equals("-spread"))
+				ncbi.setSpread(Double.parseDouble(value));
+			else if (name.equals("-priorities"))
+				NCBISnooze.setPriorities(value);
+			else if (name.equals("-seed"))
+				seed = Long.parseLong(value);
+			else if (name.equals("-loglevel"))
+				Log.setLevel(Log.Level.valueOf(value.toUpperCase()));
+		}
+		if (nReps < 1  ||  batchSize < 1  ||  nFetchThreads < 1)
+			throw new IllegalArgumentException("-reps, -batch and -fetchthreads must be positive");
+	}
+	
+	
+	
+	
+	
+	
+	
+	
+		    ///////////////////////////////////////////////////////////////////////////////////
+		    //                                                                               //
+		    //                                      RUN                                      //
+		    //                                                                               //
+		    ///////////////////////////////////////////////////////////////////////////////////
+	
+	
+	
+	void run() throws Exception
+	{
+		clock = new VirtualClock();
+		Clock.use(clock);
+		NCBIHttp.setTransport(ncbi);
+		tempDirf = Files.createTempDirectory("arbitrator_sim").toFile();
+		long simStart = Clock.now();
+		
+		// BLAST all representatives at once.
+		final Stage blastStage = new Stage("blast", nReps, 
+			RequestClass.BLAST_SUBMIT, RequestClass.BLAST_POLL, RequestClass.BLAST_FETCH);
+		Vector<Thread> blasters = new Vector<Thread>();
+		for (int i=0; i<nReps; i++)
+		{
+			final String rep = "SIMREP_" + i + ".1";
+			blasters.add(startParticipant(blastStage, new Task()
+			{
+				public void run() throws Exception
+				{
+					File resultsFile = new File(tempDirf, "blast_hits_" + rep);
+					new NCBIBlastSearchBackend(apiKey).search(rep, (int)Math.min(Integer.MAX_VALUE, nHits/nReps), 10, resultsFile);
+					resultsFile.delete();
+				}
+			}));
+		}
+		join(blasters);
+		
+		// Classify distinct groups in CD-Search batches. Positives are queued for EMBL as they're called.
+		final HandoffQueue emblQueue = new HandoffQueue(overlap  ?  EMBL_QUEUE_CAPACITY  :  Integer.MAX_VALUE);
+		final Random random = new Random(seed);
+		final long nGroups = Math.round(nHits * uniqueFraction);
+		Stage classifyStage = new Stage("classify", 1, 
+			RequestClass.CDSEARCH_SUBMIT, RequestClass.CDSEARCH_POLL, RequestClass.CDSEARCH_FETCH);
+		Thread classifier = startParticipant(classifyStage, new Task()
+		{
+			public void run() throws Exception
+			{
+				for (long first=0; first<nGroups; first+=batchSize)
+				{
+					Vector<String> batch = new Vector<String>();
+					for (long i=first; i<Math.min(nGroups, first+batchSize); i++)
+						batch.add("SIMACC_" + i + ".1");
+					new NCBIRPSBlaster(batch, apiKey).blast();
+					for (String acc: batch)
+					{
+						if (random.nextDouble() >= positiveFraction)
+							continue;
+						nPositives++;
+						emblQueue.put(acc);
+					}
+				}
+				emblQueue.close();
+			}
+		});
+		if (!overlap)
+			classifier.join();
+		
+		// Fetch records for EMBL generation.
+		Stage emblStage = new Stage("embl", nFetchThreads, 
+			RequestClass.ESEARCH, RequestClass.EFETCH_PROTEIN, RequestClass.EFETCH_NUCLEOTIDE);
+		Vector<Thread> fetchers = new Vector<Thread>();
+		for (int i=0; i<nFetchThreads; i++)
+		{
+			final File nucleotideFile = new File(tempDirf, "nucleotides_" + i + ".gp");
+			fetchers.add(startParticipant(emblStage, new Task()
+			{
+				public void run() throws Exception
+				{
+					String acc;
+					while ((acc = emblQueue.take()) != null)
+					{
+						try
+						{
+							GenPeptRecord proteinGP = BlastHTTPClient.getProteinGPRecord(acc, apiKey);
+							String surl = EMBLRecord.buildNukeFetchSurl(proteinGP);
+							new BlastHTTPClient(surl, apiKey, RequestClass.EFETCH_NUCLEOTIDE).writeResponsePageToFile(nucleotideFile);
+						}
+						catch (ConversionException x)
+						{
+							countEmblFailure();
+						}
+						catch (IOException x)
+						{
+							countEmblFailure();
+						}
+					}
+					nucleotideFile.delete();
+				}
+			}));
+		}
+		classifier.join();
+		join(fetchers);
+		long projectedMillis = Clock.now() - simStart;
+		tempDirf.delete();
+		report(projectedMillis, nGroups);
+	}
+	
+	
+	private interface Task
+	{
+		public void run() throws Exception;
+	}
+	
+	
+	// Counted as a clock participant from before it starts until it finishes.
+	private Thread startParticipant(final Stage stage, final Task task)
+	{
+		clock.addParticipant();
+		Thread thread = new Thread(stage.name + "-" + threads.size())
+		{
+			public void run()
+			{
+				stage.threadStarted();
+				try
+				{
+					task.run();
+				}
+				catch (Exception x)
+				{
+					Log.error("Simulated " + stage.name + " thread failed: " + x);
+				}
+				finally
+				{
+					stage.threadFinished();
+					clock.removeParticipant();
+				}
+			}
+		};
+		threads.add(thread);
+		thread.start();
+		return thread;
+	}
+	
+	
+	private static void join(Collection<Thread> threads) throws InterruptedException
+	{
+		for (Thread thread: threads)
+			thread.join();
+	}
+	
+	
+	private synchronized void countEmblFailure()
+	{
+		nEmblFailures++;
+	}
+	
+	
+	
+	
+	
+	
+	
+	
+		    ///////////////////////////////////////////////////////////////////////////////////
+		    //                                                                               //
+		    //                                    REPORT                                     //
+		    //                                                                               //
+		    ///////////////////////////////////////////////////////////////////////////////////
+	
+	
+	
+	private void report(long projectedMillis, long nGroups)
+	{
+		Map<RequestClass, Integer> counts = ncbi.getRequestCounts();
+		Map<RequestClass, Long> inFlight = ncbi.getInFlightMillis();
+		sop("Simulated " + nHits + " hits from " + nReps + " representative(s): " + nGroups + " groups classified in " + 
+			((nGroups + batchSize - 1) / batchSize) + " CD-Search batch(es) of " + batchSize + ", " + nPositives + 
+			" positive(s), " + nEmblFailures + " EMBL fetch failure(s).");
+		sop("EMBL generation " + (overlap ? "overlapped" : "followed") + " classification, with " + nFetchThreads + 
+			" fetch thread(s). API key: " + (apiKey != null));
+		sop(ncbi.toString());
+		sop("\nProjected wall clock time: " + hms(projectedMillis));
+		
+		sop(String.format("\n%-10s %8s %10s %10s %10s %10s %12s", "Stage", "Threads", "Start", "End", "Span", "Requests", "Utilization"));
+		for (Stage stage: stages)
+		{
+			int nRequests = 0;
+			long busy = 0;
+			for (RequestClass rc: stage.requestClasses)
+			{
+				nRequests += counts.containsKey(rc)  ?  counts.get(rc)  :  0;
+				busy += inFlight.containsKey(rc)  ?  inFlight.get(rc)  :  0;
+			}
+			long threadMillis = stage.span() * stage.nThreads;
+			String utilization = (threadMillis == 0)  ?  "-"  :  String.format("%.1f%%", 100.0 * busy / threadMillis);
+			long start = (stage.start < 0)  ?  0  :  stage.start - (Clock.now() - projectedMillis);
+			sop(String.format("%-10s %8d %10s %10s %10s %10d %12s", stage.name, stage.nThreads, hms(start), 
+				hms(start + stage.span()), hms(stage.span()), nRequests, utilization));
+		}
+		
+		sop(String.format("\n%-20s %10s %20s", "Request class", "Requests", "Mean wait (secs)"));
+		for (RequestClass rc: RequestClass.values())
+		{
+			if (!counts.containsKey(rc))
+				continue;
+			Metrics.Histogram waits = Metrics.getHistogram("scheduler." + rc.metricName() + ".wait_ms");
+			sop(String.format("%-20s %10d %20.2f", rc, counts.get(rc), waits.getMean() / 1000));
+		}
+		
+		String s = "\nRefused (429): " + ncbi.getNThrottled() + ", failed (503): " + ncbi.getNFailed();
+		for (NCBIEndpoint endpoint: NCBIEndpoint.values())
+		{
+			long nRetries = Metrics.getCount("http." + endpoint.metricName() + ".retries");
+			long nOpened = Metrics.getCount("circuit." + endpoint.metricName() + ".opened");
+			if (nRetries > 0  ||  nOpened > 0)
+				s += "\n  " + endpoint + ": " + nRetries + " retries, circuit breaker opened " + nOpened + " time(s)";
+		}
+		sop(s);
+	}
+	
+	
+	private static String hms(long millis)
+	{
+		long secs = millis / 1000;
+		return String.format("%d:%02d:%02d", secs / 3600, (secs / 60) % 60, secs % 60);
+	}
+	
+	
+	static void sop(Object x)		{ System.out.println(x); }
+	
+	
+	public static void main(String[] args)
+	{
+		try
+		{
+			Log.setLevel(Log.Level.WARN);
+			PipelineSimulation sim = new PipelineSimulation(args);
+			long start = System.currentTimeMillis();
+			sim.run();
+			sop("\nSimulated in " + (System.currentTimeMillis() - start) / 1000.0 + " secs, " + 
+				sim.clock.getNAdvances() + " clock advances.");
+		}
+		catch (IllegalArgumentException x)
+		{
+			sop(x.getMessage());
+		}
+		catch (Exception x)
+		{
+			x.printStackTrace();
+		}
+		Log.flush();
+	}
+}
@@ -0,0 +1,53 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    SearchBackend.java
+ *
+ */
+
+
+package arbitrator.pipeline;
+
+import java.io.*;
+
+
+//
+// Homology search for one representative. The BlastCoordinator calls search() once per representative,
+// each call in its own thread, and expects the results file to contain NCBI-style tabular (-outfmt 7)
+// output when search() returns. Ingestion in the Pipeline reads the results file, so a backend doesn't
+// need to know anything about classification.
+//
+// Implementations:
+//     NCBIBlastSearchBackend		Public nr via the BLAST URL API. The original behavior.
+//     LocalBlastSearchBackend		BLAST+ blastp against a local protein database.
+//
+
+
+public interface SearchBackend 
+{
+	// Called once before any search(), with the number of searches that will run concurrently.
+	public void prepare(int nSearches);
+	
+	// Blocks until resultsFile is complete. Must not leave a partial resultsFile behind on failure,
+	// because the coordinator treats an existing results file as a finished search.
+	public void search(String representative, int hitListSize, double expect, File resultsFile) 
+		throws IOException, ConversionException;
+	
+	public void setVerbose(boolean verbose);
+	
+	public String toString();
+}
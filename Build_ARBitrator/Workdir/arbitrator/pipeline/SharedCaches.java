@@ -0,0 +1,164 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    SharedCaches.java
+ *
+ */
+
+
+package arbitrator.pipeline;
+
+import java.io.*;
+import java.util.*;
+
+import arbitrator.utils.*;
+
+
+//
+// State that every target profile in a run can share: interned accessions, mapped blast hit stores, 
+// protein sequences, domain hits from CD-Search and from local rpsblast, and the sequence fetcher and 
+// local rpsblaster. A single-target run has its own. With -targets, one instance is handed to each profile's Pipeline, so N
+// gene families cost close to one run: an accession that turns up in several profiles' blast results is
+// only searched once. A PipelineService keeps one instance warm across all its jobs.
+//
+
+
+class SharedCaches 
+{
+	final static String				CD_SEARCH_CACHE_FILENAME	= "cdsearch_cache.txt";
+	final static String				RPSBLAST_CACHE_PREFIX		= "rpsblast_cache_";
+	final static int				MAX_CACHED_SEQUENCES		= 100000;		// ~30 Mb of typical proteins
+	
+	AccessionDictionary				accessions = new AccessionDictionary();
+	ProteinSequenceFetcher			proteinSequenceFetcher;
+	LocalRPSBlaster					localRPSBlaster;
+	private Map<File, BlastHitStore>	hitStores = new HashMap<File, BlastHitStore>();		// keyed by text file
+	private Map<File, Set<Object>>	hitStoreUsers = new HashMap<File, Set<Object>>();
+	private Map<String, CDSearchCache>	domainHitCaches = new HashMap<String, CDSearchCache>();	// keyed by source
+	private Map<String, String>		sequences = new LinkedHashMap<String, String>(16, 0.75f, true)
+	{
+		private static final long serialVersionUID = 1L;
+		
+		protected boolean removeEldestEntry(Map.Entry<String, String> eldest)
+		{
+			return size() > MAX_CACHED_SEQUENCES;
+		}
+	};
+	
+	
+	// Null if there's no store for the blast results file yet. The user (e.g. a Pipeline) is recorded
+	// either way, and the store is kept until every user has released it.
+	synchronized BlastHitStore getHitStore(File blastResultsFile, Object user)
+	{
+		addHitStoreUser(blastResultsFile, user);
+		return hitStores.get(blastResultsFile);
+	}
+	
+	
+	synchronized void putHitStore(File blastResultsFile, BlastHitStore store, Object user)
+	{
+		addHitStoreUser(blastResultsFile, user);
+		hitStores.put(blastResultsFile, store);
+	}
+	
+	
+	private void addHitStoreUser(File blastResultsFile, Object user)
+	{
+		Set<Object> users = hitStoreUsers.get(blastResultsFile);
+		if (users == null)
+		{
+			users = new HashSet<Object>();
+			hitStoreUsers.put(blastResultsFile, users);
+		}
+		users.add(user);
+	}
+	
+	
+	// For a long-lived PipelineService: drops the user's stores that no other user holds. A mapped store
+	// has nothing to close; dropping the last reference lets the mapping be reclaimed.
+	synchronized void releaseHitStores(Object user)
+	{
+		Iterator<Map.Entry<File, Set<Object>>> iter = hitStoreUsers.entrySet().iterator();
+		while (iter.hasNext())
+		{
+			Map.Entry<File, Set<Object>> entry = iter.next();
+			entry.getValue().remove(user);
+			if (entry.getValue().isEmpty())
+			{
+				hitStores.remove(entry.getKey());
+				iter.remove();
+			}
+		}
+	}
+	
+	
+	// Sequences for the accessions, from memory where possible and otherwise from the fetcher. Accessions
+	// whose sequence couldn't be retrieved are absent, and aren't remembered, so they're fetched again 
+	// next time. The fetch itself isn't synchronized, so profiles and jobs don't wait on each other's.
+	Map<String, String> getSequences(Collection<String> accs, ProteinSequenceFetcher fetcher) throws IOException
+	{
+		Map<String, String> ret = new HashMap<String, String>();
+		Vector<String> unknown = new Vector<String>();
+		synchronized (this)
+		{
+			for (String acc: accs)
+			{
+				String seq = sequences.get(acc);
+				if (seq != null)
+					ret.put(acc, seq);
+				else
+					unknown.add(acc);
+			}
+		}
+		Metrics.add("sequences.cache_hits", ret.size());
+		if (unknown.isEmpty())
+			return ret;
+		Map<String, String> fetched = fetcher.fetch(unknown);
+		synchronized (this)
+		{
+			sequences.putAll(fetched);
+		}
+		ret.putAll(fetched);
+		return ret;
+	}
+	
+	
+	// Domain hits from CD-Search at NCBI, or from local rpsblast against localCddDb. They're cached 
+	// separately, since the database versions and thresholds differ. Opened lazily because -norecovery 
+	// may have just deleted the work dir.
+	synchronized CDSearchCache getCDSearchCache(String localCddDb) throws IOException
+	{
+		String filename = CD_SEARCH_CACHE_FILENAME;
+		if (localCddDb != null)
+			filename = RPSBLAST_CACHE_PREFIX + new File(localCddDb).getName().replaceAll("[^\\w.-]", "_") + ".txt";
+		CDSearchCache cache = domainHitCaches.get(filename);
+		if (cache == null)
+		{
+			cache = new CDSearchCache(new File(Pipeline.getResultsDirf(), filename));
+			domainHitCaches.put(filename, cache);
+		}
+		return cache;
+	}
+	
+	
+	synchronized void close()
+	{
+		for (CDSearchCache cache: domainHitCaches.values())
+			cache.close();
+		domainHitCaches.clear();
+	}
+}
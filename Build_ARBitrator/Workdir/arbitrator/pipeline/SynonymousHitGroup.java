@@ -43,6 +43,7 @@ public class SynonymousHitGroup extends Vector<String>
 	public double			superiority;
 	public boolean			isCalled;
 	public boolean			calledPositive;
+	public String			representative;		// whose blast results produced the group, if known
 	
 	
 	//
@@ -71,7 +72,8 @@ public class SynonymousHitGroup extends Vector<String>
 	public SynonymousHitGroup(String line) throws IllegalArgumentException
 	{
 		// Indexing from 0 and not counting blank fields, subjects are field 1 (semicolon-delimited list)
-		// and e-value is field 11.
+		// and e-value is field 10. (It was field 11 before % positives moved to the end; reading 11 
+		// picked up the bit score.)
 		String[] pieces = line.split("\\s");
 		Vector<String> nonWhitespacePieces = new Vector<String>();
 		for (String piece: pieces)
@@ -80,7 +82,7 @@ public class SynonymousHitGroup extends Vector<String>
 		if (nonWhitespacePieces.size() < 13)  // jmagasin: 12 --> 13
 			throw new IllegalArgumentException(line);
 		String sSubjects = nonWhitespacePieces.get(1);
-		String sE = nonWhitespacePieces.get(11);
+		String sE = nonWhitespacePieces.get(10);
 		e = Double.parseDouble(sE);
 		
 		// jmagasin 25 April 2019: Disabled code that extracts an accession
@@ -123,6 +125,15 @@ public class SynonymousHitGroup extends Vector<String>
 	}
 	
 	
+	// For lines already parsed by a TabularHitCursor: one (interned) subject accession and its e-value.
+	public SynonymousHitGroup(String accession, double e)
+	{
+		super(1);
+		add(accession);
+		this.e = e;
+	}
+	
+	
 	public void classify(boolean calledPositive)
 	{
 		isCalled = true;
@@ -149,4 +160,4 @@ public class SynonymousHitGroup extends Vector<String>
 	{
 		return size() + " synonymous hit(s): " + gisToString() + " .. Expect = " + e;
 	}
-}	
+}
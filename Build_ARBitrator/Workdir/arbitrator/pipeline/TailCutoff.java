@@ -0,0 +1,158 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    TailCutoff.java
+ *
+ */
+
+
+package arbitrator.pipeline;
+
+import java.io.*;
+import java.util.*;
+
+import arbitrator.utils.*;
+
+
+//
+// Adaptive stopping rule for the low-significance tail of each representative's hit list. Deep in a
+// 100K-hit list almost every group is called negative, yet each one costs a CD-Search slot. Calls are
+// tracked per representative in a sliding window of the most recent windowSize calls; since blast
+// lists hits best e-value first, the window covers a band of e-values that moves down the list. Once
+// a full window's positive rate falls below the floor, the representative is cut: its remaining
+// unknown groups with e-values at least as poor as the window's worst are skipped instead of 
+// classified. Skipped accessions are logged, with the representative and e-value, so recall loss can 
+// be audited (e.g. by classifying the skipped file later).
+//
+
+
+class TailCutoff 
+{
+	final static int				DEFAULT_WINDOW_SIZE		= 500;
+	
+	private double					minPositiveRate;
+	private int						windowSize = DEFAULT_WINDOW_SIZE;
+	private Map<String, Window>		repToWindow = new HashMap<String, Window>();
+	private PrintWriter				skippedWriter;
+	int								nSkipped;
+	
+	
+	private class Window
+	{
+		boolean[]					calls = new boolean[windowSize];
+		int							nCalls;					// total ever, so ring index is nCalls % windowSize
+		int							nPositiveInWindow;
+		double						worstE;
+		double						cutoffE = Double.NaN;	// NaN => not cut
+		
+		void add(boolean positive, double e)
+		{
+			int i = nCalls % windowSize;
+			if (nCalls >= windowSize  &&  calls[i])
+				nPositiveInWindow--;
+			calls[i] = positive;
+			if (positive)
+				nPositiveInWindow++;
+			nCalls++;
+			worstE = Math.max(worstE, e);
+			if (nCalls >= windowSize  &&  !isCut()  &&  nPositiveInWindow < minPositiveRate * windowSize)
+				cutoffE = worstE;
+		}
+		
+		boolean isCut()
+		{
+			return !Double.isNaN(cutoffE);
+		}
+	}
+	
+	
+	TailCutoff(double minPositiveRate)
+	{
+		if (!(minPositiveRate >= 0  &&  minPositiveRate <= 1))
+			throw new IllegalArgumentException("Floor must be a fraction between 0 and 1: " + minPositiveRate);
+		this.minPositiveRate = minPositiveRate;
+	}
+	
+	
+	void setWindowSize(int windowSize)
+	{
+		if (windowSize < 1)
+			throw new IllegalArgumentException("Window size must be positive: " + windowSize);
+		this.windowSize = windowSize;
+	}
+	
+	
+	// Skipped accessions are only decided this run, so the file is rewritten.
+	void openSkippedFile(File skippedFile) throws IOException
+	{
+		skippedWriter = new PrintWriter(new BufferedWriter(new FileWriter(skippedFile)));
+		skippedWriter.println("# accession\trepresentative\tevalue\tcutoff_evalue");
+	}
+	
+	
+	void closeSkippedFile()
+	{
+		if (skippedWriter != null)
+			skippedWriter.close();
+		skippedWriter = null;
+	}
+	
+	
+	// Call for every group as it's called.
+	void recordCall(SynonymousHitGroup shg)
+	{
+		if (shg.representative == null)
+			return;
+		Window window = repToWindow.get(shg.representative);
+		if (window == null)
+		{
+			window = new Window();
+			repToWindow.put(shg.representative, window);
+		}
+		boolean wasCut = window.isCut();
+		window.add(shg.calledPositive, shg.e);
+		if (!wasCut  &&  window.isCut())
+		{
+			Metrics.increment("tail.representatives_cut");
+			Log.info("Tail cutoff for representative " + shg.representative + ": " + window.nPositiveInWindow + 
+				" positive in last " + windowSize + " calls, skipping unknown hits with e >= " + window.cutoffE);
+		}
+	}
+	
+	
+	// Returns true, and logs the group, if it's in a cut representative's tail. Only call for groups 
+	// whose call isn't already known, which are free.
+	boolean skip(SynonymousHitGroup shg)
+	{
+		Window window = (shg.representative == null)  ?  null  :  repToWindow.get(shg.representative);
+		if (window == null  ||  !window.isCut()  ||  shg.e < window.cutoffE)
+			return false;
+		nSkipped++;
+		Metrics.increment("tail.skipped");
+		if (skippedWriter != null)
+			for (String acc: shg)
+				skippedWriter.println(acc + "\t" + shg.representative + "\t" + shg.e + "\t" + window.cutoffE);
+		return true;
+	}
+	
+	
+	public String toString()
+	{
+		return "Tail cutoff: stop classifying a representative's hits once fewer than " + minPositiveRate + 
+			" of its last " + windowSize + " calls are positive";
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    AccessionDictionary.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+
+//
+// Intern table for accessions, keyed on a char range so that looking up an accession that has been seen
+// before allocates nothing. Accessions recur across the blast results of every representative, so each
+// distinct one is stored once. Open addressing with linear probing; hashes match String.hashCode() so
+// that rehashing can use the Strings' cached hashes.
+//
+
+
+public class AccessionDictionary 
+{
+	private String[]			table;
+	private int					size;
+	
+	
+	public AccessionDictionary()
+	{
+		table = new String[1 << 12];
+	}
+	
+	
+	public String intern(char[] buf, int start, int end)
+	{
+		int h = 0;
+		for (int i=start; i<end; i++)
+			h = 31*h + buf[i];
+		int mask = table.length - 1;
+		int slot = mix(h) & mask;
+		String s;
+		while ((s = table[slot]) != null)
+		{
+			if (matches(s, buf, start, end))
+				return s;
+			slot = (slot + 1) & mask;
+		}
+		s = new String(buf, start, end - start);
+		table[slot] = s;
+		if (++size * 2 > table.length)
+			grow();
+		return s;
+	}
+	
+	
+	public String intern(String s)
+	{
+		char[] chars = s.toCharArray();
+		return intern(chars, 0, chars.length);
+	}
+	
+	
+	private static boolean matches(String s, char[] buf, int start, int end)
+	{
+		if (s.length() != end - start)
+			return false;
+		for (int i=0; i<s.length(); i++)
+			if (s.charAt(i) != buf[start+i])
+				return false;
+		return true;
+	}
+	
+	
+	// String hash codes of similar accessions differ mostly in low bits; spread them.
+	private static int mix(int h)
+	{
+		return h ^ (h >>> 16);
+	}
+	
+	
+	private void grow()
+	{
+		String[] old = table;
+		table = new String[old.length * 2];
+		int mask = table.length - 1;
+		for (String s: old)
+		{
+			if (s == null)
+				continue;
+			int slot = mix(s.hashCode()) & mask;
+			while (table[slot] != null)
+				slot = (slot + 1) & mask;
+			table[slot] = s;
+		}
+	}
+	
+	
+	public int size()
+	{
+		return size;
+	}
+}
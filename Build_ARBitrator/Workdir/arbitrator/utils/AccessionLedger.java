@@ -0,0 +1,286 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    AccessionLedger.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+import java.io.*;
+import java.util.*;
+
+
+//
+// Durable per-accession record of how far each hit has got through the pipeline:
+//
+//     HIT -> POSITIVE or NEGATIVE -> PROTEIN_FETCHED -> NUCLEOTIDE_FETCHED -> CONVERTED or FAILED(reason)
+//
+// so that a restart resumes each accession at its exact step, without trusting file existence (a
+// partially written file isn't a finished one) and without redoing lookups that already failed. 
+//
+// The ledger is an append-only log of "accession<TAB>state[<TAB>detail]" lines; the last line for an
+// accession wins. Each transition is a single line, so it's atomic: a line torn by a crash has no
+// newline and is discarded on reload. Lines are buffered, not flushed as they're written; sync() writes
+// them out and forces them to disk, and callers use it at their own commit points. When superseded 
+// lines outnumber live ones, the log is compacted on open by writing 1 line per accession to a temp file
+// and renaming it over the log.
+//
+
+
+public class AccessionLedger 
+{
+	public enum State
+	{
+		HIT(0), NEGATIVE(1), POSITIVE(1), PROTEIN_FETCHED(2), NUCLEOTIDE_FETCHED(3), CONVERTED(4), FAILED(4);
+		
+		final int			rank;
+		
+		State(int rank)		{ this.rank = rank; }
+	}
+	
+	
+	public static class Entry
+	{
+		public final State			state;
+		public final String			detail;			// e.g. failure reason; null if none
+		
+		Entry(State state, String detail)
+		{
+			this.state = state;
+			this.detail = detail;
+		}
+		
+		public String toString()	{ return state + (detail == null ? "" : "(" + detail + ")"); }
+	}
+	
+	
+	private final static int						MIN_LINES_TO_COMPACT	= 10000;
+	
+	private File									file;
+	private Map<String, Entry>						accToEntry = new HashMap<String, Entry>();
+	private FileOutputStream						fos;
+	private Writer									writer;
+	private int										nLines;
+	private boolean									isNew;
+	
+	
+	public AccessionLedger(File file) throws IOException
+	{
+		this.file = file;
+		isNew = !file.exists();
+		if (!isNew)
+			load();
+		if (nLines >= MIN_LINES_TO_COMPACT  &&  nLines > 2 * accToEntry.size())
+			compact();
+		open();
+	}
+	
+	
+	private void open() throws IOException
+	{
+		fos = new FileOutputStream(file, true);
+		writer = new BufferedWriter(new OutputStreamWriter(fos, "UTF-8"));
+	}
+	
+	
+	private void load() throws IOException
+	{
+		byte[] bytes = new byte[(int)file.length()];
+		DataInputStream dis = new DataInputStream(new FileInputStream(file));
+		dis.readFully(bytes);
+		dis.close();
+		int validLength = 0;
+		int start = 0;
+		for (int i=0; i<bytes.length; i++)
+		{
+			if (bytes[i] != '\n')
+				continue;
+			String[] pieces = new String(bytes, start, i-start, "UTF-8").split("\t", 3);
+			start = i + 1;
+			validLength = start;
+			try
+			{
+				accToEntry.put(pieces[0], new Entry(State.valueOf(pieces[1]), (pieces.length > 2) ? pieces[2] : null));
+				nLines++;
+			}
+			catch (RuntimeException x)
+			{
+				Log.warn("Ignoring bad ledger line in " + file.getAbsolutePath() + ": " + x);
+			}
+		}
+		if (validLength < bytes.length)
+		{
+			Log.warn("Discarding torn last line of " + file.getAbsolutePath());
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.setLength(validLength);
+			raf.close();
+		}
+		Log.info("Loaded ledger of " + accToEntry.size() + " accessions from " + file.getAbsolutePath());
+	}
+	
+	
+	private void compact() throws IOException
+	{
+		File tmp = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".tmp");
+		FileOutputStream tmpOut = new FileOutputStream(tmp);
+		Writer tmpWriter = new BufferedWriter(new OutputStreamWriter(tmpOut, "UTF-8"));
+		for (Map.Entry<String, Entry> e: accToEntry.entrySet())
+			tmpWriter.write(toLine(e.getKey(), e.getValue()));
+		tmpWriter.flush();
+		tmpOut.getFD().sync();
+		tmpWriter.close();
+		if (!tmp.renameTo(file))
+		{
+			file.delete();
+			if (!tmp.renameTo(file))
+				throw new IOException("Can't rename " + tmp + " to " + file);
+		}
+		Log.info("Compacted ledger " + file.getAbsolutePath() + " from " + nLines + " to " + accToEntry.size() + " lines");
+		nLines = accToEntry.size();
+	}
+	
+	
+	private static String toLine(String accession, Entry entry)
+	{
+		return accession + "\t" + entry.state + (entry.detail == null ? "" : "\t" + entry.detail.replace('\n', ' ')) + "\n";
+	}
+	
+	
+	
+	
+	
+	
+	
+	
+		    ///////////////////////////////////////////////////////////////////////////////////
+		    //                                                                               //
+		    //                                  TRANSITIONS                                  //
+		    //                                                                               //
+		    ///////////////////////////////////////////////////////////////////////////////////
+	
+	
+	
+	// Moves the accession forward to state. Ignored, returning false, if it's already there or beyond,
+	// e.g. a converted accession that is called positive again in a later run.
+	public synchronized boolean advance(String accession, State state, String detail) throws IOException
+	{
+		Entry current = accToEntry.get(accession);
+		if (current != null  &&  current.state.rank >= state.rank)
+			return false;
+		set(accession, state, detail);
+		return true;
+	}
+	
+	
+	public boolean advance(String accession, State state) throws IOException
+	{
+		return advance(accession, state, null);
+	}
+	
+	
+	// Unconditional, e.g. to move a failed accession back for a retry.
+	public synchronized void set(String accession, State state, String detail) throws IOException
+	{
+		Entry entry = new Entry(state, detail);
+		accToEntry.put(accession, entry);
+		writer.write(toLine(accession, entry));
+		nLines++;
+	}
+	
+	
+	// Forces every transition so far to disk.
+	public synchronized void sync() throws IOException
+	{
+		writer.flush();
+		fos.getFD().sync();
+	}
+	
+	
+	public synchronized void close() throws IOException
+	{
+		sync();
+		writer.close();
+	}
+	
+	
+	
+	
+	
+	
+	
+	
+		    ///////////////////////////////////////////////////////////////////////////////////
+		    //                                                                               //
+		    //                                    QUERIES                                    //
+		    //                                                                               //
+		    ///////////////////////////////////////////////////////////////////////////////////
+	
+	
+	
+	public synchronized Entry get(String accession)
+	{
+		return accToEntry.get(accession);
+	}
+	
+	
+	public synchronized State getState(String accession)
+	{
+		Entry entry = accToEntry.get(accession);
+		return (entry == null)  ?  null  :  entry.state;
+	}
+	
+	
+	// True if the accession is in state or any state after it. POSITIVE and NEGATIVE are both "classified".
+	public synchronized boolean hasReached(String accession, State state)
+	{
+		Entry entry = accToEntry.get(accession);
+		return entry != null  &&  entry.state.rank >= state.rank;
+	}
+	
+	
+	public synchronized Set<String> getAccessions(State... states)
+	{
+		Set<State> wanted = EnumSet.noneOf(State.class);
+		wanted.addAll(Arrays.asList(states));
+		Set<String> ret = new TreeSet<String>();
+		for (Map.Entry<String, Entry> e: accToEntry.entrySet())
+			if (wanted.contains(e.getValue().state))
+				ret.add(e.getKey());
+		return ret;
+	}
+	
+	
+	// True if there was no ledger file, e.g. the work dir is from a run before ledgers existed.
+	public boolean isNew()
+	{
+		return isNew;
+	}
+	
+	
+	public synchronized int size()
+	{
+		return accToEntry.size();
+	}
+	
+	
+	public String toString()
+	{
+		return "AccessionLedger: " + size() + " accessions in " + file.getAbsolutePath();
+	}
+}
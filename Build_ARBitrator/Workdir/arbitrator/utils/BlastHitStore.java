@@ -0,0 +1,378 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    BlastHitStore.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+
+//
+// Columnar binary copy of one tabular blast results file (work/blast_hits_<rep>), written the first time
+// the text is parsed and memory mapped on later runs, so a restart never re-parses text. Every field of
+// every HSP is kept, not just the subject and e-value that SynonymousHitGroup needs, so filters and
+// analyses get identity, coordinates, bit scores etc. for free.
+//
+// Layout (big-endian):
+//
+//   int magic, int version, long source length, long source mtime, int nRows, int nAccessions
+//   nAccessions * { int nChars, chars }            query and subject accessions, referenced by index
+//   padding to a multiple of 8
+//   double evalue[nRows]
+//   int column[nRows] for each other field in TabularHitCursor order; accessions are indices,
+//                                                  % identity, bit score and % positives are float bits
+//
+// The store is stale, and rebuilt from text, if the text file's length or mtime no longer match.
+//
+
+
+public class BlastHitStore 
+{
+	private final static int				MAGIC				= 0x41524248;		// "ARBH"
+	private final static int				VERSION				= 1;
+	private final static int				HEADER_BYTES		= 32;
+	private final static int				N_FIELDS			= TabularHitCursor.N_FIELDS;
+	private final static boolean[]			IS_FLOAT			= new boolean[N_FIELDS];
+	
+	static
+	{
+		IS_FLOAT[TabularHitCursor.PCT_IDENTITY] = true;
+		IS_FLOAT[TabularHitCursor.BIT_SCORE] = true;
+		IS_FLOAT[TabularHitCursor.PCT_POSITIVES] = true;
+	}
+	
+	private ByteBuffer						buf;
+	private int								nRows;
+	private String[]						accessions;
+	private int								evalueOffset;
+	private int[]							columnOffsets = new int[N_FIELDS];
+	
+	
+	private BlastHitStore(ByteBuffer buf, AccessionDictionary dict) throws IOException
+	{
+		this.buf = buf;
+		if (buf.getInt(0) != MAGIC  ||  buf.getInt(4) != VERSION)
+			throw new IOException("Not a blast hit store");
+		nRows = buf.getInt(24);
+		int nAccessions = buf.getInt(28);
+		accessions = new String[nAccessions];
+		int pos = HEADER_BYTES;
+		char[] chars = new char[64];
+		for (int i=0; i<nAccessions; i++)
+		{
+			int nChars = buf.getInt(pos);
+			pos += 4;
+			if (nChars > chars.length)
+				chars = new char[nChars];
+			for (int j=0; j<nChars; j++, pos+=2)
+				chars[j] = buf.getChar(pos);
+			accessions[i] = dict.intern(chars, 0, nChars);
+		}
+		pos = (pos + 7) & ~7;
+		evalueOffset = pos;
+		pos += 8 * nRows;
+		for (int field=0; field<N_FIELDS; field++)
+		{
+			if (field == TabularHitCursor.EVALUE)
+				continue;
+			columnOffsets[field] = pos;
+			pos += 4 * nRows;
+		}
+		if (pos > buf.limit())
+			throw new IOException("Truncated blast hit store");
+	}
+	
+	
+	
+	
+	
+	
+	
+	
+		    ///////////////////////////////////////////////////////////////////////////////////
+		    //                                                                               //
+		    //                                   OPENING                                     //
+		    //                                                                               //
+		    ///////////////////////////////////////////////////////////////////////////////////
+	
+	
+	
+	public static File storeFileFor(File blastResultsFile)
+	{
+		return new File(blastResultsFile.getParentFile(), blastResultsFile.getName() + ".bin");
+	}
+	
+	
+	// Maps the store for the text file if it exists and is current, else returns null.
+	public static BlastHitStore openIfCurrent(File blastResultsFile, AccessionDictionary dict)
+	{
+		File storeFile = storeFileFor(blastResultsFile);
+		if (!storeFile.exists())
+			return null;
+		try
+		{
+			BlastHitStore store = map(storeFile, dict);
+			return store.isCurrentFor(blastResultsFile)  ?  store  :  null;
+		}
+		catch (IOException x)
+		{
+			Log.warn("Ignoring unreadable blast hit store " + storeFile.getAbsolutePath() + ": " + x.getMessage());
+			return null;
+		}
+	}
+	
+	
+	// True if the store was built from the current contents of the text file.
+	public boolean isCurrentFor(File blastResultsFile)
+	{
+		return buf.getLong(8) == blastResultsFile.length()  &&  buf.getLong(16) == blastResultsFile.lastModified();
+	}
+	
+	
+	public static BlastHitStore map(File storeFile, AccessionDictionary dict) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(storeFile, "r");
+		try
+		{
+			MappedByteBuffer mapped = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			return new BlastHitStore(mapped, dict);
+		}
+		finally
+		{
+			raf.close();			// the mapping stays valid
+		}
+	}
+	
+	
+	
+	
+	
+	
+	
+	
+		    ///////////////////////////////////////////////////////////////////////////////////
+		    //                                                                               //
+		    //                                   BUILDING                                    //
+		    //                                                                               //
+		    ///////////////////////////////////////////////////////////////////////////////////
+	
+	
+	
+	// Accumulates rows from a TabularHitCursor positioned on valid hit lines.
+	public static class Builder
+	{
+		private File						sourceFile;
+		private AccessionDictionary			dict;
+		private Map<String, Integer>		accessionIndices = new HashMap<String, Integer>();
+		private Vector<String>				accessionsInOrder = new Vector<String>();
+		private int							nRows;
+		private double[]					evalues = new double[1024];
+		private int[][]						columns = new int[N_FIELDS][1024];
+		
+		
+		public Builder(File sourceFile, AccessionDictionary dict)
+		{
+			this.sourceFile = sourceFile;
+			this.dict = dict;
+		}
+		
+		
+		public void add(TabularHitCursor cursor)
+		{
+			if (nRows == evalues.length)
+			{
+				evalues = Arrays.copyOf(evalues, 2*nRows);
+				for (int field=0; field<N_FIELDS; field++)
+					columns[field] = Arrays.copyOf(columns[field], 2*nRows);
+			}
+			for (int field=0; field<N_FIELDS; field++)
+			{
+				int value;
+				if (field == TabularHitCursor.EVALUE)
+				{
+					evalues[nRows] = cursor.getDouble(field);
+					continue;
+				}
+				else if (field == TabularHitCursor.QUERY  ||  field == TabularHitCursor.SUBJECT)
+					value = indexOf(cursor.internField(field, dict));
+				else if (IS_FLOAT[field])
+					value = Float.floatToIntBits((float)cursor.getDouble(field));
+				else
+					value = cursor.getInt(field);
+				columns[field][nRows] = value;
+			}
+			nRows++;
+		}
+		
+		
+		// Interned, so identity hashing would do, but HashMap is simpler and this isn't per line hot.
+		private int indexOf(String accession)
+		{
+			Integer index = accessionIndices.get(accession);
+			if (index == null)
+			{
+				index = accessionsInOrder.size();
+				accessionIndices.put(accession, index);
+				accessionsInOrder.add(accession);
+			}
+			return index;
+		}
+		
+		
+		private byte[] toBytes() throws IOException
+		{
+			ByteArrayOutputStream baos = new ByteArrayOutputStream(HEADER_BYTES + 60*nRows + 32*accessionsInOrder.size());
+			DataOutputStream dos = new DataOutputStream(baos);
+			dos.writeInt(MAGIC);
+			dos.writeInt(VERSION);
+			dos.writeLong(sourceFile.length());
+			dos.writeLong(sourceFile.lastModified());
+			dos.writeInt(nRows);
+			dos.writeInt(accessionsInOrder.size());
+			for (String acc: accessionsInOrder)
+			{
+				dos.writeInt(acc.length());
+				dos.writeChars(acc);
+			}
+			while (dos.size() % 8 != 0)
+				dos.writeByte(0);
+			for (int row=0; row<nRows; row++)
+				dos.writeDouble(evalues[row]);
+			for (int field=0; field<N_FIELDS; field++)
+			{
+				if (field == TabularHitCursor.EVALUE)
+					continue;
+				for (int row=0; row<nRows; row++)
+					dos.writeInt(columns[field][row]);
+			}
+			dos.close();
+			return baos.toByteArray();
+		}
+		
+		
+		// Writes the store next to the source file (via a temp file and rename, so a crash never leaves a
+		// partial store) and maps it. If it can't be written, returns an in-memory store.
+		public BlastHitStore build() throws IOException
+		{
+			byte[] bytes = toBytes();
+			File storeFile = storeFileFor(sourceFile);
+			File tmp = new File(storeFile.getParentFile(), storeFile.getName() + ".tmp");
+			try
+			{
+				FileOutputStream fos = new FileOutputStream(tmp);
+				fos.write(bytes);
+				fos.getFD().sync();
+				fos.close();
+				if (!tmp.renameTo(storeFile))
+				{
+					storeFile.delete();
+					if (!tmp.renameTo(storeFile))
+						throw new IOException("Can't rename " + tmp + " to " + storeFile);
+				}
+				return map(storeFile, dict);
+			}
+			catch (IOException x)
+			{
+				tmp.delete();
+				Log.warn("Couldn't write blast hit store " + storeFile.getAbsolutePath() + " (" + x.getMessage() + 
+						 "); it will be rebuilt next run.");
+				return new BlastHitStore(ByteBuffer.wrap(bytes), dict);
+			}
+		}
+	}
+	
+	
+	
+	
+	
+	
+	
+	
+		    ///////////////////////////////////////////////////////////////////////////////////
+		    //                                                                               //
+		    //                                   ACCESSORS                                   //
+		    //                                                                               //
+		    ///////////////////////////////////////////////////////////////////////////////////
+	
+	
+	
+	public int size()								{ return nRows;														}
+	public String getQuery(int row)					{ return accessions[getInt(TabularHitCursor.QUERY, row)];			}
+	public String getSubject(int row)				{ return accessions[getInt(TabularHitCursor.SUBJECT, row)];		}
+	public float getPctIdentity(int row)			{ return getFloat(TabularHitCursor.PCT_IDENTITY, row);				}
+	public int getAlignmentLength(int row)			{ return getInt(TabularHitCursor.ALIGNMENT_LENGTH, row);			}
+	public int getMismatches(int row)				{ return getInt(TabularHitCursor.MISMATCHES, row);					}
+	public int getGapOpens(int row)					{ return getInt(TabularHitCursor.GAP_OPENS, row);					}
+	public int getQStart(int row)					{ return getInt(TabularHitCursor.Q_START, row);					}
+	public int getQEnd(int row)						{ return getInt(TabularHitCursor.Q_END, row);						}
+	public int getSStart(int row)					{ return getInt(TabularHitCursor.S_START, row);					}
+	public int getSEnd(int row)						{ return getInt(TabularHitCursor.S_END, row);						}
+	public double getEvalue(int row)				{ return buf.getDouble(evalueOffset + 8*row);						}
+	public float getBitScore(int row)				{ return getFloat(TabularHitCursor.BIT_SCORE, row);				}
+	public float getPctPositives(int row)			{ return getFloat(TabularHitCursor.PCT_POSITIVES, row);			}
+	
+	
+	public int getInt(int field, int row)
+	{
+		return buf.getInt(columnOffsets[field] + 4*row);
+	}
+	
+	
+	public float getFloat(int field, int row)
+	{
+		return Float.intBitsToFloat(getInt(field, row));
+	}
+	
+	
+	public String toString()
+	{
+		return "BlastHitStore: " + nRows + " HSPs, " + accessions.length + " accessions";
+	}
+	
+	
+	// Prints a store back out as tab-delimited text, e.g. for analyses outside ARBitrator:
+	//     java arbitrator.utils.BlastHitStore work/blast_hits_WP_011611922.1.bin
+	public static void main(String[] args)
+	{
+		try
+		{
+			BlastHitStore store = map(new File(args[0]), new AccessionDictionary());
+			PrintStream out = new PrintStream(new BufferedOutputStream(System.out));
+			out.println("# " + store);
+			for (int row=0; row<store.size(); row++)
+			{
+				out.println(store.getQuery(row) + "\t" + store.getSubject(row) + "\t" + store.getPctIdentity(row) + "\t" + 
+					store.getAlignmentLength(row) + "\t" + store.getMismatches(row) + "\t" + store.getGapOpens(row) + "\t" + 
+					store.getQStart(row) + "\t" + store.getQEnd(row) + "\t" + store.getSStart(row) + "\t" + 
+					store.getSEnd(row) + "\t" + store.getEvalue(row) + "\t" + store.getBitScore(row) + "\t" + 
+					store.getPctPositives(row));
+			}
+			out.flush();
+		}
+		catch (IOException x)
+		{
+			x.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,226 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    BoundedStage.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+
+//
+// 1 stage of a producer/consumer graph: a bounded input queue, drained by nThreads workers that each
+// pass their output to the next stage. Chained stages overlap, so end-to-end time approaches that of the
+// slowest stage instead of the sum. Backpressure is by blocking: a full queue blocks whoever puts to it, 
+// so a stage that's waiting on the NCBI rate limiter slows everything upstream instead of piling up work.
+//
+// Usage: chain with then(), start() every stage, put() items to the 1st stage, then finish() it and
+// await() it. Each stage finishes its downstream stage when its last worker exits. If a worker throws,
+// the stage stops processing but keeps draining its queue so upstream stages don't block forever, and
+// await() rethrows the 1st exception from this or any downstream stage. An Error (e.g. OutOfMemoryError)
+// is recorded the same way, but kills its worker; once every worker is dead, input is discarded.
+// abort() doesn't interrupt workers, since an interrupt closes any NIO channel a worker is using (e.g. the
+// shared rate file); each worker stops after its current item.
+//
+
+
+public class BoundedStage<I, O> 
+{
+	public interface Worker<I, O>
+	{
+		// Returns output for the next stage, or null for none.
+		public O process(I item) throws Exception;
+	}
+	
+	
+	private final static Object			END				= new Object();
+	private final static long			PUT_POLL_MILLIS	= 1000;
+	
+	private String						name;
+	private int							nThreads;
+	private Worker<I, O>				worker;
+	private BlockingQueue<Object>		queue;
+	private BoundedStage<O, ?>			downstream;
+	private Vector<Thread>				threads			= new Vector<Thread>();
+	private AtomicInteger				nLiveThreads	= new AtomicInteger();
+	private volatile boolean			started;
+	private volatile boolean			aborted;
+	private volatile Throwable			failure;
+	
+	
+	public BoundedStage(String name, int nThreads, int capacity, Worker<I, O> worker)
+	{
+		if (nThreads < 1)
+			throw new IllegalArgumentException("Stage " + name + " needs at least 1 thread: " + nThreads);
+		this.name = name;
+		this.nThreads = nThreads;
+		this.worker = worker;
+		queue = new ArrayBlockingQueue<Object>(capacity);
+	}
+	
+	
+	// Returns next, for chaining.
+	public <P> BoundedStage<O, P> then(BoundedStage<O, P> next)
+	{
+		downstream = next;
+		return next;
+	}
+	
+	
+	public void start()
+	{
+		nLiveThreads.set(nThreads);
+		started = true;
+		for (int i=0; i<nThreads; i++)
+		{
+			Thread thread = new Thread(name + "-" + i)
+			{
+				public void run()
+				{
+					work();
+				}
+			};
+			thread.setDaemon(true);
+			threads.add(thread);
+			thread.start();
+		}
+	}
+	
+	
+	@SuppressWarnings("unchecked")
+	private void work()
+	{
+		try
+		{
+			Object item;
+			while (!aborted  &&  (item = queue.take()) != END)
+			{
+				if (isFailed())
+					continue;									// drain, so upstream doesn't block
+				try
+				{
+					O out = worker.process((I)item);
+					Metrics.increment("stage." + name + ".processed");
+					if (out != null  &&  downstream != null)
+						downstream.put(out);
+				}
+				catch (Throwable x)
+				{
+					if (failure == null)
+						failure = x;
+					Log.warn("Stage " + name + " failed: " + x);
+					if (x instanceof Error)
+						throw (Error)x;
+				}
+			}
+		}
+		catch (InterruptedException x)
+		{
+			// interrupted by the caller rather than aborted; stop the same way
+		}
+		finally
+		{
+			if (nLiveThreads.decrementAndGet() == 0  &&  downstream != null)
+				downstream.finish();
+		}
+	}
+	
+	
+	// Blocks while the queue is full, unless every worker has died or the stage was aborted.
+	public void put(I item) throws InterruptedException
+	{
+		enqueue(item);
+	}
+	
+	
+	private void enqueue(Object item) throws InterruptedException
+	{
+		while (!aborted  &&  !queue.offer(item, PUT_POLL_MILLIS, TimeUnit.MILLISECONDS))
+			if (started  &&  nLiveThreads.get() == 0)
+				return;
+	}
+	
+	
+	// No more input. Workers exit once the queue is drained.
+	public void finish()
+	{
+		for (int i=0; i<nThreads; i++)
+		{
+			try
+			{
+				enqueue(END);
+			}
+			catch (InterruptedException x)
+			{
+				Thread.currentThread().interrupt();
+				abort();
+				return;
+			}
+		}
+	}
+	
+	
+	// Waits for this stage and everything downstream to finish.
+	public void await() throws Exception
+	{
+		for (Thread thread: threads)
+			thread.join();
+		if (downstream != null)
+			downstream.await();
+		if (failure instanceof Error)
+			throw (Error)failure;
+		if (failure != null)
+			throw (Exception)failure;
+	}
+	
+	
+	// Stops this stage and everything downstream without waiting for queued items. Doesn't wait for items
+	// that are being processed.
+	public void abort()
+	{
+		aborted = true;
+		queue.clear();
+		for (int i=0; i<nThreads; i++)
+			queue.offer(END);									// wakes idle workers
+		if (downstream != null)
+			downstream.abort();
+	}
+	
+	
+	// True if this stage or any downstream stage has failed, so further input would be discarded.
+	public boolean isFailed()
+	{
+		return failure != null  ||  (downstream != null  &&  downstream.isFailed());
+	}
+	
+	
+	public int getQueueSize()
+	{
+		return queue.size();
+	}
+	
+	
+	public String toString()
+	{
+		return "Stage " + name + ": " + nThreads + " thread(s), " + queue.size() + " queued";
+	}
+}
@@ -0,0 +1,163 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    CDSearchCache.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+import java.io.*;
+import java.util.*;
+
+
+//
+// Domain hits per protein accession, from CD-Search or local rpsblast, kept in memory and appended to
+// a file so they survive restarts. A CD-Search result lists hits to every domain, so one lookup per
+// accession can classify it for any number of target gene families. Hits are stored unfiltered; callers
+// apply their own specific/uninformative-domain filtering to a copy.
+//
+// File format: one "accession<TAB>record" line per hit (record as in RPSTabularRecord.toTabularLine()),
+// then a line holding just the accession. The terminator marks the entry complete, so an entry cut off 
+// by a crash is ignored on reload, and an accession with no hits is just its terminator.
+//
+
+
+public class CDSearchCache 
+{
+	private File										file;
+	private Map<String, Vector<RPSTabularRecord>>		accToHits = new HashMap<String, Vector<RPSTabularRecord>>();
+	private PrintWriter									appender;
+	
+	
+	public CDSearchCache(File file) throws IOException
+	{
+		this.file = file;
+		if (file.exists())
+			load();
+		appender = new PrintWriter(new BufferedWriter(new FileWriter(file, true)));
+	}
+	
+	
+	// Anything after the last terminator was cut off by a crash. It's truncated away, or the next entry 
+	// appended would be glued onto it. An entry with a hit line that can't be parsed is skipped whole, so 
+	// the accession is searched again rather than cached with some or none of its hits.
+	private void load() throws IOException
+	{
+		InputStream in = new BufferedInputStream(new FileInputStream(file));
+		Map<String, Vector<RPSTabularRecord>> pending = new HashMap<String, Vector<RPSTabularRecord>>();
+		Set<String> poisoned = new HashSet<String>();
+		long nBytesRead = 0;
+		long goodLength = 0;
+		ByteArrayOutputStream lineBytes = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) >= 0)
+		{
+			nBytesRead++;
+			if (b != '\n')
+			{
+				lineBytes.write(b);
+				continue;
+			}
+			String line = lineBytes.toString("UTF-8");
+			lineBytes.reset();
+			int tab = line.indexOf('\t');
+			String acc = (tab < 0)  ?  line  :  line.substring(0, tab);
+			if (acc.isEmpty())
+				continue;
+			if (tab < 0)
+			{
+				// Terminator.
+				Vector<RPSTabularRecord> hits = pending.remove(acc);
+				if (!poisoned.remove(acc))
+					accToHits.put(acc, (hits == null)  ?  new Vector<RPSTabularRecord>()  :  hits);
+				goodLength = nBytesRead;
+				continue;
+			}
+			if (poisoned.contains(acc))
+				continue;
+			try
+			{
+				RPSTabularRecord hit = RPSTabularRecord.parseLine(line.substring(tab+1));
+				Vector<RPSTabularRecord> hits = pending.get(acc);
+				if (hits == null)
+				{
+					hits = new Vector<RPSTabularRecord>();
+					pending.put(acc, hits);
+				}
+				hits.add(hit);
+			}
+			catch (RuntimeException x)
+			{
+				Log.warn("Unreadable CD-Search result for " + acc + " in " + file.getAbsolutePath() + "; it will be searched again.");
+				pending.remove(acc);
+				poisoned.add(acc);
+			}
+		}
+		in.close();
+		if (goodLength < file.length())
+		{
+			Log.warn("Dropping " + (file.length() - goodLength) + " bytes of incomplete CD-Search results at the end of " + 
+				file.getAbsolutePath());
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.setLength(goodLength);
+			raf.close();
+		}
+		Log.info("Loaded CD-Search results for " + accToHits.size() + " accessions from " + file.getAbsolutePath());
+	}
+	
+	
+	// Returns null if the accession hasn't been searched. Don't modify the returned vector.
+	public synchronized Vector<RPSTabularRecord> get(String accession)
+	{
+		return accToHits.get(accession);
+	}
+	
+	
+	public synchronized void put(String accession, Vector<RPSTabularRecord> hits)
+	{
+		accToHits.put(accession, hits);
+		for (RPSTabularRecord hit: hits)
+			appender.println(accession + "\t" + hit.toTabularLine());
+		appender.println(accession);
+	}
+	
+	
+	public synchronized void flush()
+	{
+		appender.flush();
+	}
+	
+	
+	public synchronized void close()
+	{
+		appender.close();
+	}
+	
+	
+	public synchronized int size()
+	{
+		return accToHits.size();
+	}
+	
+	
+	public String toString()
+	{
+		return "CDSearchCache: " + size() + " accessions in " + file.getAbsolutePath();
+	}
+}
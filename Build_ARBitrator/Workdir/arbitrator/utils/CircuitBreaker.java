@@ -0,0 +1,150 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    CircuitBreaker.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+
+//
+// One per NCBI endpoint (see NCBIHttp). After FAILURE_THRESHOLD consecutive transient failures the
+// breaker opens and callers for that endpoint wait instead of hammering a service that is down or is
+// refusing us. After the cooldown one caller is let through as a trial (half-open). If the trial
+// succeeds the breaker closes; if not, it reopens with double the cooldown, up to MAX_COOLDOWN.
+//
+// Waiting rather than failing is deliberate: the pipeline has nothing useful to do with a request
+// that can't be made, and each stage talks to a different endpoint, so only the affected stage
+// pauses (e.g. EMBL fetching stops while E-utilities is down but BLAST polling carries on).
+//
+
+
+public class CircuitBreaker 
+{
+	private final static int		FAILURE_THRESHOLD			= 5;
+	private final static long		INITIAL_COOLDOWN_MILLIS		= 60 * 1000L;
+	private final static long		MAX_COOLDOWN_MILLIS			= 30 * 60 * 1000L;
+	
+	private enum State { CLOSED, OPEN, HALF_OPEN };
+	
+	private NCBIEndpoint			endpoint;
+	private State					state = State.CLOSED;
+	private int						consecutiveFailures;
+	private long					cooldownMillis = INITIAL_COOLDOWN_MILLIS;
+	private long					openUntil;
+	private Thread					trialOwner;					// null => no half-open trial in progress
+	
+	
+	public CircuitBreaker(NCBIEndpoint endpoint)
+	{
+		this.endpoint = endpoint;
+	}
+	
+	
+	// Blocks while the breaker is open, or while another caller's half-open trial is in progress.
+	public synchronized void awaitPermission() throws InterruptedException
+	{
+		while (true)
+		{
+			long now = Clock.now();
+			if (state == State.CLOSED)
+				return;
+			if (state == State.OPEN)
+			{
+				if (now < openUntil)
+				{
+					Clock.waitOn(this, openUntil - now);
+					continue;
+				}
+				state = State.HALF_OPEN;
+				trialOwner = null;
+			}
+			// Half open.
+			if (trialOwner == null)
+			{
+				trialOwner = Thread.currentThread();
+				return;
+			}
+			Clock.waitOn(this, 1000);
+		}
+	}
+	
+	
+	public synchronized void onSuccess()
+	{
+		if (state != State.CLOSED)
+			Log.info("Circuit breaker for " + endpoint + " closed: requests are succeeding again.");
+		state = State.CLOSED;
+		consecutiveFailures = 0;
+		cooldownMillis = INITIAL_COOLDOWN_MILLIS;
+		trialOwner = null;
+		Clock.notifyAllOn(this);
+	}
+	
+	
+	public synchronized void onFailure()
+	{
+		consecutiveFailures++;
+		if (state == State.HALF_OPEN)
+		{
+			cooldownMillis = Math.min(2 * cooldownMillis, MAX_COOLDOWN_MILLIS);
+			open();
+		}
+		else if (state == State.CLOSED  &&  consecutiveFailures >= FAILURE_THRESHOLD)
+			open();
+		Clock.notifyAllOn(this);
+	}
+	
+	
+	// Ends the calling thread's half-open trial if it neither succeeded nor failed transiently, e.g. a 404
+	// or a page that couldn't be parsed, so the next caller gets its turn. No-op otherwise, including for
+	// a caller that was let through before the breaker opened and finishes during another's trial. Callers 
+	// do this on every exit from an attempt, on the thread that got permission.
+	public synchronized void releaseTrial()
+	{
+		if (state == State.HALF_OPEN  &&  trialOwner == Thread.currentThread())
+		{
+			trialOwner = null;
+			Clock.notifyAllOn(this);
+		}
+	}
+	
+	
+	private void open()
+	{
+		state = State.OPEN;
+		openUntil = Clock.now() + cooldownMillis;
+		trialOwner = null;
+		Metrics.increment("circuit." + endpoint.metricName() + ".opened");
+		Log.warn(new java.util.Date() + ": Circuit breaker for " + endpoint + " opened after " + consecutiveFailures + 
+			" consecutive failures. Pausing " + endpoint + " requests for " + (cooldownMillis/1000) + " secs.");
+	}
+	
+	
+	public synchronized boolean isClosed()
+	{
+		return state == State.CLOSED;
+	}
+	
+	
+	public synchronized String toString()
+	{
+		return endpoint + " circuit breaker: " + state + ", " + consecutiveFailures + " consecutive failures";
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    Clock.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+
+//
+// The time source for everything that paces NCBI requests: NCBISnooze and its NCBIRequestScheduler, 
+// NCBIHttp retry backoff, CircuitBreaker cooldowns, CD-Search resubmission and EMBL retry delays. By 
+// default it's the wall clock. A simulation installs a VirtualClock instead, so that hours of waiting
+// on NCBI take no real time.
+//
+// Code that waits on a monitor for a timeout calls waitOn() and notifyAllOn() instead of wait() and
+// notifyAll(), so that a virtual clock knows which threads are blocked. Like wait(), waitOn() must be 
+// called with the monitor held, may return early, and a timeout of 0 means no timeout.
+//
+
+
+public class Clock 
+{
+	private static volatile Clock		clock = new Clock();
+	
+	
+	protected Clock()		{ }
+	
+	
+	public static void use(Clock c)
+	{
+		clock = c;
+	}
+	
+	
+	public static Clock get()
+	{
+		return clock;
+	}
+	
+	
+	public static long now()
+	{
+		return clock.millis();
+	}
+	
+	
+	public static void sleep(long msecs) throws InterruptedException
+	{
+		clock.doSleep(msecs);
+	}
+	
+	
+	public static void waitOn(Object monitor, long msecs) throws InterruptedException
+	{
+		clock.doWait(monitor, msecs);
+	}
+	
+	
+	public static void notifyAllOn(Object monitor)
+	{
+		clock.doNotifyAll(monitor);
+	}
+	
+	
+	protected long millis()
+	{
+		return System.currentTimeMillis();
+	}
+	
+	
+	protected void doSleep(long msecs) throws InterruptedException
+	{
+		if (msecs > 0)
+			Thread.sleep(msecs);
+	}
+	
+	
+	protected void doWait(Object monitor, long msecs) throws InterruptedException
+	{
+		monitor.wait(msecs);
+	}
+	
+	
+	protected void doNotifyAll(Object monitor)
+	{
+		monitor.notifyAll();
+	}
+}
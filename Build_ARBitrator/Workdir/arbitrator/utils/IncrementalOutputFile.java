@@ -0,0 +1,196 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    IncrementalOutputFile.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+
+
+//
+// An output file that is appended to record by record as results are produced, so it's usable at any
+// time, and that survives crashes. Each record has a key (e.g. an accession). commit() forces appended
+// records to disk, then appends "key<TAB>end offset" lines for them to a small commit log next to the 
+// file (<file>.commit) and forces that. Everything up to the last committed offset is complete.
+//
+// On resume, a record torn by a crash (data past the last committed offset, or a commit line without
+// its newline) is truncated away, and committed keys are remembered so that records aren't appended
+// twice. Without resume, or if there's no commit log (e.g. the file is from an older run), the file 
+// starts empty.
+//
+
+
+public class IncrementalOutputFile 
+{
+	private File							file;
+	private File							commitFile;
+	private FileOutputStream				dataOut;
+	private FileChannel						dataChannel;
+	private FileOutputStream				commitOut;
+	private long							length;
+	private Set<String>						keys = new HashSet<String>();		// committed and pending
+	private Vector<String>					pendingKeys = new Vector<String>();
+	private Vector<Long>						pendingEnds = new Vector<Long>();
+	
+	
+	public IncrementalOutputFile(File file, boolean resume) throws IOException
+	{
+		this.file = file;
+		commitFile = new File(file.getAbsoluteFile().getParentFile(), file.getName() + ".commit");
+		if (resume  &&  commitFile.exists()  &&  file.exists())
+			recover();
+		else
+		{
+			truncate(file, 0);
+			truncate(commitFile, 0);
+		}
+		dataOut = new FileOutputStream(file, true);
+		dataChannel = dataOut.getChannel();
+		commitOut = new FileOutputStream(commitFile, true);
+	}
+	
+	
+	private void recover() throws IOException
+	{
+		// Only lines ending in a newline count.
+		byte[] bytes = new byte[(int)commitFile.length()];
+		DataInputStream dis = new DataInputStream(new FileInputStream(commitFile));
+		dis.readFully(bytes);
+		dis.close();
+		String log = new String(bytes, "UTF-8");
+		int validChars = 0;
+		int start = 0;
+		int nl;
+		while ((nl = log.indexOf('\n', start)) >= 0)
+		{
+			String line = log.substring(start, nl);
+			int tab = line.lastIndexOf('\t');
+			long end;
+			try
+			{
+				end = Long.parseLong(line.substring(tab+1));
+			}
+			catch (RuntimeException x)
+			{
+				break;
+			}
+			if (tab <= 0  ||  end < length  ||  end > file.length())
+				break;
+			keys.add(line.substring(0, tab));
+			length = end;
+			start = nl + 1;
+			validChars = start;
+		}
+		truncate(commitFile, log.substring(0, validChars).getBytes("UTF-8").length);
+		if (file.length() > length)
+			Log.warn("Discarding " + (file.length() - length) + " uncommitted bytes at end of " + file.getAbsolutePath());
+		truncate(file, length);
+		Log.info("Resuming " + file.getAbsolutePath() + " with " + keys.size() + " records");
+	}
+	
+	
+	private static void truncate(File f, long len) throws IOException
+	{
+		RandomAccessFile raf = new RandomAccessFile(f, "rw");
+		raf.setLength(len);
+		raf.close();
+	}
+	
+	
+	public synchronized boolean contains(String key)
+	{
+		return keys.contains(key);
+	}
+	
+	
+	// Not durable until commit(). Duplicate keys are ignored; returns false if key was already present.
+	public synchronized boolean append(String key, byte[] record) throws IOException
+	{
+		if (!keys.add(key))
+			return false;
+		dataOut.write(record);
+		length += record.length;
+		pendingKeys.add(key);
+		pendingEnds.add(length);
+		return true;
+	}
+	
+	
+	public boolean append(String key, String record) throws IOException
+	{
+		return append(key, record.getBytes("UTF-8"));
+	}
+	
+	
+	public boolean append(String key, File recordFile) throws IOException
+	{
+		if (contains(key))
+			return false;
+		byte[] bytes = new byte[(int)recordFile.length()];
+		DataInputStream dis = new DataInputStream(new FileInputStream(recordFile));
+		dis.readFully(bytes);
+		dis.close();
+		return append(key, bytes);
+	}
+	
+	
+	public synchronized void commit() throws IOException
+	{
+		if (pendingKeys.isEmpty())
+			return;
+		dataChannel.force(false);
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<pendingKeys.size(); i++)
+			sb.append(pendingKeys.get(i)).append('\t').append(pendingEnds.get(i)).append('\n');
+		commitOut.write(sb.toString().getBytes("UTF-8"));
+		commitOut.getChannel().force(false);
+		pendingKeys.clear();
+		pendingEnds.clear();
+	}
+	
+	
+	public synchronized void close() throws IOException
+	{
+		commit();
+		dataOut.close();
+		commitOut.close();
+	}
+	
+	
+	public synchronized int size()
+	{
+		return keys.size();
+	}
+	
+	
+	public File getFile()
+	{
+		return file;
+	}
+	
+	
+	public String toString()
+	{
+		return "IncrementalOutputFile: " + size() + " records in " + file.getAbsolutePath();
+	}
+}
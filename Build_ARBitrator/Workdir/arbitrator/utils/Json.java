@@ -0,0 +1,282 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    Json.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+import java.util.*;
+
+
+//
+// Just enough JSON for the service API: parses a document into Maps (insertion-ordered), Lists, Strings,
+// Doubles, Booleans and nulls, and quotes strings for output. Output JSON is built by hand.
+//
+
+
+public class Json 
+{
+	private String				src;
+	private int					pos;
+	
+	
+	private Json(String src)
+	{
+		this.src = src;
+	}
+	
+	
+	public static Object parse(String src) throws IllegalArgumentException
+	{
+		Json parser = new Json(src);
+		Object ret = parser.parseValue();
+		parser.skipWhitespace();
+		if (parser.pos < src.length())
+			throw parser.error("Unexpected trailing text");
+		return ret;
+	}
+	
+	
+	// Throws IllegalArgumentException if the document isn't an object.
+	@SuppressWarnings("unchecked")
+	public static Map<String, Object> parseObject(String src) throws IllegalArgumentException
+	{
+		Object ret = parse(src);
+		if (!(ret instanceof Map))
+			throw new IllegalArgumentException("Expected a JSON object");
+		return (Map<String, Object>)ret;
+	}
+	
+	
+	private Object parseValue()
+	{
+		skipWhitespace();
+		if (pos >= src.length())
+			throw error("Unexpected end of JSON");
+		char c = src.charAt(pos);
+		switch (c)
+		{
+			case '{':
+				return parseMap();
+			case '[':
+				return parseList();
+			case '"':
+				return parseString();
+			case 't':
+				expect("true");
+				return Boolean.TRUE;
+			case 'f':
+				expect("false");
+				return Boolean.FALSE;
+			case 'n':
+				expect("null");
+				return null;
+			default:
+				return parseNumber();
+		}
+	}
+	
+	
+	private Map<String, Object> parseMap()
+	{
+		Map<String, Object> ret = new LinkedHashMap<String, Object>();
+		pos++;
+		skipWhitespace();
+		if (peek() == '}')
+		{
+			pos++;
+			return ret;
+		}
+		while (true)
+		{
+			skipWhitespace();
+			if (peek() != '"')
+				throw error("Expected a string key");
+			String key = parseString();
+			skipWhitespace();
+			if (peek() != ':')
+				throw error("Expected ':'");
+			pos++;
+			ret.put(key, parseValue());
+			skipWhitespace();
+			char c = peek();
+			pos++;
+			if (c == '}')
+				return ret;
+			if (c != ',')
+				throw error("Expected ',' or '}'");
+		}
+	}
+	
+	
+	private List<Object> parseList()
+	{
+		List<Object> ret = new ArrayList<Object>();
+		pos++;
+		skipWhitespace();
+		if (peek() == ']')
+		{
+			pos++;
+			return ret;
+		}
+		while (true)
+		{
+			ret.add(parseValue());
+			skipWhitespace();
+			char c = peek();
+			pos++;
+			if (c == ']')
+				return ret;
+			if (c != ',')
+				throw error("Expected ',' or ']'");
+		}
+	}
+	
+	
+	private String parseString()
+	{
+		StringBuilder sb = new StringBuilder();
+		pos++;
+		while (true)
+		{
+			if (pos >= src.length())
+				throw error("Unterminated string");
+			char c = src.charAt(pos++);
+			if (c == '"')
+				return sb.toString();
+			if (c != '\\')
+			{
+				sb.append(c);
+				continue;
+			}
+			if (pos >= src.length())
+				throw error("Unterminated string");
+			c = src.charAt(pos++);
+			switch (c)
+			{
+				case 'b':	sb.append('\b');	break;
+				case 'f':	sb.append('\f');	break;
+				case 'n':	sb.append('\n');	break;
+				case 'r':	sb.append('\r');	break;
+				case 't':	sb.append('\t');	break;
+				case 'u':
+					if (pos + 4 > src.length())
+						throw error("Bad unicode escape");
+					try
+					{
+						sb.append((char)Integer.parseInt(src.substring(pos, pos+4), 16));
+					}
+					catch (NumberFormatException x)
+					{
+						throw error("Bad unicode escape");
+					}
+					pos += 4;
+					break;
+				default:
+					sb.append(c);			// " \ /
+			}
+		}
+	}
+	
+	
+	private Double parseNumber()
+	{
+		int start = pos;
+		while (pos < src.length()  &&  "+-0123456789.eE".indexOf(src.charAt(pos)) >= 0)
+			pos++;
+		try
+		{
+			return Double.valueOf(src.substring(start, pos));
+		}
+		catch (NumberFormatException x)
+		{
+			throw error("Bad value");
+		}
+	}
+	
+	
+	private void expect(String literal)
+	{
+		if (!src.startsWith(literal, pos))
+			throw error("Bad value");
+		pos += literal.length();
+	}
+	
+	
+	private char peek()
+	{
+		if (pos >= src.length())
+			throw error("Unexpected end of JSON");
+		return src.charAt(pos);
+	}
+	
+	
+	private void skipWhitespace()
+	{
+		while (pos < src.length()  &&  Character.isWhitespace(src.charAt(pos)))
+			pos++;
+	}
+	
+	
+	private IllegalArgumentException error(String msg)
+	{
+		return new IllegalArgumentException(msg + " at position " + pos);
+	}
+	
+	
+	// Returns s as a quoted JSON string, or null unquoted.
+	public static String quote(String s)
+	{
+		if (s == null)
+			return "null";
+		StringBuilder sb = new StringBuilder(s.length() + 2);
+		sb.append('"');
+		for (int i=0; i<s.length(); i++)
+		{
+			char c = s.charAt(i);
+			switch (c)
+			{
+				case '"':	sb.append("\\\"");	break;
+				case '\\':	sb.append("\\\\");	break;
+				case '\n':	sb.append("\\n");	break;
+				case '\r':	sb.append("\\r");	break;
+				case '\t':	sb.append("\\t");	break;
+				default:
+					if (c < 0x20)
+						sb.append(String.format("\\u%04x", (int)c));
+					else
+						sb.append(c);
+			}
+		}
+		sb.append('"');
+		return sb.toString();
+	}
+	
+	
+	// Doubles that are whole numbers are printed without ".0"; non-finite values become null.
+	public static String number(double d)
+	{
+		if (Double.isNaN(d)  ||  Double.isInfinite(d))
+			return "null";
+		if (d == Math.rint(d)  &&  Math.abs(d) < 1e15)
+			return Long.toString((long)d);
+		return Double.toString(d);
+	}
+}
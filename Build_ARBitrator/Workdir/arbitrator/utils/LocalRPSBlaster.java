@@ -0,0 +1,218 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    LocalRPSBlaster.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+import java.io.*;
+import java.util.*;
+
+
+//
+// Local replacement for NCBIRPSBlaster. Runs BLAST+ rpsblast against a local copy of the CDD search
+// database (e.g. "Cdd" from ftp.ncbi.nih.gov/pub/mmdb/cdd/little_endian/) and converts the hits to
+// RPSTabularRecords that look like Batch CD-Search output, so classification doesn't change.
+//
+// The query sequences are passed in (e.g. from a ProteinSequenceFetcher), split into nWorkers roughly
+// equal FASTA chunks, and each chunk is searched by its own single-threaded rpsblast process. That
+// scales better than one process with -num_threads, because rpsblast only threads over the database.
+//
+// Differences from CD-Search output:
+//   -- There are no superfamily (cl) hits, only hits to the database's own PSSMs.
+//   -- rpsblast doesn't use CD-Search's per-domain specific-hit score thresholds, so every hit to a 
+//      curated (cd) domain is reported as "Specific". Pipeline treats specific and non-specific hits
+//      the same way, so this doesn't affect calls.
+//
+
+
+public class LocalRPSBlaster 
+{
+	// Same evalue cutoff and max hits as the CD-Search request in NCBIRPSBlaster.
+	private final static String		OUTFMT						= "6 qseqid sseqid qstart qend evalue bitscore stitle";
+	private final static String		EVALUE						= ".01";
+	private final static String		MAX_HITS					= "10";
+	
+	private String					cddDb;
+	private File					binDirf;			// null => rpsblast is on the PATH
+	private int						nWorkers;
+	private boolean					verbose;
+	
+	
+	public LocalRPSBlaster(String cddDb, File binDirf, int nWorkers)
+	{
+		this.cddDb = cddDb;
+		this.binDirf = binDirf;
+		this.nWorkers = Math.max(1, nWorkers);
+	}
+	
+	
+	// Query numbering is 1-based in input order, as in CD-Search ("Q#1 - AAC36042.2"). Queries missing
+	// from accToSeq aren't searched. They're added to unfetched, so that the caller doesn't mistake them
+	// for queries without domain hits.
+	public Vector<RPSTabularRecord> blast(Vector<String> queryGIs, Map<String, String> accToSeq, 
+		Collection<String> unfetched) throws IOException
+	{
+		// Distribute queries round-robin so that long and short sequences are mixed in every chunk.
+		int nChunks = Math.min(nWorkers, Math.max(1, accToSeq.size()));
+		StringBuilder[] chunks = new StringBuilder[nChunks];
+		for (int i=0; i<nChunks; i++)
+			chunks[i] = new StringBuilder();
+		int n = 0;
+		for (int qnum=1; qnum<=queryGIs.size(); qnum++)
+		{
+			String seq = accToSeq.get(queryGIs.get(qnum-1));
+			if (seq == null)
+			{
+				unfetched.add(queryGIs.get(qnum-1));
+				continue;
+			}
+			chunks[n++ % nChunks].append(">Q").append(qnum).append('\n').append(seq).append('\n');
+		}
+		
+		// One worker per chunk.
+		Vector<ChunkWorker> workers = new Vector<ChunkWorker>();
+		for (StringBuilder chunk: chunks)
+		{
+			if (chunk.length() == 0)
+				continue;
+			ChunkWorker worker = new ChunkWorker(chunk.toString(), queryGIs);
+			workers.add(worker);
+			worker.start();
+		}
+		Vector<RPSTabularRecord> ret = new Vector<RPSTabularRecord>();
+		for (ChunkWorker worker: workers)
+		{
+			try
+			{
+				worker.join();
+			}
+			catch (InterruptedException x)
+			{
+				throw new IOException("Interrupted while waiting for rpsblast");
+			}
+			if (worker.failure != null)
+				throw worker.failure;
+			ret.addAll(worker.results);
+		}
+		
+		// Order as CD-Search does: by query number, then by hit significance within each query.
+		Collections.sort(ret, new Comparator<RPSTabularRecord>()
+		{
+			public int compare(RPSTabularRecord r1, RPSTabularRecord r2)
+			{
+				int q = Integer.compare(r1.getQueryIndex(), r2.getQueryIndex());
+				return (q != 0)  ?  q  :  Double.compare(r1.expect, r2.expect);
+			}
+		});
+		return ret;
+	}
+	
+	
+	private class ChunkWorker extends Thread
+	{
+		private String						fasta;
+		private Vector<String>				queryGIs;
+		Vector<RPSTabularRecord>			results = new Vector<RPSTabularRecord>();
+		IOException							failure;
+		
+		ChunkWorker(String fasta, Vector<String> queryGIs)
+		{
+			this.fasta = fasta;
+			this.queryGIs = queryGIs;
+		}
+		
+		public void run()
+		{
+			File queryFile = null;
+			try
+			{
+				queryFile = File.createTempFile("arb_rps", ".faa");
+				StringUtils.textToFile(fasta, queryFile);
+				String rpsblast = (binDirf == null)  ?  "rpsblast"  :  new File(binDirf, "rpsblast").getAbsolutePath();
+				String[] cmd = 
+				{
+					rpsblast, "-db", cddDb, "-query", queryFile.getAbsolutePath(), "-evalue", EVALUE, 
+					"-max_target_seqs", MAX_HITS, "-outfmt", OUTFMT
+				};
+				if (verbose)
+					sop("Exec: " + String.join(" ", cmd));
+				SystemCaller caller = new SystemCaller(cmd);
+				caller.execute();
+				String line = null;
+				while ((line = caller.readStdoutLine()) != null)
+				{
+					RPSTabularRecord rec = toRPSTabularRecord(line, queryGIs);
+					if (rec != null)
+						results.add(rec);
+				}
+				caller.close();
+				int exitValue = caller.blockUntilCompletion();
+				if (exitValue != 0)
+					failure = new IOException("rpsblast exited with status " + exitValue);
+			}
+			catch (IOException x)
+			{
+				failure = x;
+			}
+			catch (InterruptedException x)
+			{
+				failure = new IOException("Interrupted rpsblast");
+			}
+			finally
+			{
+				if (queryFile != null)
+					queryFile.delete();
+			}
+		}
+	}
+	
+	
+	//
+	// Converts a line like
+	//     Q3	gnl|CDD|238998	5	273	1.2e-150	430	cd02040, NifH, NifH gene encodes component II ...
+	// to a record whose query is "Q#3 - AAC36042.2". Returns null for lines that aren't hits.
+	//
+	static RPSTabularRecord toRPSTabularRecord(String line, Vector<String> queryGIs)
+	{
+		String[] pieces = line.split("\\t");
+		if (pieces.length < 7  ||  line.startsWith("#"))
+			return null;
+		String qid = pieces[0];
+		if (qid.startsWith("lcl|"))
+			qid = qid.substring(4);
+		int qnum = Integer.parseInt(qid.substring(1));
+		String query = "Q#" + qnum + " - " + queryGIs.get(qnum-1);
+		String pssmID = pieces[1].substring(pieces[1].lastIndexOf('|') + 1);
+		int from = Integer.parseInt(pieces[2]);
+		int to = Integer.parseInt(pieces[3]);
+		double expect = Double.parseDouble(pieces[4]);
+		double score = Double.parseDouble(pieces[5]);
+		String[] titlePieces = pieces[6].split(",");
+		String accession = titlePieces[0].trim();
+		String shortName = (titlePieces.length > 1)  ?  titlePieces[1].trim()  :  "-";
+		String hitType = accession.startsWith("cd")  ?  "Specific"  :  "Non-specific";
+		return new RPSTabularRecord(query, hitType, pssmID, from, to, expect, score, accession, shortName, "-", "-");
+	}
+	
+	
+	public void setVerbose(boolean b)		{ verbose = b; }
+	static void sop(Object x)				{ Log.info(x); }
+}
@@ -0,0 +1,231 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    Log.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+import java.io.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.*;
+import java.util.concurrent.locks.LockSupport;
+
+
+//
+// Leveled, asynchronous logging to stdout. Callers never touch System.out: a message is dropped into
+// a lock-free ring buffer and a background thread writes it out. The pipeline used to println a line
+// for every one of ~1.5M synonymous groups through the synchronized System.out, and on a slow
+// terminal or NFS-hosted log that throttled ingestion and classification.
+//
+// The ring is multi-producer/single-consumer. A producer claims a sequence number with one atomic
+// increment and publishes into slot (seq & MASK). The writer consumes slots in sequence order and
+// nulls them. If the ring is full (the writer is far behind), DEBUG messages are dropped and counted;
+// everything else waits for space, so nothing important is lost.
+//
+// Per-item lines should be DEBUG. For long loops use progressDue(key), which is true at most once
+// per progress interval per key, so that the log gets one progress line every few seconds instead
+// of one line per item:
+//
+//     if (Log.progressDue("embl"))
+//         Log.info("Generating EMBL for " + n + " of " + total);
+//
+// A shutdown hook drains the ring, so System.exit() doesn't lose messages.
+//
+
+
+public class Log 
+{
+	public enum Level { DEBUG, INFO, WARN, ERROR };
+	
+	private final static int							CAPACITY		= 1 << 16;
+	private final static int							MASK			= CAPACITY - 1;
+	
+	private static volatile Level						threshold		= Level.INFO;
+	private static volatile long						progressIntervalMillis = 10000;
+	private static AtomicReferenceArray<String>			ring			= new AtomicReferenceArray<String>(CAPACITY);
+	private static AtomicLong							tail			= new AtomicLong();		// next seq to claim
+	private static AtomicLong							head			= new AtomicLong();		// next seq to write
+	private static AtomicLong							nDropped		= new AtomicLong();
+	private static ConcurrentHashMap<String, AtomicLong> lastProgress	= new ConcurrentHashMap<String, AtomicLong>();
+	private static volatile PrintStream					out;
+	private static Thread								writer;
+	
+	
+	static
+	{
+		setOutput(new FileOutputStream(FileDescriptor.out));
+		writer = new Thread("log-writer")
+		{
+			public void run()
+			{
+				drainForever();
+			}
+		};
+		writer.setDaemon(true);
+		writer.start();
+		Runtime.getRuntime().addShutdownHook(new Thread("log-flush")
+		{
+			public void run()
+			{
+				flush();
+			}
+		});
+	}
+	
+	
+	// Static access only.
+	private Log()		{ }
+	
+	
+	public static void debug(Object x)		{ log(Level.DEBUG, x); }
+	public static void info(Object x)		{ log(Level.INFO, x);  }
+	public static void warn(Object x)		{ log(Level.WARN, x);  }
+	public static void error(Object x)		{ log(Level.ERROR, x); }
+	
+	
+	// Use to avoid building expensive DEBUG strings that would be discarded.
+	public static boolean isDebugEnabled()
+	{
+		return threshold == Level.DEBUG;
+	}
+	
+	
+	public static void log(Level level, Object x)
+	{
+		if (level.ordinal() < threshold.ordinal())
+			return;
+		String msg = String.valueOf(x);
+		
+		long seq;
+		if (level == Level.DEBUG)
+		{
+			// Claim a slot only if one is free; never wait.
+			do
+			{
+				seq = tail.get();
+				if (seq - head.get() >= CAPACITY)
+				{
+					nDropped.incrementAndGet();
+					return;
+				}
+			} while (!tail.compareAndSet(seq, seq + 1));
+		}
+		else
+		{
+			seq = tail.getAndIncrement();
+			while (seq - head.get() >= CAPACITY)
+				Thread.yield();
+		}
+		ring.lazySet((int)(seq & MASK), msg);
+	}
+	
+	
+	// True at most once per progress interval for each key.
+	public static boolean progressDue(String key)
+	{
+		long now = System.currentTimeMillis();
+		AtomicLong last = lastProgress.get(key);
+		if (last == null)
+		{
+			lastProgress.putIfAbsent(key, new AtomicLong(now));
+			return true;
+		}
+		long prev = last.get();
+		return now - prev >= progressIntervalMillis  &&  last.compareAndSet(prev, now);
+	}
+	
+	
+	// Blocks until everything logged before the call has been written.
+	public static void flush()
+	{
+		long target = tail.get();
+		while (head.get() < target  &&  writer.isAlive())
+			LockSupport.parkNanos(100000);
+		out.flush();
+	}
+	
+	
+	private static void drainForever()
+	{
+		while (true)
+		{
+			long seq = head.get();
+			String msg = ring.get((int)(seq & MASK));
+			if (msg == null)
+			{
+				// Empty, or a producer has claimed seq but not yet published.
+				out.flush();
+				LockSupport.parkNanos(1000000);
+				continue;
+			}
+			ring.set((int)(seq & MASK), null);
+			head.set(seq + 1);
+			out.println(msg);
+			long dropped = nDropped.getAndSet(0);
+			if (dropped > 0)
+				out.println("(" + dropped + " debug log lines dropped because the log writer fell behind)");
+		}
+	}
+	
+	
+	public static void setLevel(Level level)				{ threshold = level; }
+	public static Level getLevel()							{ return threshold; }
+	public static void setProgressIntervalSecs(int secs)	{ progressIntervalMillis = 1000L * secs; }
+	
+	
+	// The stream is wrapped in a large buffer and flushed whenever the ring runs empty, so writing is
+	// one syscall per burst rather than per line.
+	public static void setOutput(OutputStream os)
+	{
+		out = new PrintStream(new BufferedOutputStream(os, 1 << 16), false);
+	}
+	
+	
+	public static void main(String[] args)
+	{
+		setOutput(new NullOutputStream());
+		int nThreads = 4;
+		final int nPerThread = 1000000;
+		Thread[] threads = new Thread[nThreads];
+		long start = System.nanoTime();
+		for (int t=0; t<nThreads; t++)
+		{
+			final int id = t;
+			threads[t] = new Thread()
+			{
+				public void run()
+				{
+					for (int i=0; i<nPerThread; i++)
+						info("thread " + id + " message " + i);
+				}
+			};
+			threads[t].start();
+		}
+		try
+		{
+			for (Thread thread: threads)
+				thread.join();
+		}
+		catch (InterruptedException x) { }
+		flush();
+		double secs = (System.nanoTime() - start) / 1e9;
+		System.out.println(String.format("%d messages in %.2f secs (%.0f/sec)", nThreads*nPerThread, secs, nThreads*nPerThread/secs));
+	}
+}
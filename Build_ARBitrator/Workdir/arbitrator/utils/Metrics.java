@@ -0,0 +1,353 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    Metrics.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.*;
+import javax.management.ObjectName;
+
+
+//
+// Process-wide counters and histograms for the hot paths, so that operators can see where a multi-day
+// run spends its time without grepping the log. Like NCBISnooze, access is static because the
+// instrumented code (HTTP clients, NCBISnooze itself) has no shared context object.
+//
+// Naming convention is dotted lowercase: "<area>.<what>[.<unit>]", e.g. "http.eutils.latency_ms",
+// "snooze.wait_ms", "conversion.failure.NUCLEOTIDE_PAGE_NOT_RECEIVED". Counters and histograms are
+// created on first use. Everything is lock-free so recording costs a few atomic adds.
+//
+// Exposed two ways: as an MXBean ("arbitrator:type=Metrics") and as a one-line summary that a daemon
+// thread prints every few minutes.
+//
+
+
+public class Metrics implements MetricsMXBean
+{
+	// Counter names used by the periodic summary's throughput figures.
+	public final static String		GROUPS_PROCESSED			= "pipeline.groups";
+	public final static String		EMBLS_CONVERTED				= "pipeline.embls";
+	public final static String		CLASSIFY_CACHE_HITS			= "classify.cache.hit";
+	public final static String		CLASSIFY_CACHE_MISSES		= "classify.cache.miss";
+	
+	private final static Metrics	INSTANCE					= new Metrics();
+	
+	private static ConcurrentHashMap<String, AtomicLong>	counters	= new ConcurrentHashMap<String, AtomicLong>();
+	private static ConcurrentHashMap<String, Histogram>		histograms	= new ConcurrentHashMap<String, Histogram>();
+	private static long										startTime	= System.currentTimeMillis();
+	private static Thread									reporter;
+	
+	
+	// Static access only, except for the MXBean.
+	private Metrics()		{ }
+	
+	
+	//
+	// Log-linear histogram of non-negative longs: 8 sub-buckets per power of 2, so quantiles are 
+	// within ~10%. Values above 2^40 share the last bucket.
+	//
+	public static class Histogram
+	{
+		private final static int		SUB_BUCKETS		= 8;
+		private final static int		N_BUCKETS		= 41 * SUB_BUCKETS;
+		
+		private AtomicLongArray			buckets			= new AtomicLongArray(N_BUCKETS);
+		private AtomicLong				count			= new AtomicLong();
+		private AtomicLong				sum				= new AtomicLong();
+		private AtomicLong				max				= new AtomicLong();
+		
+		
+		public void record(long value)
+		{
+			value = Math.max(0, value);
+			buckets.incrementAndGet(bucketFor(value));
+			count.incrementAndGet();
+			sum.addAndGet(value);
+			long prevMax = max.get();
+			while (value > prevMax  &&  !max.compareAndSet(prevMax, value))
+				prevMax = max.get();
+		}
+		
+		
+		private static int bucketFor(long value)
+		{
+			if (value < SUB_BUCKETS)
+				return (int)value;
+			int exp = 63 - Long.numberOfLeadingZeros(value);		// value in [2^exp, 2^(exp+1))
+			int sub = (int)((value >>> (exp - 3)) & (SUB_BUCKETS - 1));
+			return Math.min(N_BUCKETS - 1, (exp - 2) * SUB_BUCKETS + sub);
+		}
+		
+		
+		// Lower bound of the bucket.
+		private static long bucketValue(int bucket)
+		{
+			if (bucket < SUB_BUCKETS)
+				return bucket;
+			int exp = bucket / SUB_BUCKETS + 2;
+			int sub = bucket % SUB_BUCKETS;
+			return (1L << exp) + ((long)sub << (exp - 3));
+		}
+		
+		
+		public long quantile(double q)
+		{
+			long n = count.get();
+			if (n == 0)
+				return 0;
+			long rank = (long)Math.ceil(q * n);
+			long seen = 0;
+			for (int i=0; i<N_BUCKETS; i++)
+			{
+				seen += buckets.get(i);
+				if (seen >= rank)
+					return Math.min(bucketValue(i), max.get());
+			}
+			return max.get();
+		}
+		
+		
+		public long getCount()		{ return count.get(); }
+		public long getSum()		{ return sum.get(); }
+		public double getMean()		{ long n = count.get(); return (n == 0) ? 0 : (double)sum.get() / n; }
+		
+		
+		public String toString()
+		{
+			return "count=" + getCount() + " mean=" + Math.round(getMean()) + " p50=" + quantile(.5) + 
+				" p90=" + quantile(.9) + " p99=" + quantile(.99) + " max=" + max.get();
+		}
+	}
+	
+	
+	
+	
+	
+	
+				///////////////////////////////////////////////////////////////////////////////////
+				//                                                                               //
+				//                                   RECORDING                                   //
+				//                                                                               //
+				///////////////////////////////////////////////////////////////////////////////////
+	
+	
+	
+	public static void increment(String name)
+	{
+		add(name, 1);
+	}
+	
+	
+	public static void add(String name, long n)
+	{
+		AtomicLong counter = counters.get(name);
+		if (counter == null)
+		{
+			counters.putIfAbsent(name, new AtomicLong());
+			counter = counters.get(name);
+		}
+		counter.addAndGet(n);
+	}
+	
+	
+	public static void record(String name, long value)
+	{
+		getHistogram(name).record(value);
+	}
+	
+	
+	// Request count and time-to-response for one NCBI request, keyed by endpoint.
+	public static void recordRequest(String surl, long millis)
+	{
+		String endpoint = NCBIEndpoint.forUrl(surl).metricName();
+		increment("http." + endpoint + ".requests");
+		record("http." + endpoint + ".latency_ms", millis);
+	}
+	
+	
+	public static long getCount(String name)
+	{
+		AtomicLong counter = counters.get(name);
+		return (counter == null)  ?  0  :  counter.get();
+	}
+	
+	
+	public static Histogram getHistogram(String name)
+	{
+		Histogram hist = histograms.get(name);
+		if (hist == null)
+		{
+			histograms.putIfAbsent(name, new Histogram());
+			hist = histograms.get(name);
+		}
+		return hist;
+	}
+	
+	
+	
+	
+	
+	
+				///////////////////////////////////////////////////////////////////////////////////
+				//                                                                               //
+				//                                   REPORTING                                   //
+				//                                                                               //
+				///////////////////////////////////////////////////////////////////////////////////
+	
+	
+	
+	// Safe to call more than once.
+	public static synchronized void registerMBean()
+	{
+		try
+		{
+			ObjectName name = new ObjectName("arbitrator:type=Metrics");
+			if (!ManagementFactory.getPlatformMBeanServer().isRegistered(name))
+				ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, name);
+		}
+		catch (Exception x)
+		{
+			sop("Couldn't register metrics MBean: " + x);
+		}
+	}
+	
+	
+	// Prints summary() every intervalSecs on a daemon thread. intervalSecs <= 0 disables.
+	public static synchronized void startPeriodicSummary(final int intervalSecs)
+	{
+		if (intervalSecs <= 0  ||  reporter != null)
+			return;
+		reporter = new Thread("metrics-summary")
+		{
+			public void run()
+			{
+				long lastGroups = 0;
+				long lastEmbls = 0;
+				long lastTime = System.currentTimeMillis();
+				while (true)
+				{
+					try
+					{
+						Thread.sleep(intervalSecs * 1000L);
+					}
+					catch (InterruptedException x)
+					{
+						return;
+					}
+					long now = System.currentTimeMillis();
+					double secs = Math.max(1, now - lastTime) / 1000.0;
+					long groups = getCount(GROUPS_PROCESSED);
+					long embls = getCount(EMBLS_CONVERTED);
+					sop(new Date() + ": METRICS " + 
+						String.format("groups/sec=%.2f embls/sec=%.2f ", (groups-lastGroups)/secs, (embls-lastEmbls)/secs) +
+						INSTANCE.getSummary());
+					lastGroups = groups;
+					lastEmbls = embls;
+					lastTime = now;
+				}
+			}
+		};
+		reporter.setDaemon(true);
+		reporter.start();
+	}
+	
+	
+	public Map<String, Long> getCounters()
+	{
+		Map<String, Long> ret = new TreeMap<String, Long>();
+		for (String name: counters.keySet())
+			ret.put(name, counters.get(name).get());
+		return ret;
+	}
+	
+	
+	public Map<String, String> getHistograms()
+	{
+		Map<String, String> ret = new TreeMap<String, String>();
+		for (String name: histograms.keySet())
+			ret.put(name, histograms.get(name).toString());
+		return ret;
+	}
+	
+	
+	// One line: totals, then per-endpoint request counts and latencies, then everything else.
+	public String getSummary()
+	{
+		StringBuilder sb = new StringBuilder();
+		sb.append("groups=").append(getCount(GROUPS_PROCESSED));
+		sb.append(" embls=").append(getCount(EMBLS_CONVERTED));
+		long hits = getCount(CLASSIFY_CACHE_HITS);
+		long misses = getCount(CLASSIFY_CACHE_MISSES);
+		if (hits + misses > 0)
+			sb.append(String.format(" classify.cache.hit_ratio=%.3f", (double)hits / (hits + misses)));
+		for (NCBIEndpoint endpoint: NCBIEndpoint.values())
+		{
+			String prefix = "http." + endpoint.metricName();
+			long n = getCount(prefix + ".requests");
+			if (n == 0)
+				continue;
+			Histogram hist = getHistogram(prefix + ".latency_ms");
+			sb.append(" ").append(prefix).append("=").append(n).append("req/p50=").append(hist.quantile(.5))
+			  .append("ms/p99=").append(hist.quantile(.99)).append("ms");
+		}
+		for (String name: new TreeSet<String>(histograms.keySet()))
+		{
+			if (name.startsWith("http."))
+				continue;
+			Histogram hist = histograms.get(name);
+			sb.append(" ").append(name).append("=").append(hist.getCount()).append("x/mean=")
+			  .append(Math.round(hist.getMean())).append("/p99=").append(hist.quantile(.99));
+		}
+		for (String name: new TreeSet<String>(counters.keySet()))
+		{
+			if (name.startsWith("http.")  ||  name.equals(GROUPS_PROCESSED)  ||  name.equals(EMBLS_CONVERTED)  ||
+				name.startsWith("classify.cache."))
+				continue;
+			sb.append(" ").append(name).append("=").append(counters.get(name).get());
+		}
+		return sb.toString();
+	}
+	
+	
+	public long getUptimeSecs()
+	{
+		return (System.currentTimeMillis() - startTime) / 1000;
+	}
+	
+	
+	static void sop(Object x)		{ Log.info(x); }
+	
+	
+	public static void main(String[] args)
+	{
+		Histogram hist = new Histogram();
+		Random rand = new Random(1);
+		for (int i=0; i<100000; i++)
+			hist.record((long)(rand.nextDouble() * 1000));
+		sop("Uniform 0-1000: " + hist);
+		increment(GROUPS_PROCESSED);
+		recordRequest("https://eutils.ncbi.nlm.nih.gov/entrez/eutils/esearch.fcgi?", 250);
+		sop(INSTANCE.getSummary());
+	}
+}
@@ -0,0 +1,43 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    MetricsMXBean.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+import java.util.Map;
+
+
+//
+// JMX view of Metrics. Attach with jconsole or VisualVM and look under "arbitrator:type=Metrics".
+//
+
+
+public interface MetricsMXBean 
+{
+	public Map<String, Long> getCounters();
+	
+	// Values are "count=... mean=... p50=... p90=... p99=... max=...".
+	public Map<String, String> getHistograms();
+	
+	public String getSummary();
+	
+	public long getUptimeSecs();
+}
@@ -0,0 +1,58 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    NCBIEndpoint.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+
+//
+// The NCBI services that ARBitrator talks to. Each has its own request-rate rules (see NCBISnooze),
+// so metrics and anything else that is per-service key on this.
+//
+
+
+public enum NCBIEndpoint 
+{
+	BUA,			// BLAST URL API (blast.ncbi.nlm.nih.gov/Blast.cgi)
+	EUTILS,			// E-utilities (eutils.ncbi.nlm.nih.gov)
+	CDSEARCH,		// Batch CD-Search (www.ncbi.nlm.nih.gov/Structure/bwrpsb)
+	OTHER;
+	
+	
+	// By host, or by path when NCBIUrls points the service somewhere else, e.g. a replay server.
+	public static NCBIEndpoint forUrl(String surl)
+	{
+		if (surl.contains("eutils.ncbi.nlm.nih.gov")  ||  surl.contains("/entrez/eutils/"))
+			return EUTILS;
+		else if (surl.contains("/Structure/bwrpsb/"))
+			return CDSEARCH;
+		else if (surl.contains("blast.ncbi.nlm.nih.gov")  ||  surl.contains("/Blast.cgi"))
+			return BUA;
+		else
+			return OTHER;
+	}
+	
+	
+	public String metricName()
+	{
+		return name().toLowerCase();
+	}
+}
@@ -0,0 +1,298 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    NCBIFixtureArchive.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+
+//
+// NCBI responses recorded by NCBIRecorder for NCBIReplayServer. The archive is 1 append-only file of
+// records, each a header line
+//     key \t status \t retry-after msecs \t latency msecs \t body length
+// followed by the body and a newline. A record torn by a crash is dropped on load, as in AccessionLedger.
+//
+// A key is the request without its root, so a run recorded against NCBI replays against any server, and
+// without api_key, TOOL and EMAIL, so archives don't carry anyone's API key and replay with or without one.
+// A POST's body is part of its key. The same request can be recorded more than once (BLAST and CD-Search
+// polls say "waiting" until they don't), so responses are replayed in recorded order, the last repeating.
+//
+
+
+public class NCBIFixtureArchive 
+{
+	private final static Set<String>		UNKEYED_PARAMS		= 
+		new HashSet<String>(Arrays.asList("api_key", "tool", "email"));
+	
+	
+	public static class Fixture
+	{
+		public String					key;
+		public int						status;
+		public long						retryAfterMillis;
+		public long						latencyMillis;
+		public byte[]					body;
+		
+		public Fixture(String key, int status, long retryAfterMillis, long latencyMillis, byte[] body)
+		{
+			this.key = key;
+			this.status = status;
+			this.retryAfterMillis = retryAfterMillis;
+			this.latencyMillis = latencyMillis;
+			this.body = body;
+		}
+	}
+	
+	private File								file;
+	private Map<String, List<Fixture>>			keyToFixtures		= new LinkedHashMap<String, List<Fixture>>();
+	private Map<String, Integer>				keyToNReplayed		= new HashMap<String, Integer>();
+	private int									nFixtures;
+	private OutputStream						out;
+	
+	
+	// Loads the archive if it exists. Appends are opened lazily.
+	public NCBIFixtureArchive(File file) throws IOException
+	{
+		this.file = file;
+		if (file.exists())
+			load();
+	}
+	
+	
+	private void load() throws IOException
+	{
+		long goodLength = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try
+		{
+			String header;
+			while ((header = readLine(in)) != null)
+			{
+				String[] pieces = header.split("\t");
+				if (pieces.length != 5)
+					break;
+				int length = Integer.parseInt(pieces[4]);
+				byte[] body = new byte[length];
+				in.readFully(body);
+				if (in.read() != '\n')
+					break;
+				add(new Fixture(unescape(pieces[0]), Integer.parseInt(pieces[1]), Long.parseLong(pieces[2]), 
+					Long.parseLong(pieces[3]), body));
+				goodLength += header.getBytes("UTF-8").length + 1 + length + 1;
+			}
+		}
+		catch (EOFException x) { }
+		catch (NumberFormatException x) { }
+		finally
+		{
+			in.close();
+		}
+		if (goodLength < file.length())
+		{
+			Log.warn("Dropping " + (file.length() - goodLength) + " torn bytes at the end of fixture archive " + file);
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.setLength(goodLength);
+			raf.close();
+		}
+	}
+	
+	
+	// Null at EOF, or if the last line has no newline.
+	private static String readLine(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		int b;
+		while ((b = in.read()) != '\n')
+		{
+			if (b < 0)
+				return null;
+			baos.write(b);
+		}
+		return baos.toString("UTF-8");
+	}
+	
+	
+	private void add(Fixture fixture)
+	{
+		List<Fixture> fixtures = keyToFixtures.get(fixture.key);
+		if (fixtures == null)
+		{
+			fixtures = new ArrayList<Fixture>();
+			keyToFixtures.put(fixture.key, fixtures);
+		}
+		fixtures.add(fixture);
+		nFixtures++;
+	}
+	
+	
+	public synchronized void append(Fixture fixture) throws IOException
+	{
+		if (out == null)
+			out = new FileOutputStream(file, true);
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		String header = escape(fixture.key) + "\t" + fixture.status + "\t" + fixture.retryAfterMillis + "\t" + 
+			fixture.latencyMillis + "\t" + fixture.body.length + "\n";
+		baos.write(header.getBytes("UTF-8"));
+		baos.write(fixture.body);
+		baos.write('\n');
+		out.write(baos.toByteArray());
+		out.flush();
+		add(fixture);
+	}
+	
+	
+	// The next recorded response to the request, or null if it was never recorded.
+	public synchronized Fixture replay(String key)
+	{
+		List<Fixture> fixtures = keyToFixtures.get(key);
+		if (fixtures == null)
+			return null;
+		Integer nReplayed = keyToNReplayed.get(key);
+		int n = (nReplayed == null)  ?  0  :  nReplayed;
+		keyToNReplayed.put(key, n+1);
+		return fixtures.get(Math.min(n, fixtures.size()-1));
+	}
+	
+	
+	// Starts every request's responses over.
+	public synchronized void rewind()
+	{
+		keyToNReplayed.clear();
+	}
+	
+	
+	public synchronized void close() throws IOException
+	{
+		if (out != null)
+			out.close();
+		out = null;
+	}
+	
+	
+	public synchronized int size()
+	{
+		return nFixtures;
+	}
+	
+	
+	public synchronized int getNKeys()
+	{
+		return keyToFixtures.size();
+	}
+	
+	
+	public File getFile()
+	{
+		return file;
+	}
+	
+	
+	public synchronized String toString()
+	{
+		return "Fixture archive " + file + ": " + nFixtures + " responses to " + keyToFixtures.size() + " requests";
+	}
+	
+	
+	
+	
+	
+	
+	
+	
+		    ///////////////////////////////////////////////////////////////////////////////////
+		    //                                                                               //
+		    //                                     KEYS                                      //
+		    //                                                                               //
+		    ///////////////////////////////////////////////////////////////////////////////////
+	
+	
+	
+	// Accepts a full URL or just its path and query, as an HTTP server sees it.
+	public static String keyFor(String surl, String postBody)
+	{
+		String file = surl;
+		if (surl.startsWith("http://")  ||  surl.startsWith("https://"))
+		{
+			try
+			{
+				file = new URL(surl).getFile();
+			}
+			catch (MalformedURLException x) { }
+		}
+		String path = file;
+		String query = "";
+		int n = file.indexOf('?');
+		if (n >= 0)
+		{
+			path = file.substring(0, n);
+			query = file.substring(n+1);
+		}
+		String key = path + "?" + keyedParams(query);
+		if (postBody != null)
+			key += " POST " + keyedParams(postBody);
+		return key;
+	}
+	
+	
+	private static String keyedParams(String query)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (String param: query.split("&"))
+		{
+			if (param.isEmpty())
+				continue;
+			String name = param.split("=", 2)[0];
+			if (UNKEYED_PARAMS.contains(name.toLowerCase()))
+				continue;
+			if (sb.length() > 0)
+				sb.append('&');
+			sb.append(param);
+		}
+		return sb.toString();
+	}
+	
+	
+	private static String escape(String s)
+	{
+		return s.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n").replace("\r", "\\r");
+	}
+	
+	
+	private static String unescape(String s)
+	{
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i<s.length(); i++)
+		{
+			char c = s.charAt(i);
+			if (c != '\\'  ||  i == s.length()-1)
+			{
+				sb.append(c);
+				continue;
+			}
+			char next = s.charAt(++i);
+			sb.append(next == 't'  ?  '\t'  :  next == 'n'  ?  '\n'  :  next == 'r'  ?  '\r'  :  next);
+		}
+		return sb.toString();
+	}
+}
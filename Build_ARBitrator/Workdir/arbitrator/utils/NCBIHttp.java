@@ -0,0 +1,397 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    NCBIHttp.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+
+//
+// Every HTTP request to NCBI goes through here. Adds three things that URLConnection doesn't do by
+// default:
+//
+//   -- Timeouts. Without them a silent NCBI stall blocked a read forever (the README's "check the log,
+//      kill -9, relaunch").
+//   -- Retry of transient failures (timeouts, connection resets, HTTP 429 and 5xx) with exponential
+//      backoff and full jitter, so that a burst of failures doesn't turn into a synchronized burst of
+//      retries. HTTP 429's Retry-After is honored. Permanent failures (other 4xx, bad URLs) are thrown
+//      immediately. Each retry goes back through NCBISnooze like any other request.
+//   -- A CircuitBreaker per endpoint (BUA, E-utilities, CD-Search), which pauses only the callers of
+//      an endpoint that keeps failing.
+//
+// Callers snooze before calling open()/fetchString()/post(), as they always have. HTTP 429s and
+// empty pages are reported to NCBISnooze as throttling, other responses as healthy. The exchange
+// itself goes through an NCBITransport: HttpURLConnection unless e.g. a simulation installs another.
+//
+
+
+public class NCBIHttp 
+{
+	private final static int		CONNECT_TIMEOUT_MILLIS		= 30 * 1000;
+	private final static int		READ_TIMEOUT_MILLIS			= 5 * 60 * 1000;
+	private final static int		MAX_ATTEMPTS				= 5;
+	private final static long		BACKOFF_BASE_MILLIS			= 2000;
+	private final static long		BACKOFF_CAP_MILLIS			= 2 * 60 * 1000;
+	private final static String		PREMATURE_EOF_MESSAGE		= "Premature EOF";			// sun.net.www.http.ChunkedInputStream
+	
+	private static Map<NCBIEndpoint, CircuitBreaker>		breakers;
+	private static Random									jitter = new Random();
+	private static volatile NCBITransport					transport = new URLConnectionTransport();
+	
+	
+	static
+	{
+		breakers = new EnumMap<NCBIEndpoint, CircuitBreaker>(NCBIEndpoint.class);
+		for (NCBIEndpoint endpoint: NCBIEndpoint.values())
+			breakers.put(endpoint, new CircuitBreaker(endpoint));
+	}
+	
+	
+	// Static access only.
+	private NCBIHttp()		{ }
+	
+	
+	// HTTP error status. Transient if 429 or 5xx.
+	public static class HttpStatusException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+		
+		public int			status;
+		public long			retryAfterMillis;		// 0 if not specified
+		
+		public HttpStatusException(String surl, int status, long retryAfterMillis)
+		{
+			super("HTTP " + status + " for " + surl);
+			this.status = status;
+			this.retryAfterMillis = retryAfterMillis;
+		}
+	}
+	
+	
+	// Something that is done with a response and might fail partway, e.g. reading the whole body.
+	// Retried as a unit.
+	private interface Exchange<T>
+	{
+		T run(InputStream in) throws IOException;
+	}
+	
+	
+	// Consumes a response body as it arrives, e.g. a StAX parser. Network failures while reading (including
+	// a page cut off mid-stream) are retried like any other transient failure; anything else it throws, 
+	// e.g. for a garbled page, is passed up.
+	public interface ResponseParser<T>
+	{
+		T parse(InputStream in) throws IOException;
+	}
+	
+	
+	// Opens a GET and returns the body stream. Only the connection and response headers are covered 
+	// by retries; a failure while the caller is reading surfaces as an IOException (with a read
+	// timeout rather than a hang).
+	public static InputStream open(String surl) throws IOException
+	{
+		return execute(surl, null, new Exchange<InputStream>()
+		{
+			public InputStream run(InputStream in) throws IOException
+			{
+				return in;
+			}
+		});
+	}
+	
+	
+	// GETs the whole body, one "\n"-terminated line per line of the response. If maxLines > 0, stops
+	// after that many lines. Failures while reading are retried too.
+	public static String fetchString(String surl, final int maxLines) throws IOException
+	{
+		return execute(surl, null, new Exchange<String>()
+		{
+			public String run(InputStream in) throws IOException
+			{
+				return readBody(in, maxLines);
+			}
+		});
+	}
+	
+	
+	// POSTs a form-encoded body and returns the whole response.
+	public static String post(String surl, String formBody) throws IOException
+	{
+		return execute(surl, formBody, new Exchange<String>()
+		{
+			public String run(InputStream in) throws IOException
+			{
+				return readBody(in, -1);
+			}
+		});
+	}
+	
+	
+	// GETs and parses the body without materializing it. The parser doesn't need to close the stream.
+	public static <T> T fetchParsed(String surl, final ResponseParser<T> parser) throws IOException
+	{
+		return execute(surl, null, new Exchange<T>()
+		{
+			public T run(InputStream in) throws IOException
+			{
+				in = new BufferedInputStream(in);
+				try
+				{
+					return parser.parse(in);
+				}
+				finally
+				{
+					in.close();
+				}
+			}
+		});
+	}
+	
+	
+	// GETs the whole body into a file. On a retry the file is rewritten from the start.
+	public static void fetchToFile(String surl, final File dest) throws IOException
+	{
+		execute(surl, null, new Exchange<Object>()
+		{
+			public Object run(InputStream in) throws IOException
+			{
+				LineNumberReader lnr = new LineNumberReader(new InputStreamReader(in));
+				BufferedWriter bw = new BufferedWriter(new FileWriter(dest));
+				try
+				{
+					String line = null;
+					while ((line = lnr.readLine()) != null)
+					{
+						bw.write(line);
+						bw.write('\n');
+					}
+				}
+				finally
+				{
+					bw.close();
+					lnr.close();
+				}
+				return null;
+			}
+		});
+	}
+	
+	
+	private static <T> T execute(String surl, String postBody, Exchange<T> exchange) throws IOException
+	{
+		NCBIEndpoint endpoint = NCBIEndpoint.forUrl(surl);
+		CircuitBreaker breaker = breakers.get(endpoint);
+		for (int attempt=1; ; attempt++)
+		{
+			try
+			{
+				breaker.awaitPermission();
+			}
+			catch (InterruptedException x)
+			{
+				throw new InterruptedIOException("Interrupted waiting for " + endpoint + " circuit breaker");
+			}
+			
+			long start = Clock.now();
+			try
+			{
+				InputStream in = transport.send(surl, postBody);
+				Metrics.recordRequest(surl, Clock.now() - start);
+				T ret = exchange.run(in);
+				breaker.onSuccess();
+				// An empty page where we expected content is how NCBI sometimes throttles.
+				if (ret instanceof String  &&  ((String)ret).isEmpty())
+					NCBISnooze.onThrottled(surl);
+				else
+					NCBISnooze.onSuccess(surl);
+				return ret;
+			}
+			catch (IOException x)
+			{
+				if (!isTransient(x))
+				{
+					Metrics.increment("http." + endpoint.metricName() + ".permanent_failures");
+					throw x;
+				}
+				breaker.onFailure();
+				Metrics.increment("http." + endpoint.metricName() + ".transient_failures");
+				if (x instanceof HttpStatusException  &&  ((HttpStatusException)x).status == 429)
+					NCBISnooze.onThrottled(surl);
+				if (attempt >= MAX_ATTEMPTS)
+				{
+					Log.warn("Giving up on " + surl + " after " + attempt + " attempts: " + x);
+					throw x;
+				}
+				long delay = backoffMillis(attempt, x);
+				Log.info("Transient failure (" + x + ") for " + endpoint + " request, attempt " + attempt + 
+					" of " + MAX_ATTEMPTS + ". Retrying in " + (delay/1000) + " secs.");
+				sleep(delay);
+				Metrics.increment("http." + endpoint.metricName() + ".retries");
+				NCBISnooze.beforeNewRequest(surl);
+			}
+			finally
+			{
+				// A permanent failure or a RuntimeException settles nothing about the endpoint, but
+				// must not hold a half-open trial forever.
+				breaker.releaseTrial();
+			}
+		}
+	}
+	
+	
+	// The real thing.
+	private static class URLConnectionTransport implements NCBITransport
+	{
+		public InputStream send(String surl, String postBody) throws IOException
+		{
+			return connect(surl, postBody).getInputStream();
+		}
+	}
+	
+	
+	public static void setTransport(NCBITransport t)
+	{
+		transport = t;
+	}
+	
+	
+	public static NCBITransport getTransport()
+	{
+		return transport;
+	}
+	
+	
+	private static HttpURLConnection connect(String surl, String postBody) throws IOException
+	{
+		HttpURLConnection conn = (HttpURLConnection)(new URL(surl)).openConnection();
+		conn.setConnectTimeout(CONNECT_TIMEOUT_MILLIS);
+		conn.setReadTimeout(READ_TIMEOUT_MILLIS);
+		if (postBody != null)
+		{
+			conn.setRequestMethod("POST");
+			conn.setDoOutput(true);
+			conn.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+			Writer w = new OutputStreamWriter(conn.getOutputStream(), "UTF-8");
+			w.write(postBody);
+			w.close();
+		}
+		int status = conn.getResponseCode();
+		if (status >= 400)
+		{
+			long retryAfterMillis = 0;
+			String retryAfter = conn.getHeaderField("Retry-After");
+			if (retryAfter != null)
+			{
+				try
+				{
+					retryAfterMillis = 1000L * Long.parseLong(retryAfter.trim());
+				}
+				catch (NumberFormatException x) { }		// HTTP-date form; use our own backoff
+			}
+			conn.disconnect();
+			throw new HttpStatusException(surl, status, retryAfterMillis);
+		}
+		return conn;
+	}
+	
+	
+	static boolean isTransient(IOException x)
+	{
+		if (x instanceof HttpStatusException)
+		{
+			int status = ((HttpStatusException)x).status;
+			return status == 429  ||  status >= 500;
+		}
+		// Timeouts, resets, refused connections, DNS hiccups, TLS handshake drops, and pages cut off
+		// mid-stream. Not bad URLs, local file trouble or pages that arrived but couldn't be parsed: 
+		// retrying those can't help, and they say nothing about whether the endpoint is up.
+		return x instanceof SocketTimeoutException  ||  x instanceof ConnectException  ||  
+			x instanceof UnknownHostException  ||  x instanceof SocketException  ||  
+			x instanceof javax.net.ssl.SSLException  ||  x instanceof EOFException  ||  isPrematureEOF(x);
+	}
+	
+	
+	// HttpURLConnection reports a chunked body that ends early as a plain IOException, not an EOFException.
+	private static boolean isPrematureEOF(IOException x)
+	{
+		return x.getClass() == IOException.class  &&  PREMATURE_EOF_MESSAGE.equals(x.getMessage());
+	}
+	
+	
+	// Full jitter: uniform in [0, min(cap, base * 2^(attempt-1))], but never less than Retry-After.
+	private static long backoffMillis(int attempt, IOException x)
+	{
+		long ceiling = Math.min(BACKOFF_CAP_MILLIS, BACKOFF_BASE_MILLIS << (attempt - 1));
+		long delay;
+		synchronized (jitter)
+		{
+			delay = (long)(jitter.nextDouble() * ceiling);
+		}
+		if (x instanceof HttpStatusException)
+			delay = Math.max(delay, ((HttpStatusException)x).retryAfterMillis);
+		return delay;
+	}
+	
+	
+	private static String readBody(InputStream in, int maxLines) throws IOException
+	{
+		LineNumberReader lnr = new LineNumberReader(new InputStreamReader(in));
+		StringBuilder sb = new StringBuilder();
+		try
+		{
+			String line = null;
+			int nLines = 0;
+			while ((line = lnr.readLine()) != null)
+			{
+				sb.append(line).append('\n');
+				if (maxLines > 0  &&  ++nLines >= maxLines)
+					break;
+			}
+		}
+		finally
+		{
+			lnr.close();
+		}
+		return sb.toString();
+	}
+	
+	
+	private static void sleep(long millis) throws InterruptedIOException
+	{
+		try
+		{
+			Clock.sleep(millis);
+		}
+		catch (InterruptedException x)
+		{
+			throw new InterruptedIOException("Interrupted during retry backoff");
+		}
+	}
+	
+	
+	public static CircuitBreaker getCircuitBreaker(NCBIEndpoint endpoint)
+	{
+		return breakers.get(endpoint);
+	}
+}
@@ -31,6 +31,8 @@ import java.net.*;
 public class NCBIRPSBlaster 
 {
 	private final static String			SAFE_LF				= "%0A";
+	private final static int			MAX_JOB_ATTEMPTS	= 3;
+	private final static long			JOB_RETRY_MILLIS	= 60 * 1000L;
 	private Vector<String>				queryProteinGIs;
 	private String					apiKey;
 	private boolean					verbose;
@@ -51,13 +53,58 @@ public class NCBIRPSBlaster
 	}
 	
 	
+	// A CD-Search job can fail on NCBI's side after it was accepted (e.g. status 4, queue manager 
+	// service error). Such batches are resubmitted a few times, and count against the CD-Search 
+	// circuit breaker, before the failure is passed up.
+	public static class CDSearchJobException extends IOException
+	{
+		private static final long serialVersionUID = 1L;
+		
+		public int			statusCode;
+		
+		CDSearchJobException(int statusCode, String cdsid)
+		{
+			super("NCBI CD-Search for this batch failed with status code " + statusCode + ".  The cdsid was " + cdsid);
+			this.statusCode = statusCode;
+		}
+	}
+	
+	
 	public Vector<RPSTabularRecord> blast() throws IOException	
+	{
+		for (int attempt=1; ; attempt++)
+		{
+			try
+			{
+				return blastOnce();
+			}
+			catch (CDSearchJobException x)
+			{
+				NCBIHttp.getCircuitBreaker(NCBIEndpoint.CDSEARCH).onFailure();
+				Metrics.increment("cdsearch.job_failures");
+				if (attempt >= MAX_JOB_ATTEMPTS)
+					throw x;
+				Log.warn(x.getMessage() + " Resubmitting (attempt " + (attempt+1) + " of " + MAX_JOB_ATTEMPTS + ").");
+				try
+				{
+					Clock.sleep(attempt * JOB_RETRY_MILLIS);
+				}
+				catch (InterruptedException ix)
+				{
+					throw new InterruptedIOException("Interrupted before resubmitting CD-Search batch");
+				}
+			}
+		}
+	}
+	
+	
+	private Vector<RPSTabularRecord> blastOnce() throws IOException	
 	{
 		if (verbose)
 			sop("Will blast");
 		
 		// Format a URL. GIs are separated by "%0A".
-		String surl = "https://www.ncbi.nlm.nih.gov/Structure/bwrpsb/bwrpsb.cgi?queries=";		
+		String surl = NCBIUrls.cdSearch() + "?queries=";		
 		for (String gi: queryProteinGIs)
 		{
 			surl += gi;
@@ -72,6 +119,7 @@ public class NCBIRPSBlaster
 		//     #datatype	hits Concise data
 		//     #status	3	msg	Job is still running
 		String initialResponse = getResponsePageAsString(surl, false);
+		long submitTime = Clock.now();
 		StringReader sr = new StringReader(initialResponse);
 		BufferedReader br = new BufferedReader(sr);
 		br.readLine();
@@ -96,7 +144,7 @@ public class NCBIRPSBlaster
 		// unrecoverable, in particular 4 [queue manager service error] which is what I've
 		// seen of late). Note that reducing the batch size to 100 led to successful
 		// requests *sometimes*, in the evening, but now even the usual 250 succeeds.
-		surl = "https://www.ncbi.nlm.nih.gov/Structure/bwrpsb/bwrpsb.cgi?cdsid=" + cdsid;
+		surl = NCBIUrls.cdSearch() + "?cdsid=" + cdsid;
 		while (lastStatusCode != 0)
 		{
 			String pollResponse = getResponsePageAsString(surl, true);
@@ -113,20 +161,33 @@ public class NCBIRPSBlaster
 			if (verbose)
 				sop("status code = " + lastStatusCode);
 			if (lastStatusCode != 0 && lastStatusCode != 3) {  // jmagasin 20 Feb 2020
-				assert false : "NCBI CD-Search for this batch failed with status code" +
-				               lastStatusCode + ".  The cdsid was" + cdsid;
+				// Was an assert, but assertions are normally off so we kept polling a dead job.
+				throw new CDSearchJobException(lastStatusCode, cdsid);
 			}
 			br.close();
 			sr.close();
 		}
 		
+		Metrics.record("cdsearch.queue_ms", Clock.now() - submitTime);
+		
 		// Retrieve results.
-		surl = "https://www.ncbi.nlm.nih.gov/Structure/bwrpsb/bwrpsb.cgi?cdsid=" + cdsid +
+		surl = NCBIUrls.cdSearch() + "?cdsid=" + cdsid +
 			"&tdata=aligns&alnfmt=xml&dmode=all";
-		String results = getResponsePageAsString(surl, false);
+		// The results are parsed as they stream in rather than held as a page. Despite alnfmt=xml the
+		// hit lines are tab-delimited; only the "Q#" lines are kept.
+		surl = appendToolAndEmailToUrl(appendApiKeyToUrl(surl, apiKey));
+		NCBISnooze.beforeNewRequest(surl, RequestClass.CDSEARCH_FETCH);
+		Vector<RPSTabularRecord> results = NCBIHttp.fetchParsed(surl, new NCBIHttp.ResponseParser<Vector<RPSTabularRecord>>()
+		{
+			public Vector<RPSTabularRecord> parse(InputStream in) throws IOException
+			{
+				return RPSTabularRecord.parse(new InputStreamReader(in));
+			}
+		});
 		if (verbose)
-			sop(results);
-		return RPSTabularRecord.parse(results);
+			for (RPSTabularRecord rec: results)
+				sop(rec);
+		return results;
 	}
 	
 	
@@ -138,31 +199,15 @@ public class NCBIRPSBlaster
 		else
 		    NCBISnooze.beforeNewRequest(surl);
 		    
-		// Connect a LineNumberReader to the initial response.
-		URL url = new URL(surl);
-		URLConnection urlConn = url.openConnection();
-		InputStreamReader isr = new InputStreamReader(urlConn.getInputStream());
-		LineNumberReader lnr = new LineNumberReader(isr);
-		
-		// Assemble response into a monolithic string.
-		StringBuilder sb = new StringBuilder();
-		String line = null;
-		while ((line = lnr.readLine()) != null)
-		{
-			sb.append(line);
-			if (!line.endsWith("\n"))
-				sb.append("\n");
-		}
-		lnr.close();
-		isr.close();
-		return sb.toString();
+		// Timeouts, retries and the CD-Search circuit breaker are handled by NCBIHttp.
+		return NCBIHttp.fetchString(surl, -1);
 	}	
 	
 	// Placeholder in case API keys are ever supported by NCBI APIs besides
 	// E-utilities.  See notes in the BlastHTTPClient version of this function.
 	private static String appendApiKeyToUrl(String surl, String apiKey)
 	{
-		if (apiKey != null && surl.contains("eutils.ncbi.nlm.nih.gov")) {
+		if (apiKey != null && NCBIEndpoint.forUrl(surl) == NCBIEndpoint.EUTILS) {
 		   surl = surl + "&api_key=" + apiKey;
 		}
 		return surl;
@@ -181,7 +226,7 @@ public class NCBIRPSBlaster
 	}
 	
 	
-	static void sop(Object x)	{ System.out.println(x); }
+	static void sop(Object x)	{ Log.info(x); }
 	
 	
 	public static void main(String[] args)
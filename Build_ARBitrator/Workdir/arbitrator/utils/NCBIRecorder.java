@@ -0,0 +1,122 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    NCBIRecorder.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+import java.io.*;
+
+
+//
+// An NCBITransport that passes requests through to another (normally the real one) and records each 
+// response, including error statuses, into an NCBIFixtureArchive for NCBIReplayServer. Bodies are read
+// in full before they're returned, so recording changes the timing of streamed responses a little. 
+// Responses that never arrived (timeouts, refused connections) aren't recorded.
+//
+
+
+public class NCBIRecorder implements NCBITransport
+{
+	private NCBITransport				delegate;
+	private NCBIFixtureArchive			archive;
+	private int							nRecorded;
+	
+	
+	public NCBIRecorder(NCBITransport delegate, NCBIFixtureArchive archive)
+	{
+		this.delegate = delegate;
+		this.archive = archive;
+	}
+	
+	
+	// Records everything NCBIHttp sends from now on.
+	public static NCBIRecorder install(File archiveFile) throws IOException
+	{
+		NCBIRecorder recorder = new NCBIRecorder(NCBIHttp.getTransport(), new NCBIFixtureArchive(archiveFile));
+		NCBIHttp.setTransport(recorder);
+		return recorder;
+	}
+	
+	
+	public InputStream send(String surl, String postBody) throws IOException
+	{
+		String key = NCBIFixtureArchive.keyFor(surl, postBody);
+		long start = System.currentTimeMillis();
+		byte[] body;
+		try
+		{
+			InputStream in = delegate.send(surl, postBody);
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			byte[] buf = new byte[8192];
+			int n;
+			while ((n = in.read(buf)) > 0)
+				baos.write(buf, 0, n);
+			in.close();
+			body = baos.toByteArray();
+		}
+		catch (NCBIHttp.HttpStatusException x)
+		{
+			record(new NCBIFixtureArchive.Fixture(key, x.status, x.retryAfterMillis, System.currentTimeMillis() - start, new byte[0]));
+			throw x;
+		}
+		record(new NCBIFixtureArchive.Fixture(key, 200, 0, System.currentTimeMillis() - start, body));
+		return new ByteArrayInputStream(body);
+	}
+	
+	
+	// A failure to record shouldn't fail the run it's recording.
+	private void record(NCBIFixtureArchive.Fixture fixture)
+	{
+		try
+		{
+			archive.append(fixture);
+			synchronized (this)
+			{
+				nRecorded++;
+			}
+		}
+		catch (IOException x)
+		{
+			Log.warn("Couldn't record NCBI response to " + archive.getFile() + ": " + x);
+		}
+	}
+	
+	
+	// Puts back the transport this recorder wrapped.
+	public void uninstall() throws IOException
+	{
+		if (NCBIHttp.getTransport() == this)
+			NCBIHttp.setTransport(delegate);
+		archive.close();
+	}
+	
+	
+	public synchronized int getNRecorded()
+	{
+		return nRecorded;
+	}
+	
+	
+	public String toString()
+	{
+		return "NCBIRecorder: recorded " + getNRecorded() + " response(s). " + archive;
+	}
+}
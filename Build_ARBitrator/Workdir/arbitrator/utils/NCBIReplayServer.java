@@ -0,0 +1,234 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    NCBIReplayServer.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import com.sun.net.httpserver.*;
+
+
+//
+// Serves an NCBIFixtureArchive over local HTTP in place of NCBI, so whole runs (or PipelineSimulation's
+// request mix, or anything else using NCBIHttp) can be repeated with no network. Point NCBIUrls at 
+// getRoot(). Unlike a substitute NCBITransport, real connections are made, so HttpURLConnection, 
+// timeouts and concurrency are exercised too.
+//
+// Each response is delayed by its recorded latency, by a fixed latency, or by a latency per service 
+// (see setLatency()). A request that was never recorded gets a 404, which NCBIHttp doesn't retry.
+//
+// Usage: java arbitrator.utils.NCBIReplayServer archive [port] [latency]
+//
+
+
+public class NCBIReplayServer 
+{
+	public final static String						RECORDED_LATENCY		= "recorded";
+	
+	private NCBIFixtureArchive						archive;
+	private int										port;
+	private HttpServer								server;
+	private boolean									useRecordedLatency		= true;
+	private Map<NCBIEndpoint, Long>					endpointToLatency		= new EnumMap<NCBIEndpoint, Long>(NCBIEndpoint.class);
+	private int										nServed;
+	private int										nMissed;
+	
+	
+	// Port 0 picks a free port.
+	public NCBIReplayServer(NCBIFixtureArchive archive, int port)
+	{
+		this.archive = archive;
+		this.port = port;
+	}
+	
+	
+	// "recorded" (the default), msecs for every service, e.g. "0", or msecs per service, e.g. 
+	// "BUA=2000,CDSEARCH=1500,EUTILS=300". Services not mentioned get no delay.
+	public void setLatency(String spec)
+	{
+		spec = spec.trim();
+		endpointToLatency.clear();
+		useRecordedLatency = spec.equalsIgnoreCase(RECORDED_LATENCY);
+		if (useRecordedLatency)
+			return;
+		if (!spec.contains("="))
+		{
+			long msecs = Long.parseLong(spec);
+			for (NCBIEndpoint endpoint: NCBIEndpoint.values())
+				endpointToLatency.put(endpoint, msecs);
+			return;
+		}
+		for (String piece: spec.split(","))
+		{
+			String[] pieces = piece.split("=");
+			if (pieces.length != 2)
+				throw new IllegalArgumentException("Expected ENDPOINT=msecs, got " + piece);
+			endpointToLatency.put(NCBIEndpoint.valueOf(pieces[0].trim().toUpperCase()), Long.parseLong(pieces[1].trim()));
+		}
+	}
+	
+	
+	// Returns the root URL to give NCBIUrls.setRoots().
+	public String start() throws IOException
+	{
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		server.createContext("/", new HttpHandler()
+		{
+			public void handle(HttpExchange x) throws IOException
+			{
+				try
+				{
+					serve(x);
+				}
+				finally
+				{
+					x.close();
+				}
+			}
+		});
+		server.setExecutor(Executors.newCachedThreadPool());		// latencies overlap, as at NCBI
+		server.start();
+		Log.info("Replaying " + archive + " at " + getRoot());
+		return getRoot();
+	}
+	
+	
+	public String getRoot()
+	{
+		return "http://localhost:" + server.getAddress().getPort();
+	}
+	
+	
+	public void stop()
+	{
+		if (server != null)
+			server.stop(0);
+		server = null;
+	}
+	
+	
+	private void serve(HttpExchange x) throws IOException
+	{
+		String file = x.getRequestURI().getRawPath();
+		if (x.getRequestURI().getRawQuery() != null)
+			file += "?" + x.getRequestURI().getRawQuery();
+		String postBody = null;
+		if (x.getRequestMethod().equalsIgnoreCase("POST"))
+			postBody = new String(readAll(x.getRequestBody()), "UTF-8");
+		String key = NCBIFixtureArchive.keyFor(file, postBody);
+		NCBIFixtureArchive.Fixture fixture = archive.replay(key);
+		if (fixture == null)
+		{
+			synchronized (this)
+			{
+				nMissed++;
+			}
+			Log.warn("No recorded response to " + key);
+			byte[] msg = ("No recorded response to " + key + "\n").getBytes("UTF-8");
+			x.sendResponseHeaders(404, msg.length);
+			x.getResponseBody().write(msg);
+			return;
+		}
+		
+		try
+		{
+			Thread.sleep(latencyFor(file, fixture));
+		}
+		catch (InterruptedException ix)
+		{
+			return;
+		}
+		synchronized (this)
+		{
+			nServed++;
+		}
+		if (fixture.retryAfterMillis > 0)
+			x.getResponseHeaders().set("Retry-After", "" + ((fixture.retryAfterMillis + 999) / 1000));
+		if (fixture.status != 200)
+		{
+			x.sendResponseHeaders(fixture.status, -1);
+			return;
+		}
+		x.sendResponseHeaders(200, (fixture.body.length == 0)  ?  -1  :  fixture.body.length);
+		x.getResponseBody().write(fixture.body);
+	}
+	
+	
+	private long latencyFor(String file, NCBIFixtureArchive.Fixture fixture)
+	{
+		if (useRecordedLatency)
+			return fixture.latencyMillis;
+		Long msecs = endpointToLatency.get(NCBIEndpoint.forUrl(file));
+		return (msecs == null)  ?  0  :  msecs;
+	}
+	
+	
+	private static byte[] readAll(InputStream in) throws IOException
+	{
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] buf = new byte[8192];
+		int n;
+		while ((n = in.read(buf)) > 0)
+			baos.write(buf, 0, n);
+		return baos.toByteArray();
+	}
+	
+	
+	public synchronized int getNServed()		{ return nServed; }
+	public synchronized int getNMissed()		{ return nMissed; }
+	
+	
+	public synchronized String toString()
+	{
+		return "NCBIReplayServer at " + (server == null  ?  "(stopped)"  :  getRoot()) + ": served " + nServed + 
+			", missed " + nMissed + ". " + archive;
+	}
+	
+	
+	public static void main(String[] args)
+	{
+		if (args.length < 1  ||  args.length > 3)
+		{
+			System.out.println("Usage: java arbitrator.utils.NCBIReplayServer archive [port] [latency]");
+			return;
+		}
+		try
+		{
+			File archiveFile = new File(args[0]);
+			if (!archiveFile.exists())
+				throw new FileNotFoundException("No fixture archive " + archiveFile);
+			int port = (args.length > 1)  ?  Integer.parseInt(args[1])  :  0;
+			NCBIReplayServer server = new NCBIReplayServer(new NCBIFixtureArchive(archiveFile), port);
+			if (args.length > 2)
+				server.setLatency(args[2]);
+			System.out.println("Replaying " + server.archive + " at " + server.start());
+			System.out.println("Run the pipeline with -ncbiurl " + server.getRoot());
+		}
+		catch (Exception x)
+		{
+			System.out.println("Couldn't start replay server: " + x);
+		}
+	}
+}
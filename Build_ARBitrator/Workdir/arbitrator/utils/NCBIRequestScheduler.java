@@ -0,0 +1,166 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    NCBIRequestScheduler.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+import java.util.*;
+
+
+//
+// Weighted fair queue in front of ARBitrator's single NCBI clock (see NCBISnooze). Previously every
+// thread slept while holding the NCBISnooze lock, so requests went out in whatever order threads won
+// the lock, and a burst of polls could starve EMBL fetching. Now each request gets a virtual finish
+// tag, max(virtual time, finish tag of the last request of its class) + 1/weight, and the waiting
+// request with the smallest tag goes next, once its interval since the previous grant has passed.
+// Over a busy period each class therefore gets a share of the requests proportional to its weight,
+// and an idle class doesn't bank credit. Among equal tags, arrival order wins.
+//
+
+
+public class NCBIRequestScheduler 
+{
+	private PriorityQueue<Waiter>		waiting;
+	private double						virtualTime;
+	private double[]					lastFinishTags;
+	private long						lastGrantTime;
+	private long						nextSeq;
+	
+	
+	private static class Waiter implements Comparable<Waiter>
+	{
+		RequestClass		requestClass;
+		int					msecs;
+		double				finishTag;
+		long				seq;
+		
+		public int compareTo(Waiter that)
+		{
+			if (this.finishTag != that.finishTag)
+				return (this.finishTag < that.finishTag)  ?  -1  :  1;
+			return Long.compare(this.seq, that.seq);
+		}
+	}
+	
+	
+	public NCBIRequestScheduler()
+	{
+		waiting = new PriorityQueue<Waiter>();
+		lastFinishTags = new double[RequestClass.values().length];
+		lastGrantTime = Clock.now();
+	}
+	
+	
+	// Blocks until it's this request's turn and at least msecs have passed since the previous grant.
+	public synchronized void admit(RequestClass requestClass, int msecs) throws InterruptedException
+	{
+		Waiter me = new Waiter();
+		me.requestClass = requestClass;
+		me.msecs = msecs;
+		int c = requestClass.ordinal();
+		me.finishTag = Math.max(virtualTime, lastFinishTags[c]) + 1.0 / requestClass.getWeight();
+		me.seq = nextSeq++;
+		lastFinishTags[c] = me.finishTag;
+		waiting.add(me);
+		Clock.notifyAllOn(this);	// The head may have changed
+		
+		try
+		{
+			while (true)
+			{
+				if (waiting.peek() == me)
+				{
+					long now = Clock.now();
+					long due = lastGrantTime + msecs;
+					if (now >= due)
+					{
+						waiting.poll();
+						lastGrantTime = now;
+						virtualTime = me.finishTag;
+						Clock.notifyAllOn(this);
+						return;
+					}
+					Clock.waitOn(this, due - now);
+				}
+				else
+					Clock.waitOn(this, 0);
+			}
+		}
+		catch (InterruptedException x)
+		{
+			waiting.remove(me);
+			Clock.notifyAllOn(this);
+			throw x;
+		}
+	}
+	
+	
+	public synchronized int getNWaiting()
+	{
+		return waiting.size();
+	}
+	
+	
+	// Floods the scheduler with polls and fetches from several threads and reports how the grants
+	// were shared. With the default weights fetches should get ~8x the polls' share.
+	public static void main(String[] args)
+	{
+		final NCBIRequestScheduler scheduler = new NCBIRequestScheduler();
+		final Map<RequestClass, Integer> nGrants = new EnumMap<RequestClass, Integer>(RequestClass.class);
+		final RequestClass[] classes = { RequestClass.BLAST_POLL, RequestClass.BLAST_POLL, RequestClass.BLAST_POLL, 
+										 RequestClass.BLAST_POLL, RequestClass.EFETCH_NUCLEOTIDE };
+		final long stopTime = System.currentTimeMillis() + 3000;
+		Vector<Thread> threads = new Vector<Thread>();
+		for (final RequestClass rc: classes)
+		{
+			Thread t = new Thread()
+			{
+				public void run()
+				{
+					try
+					{
+						while (System.currentTimeMillis() < stopTime)
+						{
+							scheduler.admit(rc, 10);
+							synchronized (nGrants)
+							{
+								Integer n = nGrants.get(rc);
+								nGrants.put(rc, (n == null) ? 1 : n+1);
+							}
+						}
+					}
+					catch (InterruptedException x) { }
+				}
+			};
+			threads.add(t);
+			t.start();
+		}
+		for (Thread t: threads)
+		{
+			try
+			{
+				t.join();
+			}
+			catch (InterruptedException x) { }
+		}
+		System.out.println("4 polling threads vs 1 fetching thread, 10 msec interval: " + nGrants);
+	}
+}
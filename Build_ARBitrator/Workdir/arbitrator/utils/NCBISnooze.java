@@ -21,7 +21,9 @@
  */
 
 package arbitrator.utils;
-import java.util.concurrent.TimeUnit;
+import java.io.*;
+import java.net.*;
+import com.sun.net.httpserver.*;
 
 //
 // NCBI BLAST Developer Information includes a Usage Guidelines section that
@@ -81,6 +83,31 @@ import java.util.concurrent.TimeUnit;
 // problems in the records themselves (no ID, or no coded_by perhaps because
 // computationally predicted). So I am confident that the rates below work.
 //
+// Adaptive rate: The intervals above are now the floor, i.e. the documented
+// max rate. Each endpoint (BUA, E-utilities, CD-Search) runs at a fraction of
+// its max rate that is adjusted AIMD style, like TCP congestion control: every
+// healthy response raises the fraction additively back toward 1, and every
+// throttling signal (HTTP 429, an empty response, a BUA submission without an
+// RID, an esearch page without <Id> or <Count>) halves it. Signals that arrive
+// within a couple of intervals of the last decrease are treated as part of the
+// same episode. On a quiet IP this runs at the rates above; on a shared IP it
+// settles just under whatever NCBI will tolerate. Polling intervals are fixed
+// by the BUA rules and are not adapted. The main() runs against a local stub
+// that throttles.
+//
+// Host-wide mode: everything above coordinates the threads of one JVM. With
+// -sharedrate, new requests are instead scheduled through a SharedRateFile
+// that every ARBitrator on the host uses, so concurrent runs split NCBI's
+// per-IP budget fairly.
+//
+// Priorities (Oct 2026): snoozeMilliSecs() used to sleep while holding the
+// class lock, so threads went out in whatever order they won the lock, and a
+// polling thread held everyone up for its whole 80 sec poll interval. Requests
+// now wait in an NCBIRequestScheduler, a weighted fair queue keyed on a
+// RequestClass per call site (submit, poll, fetch, esearch, efetch), which
+// still keeps ARBitrator on a single clock. Poll intervals are slept outside
+// the queue. Weights are set with -priorities.
+//
 public class NCBISnooze
 {
 
@@ -100,48 +127,216 @@ public class NCBISnooze
         private final static int                        MIN_MSECS_BETWEEN_BUA_RID_POLLS           = 80000;
         private final static int                        MIN_MSECS_BETWEEN_BUA_RID_POLLS_APIKEY    = 80000;
 
-        // Time of last request from ARBitrator.
-        private static long                             ncbiLastRequestTime = System.currentTimeMillis();
+        // AIMD parameters for the adaptive rate, as fractions of the max rate.
+        private final static double                     ADDITIVE_INCREASE                         = 0.02;
+        private final static double                     MULTIPLICATIVE_DECREASE                   = 0.5;
+        private final static double                     MIN_RATE_FRACTION                         = 1 / 32.0;
+        private final static int                        DECREASE_EPISODE_INTERVALS                = 2;
+
+        // All requests from ARBitrator go out on one clock, in weighted fair order.
+        private final static NCBIRequestScheduler       scheduler = new NCBIRequestScheduler();
+
+        // Per-endpoint adaptive state, indexed by NCBIEndpoint ordinal.
+        private final static Object                     rateLock = new Object();
+        private static double[]                         rateFractions;
+        private static long[]                           lastDecreaseTimes;
+        private static int[]                            lastIntervals;
+
+        // Host-wide schedule, or null to coordinate only within this JVM.
+        private static SharedRateFile                   sharedRate;
+
+        static
+        {
+            int n = NCBIEndpoint.values().length;
+            rateFractions = new double[n];
+            java.util.Arrays.fill(rateFractions, 1);
+            lastDecreaseTimes = new long[n];
+            lastIntervals = new int[n];
+        }
 
         // The snooze length depends on the NCBI API (BLAST URL API or
         // E-utilities) and whether an API key is used.  We can determine both
         // by looking at the URL.
         public static void beforeNewRequest(String surl)
+        {
+            beforeNewRequest(surl, RequestClass.forUrl(surl, false));
+        }
+
+        public static void beforeNewRequest(String surl, RequestClass requestClass)
+        {
+            schedule(surl, requestClass, adaptedMilliSecs(surl, floorMilliSecs(surl)));
+        }
+
+        // Min msecs between requests, before adaptation.
+        private static int floorMilliSecs(String surl)
         {
             Boolean hasApiKey = surl.contains("api_key") || surl.contains("API_KEY");
             int msecs = hasApiKey ? MIN_MSECS_BETWEEN_BUA_REQUESTS_APIKEY :
                                     MIN_MSECS_BETWEEN_BUA_REQUESTS;
-            if (surl.contains("eutils.ncbi.nlm.nih.gov")) {
+            if (NCBIEndpoint.forUrl(surl) == NCBIEndpoint.EUTILS) {
                 msecs = hasApiKey ? MIN_MSECS_BETWEEN_EUTILS_REQUESTS_APIKEY :
                                     MIN_MSECS_BETWEEN_EUTILS_REQUESTS;
             }
-            snoozeMilliSecs(msecs);
+            return msecs;
+        }
+
+        public static void useSharedRateFile(File f) throws IOException
+        {
+            if (sharedRate != null)
+                sharedRate.close();
+            sharedRate = new SharedRateFile(f);
+        }
+
+        public static void setPriorities(String spec)
+        {
+            RequestClass.setWeights(spec);
+        }
+
+        // Wait time includes time queued behind higher-priority requests.
+        private static void schedule(String surl, RequestClass requestClass, int msecs)
+        {
+            long start = Clock.now();
+            try {
+                scheduler.admit(requestClass, msecs);
+            }
+            catch (InterruptedException x) {
+                x.printStackTrace();
+            }
+            if (sharedRate != null) {
+                try {
+                    sharedRate.acquire(requestClass.getEndpoint(), msecs);
+                }
+                catch (IOException x) {
+                    // This JVM's own spacing still applies.
+                    Log.warn("Shared rate file unavailable (" + x + "). Using per-process rate limiting.");
+                }
+            }
+            long waited = Clock.now() - start;
+            Metrics.record("snooze." + NCBIEndpoint.forUrl(surl).metricName() + ".wait_ms", waited);
+            Metrics.record("scheduler." + requestClass.metricName() + ".wait_ms", waited);
+        }
+
+        // Stretches the floor interval by the endpoint's current rate fraction.
+        private static int adaptedMilliSecs(String surl, int floorMsecs)
+        {
+            int endpoint = NCBIEndpoint.forUrl(surl).ordinal();
+            synchronized (rateLock) {
+                int msecs = (int)Math.round(floorMsecs / rateFractions[endpoint]);
+                lastIntervals[endpoint] = msecs;
+                return msecs;
+            }
+        }
+
+        // A healthy response: additive increase.
+        public static void onSuccess(String surl)
+        {
+            int endpoint = NCBIEndpoint.forUrl(surl).ordinal();
+            synchronized (rateLock) {
+                rateFractions[endpoint] = Math.min(1, rateFractions[endpoint] + ADDITIVE_INCREASE);
+            }
+        }
+
+        // A throttling signal: multiplicative decrease, once per episode.
+        public static void onThrottled(String surl)
+        {
+            NCBIEndpoint endpoint = NCBIEndpoint.forUrl(surl);
+            int i = endpoint.ordinal();
+            Metrics.increment("snooze." + endpoint.metricName() + ".throttled");
+            synchronized (rateLock) {
+                long now = Clock.now();
+                if (now - lastDecreaseTimes[i] < DECREASE_EPISODE_INTERVALS * (long)lastIntervals[i])
+                    return;
+                lastDecreaseTimes[i] = now;
+                rateFractions[i] = Math.max(MIN_RATE_FRACTION, rateFractions[i] * MULTIPLICATIVE_DECREASE);
+                Log.warn("NCBI throttling detected for " + endpoint + ". Slowing to " + 
+                         Math.round(100 * rateFractions[i]) + "% of the max request rate.");
+            }
         }
 
-        // Like above but polling only happens for BLAST results.
+        public static double getRateFraction(NCBIEndpoint endpoint)
+        {
+            synchronized (rateLock) {
+                return rateFractions[endpoint.ordinal()];
+            }
+        }
+
+        // Like above but for polling (BLAST and CD-Search results). The per-RID
+        // poll interval is slept by the caller alone; the poll then queues for the
+        // shared clock like any other request, at the priority of its class.
         public static void beforePolling(String surl)
+        {
+            beforePolling(surl, RequestClass.forUrl(surl, true));
+        }
+
+        public static void beforePolling(String surl, RequestClass requestClass)
         {
             Boolean hasApiKey = surl.contains("api_key") || surl.contains("API_KEY");
             int msecs = hasApiKey ? MIN_MSECS_BETWEEN_BUA_RID_POLLS_APIKEY :
                                     MIN_MSECS_BETWEEN_BUA_RID_POLLS;
-            snoozeMilliSecs(msecs);
+            long start = Clock.now();
+            try {
+                Clock.sleep(msecs);
+            }
+            catch (InterruptedException x) {
+                x.printStackTrace();
+            }
+            Metrics.record("snooze.poll_ms", Clock.now() - start);
+            beforeNewRequest(surl, requestClass);
         }
 
-        // Synchronize access to ncbiLastRequestTime because blast requests are done
-        // by multiple threads (but EMBL generation is not). Sleeping while holding
-        // the lock is okay because the other threads may not contact NCBI until
-        // this thread finishes snoozing.
-        private static synchronized void snoozeMilliSecs(int msecs)
+        // Runs against a local stub that answers 429 to requests arriving less than
+        // stub_interval msecs apart. The URL path mentions eutils so that the
+        // requests are treated as E-utilities with an API key (130 msec floor).
+        public static void main(String[] args)
         {
-            try {
-                if (System.currentTimeMillis() - ncbiLastRequestTime <= msecs) {
-                    TimeUnit.MILLISECONDS.sleep(msecs);
+            try
+            {
+                final int stubIntervalMsecs = (args.length > 0) ? Integer.parseInt(args[0]) : 300;
+                int nRequests = (args.length > 1) ? Integer.parseInt(args[1]) : 80;
+                final long[] lastArrival = new long[1];
+                final int[] n429s = new int[1];
+                HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+                server.createContext("/", new HttpHandler()
+                {
+                    public void handle(HttpExchange ex) throws IOException
+                    {
+                        long now = System.currentTimeMillis();
+                        boolean tooSoon;
+                        synchronized (lastArrival) {
+                            tooSoon = now - lastArrival[0] < stubIntervalMsecs;
+                            lastArrival[0] = now;
+                            if (tooSoon)
+                                n429s[0]++;
+                        }
+                        byte[] body = (tooSoon  ?  "{\"error\":\"API rate limit exceeded\"}"  :  "<Count>1</Count><Id>1</Id>").getBytes();
+                        if (tooSoon)
+                            ex.getResponseHeaders().add("Retry-After", "1");
+                        ex.sendResponseHeaders(tooSoon ? 429 : 200, body.length);
+                        ex.getResponseBody().write(body);
+                        ex.close();
+                    }
+                });
+                server.start();
+                String surl = "http://localhost:" + server.getAddress().getPort() + 
+                              "/eutils.ncbi.nlm.nih.gov/esearch.fcgi?db=protein&api_key=x";
+                long start = System.currentTimeMillis();
+                for (int i=1; i<=nRequests; i++)
+                {
+                    beforeNewRequest(surl);
+                    NCBIHttp.fetchString(surl, -1);
+                    if (i % 10 == 0)
+                        Log.info(i + " requests, rate fraction = " + getRateFraction(NCBIEndpoint.EUTILS) + 
+                                 ", interval = " + lastIntervals[NCBIEndpoint.EUTILS.ordinal()] + " msecs");
                 }
-                // Caller will immediately contact NCBI so note the time.
-                ncbiLastRequestTime = System.currentTimeMillis();
+                long elapsed = System.currentTimeMillis() - start;
+                Log.info(nRequests + " requests in " + elapsed + " msecs (" + (elapsed/nRequests) + " msecs/request), " +
+                         n429s[0] + " answered 429; stub allows one per " + stubIntervalMsecs + " msecs");
+                server.stop(0);
             }
-            catch (InterruptedException x) {
+            catch (Exception x)
+            {
                 x.printStackTrace();
             }
+            Log.flush();
         }
 }
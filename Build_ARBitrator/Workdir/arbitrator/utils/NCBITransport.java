@@ -0,0 +1,40 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    NCBITransport.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+import java.io.*;
+
+
+//
+// How NCBIHttp actually exchanges a request for a response. The default is HttpURLConnection; a 
+// simulation or test can install something else with NCBIHttp.setTransport(), beneath NCBIHttp's
+// retries and circuit breakers and NCBISnooze's pacing, which are what's being exercised.
+//
+
+
+public interface NCBITransport 
+{
+	// Sends a GET, or a form-encoded POST if postBody isn't null, and returns the response body. Error
+	// statuses are thrown as NCBIHttp.HttpStatusException.
+	public InputStream send(String surl, String postBody) throws IOException;
+}
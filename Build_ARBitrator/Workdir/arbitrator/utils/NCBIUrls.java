@@ -0,0 +1,121 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    NCBIUrls.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+import java.util.*;
+
+
+//
+// Where NCBI requests go. Each service's URLs are its root (scheme and host) plus NCBI's path, so pointing
+// a root elsewhere, e.g. at an NCBIReplayServer or a proxy, keeps the paths that NCBIEndpoint and 
+// RequestClass recognize. The roots are process-wide, like NCBISnooze's rates.
+//
+
+
+public class NCBIUrls 
+{
+	private final static Map<NCBIEndpoint, String>		DEFAULT_ROOTS;
+	
+	static
+	{
+		DEFAULT_ROOTS = new EnumMap<NCBIEndpoint, String>(NCBIEndpoint.class);
+		DEFAULT_ROOTS.put(NCBIEndpoint.BUA, "https://blast.ncbi.nlm.nih.gov");
+		DEFAULT_ROOTS.put(NCBIEndpoint.EUTILS, "https://eutils.ncbi.nlm.nih.gov");
+		DEFAULT_ROOTS.put(NCBIEndpoint.CDSEARCH, "https://www.ncbi.nlm.nih.gov");
+	}
+	
+	private static volatile Map<NCBIEndpoint, String>	roots		= new EnumMap<NCBIEndpoint, String>(DEFAULT_ROOTS);
+	
+	
+	public static String blast()
+	{
+		return roots.get(NCBIEndpoint.BUA) + "/Blast.cgi";
+	}
+	
+	
+	// E.g. eutils("esearch.fcgi").
+	public static String eutils(String program)
+	{
+		return roots.get(NCBIEndpoint.EUTILS) + "/entrez/eutils/" + program;
+	}
+	
+	
+	public static String cdSearch()
+	{
+		return roots.get(NCBIEndpoint.CDSEARCH) + "/Structure/bwrpsb/bwrpsb.cgi";
+	}
+	
+	
+	// Spec is a root for every service, e.g. "http://localhost:8080", or per-service roots, e.g.
+	// "EUTILS=http://localhost:8080,BUA=http://localhost:8081". Services not mentioned keep their roots.
+	public static void setRoots(String spec)
+	{
+		Map<NCBIEndpoint, String> newRoots = new EnumMap<NCBIEndpoint, String>(roots);
+		if (!spec.contains("="))
+		{
+			for (NCBIEndpoint endpoint: DEFAULT_ROOTS.keySet())
+				newRoots.put(endpoint, checkRoot(spec));
+		}
+		else
+		{
+			for (String piece: spec.split(","))
+			{
+				String[] pieces = piece.split("=", 2);
+				NCBIEndpoint endpoint = NCBIEndpoint.valueOf(pieces[0].trim().toUpperCase());
+				if (!DEFAULT_ROOTS.containsKey(endpoint))
+					throw new IllegalArgumentException("No URLs for " + endpoint);
+				newRoots.put(endpoint, checkRoot(pieces[1]));
+			}
+		}
+		roots = newRoots;
+	}
+	
+	
+	private static String checkRoot(String root)
+	{
+		root = root.trim();
+		while (root.endsWith("/"))
+			root = root.substring(0, root.length()-1);
+		if (!root.startsWith("http://")  &&  !root.startsWith("https://"))
+			throw new IllegalArgumentException("Expected an http:// or https:// root URL, got " + root);
+		return root;
+	}
+	
+	
+	public static void resetRoots()
+	{
+		roots = new EnumMap<NCBIEndpoint, String>(DEFAULT_ROOTS);
+	}
+	
+	
+	public static boolean isDefault()
+	{
+		return roots.equals(DEFAULT_ROOTS);
+	}
+	
+	
+	public static String rootsToString()
+	{
+		return roots.toString();
+	}
+}
@@ -0,0 +1,150 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    PSSM.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+import java.io.*;
+import java.util.*;
+
+
+//
+// A position-specific scoring matrix read from the ASCII format written by "psiblast -out_ascii_pssm".
+// A CDD domain's PSSM can be converted to that format with e.g.
+//
+//     psiblast -in_pssm cd02040.smp -subject any.faa -out_ascii_pssm cd02040.pssm
+//
+// where cd02040.smp comes from the CDD distribution (ftp.ncbi.nih.gov/pub/mmdb/cdd/cdd.tar.gz).
+//
+// Scores are stored residue-major: scores[residueCode][position]. PSSMScorer's inner loop walks
+// positions for a fixed residue, so this layout keeps that loop on one contiguous int[].
+//
+
+
+public class PSSM 
+{
+	public final static String		RESIDUES				= "ARNDCQEGHILKMFPSTWYV";
+	public final static int			N_CODES					= RESIDUES.length() + 1;	// last = unknown (X, B, Z, ...)
+	private final static int		UNKNOWN_RESIDUE_SCORE	= -1;
+	
+	// Karlin-Altschul parameters for BLOSUM62 with gap costs 11/1, used unless the file has a 
+	// "PSI Gapped" line.
+	private final static double		DEFAULT_K				= 0.041;
+	private final static double		DEFAULT_LAMBDA			= 0.267;
+	
+	private String					accession;
+	private int						length;
+	private int[][]					scores;
+	private double					k = DEFAULT_K;
+	private double					lambda = DEFAULT_LAMBDA;
+	
+	
+	PSSM(String accession, int[][] scores)
+	{
+		this.accession = accession;
+		this.scores = scores;
+		this.length = scores[0].length;
+	}
+	
+	
+	// Accession is the file name up to the 1st '.', e.g. cd02040.pssm => cd02040.
+	public static PSSM load(File file) throws IOException
+	{
+		String accession = file.getName();
+		if (accession.indexOf('.') > 0)
+			accession = accession.substring(0, accession.indexOf('.'));
+		
+		BufferedReader br = new BufferedReader(new FileReader(file));
+		int[] columnToCode = null;
+		Vector<int[]> rows = new Vector<int[]>();
+		double k = DEFAULT_K;
+		double lambda = DEFAULT_LAMBDA;
+		String line = null;
+		while ((line = br.readLine()) != null)
+		{
+			String trimmed = line.trim();
+			if (trimmed.isEmpty())
+				continue;
+			String[] pieces = trimmed.split("\\s+");
+			if (columnToCode == null  &&  pieces.length >= 20  &&  pieces[0].equals("A")  &&  pieces[1].equals("R"))
+			{
+				// Header. The 1st 20 columns are scores, the rest are percentages.
+				columnToCode = new int[20];
+				for (int i=0; i<20; i++)
+					columnToCode[i] = RESIDUES.indexOf(pieces[i]);
+			}
+			else if (columnToCode != null  &&  pieces.length >= 22  &&  Character.isDigit(pieces[0].charAt(0)))
+			{
+				int[] row = new int[N_CODES];
+				for (int i=0; i<20; i++)
+					row[columnToCode[i]] = Integer.parseInt(pieces[i+2]);
+				row[N_CODES-1] = UNKNOWN_RESIDUE_SCORE;
+				rows.add(row);
+			}
+			else if (trimmed.startsWith("PSI Gapped")  &&  pieces.length >= 4)
+			{
+				k = Double.parseDouble(pieces[2]);
+				lambda = Double.parseDouble(pieces[3]);
+			}
+		}
+		br.close();
+		if (rows.isEmpty())
+			throw new IOException("No PSSM rows in " + file.getAbsolutePath());
+		
+		// Transpose to residue-major.
+		int[][] scores = new int[N_CODES][rows.size()];
+		for (int pos=0; pos<rows.size(); pos++)
+			for (int code=0; code<N_CODES; code++)
+				scores[code][pos] = rows.get(pos)[code];
+		PSSM ret = new PSSM(accession, scores);
+		ret.k = k;
+		ret.lambda = lambda;
+		return ret;
+	}
+	
+	
+	// Maps a sequence to residue codes, once per sequence rather than once per PSSM.
+	public static byte[] encode(String seq)
+	{
+		byte[] ret = new byte[seq.length()];
+		for (int i=0; i<seq.length(); i++)
+		{
+			int code = RESIDUES.indexOf(Character.toUpperCase(seq.charAt(i)));
+			ret[i] = (byte)((code < 0)  ?  N_CODES-1  :  code);
+		}
+		return ret;
+	}
+	
+	
+	// Normalized score in bits.
+	public double toBits(int rawScore)
+	{
+		return (lambda * rawScore - Math.log(k)) / Math.log(2);
+	}
+	
+	
+	public String getAccession()		{ return accession; }
+	public int length()					{ return length;	}
+	public double getK()				{ return k;			}
+	public double getLambda()			{ return lambda;	}
+	int[] scoresFor(int residueCode)	{ return scores[residueCode]; }
+	public String toString()			{ return "PSSM " + accession + ": " + length + " positions"; }
+}
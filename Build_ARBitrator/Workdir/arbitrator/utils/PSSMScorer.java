@@ -0,0 +1,182 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    PSSMScorer.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+import java.util.*;
+
+
+//
+// Smith-Waterman local alignment of a protein sequence against a PSSM, with affine gap costs as in
+// BLAST (a gap of length n costs GAP_OPEN + n*GAP_EXTEND). Only the best score is computed, not the
+// alignment.
+//
+// Each row of the DP (one sequence residue) is done in two passes over the PSSM positions. The 1st
+// pass handles the match and vertical-gap terms, which only depend on the previous row, so the loop
+// has no carried dependency and HotSpot's superword optimization vectorizes it. The 2nd ("lazy F")
+// pass propagates horizontal gaps, which is inherently serial but is a single max per position.
+//
+// Instances reuse their DP arrays, so use one scorer per thread.
+//
+
+
+public class PSSMScorer 
+{
+	public final static int			GAP_OPEN				= 11;
+	public final static int			GAP_EXTEND				= 1;
+	
+	private int[]					hPrev	= new int[0];
+	private int[]					hCur	= new int[0];
+	private int[]					e		= new int[0];
+	
+	
+	public int score(PSSM pssm, byte[] encodedSeq)
+	{
+		int m = pssm.length();
+		ensureCapacity(m + 1);
+		Arrays.fill(hPrev, 0, m+1, 0);
+		Arrays.fill(e, 0, m+1, 0);
+		final int openPlusExtend = GAP_OPEN + GAP_EXTEND;
+		int best = 0;
+		
+		for (int i=0; i<encodedSeq.length; i++)
+		{
+			int[] prof = pssm.scoresFor(encodedSeq[i]);
+			int[] hp = hPrev;
+			int[] hc = hCur;
+			int[] ee = e;
+			
+			// Pass 1: diagonal and vertical (gap in the PSSM) moves. Vectorizable.
+			hc[0] = 0;
+			for (int j=1; j<=m; j++)
+			{
+				int ej = Math.max(ee[j] - GAP_EXTEND, hp[j] - openPlusExtend);
+				ee[j] = ej;
+				int h = Math.max(hp[j-1] + prof[j-1], ej);
+				hc[j] = Math.max(h, 0);
+			}
+			
+			// Pass 2: horizontal (gap in the sequence) moves.
+			int f = 0;
+			for (int j=1; j<=m; j++)
+			{
+				f = Math.max(f - GAP_EXTEND, hc[j-1] - openPlusExtend);
+				int h = Math.max(hc[j], f);
+				hc[j] = h;
+				if (h > best)
+					best = h;
+			}
+			
+			hCur = hp;
+			hPrev = hc;
+		}
+		return best;
+	}
+	
+	
+	private void ensureCapacity(int n)
+	{
+		if (hPrev.length >= n)
+			return;
+		hPrev = new int[n];
+		hCur = new int[n];
+		e = new int[n];
+	}
+	
+	
+	static void sop(Object x)		{ System.out.println(x); }
+	
+	
+	//
+	// Benchmark: sequences/sec per core. Usage:
+	//     java -cp ARBitrator.jar arbitrator.utils.PSSMScorer [n_threads [n_seqs_per_thread [pssm_file]]]
+	// Without a PSSM file, a random 280-position PSSM (about the length of cd02040) is used. Query
+	// sequences are random, 300 residues (about the length of NifH).
+	//
+	public static void main(String[] args)
+	{
+		try
+		{
+			int nThreads = (args.length > 0)  ?  Integer.parseInt(args[0])  :  Runtime.getRuntime().availableProcessors();
+			final int nSeqs = (args.length > 1)  ?  Integer.parseInt(args[1])  :  20000;
+			final PSSM pssm = (args.length > 2)  ?  PSSM.load(new java.io.File(args[2]))  :  randomPSSM(280, 1);
+			sop(pssm + ", " + nThreads + " thread(s), " + nSeqs + " sequences per thread");
+			
+			final byte[][] seqs = new byte[1000][];
+			Random rand = new Random(2);
+			for (int i=0; i<seqs.length; i++)
+			{
+				StringBuilder sb = new StringBuilder();
+				for (int j=0; j<300; j++)
+					sb.append(PSSM.RESIDUES.charAt(rand.nextInt(20)));
+				seqs[i] = PSSM.encode(sb.toString());
+			}
+			
+			// Warm up so that the JIT has compiled score() before timing.
+			PSSMScorer warmup = new PSSMScorer();
+			for (int i=0; i<2000; i++)
+				warmup.score(pssm, seqs[i % seqs.length]);
+			
+			Thread[] threads = new Thread[nThreads];
+			for (int t=0; t<nThreads; t++)
+			{
+				threads[t] = new Thread()
+				{
+					public void run()
+					{
+						PSSMScorer scorer = new PSSMScorer();
+						long sum = 0;
+						for (int i=0; i<nSeqs; i++)
+							sum += scorer.score(pssm, seqs[i % seqs.length]);
+						if (sum == 42)
+							sop("");		// keep the JIT from discarding the work
+					}
+				};
+			}
+			long start = System.nanoTime();
+			for (Thread thread: threads)
+				thread.start();
+			for (Thread thread: threads)
+				thread.join();
+			double secs = (System.nanoTime() - start) / 1e9;
+			double perCore = nSeqs / secs;
+			sop(String.format("%.0f sequences/sec/core, %.0f sequences/sec total, %.1f Mcells/sec/core",
+				perCore, perCore * nThreads, perCore * 300 * pssm.length() / 1e6));
+		}
+		catch (Exception x)
+		{
+			sop("Stress: " + x.getMessage());
+			x.printStackTrace();
+		}
+	}
+	
+	
+	static PSSM randomPSSM(int length, long seed)
+	{
+		Random rand = new Random(seed);
+		int[][] scores = new int[PSSM.N_CODES][length];
+		for (int code=0; code<PSSM.N_CODES; code++)
+			for (int pos=0; pos<length; pos++)
+				scores[code][pos] = rand.nextInt(10) - 6;		// negative expected score, as in a real PSSM
+		return new PSSM("random", scores);
+	}
+}
@@ -0,0 +1,199 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    ProteinSequenceFetcher.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+
+//
+// Retrieves amino acid sequences for many protein accessions at once. Sequences come either from
+// a local BLAST database built with "makeblastdb -parse_seqids" (via blastdbcmd -entry_batch) or
+// from E-utilities efetch. Efetch requests are POSTed because a GET with a few hundred accessions
+// exceeds NCBI's URL length limit (see the http 414 note in Pipeline). Every efetch goes through
+// NCBISnooze like all other E-utilities requests.
+//
+
+
+public class ProteinSequenceFetcher 
+{
+	private final static int		EFETCH_BATCH_SIZE			= 200;		// NCBI suggests POST above 200 UIDs
+	private final static String		EFETCH_QUERY				= "?db=protein&rettype=fasta&retmode=text";
+	
+	private String					apiKey;
+	private String					localDb;		// null => use efetch
+	private File					binDirf;		// null => blastdbcmd is on the PATH
+	private boolean					verbose;
+	
+	
+	public ProteinSequenceFetcher(String apiKey)
+	{
+		this.apiKey = apiKey;
+	}
+	
+	
+	public ProteinSequenceFetcher(String localDb, File binDirf)
+	{
+		this.localDb = localDb;
+		this.binDirf = binDirf;
+	}
+	
+	
+	// Keys are the requested accessions, in request order. Accessions that couldn't be retrieved are 
+	// absent.
+	public Map<String, String> fetch(Collection<String> accessions) throws IOException
+	{
+		Map<String, String> fetched = new HashMap<String, String>();
+		Vector<String> batch = new Vector<String>();
+		for (String acc: accessions)
+		{
+			batch.add(acc);
+			if (batch.size() == EFETCH_BATCH_SIZE)
+			{
+				fetchBatch(batch, fetched);
+				batch.clear();
+			}
+		}
+		if (!batch.isEmpty())
+			fetchBatch(batch, fetched);
+		
+		// Map to requested accessions. A request without a version (e.g. "AAC36042") is answered 
+		// by a versioned defline ("AAC36042.2").
+		Map<String, String> unversionedToSeq = new HashMap<String, String>();
+		for (String acc: fetched.keySet())
+			if (acc.indexOf('.') > 0)
+				unversionedToSeq.put(acc.substring(0, acc.indexOf('.')), fetched.get(acc));
+		Map<String, String> ret = new LinkedHashMap<String, String>();
+		for (String acc: accessions)
+		{
+			String seq = fetched.get(acc);
+			if (seq == null)
+				seq = unversionedToSeq.get(acc);
+			if (seq != null)
+				ret.put(acc, seq);
+		}
+		if (ret.size() < accessions.size())
+			sop("Couldn't retrieve sequences for " + (accessions.size() - ret.size()) + " of " + 
+				accessions.size() + " accessions.");
+		return ret;
+	}
+	
+	
+	private void fetchBatch(Vector<String> batch, Map<String, String> dest) throws IOException
+	{
+		if (localDb != null)
+			fetchBatchLocally(batch, dest);
+		else
+			fetchBatchFromEntrez(batch, dest);
+	}
+	
+	
+	private void fetchBatchFromEntrez(Vector<String> batch, Map<String, String> dest) throws IOException
+	{
+		String surl = NCBIUrls.eutils("efetch.fcgi") + EFETCH_QUERY;
+		if (apiKey != null)
+			surl += "&api_key=" + apiKey;
+		surl += "&TOOL=ARBitrator&EMAIL=jmagasin@gmail.com";
+		NCBISnooze.beforeNewRequest(surl);
+		if (verbose)
+			sop("efetch " + batch.size() + " protein sequences: " + surl);
+		
+		String body = "id=" + URLEncoder.encode(String.join(",", batch), "UTF-8");
+		BufferedReader br = new BufferedReader(new StringReader(NCBIHttp.post(surl, body)));
+		parseFasta(br, dest);
+		br.close();
+	}
+	
+	
+	private void fetchBatchLocally(Vector<String> batch, Map<String, String> dest) throws IOException
+	{
+		File entriesFile = File.createTempFile("arb_entries", ".txt");
+		try
+		{
+			StringUtils.textToFile(String.join("\n", batch) + "\n", entriesFile);
+			String blastdbcmd = (binDirf == null)  ?  "blastdbcmd"  :  new File(binDirf, "blastdbcmd").getAbsolutePath();
+			String[] cmd = { blastdbcmd, "-db", localDb, "-entry_batch", entriesFile.getAbsolutePath() };
+			SystemCaller caller = new SystemCaller(cmd);
+			caller.execute();
+			parseFasta(new BufferedReader(new StringReader(readAll(caller))), dest);
+			caller.close();
+			try
+			{
+				caller.blockUntilCompletion();		// nonzero if some entries missing; that's ok
+			}
+			catch (InterruptedException x) { }
+		}
+		finally
+		{
+			entriesFile.delete();
+		}
+	}
+	
+	
+	private static String readAll(SystemCaller caller) throws IOException
+	{
+		StringBuilder sb = new StringBuilder();
+		String line = null;
+		while ((line = caller.readStdoutLine()) != null)
+			sb.append(line).append('\n');
+		return sb.toString();
+	}
+	
+	
+	// Keys are the 1st token of each defline, e.g. ">AAC36042.2 nitrogenase iron protein [...]".
+	static void parseFasta(BufferedReader br, Map<String, String> dest) throws IOException
+	{
+		String acc = null;
+		StringBuilder seq = new StringBuilder();
+		String line = null;
+		while ((line = br.readLine()) != null)
+		{
+			if (line.startsWith(">"))
+			{
+				if (acc != null)
+					dest.put(acc, seq.toString());
+				line = line.substring(1).trim();
+				int n = 0;
+				while (n < line.length()  &&  !Character.isWhitespace(line.charAt(n)))
+					n++;
+				acc = line.substring(0, n);
+				if (acc.indexOf('|') >= 0)
+				{
+					// e.g. ref|WP_012345678.1| from older databases
+					String[] pieces = acc.split("\\|");
+					acc = pieces[pieces.length > 1 ? 1 : 0];
+				}
+				seq.setLength(0);
+			}
+			else if (acc != null)
+				seq.append(line.trim());
+		}
+		if (acc != null)
+			dest.put(acc, seq.toString());
+	}
+	
+	
+	public void setVerbose(boolean b)		{ verbose = b; }
+	static void sop(Object x)				{ Log.info(x); }
+}
@@ -69,6 +69,24 @@ public class RPSTabularRecord
 	}
 	
 	
+	// For building records from sources other than CD-Search, e.g. LocalRPSBlaster.
+	RPSTabularRecord(String query, String hitType, String pssmID, int from, int to, double expect, double score,
+					 String accession, String shortName, String incomplete, String superfamily)
+	{
+		this.query = query;
+		this.hitType = hitType;
+		this.pssmID = pssmID;
+		this.from = from;
+		this.to = to;
+		this.expect = expect;
+		this.score = score;
+		this.accession = accession;
+		this.shortName = shortName;
+		this.incomplete = incomplete;
+		this.superfamily = superfamily;
+	}
+	
+	
 	public String toString()
 	{
 		String s = "RPSTabularRecord:\n  QUERY = " + query + "\n  HIT TYPE = " + hitType +
@@ -77,6 +95,20 @@ public class RPSTabularRecord
 	}
 	
 	
+	// Inverse of parseLine().
+	public String toTabularLine()
+	{
+		return query + "\t" + hitType + "\t" + pssmID + "\t" + from + "\t" + to + "\t" + expect + "\t" + score + 
+			"\t" + accession + "\t" + shortName + "\t" + incomplete + "\t" + superfamily;
+	}
+	
+	
+	public static RPSTabularRecord parseLine(String line)
+	{
+		return new RPSTabularRecord(line);
+	}
+	
+	
 	public static Vector<RPSTabularRecord> parse(Reader reader) throws IOException
 	{
 		BufferedReader br = new BufferedReader(reader);
@@ -0,0 +1,139 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    RequestClass.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+import java.util.*;
+
+
+//
+// What an NCBI request is for. NCBIRequestScheduler orders waiting requests by class weight, so that
+// e.g. fetching a finished BLAST result or a nucleotide record isn't stuck behind a burst of polls.
+// The default weights favor finishing work that is already in flight (fetches) over checking on it
+// (polls) over starting new work (submits). Override with -priorities.
+//
+// Most call sites can let the class be inferred from the URL; polls and anything ambiguous pass it
+// explicitly.
+//
+
+
+public enum RequestClass 
+{
+	BLAST_SUBMIT			(NCBIEndpoint.BUA,			1),
+	BLAST_POLL				(NCBIEndpoint.BUA,			1),
+	BLAST_FETCH				(NCBIEndpoint.BUA,			8),
+	CDSEARCH_SUBMIT			(NCBIEndpoint.CDSEARCH,		2),
+	CDSEARCH_POLL			(NCBIEndpoint.CDSEARCH,		2),
+	CDSEARCH_FETCH			(NCBIEndpoint.CDSEARCH,		8),
+	ESEARCH					(NCBIEndpoint.EUTILS,		4),
+	EFETCH_PROTEIN			(NCBIEndpoint.EUTILS,		6),
+	EFETCH_NUCLEOTIDE		(NCBIEndpoint.EUTILS,		6),
+	EFETCH_FASTA			(NCBIEndpoint.EUTILS,		4),
+	OTHER					(NCBIEndpoint.OTHER,		1);
+	
+	
+	private NCBIEndpoint		endpoint;
+	private int					defaultWeight;
+	private volatile int		weight;
+	
+	
+	RequestClass(NCBIEndpoint endpoint, int defaultWeight)
+	{
+		this.endpoint = endpoint;
+		this.defaultWeight = defaultWeight;
+		this.weight = defaultWeight;
+	}
+	
+	
+	public static RequestClass forUrl(String surl, boolean polling)
+	{
+		switch (NCBIEndpoint.forUrl(surl))
+		{
+			case BUA:
+				if (surl.contains("CMD=Put"))
+					return BLAST_SUBMIT;
+				return polling  ?  BLAST_POLL  :  BLAST_FETCH;
+			case CDSEARCH:
+				if (surl.contains("queries="))
+					return CDSEARCH_SUBMIT;
+				return polling  ?  CDSEARCH_POLL  :  CDSEARCH_FETCH;
+			case EUTILS:
+				if (surl.contains("esearch"))
+					return ESEARCH;
+				if (surl.contains("rettype=fasta"))
+					return EFETCH_FASTA;
+				if (surl.contains("db=nuc"))
+					return EFETCH_NUCLEOTIDE;
+				return EFETCH_PROTEIN;
+			default:
+				return OTHER;
+		}
+	}
+	
+	
+	// Parses e.g. "BLAST_POLL=1,EFETCH_NUCLEOTIDE=10". Classes not mentioned keep their weights.
+	// Throws IllegalArgumentException for unknown classes or non-positive weights.
+	public static void setWeights(String spec)
+	{
+		Map<RequestClass, Integer> parsed = new EnumMap<RequestClass, Integer>(RequestClass.class);
+		for (String piece: spec.split(","))
+		{
+			String[] pieces = piece.split("=");
+			if (pieces.length != 2)
+				throw new IllegalArgumentException("Expected CLASS=weight, got " + piece);
+			RequestClass rc = valueOf(pieces[0].trim().toUpperCase());
+			int weight;
+			try
+			{
+				weight = Integer.parseInt(pieces[1].trim());
+			}
+			catch (NumberFormatException x)
+			{
+				throw new IllegalArgumentException("Illegal weight in " + piece);
+			}
+			if (weight <= 0)
+				throw new IllegalArgumentException("Weights must be positive: " + piece);
+			parsed.put(rc, weight);
+		}
+		for (RequestClass rc: parsed.keySet())
+			rc.weight = parsed.get(rc);
+	}
+	
+	
+	public static String weightsToString()
+	{
+		StringBuilder sb = new StringBuilder();
+		for (RequestClass rc: values())
+		{
+			if (sb.length() > 0)
+				sb.append(',');
+			sb.append(rc.name()).append('=').append(rc.weight);
+		}
+		return sb.toString();
+	}
+	
+	
+	public NCBIEndpoint getEndpoint()	{ return endpoint;				}
+	public int getWeight()				{ return weight;				}
+	public int getDefaultWeight()		{ return defaultWeight;			}
+	public String metricName()			{ return name().toLowerCase();	}
+}
@@ -0,0 +1,242 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    SharedRateFile.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+
+//
+// Host-wide request schedule shared by every ARBitrator on the machine, so that several runs (different
+// genes, different users) together stay within NCBI's per-IP rate instead of each assuming it has the
+// whole budget. Enabled with -sharedrate path; all instances must use the same path and be able to
+// write it.
+//
+// The file is small and memory mapped. Every update happens under an exclusive FileLock, plus a JVM
+// lock because FileLock is per process. Layout:
+//
+//   int magic, int nEndpoints
+//   long nextGrantTime[nEndpoints]             earliest time the next request to the endpoint may go
+//   N_SLOTS * { long instanceId, long lastRequestTime[nEndpoints] }
+//
+// A request reserves the next time slot for its endpoint, one interval after the previous reservation,
+// and then sleeps until that time outside the lock. That caps the host-wide rate. For fairness each
+// instance is also held to one request per (interval * number of instances active on that endpoint),
+// where active means it made a request in the last ACTIVE_WINDOW_MILLIS. So an instance alone gets the
+// whole rate, and N busy instances get about 1/N each however many threads they have. Instances that
+// crash simply stop being active; their slot is reused once stale.
+//
+
+
+public class SharedRateFile 
+{
+	private final static int		MAGIC						= 0x41524231;		// "ARB1"
+	private final static int		N_SLOTS						= 64;
+	private final static long		ACTIVE_WINDOW_MILLIS		= 10 * 1000L;
+	private final static long		STALE_SLOT_MILLIS			= 10 * 60 * 1000L;
+	private final static int		N_ENDPOINTS					= NCBIEndpoint.values().length;
+	private final static int		HEADER_BYTES				= 8;
+	private final static int		SLOT_BYTES					= 8 + 8 * N_ENDPOINTS;
+	private final static int		SLOTS_OFFSET				= HEADER_BYTES + 8 * N_ENDPOINTS;
+	private final static int		FILE_BYTES					= SLOTS_OFFSET + N_SLOTS * SLOT_BYTES;
+	
+	private File					file;
+	private FileChannel				channel;
+	private MappedByteBuffer		buf;
+	private long					instanceId;
+	private int						slot = -1;
+	private long[]					lastGrantTimes = new long[N_ENDPOINTS];
+	
+	
+	public SharedRateFile(File file) throws IOException
+	{
+		this.file = file;
+		channel = new RandomAccessFile(file, "rw").getChannel();
+		buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_BYTES);
+		Random rand = new Random();
+		while (instanceId == 0)
+			instanceId = rand.nextLong();
+		FileLock lock = channel.lock();
+		try
+		{
+			if (buf.getInt(0) != MAGIC  ||  buf.getInt(4) != N_ENDPOINTS)
+			{
+				for (int i=0; i<FILE_BYTES; i+=4)
+					buf.putInt(i, 0);
+				buf.putInt(0, MAGIC);
+				buf.putInt(4, N_ENDPOINTS);
+			}
+			claimSlot(System.currentTimeMillis());
+		}
+		finally
+		{
+			lock.release();
+		}
+	}
+	
+	
+	// Blocks until this instance may send a request to the endpoint. intervalMsecs is the host-wide 
+	// interval between requests to the endpoint.
+	public void acquire(NCBIEndpoint endpoint, long intervalMsecs) throws IOException
+	{
+		long grantTime;
+		synchronized (this)
+		{
+			FileLock lock = channel.lock();
+			try
+			{
+				long now = System.currentTimeMillis();
+				int e = endpoint.ordinal();
+				if (slot < 0  ||  buf.getLong(slotOffset(slot)) != instanceId)
+					claimSlot(now);
+				int nActive = countActive(e, now);
+				long fairShareTime = lastGrantTimes[e] + intervalMsecs * nActive;
+				long nextGrantTime = buf.getLong(HEADER_BYTES + 8*e);
+				grantTime = Math.max(now, Math.max(fairShareTime, nextGrantTime));
+				buf.putLong(HEADER_BYTES + 8*e, grantTime + intervalMsecs);
+				if (slot >= 0)
+					buf.putLong(slotOffset(slot) + 8 + 8*e, grantTime);
+				lastGrantTimes[e] = grantTime;
+			}
+			finally
+			{
+				lock.release();
+			}
+		}
+		long wait = grantTime - System.currentTimeMillis();
+		if (wait > 0)
+		{
+			try
+			{
+				Thread.sleep(wait);
+			}
+			catch (InterruptedException x)
+			{
+				throw new InterruptedIOException("Interrupted waiting for shared rate slot");
+			}
+		}
+	}
+	
+	
+	// Counts instances, including this one, that requested from the endpoint recently.
+	private int countActive(int e, long now)
+	{
+		int n = 1;
+		for (int i=0; i<N_SLOTS; i++)
+		{
+			if (i == slot)
+				continue;
+			int off = slotOffset(i);
+			if (buf.getLong(off) != 0  &&  now - buf.getLong(off + 8 + 8*e) < ACTIVE_WINDOW_MILLIS)
+				n++;
+		}
+		return n;
+	}
+	
+	
+	// Caller holds the file lock. If all slots are busy we run without one and are simply not counted
+	// by other instances; we still count them.
+	private void claimSlot(long now)
+	{
+		slot = -1;
+		for (int i=0; i<N_SLOTS; i++)
+		{
+			int off = slotOffset(i);
+			boolean stale = true;
+			for (int e=0; e<N_ENDPOINTS; e++)
+				if (now - buf.getLong(off + 8 + 8*e) < STALE_SLOT_MILLIS)
+					stale = false;
+			if (buf.getLong(off) == 0  ||  stale)
+			{
+				buf.putLong(off, instanceId);
+				for (int e=0; e<N_ENDPOINTS; e++)
+					buf.putLong(off + 8 + 8*e, now);
+				slot = i;
+				return;
+			}
+		}
+		Log.warn("All " + N_SLOTS + " instance slots in " + file + " are in use.");
+	}
+	
+	
+	private static int slotOffset(int i)
+	{
+		return SLOTS_OFFSET + i * SLOT_BYTES;
+	}
+	
+	
+	// Frees our slot so that other instances stop counting us right away.
+	public synchronized void close()
+	{
+		try
+		{
+			FileLock lock = channel.lock();
+			try
+			{
+				if (slot >= 0  &&  buf.getLong(slotOffset(slot)) == instanceId)
+					for (int i=0; i<SLOT_BYTES; i+=8)
+						buf.putLong(slotOffset(slot) + i, 0);
+			}
+			finally
+			{
+				lock.release();
+			}
+			channel.close();
+		}
+		catch (IOException x) { }
+	}
+	
+	
+	public String toString()
+	{
+		return "Shared rate file " + file.getAbsolutePath() + ", instance slot " + slot;
+	}
+	
+	
+	// Run several of these concurrently against one file, e.g.
+	//     for i in 1 2 3; do java arbitrator.utils.SharedRateFile /tmp/rate 200 20 & done
+	// Each prints its achieved interval; together they should send one request per interval_msecs.
+	public static void main(String[] args)
+	{
+		try
+		{
+			File f = new File(args.length > 0 ? args[0] : "ncbi_rate");
+			long intervalMsecs = (args.length > 1) ? Long.parseLong(args[1]) : 200;
+			int nRequests = (args.length > 2) ? Integer.parseInt(args[2]) : 20;
+			SharedRateFile shared = new SharedRateFile(f);
+			long start = System.currentTimeMillis();
+			for (int i=0; i<nRequests; i++)
+				shared.acquire(NCBIEndpoint.EUTILS, intervalMsecs);
+			long elapsed = System.currentTimeMillis() - start;
+			System.out.println(shared + ": " + nRequests + " requests in " + elapsed + " msecs, " + 
+				(elapsed/nRequests) + " msecs/request");
+			shared.close();
+		}
+		catch (IOException x)
+		{
+			x.printStackTrace();
+		}
+	}
+}
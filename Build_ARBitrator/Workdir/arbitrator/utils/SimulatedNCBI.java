@@ -0,0 +1,274 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    SimulatedNCBI.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+import java.io.*;
+import java.util.*;
+
+
+//
+// An NCBITransport that answers like NCBI without a network, for simulations under a VirtualClock.
+// Per endpoint, each response takes a random latency (lognormal around the configured mean), a 
+// configurable fraction of requests fail with HTTP 503, and requests beyond the endpoint's tolerated
+// rate in any 1-second window are refused with HTTP 429, as NCBI does when a client is too fast.
+// BLAST and CD-Search jobs take a random queue time (also lognormal) before polls report them done. 
+//
+// Response bodies are just enough for the real clients (NCBIBlastSearchBackend, NCBIRPSBlaster, 
+// BlastHTTPClient) to follow the real protocols: BUA QBlastInfo blocks with RID and RTOE and then the
+// "# Query:" omen once the job is done, CD-Search "#cdsid" and "#status" lines, esearch <Count> and <Id>,
+// GBSeq XML with a coded_by qualifier, and a placeholder nucleotide page. Result pages have no hits; a
+// simulation decides outcomes itself. Requests, refusals and time in flight are counted by RequestClass.
+//
+
+
+public class SimulatedNCBI implements NCBITransport
+{
+	private Map<NCBIEndpoint, Double>			meanLatencyMillis	= new EnumMap<NCBIEndpoint, Double>(NCBIEndpoint.class);
+	private Map<NCBIEndpoint, Integer>			maxPerSec			= new EnumMap<NCBIEndpoint, Integer>(NCBIEndpoint.class);
+	private Map<NCBIEndpoint, LinkedList<Long>>	recentArrivals		= new EnumMap<NCBIEndpoint, LinkedList<Long>>(NCBIEndpoint.class);
+	private double								spread				= 0.5;		// sigma of the lognormals
+	private double								failureRate;
+	private double								meanBlastQueueMillis = 10 * 60 * 1000;
+	private double								meanCDSearchQueueMillis = 2 * 60 * 1000;
+	private Random								random;
+	private Map<String, Long>					jobIdToReadyTime	= new HashMap<String, Long>();
+	private long								nextJobId;
+	private Set<String>							finishedJobIds		= new HashSet<String>();	// "# Query:" served
+	private Map<RequestClass, Integer>			nRequests			= new EnumMap<RequestClass, Integer>(RequestClass.class);
+	private Map<RequestClass, Long>				inFlightMillis		= new EnumMap<RequestClass, Long>(RequestClass.class);
+	private int									nThrottled;
+	private int									nFailed;
+	
+	
+	public SimulatedNCBI(long seed)
+	{
+		random = new Random(seed);
+		setLatency("BUA=2000,CDSEARCH=1500,EUTILS=300,OTHER=300");
+		setMaxRates("BUA=1,CDSEARCH=1,EUTILS=10,OTHER=10");
+		for (NCBIEndpoint endpoint: NCBIEndpoint.values())
+			recentArrivals.put(endpoint, new LinkedList<Long>());
+	}
+	
+	
+	// E.g. "EUTILS=300,BUA=2000", msecs. Endpoints not mentioned are unchanged.
+	public void setLatency(String spec)
+	{
+		for (Map.Entry<NCBIEndpoint, Double> e: parseEndpointSpec(spec).entrySet())
+			meanLatencyMillis.put(e.getKey(), e.getValue());
+	}
+	
+	
+	// E.g. "EUTILS=10", max requests per sec before NCBI answers 429.
+	public void setMaxRates(String spec)
+	{
+		for (Map.Entry<NCBIEndpoint, Double> e: parseEndpointSpec(spec).entrySet())
+			maxPerSec.put(e.getKey(), (int)Math.round(e.getValue()));
+	}
+	
+	
+	public void setFailureRate(double rate)					{ failureRate = rate; }
+	public void setSpread(double sigma)						{ spread = sigma; }
+	public void setMeanBlastQueueSecs(double secs)			{ meanBlastQueueMillis = 1000 * secs; }
+	public void setMeanCDSearchQueueSecs(double secs)		{ meanCDSearchQueueMillis = 1000 * secs; }
+	
+	
+	private static Map<NCBIEndpoint, Double> parseEndpointSpec(String spec)
+	{
+		Map<NCBIEndpoint, Double> ret = new EnumMap<NCBIEndpoint, Double>(NCBIEndpoint.class);
+		for (String piece: spec.split(","))
+		{
+			String[] pieces = piece.split("=");
+			if (pieces.length != 2)
+				throw new IllegalArgumentException("Expected ENDPOINT=value, got " + piece);
+			ret.put(NCBIEndpoint.valueOf(pieces[0].trim().toUpperCase()), Double.parseDouble(pieces[1].trim()));
+		}
+		return ret;
+	}
+	
+	
+	public InputStream send(String surl, String postBody) throws IOException
+	{
+		NCBIEndpoint endpoint = NCBIEndpoint.forUrl(surl);
+		boolean throttled;
+		boolean failed;
+		long latency;
+		String body;
+		synchronized (this)
+		{
+			RequestClass rc = requestClassFor(surl);
+			Integer n = nRequests.get(rc);
+			nRequests.put(rc, (n == null)  ?  1  :  n + 1);
+			throttled = isTooFast(endpoint);
+			failed = !throttled  &&  random.nextDouble() < failureRate;
+			latency = lognormal(meanLatencyMillis.get(endpoint));
+			if (throttled)
+				latency /= 10;
+			Long total = inFlightMillis.get(rc);
+			inFlightMillis.put(rc, (total == null)  ?  latency  :  total + latency);
+			body = (throttled || failed)  ?  null  :  respond(surl, rc, Clock.now() + latency);
+			if (throttled)
+				nThrottled++;
+			if (failed)
+				nFailed++;
+		}
+		try
+		{
+			Clock.sleep(latency);
+		}
+		catch (InterruptedException x)
+		{
+			throw new InterruptedIOException("Interrupted in simulated request");
+		}
+		if (throttled)
+			throw new NCBIHttp.HttpStatusException(surl, 429, 1000);
+		if (failed)
+			throw new NCBIHttp.HttpStatusException(surl, 503, 0);
+		return new ByteArrayInputStream(body.getBytes("UTF-8"));
+	}
+	
+	
+	// Polls are GETs like fetches. A CD-Search fetch asks for tdata; a BLAST poll and fetch are the same
+	// URL, and the fetch is the request after the one that got "# Query:". Caller holds this.
+	private RequestClass requestClassFor(String surl)
+	{
+		RequestClass rc = RequestClass.forUrl(surl, false);
+		if (rc == RequestClass.BLAST_FETCH  &&  !finishedJobIds.contains(paramValue(surl, "RID")))
+			return RequestClass.BLAST_POLL;
+		if (rc == RequestClass.CDSEARCH_FETCH  &&  !surl.contains("tdata="))
+			return RequestClass.CDSEARCH_POLL;
+		return rc;
+	}
+	
+	
+	// Caller holds this. 
+	private boolean isTooFast(NCBIEndpoint endpoint)
+	{
+		long now = Clock.now();
+		LinkedList<Long> arrivals = recentArrivals.get(endpoint);
+		while (!arrivals.isEmpty()  &&  arrivals.getFirst() <= now - 1000)
+			arrivals.removeFirst();
+		arrivals.add(now);
+		return arrivals.size() > maxPerSec.get(endpoint);
+	}
+	
+	
+	// Caller holds this.
+	private long lognormal(double mean)
+	{
+		if (mean <= 0)
+			return 0;
+		return Math.round(mean * Math.exp(spread * random.nextGaussian() - spread * spread / 2));
+	}
+	
+	
+	// Caller holds this. 
+	private String respond(String surl, RequestClass rc, long responseTime)
+	{
+		String id;
+		switch (rc)
+		{
+			case BLAST_SUBMIT:
+				id = "SIMRID" + (nextJobId++);
+				jobIdToReadyTime.put(id, responseTime + lognormal(meanBlastQueueMillis));
+				return "<!--QBlastInfoBegin\n    RID = " + id + "\n    RTOE = " + 
+					Math.round(meanBlastQueueMillis / 1000) + "\nQBlastInfoEnd\n-->\n";
+			case BLAST_POLL:
+				id = paramValue(surl, "RID");
+				if (!isReady(id, responseTime))
+					return "<p>Status=WAITING</p>\n";
+				finishedJobIds.add(id);
+				return "# blastp\n# Query: simulated\n# 0 hits found\n";
+			case BLAST_FETCH:
+				return "# blastp\n# Query: simulated\n# 0 hits found\n";
+			case CDSEARCH_SUBMIT:
+				id = "SIMCDS" + (nextJobId++);
+				jobIdToReadyTime.put(id, responseTime + lognormal(meanCDSearchQueueMillis));
+				return cdSearchStatusPage(id, 3);
+			case CDSEARCH_POLL:
+				id = paramValue(surl, "cdsid");
+				return cdSearchStatusPage(id, isReady(id, responseTime) ? 0 : 3);
+			case CDSEARCH_FETCH:
+				return cdSearchStatusPage(paramValue(surl, "cdsid"), 0);
+			case ESEARCH:
+				return "<eSearchResult><Count>1</Count><IdList><Id>" + (nextJobId++) + "</Id></IdList></eSearchResult>\n";
+			case EFETCH_PROTEIN:
+				return "<GBSet><GBSeq><GBSeq_length>300</GBSeq_length><GBSeq_feature-table><GBFeature><GBFeature_quals>" +
+					"<GBQualifier><GBQualifier_name>coded_by</GBQualifier_name>" + 
+					"<GBQualifier_value>SIM" + (nextJobId++) + ".1:1..903</GBQualifier_value></GBQualifier>" +
+					"</GBFeature_quals></GBFeature></GBSeq_feature-table></GBSeq></GBSet>\n";
+			default:
+				return "LOCUS       SIMULATED\n//\n";
+		}
+	}
+	
+	
+	private boolean isReady(String jobId, long time)
+	{
+		Long readyTime = jobIdToReadyTime.get(jobId);
+		if (readyTime == null  ||  readyTime > time)
+			return false;
+		return true;
+	}
+	
+	
+	private static String cdSearchStatusPage(String cdsid, int status)
+	{
+		return "#Batch CD-search tool\tNIH/NLM/NCBI\n#cdsid\t" + cdsid + "\n#datatype\thits Concise data\n#status\t" + 
+			status + "\tmsg\t" + (status == 0 ? "Job completed successfully" : "Job is still running") + "\n";
+	}
+	
+	
+	private static String paramValue(String surl, String name)
+	{
+		int n = surl.indexOf(name + "=");
+		if (n < 0)
+			return null;
+		String value = surl.substring(n + name.length() + 1);
+		int amp = value.indexOf('&');
+		return (amp < 0)  ?  value  :  value.substring(0, amp);
+	}
+	
+	
+	public synchronized Map<RequestClass, Integer> getRequestCounts()
+	{
+		return new EnumMap<RequestClass, Integer>(nRequests);
+	}
+	
+	
+	public synchronized Map<RequestClass, Long> getInFlightMillis()
+	{
+		return new EnumMap<RequestClass, Long>(inFlightMillis);
+	}
+	
+	
+	public synchronized int getNThrottled()			{ return nThrottled; }
+	public synchronized int getNFailed()			{ return nFailed; }
+	
+	
+	public String toString()
+	{
+		return "Simulated NCBI: mean latency " + meanLatencyMillis + " msecs, max rates " + maxPerSec + "/sec, " + 
+			"failure rate " + failureRate + ", mean queue " + Math.round(meanBlastQueueMillis/1000) + " secs (BLAST), " +
+			Math.round(meanCDSearchQueueMillis/1000) + " secs (CD-Search)";
+	}
+}
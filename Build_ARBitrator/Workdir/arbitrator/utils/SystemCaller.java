@@ -28,6 +28,7 @@ import java.io.*;
 public class SystemCaller 
 {
 	private String					commandLine;
+	private String[]				command;
 	private Process					proc;
 	private InputStream				is;
 	private BufferedInputStream		bis;
@@ -41,9 +42,20 @@ public class SystemCaller
 	}
 	
 	
+	// Use this form when arguments may contain whitespace (e.g. file paths, or blastp's -outfmt
+	// spec). The child's stderr goes to ours, so a chatty child can't fill the pipe and block.
+	public SystemCaller(String[] command)
+	{
+		this.command = command;
+	}
+	
+	
 	public void execute() throws IOException
 	{
-		proc = Runtime.getRuntime().exec(commandLine);
+		if (command != null)
+			proc = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+		else
+			proc = Runtime.getRuntime().exec(commandLine);
 		is = proc.getInputStream();
 		bis = new BufferedInputStream(is);
 		isr = new InputStreamReader(bis);
@@ -0,0 +1,405 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    TabularHitCursor.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+import java.io.*;
+
+
+//
+// Walks a tabular (outfmt 7) blast results file one line at a time over a reusable char buffer. For each
+// line, a single pass finds the tab offsets of the fields, so callers can parse numbers and compare
+// text in place. Nothing is allocated per line unless the caller asks for a String: the subject accession
+// is interned through an AccessionDictionary, and e-values and other numbers are parsed from the buffer.
+// Replaces split("\\t") (twice) plus split("\\s") plus Double.parseDouble per hit line.
+//
+// Fields, in the order checked by Pipeline against the "# Fields:" line:
+//   query acc.ver, subject acc.ver, % identity, alignment length, mismatches, gap opens, q. start,
+//   q. end, s. start, s. end, evalue, bit score, % positives
+//
+
+
+public class TabularHitCursor 
+{
+	public final static int				QUERY					=  0;
+	public final static int				SUBJECT					=  1;
+	public final static int				PCT_IDENTITY			=  2;
+	public final static int				ALIGNMENT_LENGTH		=  3;
+	public final static int				MISMATCHES				=  4;
+	public final static int				GAP_OPENS				=  5;
+	public final static int				Q_START					=  6;
+	public final static int				Q_END					=  7;
+	public final static int				S_START					=  8;
+	public final static int				S_END					=  9;
+	public final static int				EVALUE					= 10;
+	public final static int				BIT_SCORE				= 11;
+	public final static int				PCT_POSITIVES			= 12;
+	public final static int				N_FIELDS				= 13;
+	
+	private final static double[]		POWERS_OF_TEN			= 
+	{
+		1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11, 
+		1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+	};
+	
+	private Reader						reader;
+	private char[]						buf = new char[1 << 16];
+	private int							bufLen;
+	private int							lineStart;
+	private int							lineEnd;				// excludes \r\n
+	private int							nextLineStart;
+	private boolean						eof;
+	private int[]						fieldStarts = new int[N_FIELDS];
+	private int[]						fieldEnds = new int[N_FIELDS];
+	private int							nFields;				// all fields on the line, may exceed N_FIELDS
+	private long						lineNumber;
+	
+	
+	public TabularHitCursor(Reader reader)
+	{
+		this.reader = reader;
+	}
+	
+	
+	public TabularHitCursor(File file) throws IOException
+	{
+		this(new FileReader(file));
+	}
+	
+	
+	// Advances to the next line and finds its fields. Returns false at end of input.
+	public boolean next() throws IOException
+	{
+		int eol = -1;
+		while (true)
+		{
+			for (int i=nextLineStart; i<bufLen; i++)
+			{
+				if (buf[i] == '\n')
+				{
+					eol = i;
+					break;
+				}
+			}
+			if (eol >= 0)
+				break;
+			if (eof)
+			{
+				if (nextLineStart >= bufLen)
+					return false;
+				eol = bufLen;				// last line has no \n
+				break;
+			}
+			fill();
+		}
+		
+		lineStart = nextLineStart;
+		lineEnd = eol;
+		if (lineEnd > lineStart  &&  buf[lineEnd-1] == '\r')
+			lineEnd--;
+		nextLineStart = eol + 1;
+		lineNumber++;
+		
+		// Field offsets, same pass.
+		nFields = 0;
+		int fieldStart = lineStart;
+		for (int i=lineStart; i<=lineEnd; i++)
+		{
+			if (i == lineEnd  ||  buf[i] == '\t')
+			{
+				if (nFields < N_FIELDS)
+				{
+					fieldStarts[nFields] = fieldStart;
+					fieldEnds[nFields] = i;
+				}
+				nFields++;
+				fieldStart = i + 1;
+			}
+		}
+		return true;
+	}
+	
+	
+	// Moves the unread tail to the front and reads more, growing the buffer for a very long line.
+	private void fill() throws IOException
+	{
+		if (nextLineStart > 0)
+		{
+			System.arraycopy(buf, nextLineStart, buf, 0, bufLen - nextLineStart);
+			bufLen -= nextLineStart;
+			nextLineStart = 0;
+		}
+		if (bufLen == buf.length)
+		{
+			char[] bigger = new char[2 * buf.length];
+			System.arraycopy(buf, 0, bigger, 0, bufLen);
+			buf = bigger;
+		}
+		int n = reader.read(buf, bufLen, buf.length - bufLen);
+		if (n < 0)
+			eof = true;
+		else
+			bufLen += n;
+	}
+	
+	
+	public void close() throws IOException
+	{
+		reader.close();
+	}
+	
+	
+	
+	
+	
+	
+	
+	
+		    ///////////////////////////////////////////////////////////////////////////////////
+		    //                                                                               //
+		    //                               CURRENT LINE                                    //
+		    //                                                                               //
+		    ///////////////////////////////////////////////////////////////////////////////////
+	
+	
+	
+	public boolean isComment()
+	{
+		return lineEnd > lineStart  &&  buf[lineStart] == '#';
+	}
+	
+	
+	public boolean lineStartsWith(String prefix)
+	{
+		return regionStartsWith(lineStart, lineEnd, prefix);
+	}
+	
+	
+	// Leading whitespace ignored.
+	public boolean trimmedLineStartsWith(String prefix)
+	{
+		int start = lineStart;
+		while (start < lineEnd  &&  Character.isWhitespace(buf[start]))
+			start++;
+		return regionStartsWith(start, lineEnd, prefix);
+	}
+	
+	
+	private boolean regionStartsWith(int start, int end, String prefix)
+	{
+		if (end - start < prefix.length())
+			return false;
+		for (int i=0; i<prefix.length(); i++)
+			if (buf[start+i] != prefix.charAt(i))
+				return false;
+		return true;
+	}
+	
+	
+	public int getNFields()
+	{
+		return nFields;
+	}
+	
+	
+	// A hit line we can use: all fields present, a single subject, and a parseable e-value.
+	public boolean isValidHit()
+	{
+		if (isComment()  ||  nFields < N_FIELDS)
+			return false;
+		int start = fieldStarts[SUBJECT];
+		int end = fieldEnds[SUBJECT];
+		if (start == end)
+			return false;
+		for (int i=start; i<end; i++)
+			if (buf[i] == ';')					// no longer expecting multiple subjects
+				return false;
+		return !Double.isNaN(getDouble(EVALUE));
+	}
+	
+	
+	public String getLine()
+	{
+		return new String(buf, lineStart, lineEnd - lineStart);
+	}
+	
+	
+	public String getField(int field)
+	{
+		return new String(buf, fieldStarts[field], fieldEnds[field] - fieldStarts[field]);
+	}
+	
+	
+	public String internField(int field, AccessionDictionary dict)
+	{
+		return dict.intern(buf, fieldStarts[field], fieldEnds[field]);
+	}
+	
+	
+	public double getDouble(int field)
+	{
+		return parseDouble(buf, fieldStarts[field], fieldEnds[field]);
+	}
+	
+	
+	// Integer.MIN_VALUE if not an integer.
+	public int getInt(int field)
+	{
+		int start = fieldStarts[field];
+		int end = fieldEnds[field];
+		while (start < end  &&  buf[start] == ' ')
+			start++;
+		boolean negative = start < end  &&  buf[start] == '-';
+		if (negative)
+			start++;
+		if (start == end  ||  end - start > 9)
+			return Integer.MIN_VALUE;
+		int ret = 0;
+		for (int i=start; i<end; i++)
+		{
+			char c = buf[i];
+			if (c < '0'  ||  c > '9')
+				return Integer.MIN_VALUE;
+			ret = 10*ret + (c - '0');
+		}
+		return negative  ?  -ret  :  ret;
+	}
+	
+	
+	public long getLineNumber()
+	{
+		return lineNumber;
+	}
+	
+	
+	
+	
+	
+	
+	
+	
+		    ///////////////////////////////////////////////////////////////////////////////////
+		    //                                                                               //
+		    //                                  NUMBERS                                      //
+		    //                                                                               //
+		    ///////////////////////////////////////////////////////////////////////////////////
+	
+	
+	
+	//
+	// Parses decimal and scientific notation as blast writes it: "0.0", "97.56", "3e-42", "1.2e-180", 
+	// "5.00e-10". Returns NaN if malformed. When the significant digits fit in 2^53 and the decimal
+	// exponent is within +-22 the result is exactly Double.parseDouble's (one correctly rounded multiply
+	// or divide of two exact doubles). Otherwise, e.g. very small e-values, it can differ in the last
+	// bit or two, which doesn't matter for thresholds or ordering.
+	//
+	public static double parseDouble(char[] buf, int start, int end)
+	{
+		while (start < end  &&  buf[start] == ' ')
+			start++;
+		while (end > start  &&  buf[end-1] == ' ')
+			end--;
+		if (start == end)
+			return Double.NaN;
+		
+		boolean negative = false;
+		if (buf[start] == '-'  ||  buf[start] == '+')
+		{
+			negative = buf[start] == '-';
+			start++;
+		}
+		
+		long mantissa = 0;
+		int nDigits = 0;
+		int decimalExponent = 0;
+		boolean sawDigit = false;
+		boolean sawPoint = false;
+		int i = start;
+		for (; i<end; i++)
+		{
+			char c = buf[i];
+			if (c >= '0'  &&  c <= '9')
+			{
+				sawDigit = true;
+				if (mantissa == 0  &&  c == '0')
+				{
+					if (sawPoint)
+						decimalExponent--;			// leading zeros after the point
+					continue;
+				}
+				if (nDigits < 18)
+				{
+					mantissa = 10*mantissa + (c - '0');
+					nDigits++;
+					if (sawPoint)
+						decimalExponent--;
+				}
+				else if (!sawPoint)
+					decimalExponent++;				// digits beyond precision
+			}
+			else if (c == '.'  &&  !sawPoint)
+				sawPoint = true;
+			else
+				break;
+		}
+		if (!sawDigit)
+			return Double.NaN;
+		
+		if (i < end)
+		{
+			if (buf[i] != 'e'  &&  buf[i] != 'E')
+				return Double.NaN;
+			i++;
+			boolean negativeExponent = false;
+			if (i < end  &&  (buf[i] == '-'  ||  buf[i] == '+'))
+			{
+				negativeExponent = buf[i] == '-';
+				i++;
+			}
+			if (i == end)
+				return Double.NaN;
+			int exponent = 0;
+			for (; i<end; i++)
+			{
+				char c = buf[i];
+				if (c < '0'  ||  c > '9')
+					return Double.NaN;
+				if (exponent < 10000)
+					exponent = 10*exponent + (c - '0');
+			}
+			decimalExponent += negativeExponent  ?  -exponent  :  exponent;
+		}
+		
+		double ret;
+		if (mantissa == 0)
+			ret = 0;
+		else if (mantissa < (1L << 53)  &&  decimalExponent >= -22  &&  decimalExponent <= 22)
+			ret = (decimalExponent < 0)  ?  
+				mantissa / POWERS_OF_TEN[-decimalExponent]  :  
+				mantissa * POWERS_OF_TEN[decimalExponent];
+		else if (decimalExponent < -300)
+			ret = (mantissa / 1e22) * Math.pow(10, decimalExponent + 22);			// stay out of subnormal pow
+		else
+			ret = mantissa * Math.pow(10, decimalExponent);
+		return negative  ?  -ret  :  ret;
+	}
+}
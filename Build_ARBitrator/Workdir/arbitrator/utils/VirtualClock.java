@@ -0,0 +1,253 @@
+/*
+ *    This program is free software; you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as published by
+ *    the Free Software Foundation; either version 2 of the License, or
+ *    (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program; if not, write to the Free Software
+ *    Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+
+/*
+ *    VirtualClock.java
+ *
+ */
+
+
+package arbitrator.utils;
+
+import java.util.*;
+
+
+//
+// A Clock for simulations. Time stands still while any participating thread is runnable, and jumps to
+// the next deadline once every participant is blocked in sleep() or waitOn(). So a simulated run takes
+// as long as its computation, not as long as its waits, and its timing doesn't depend on how fast the
+// host is. Time starts at the wall clock time, so timestamps look normal.
+//
+// Participants are counted, not named: call addParticipant() before starting each thread that uses the
+// clock, and removeParticipant() from the thread as it exits. Participants must only block on the clock
+// (or briefly on locks); a participant blocked on anything else looks runnable and stops the clock.
+// Threads that aren't participants, e.g. a main thread that starts participants and joins them, must not
+// wait on the clock.
+//
+// A driver thread does the advancing, so that it never holds a participant's monitor while taking
+// another's.
+//
+
+
+public class VirtualClock extends Clock
+{
+	private long						now;
+	private int							nRunnable;
+	private long						nextSeq;
+	private PriorityQueue<Waiter>		timed			= new PriorityQueue<Waiter>();
+	private Map<Object, List<Waiter>>	monitorToWaiters = new IdentityHashMap<Object, List<Waiter>>();
+	private long						nAdvances;
+	private boolean						warnedStuck;
+	
+	
+	private static class Waiter implements Comparable<Waiter>
+	{
+		Object					monitor;
+		long					deadline;			// Long.MAX_VALUE => none
+		long					seq;
+		boolean					woken;
+		
+		public int compareTo(Waiter that)
+		{
+			if (this.deadline != that.deadline)
+				return (this.deadline < that.deadline)  ?  -1  :  1;
+			return Long.compare(this.seq, that.seq);
+		}
+	}
+	
+	
+	public VirtualClock()
+	{
+		now = System.currentTimeMillis();
+		Thread driver = new Thread("virtual-clock")
+		{
+			public void run()
+			{
+				drive();
+			}
+		};
+		driver.setDaemon(true);
+		driver.start();
+	}
+	
+	
+	public synchronized void addParticipant()
+	{
+		nRunnable++;
+	}
+	
+	
+	public synchronized void removeParticipant()
+	{
+		nRunnable--;
+		notifyAll();
+	}
+	
+	
+	protected synchronized long millis()
+	{
+		return now;
+	}
+	
+	
+	public synchronized long getNAdvances()
+	{
+		return nAdvances;
+	}
+	
+	
+	protected void doSleep(long msecs) throws InterruptedException
+	{
+		if (msecs <= 0)
+			return;
+		Object monitor = new Object();
+		synchronized (monitor)
+		{
+			doWait(monitor, msecs);
+		}
+	}
+	
+	
+	// Caller holds monitor. Registering and then waiting on the monitor without releasing it in between 
+	// means the driver's notify can't be lost.
+	protected void doWait(Object monitor, long msecs) throws InterruptedException
+	{
+		Waiter w = new Waiter();
+		w.monitor = monitor;
+		synchronized (this)
+		{
+			w.deadline = (msecs > 0)  ?  now + msecs  :  Long.MAX_VALUE;
+			w.seq = nextSeq++;
+			if (w.deadline != Long.MAX_VALUE)
+				timed.add(w);
+			List<Waiter> waiters = monitorToWaiters.get(monitor);
+			if (waiters == null)
+			{
+				waiters = new ArrayList<Waiter>();
+				monitorToWaiters.put(monitor, waiters);
+			}
+			waiters.add(w);
+			nRunnable--;
+			notifyAll();
+		}
+		try
+		{
+			while (!isWoken(w))
+				monitor.wait();
+		}
+		catch (InterruptedException x)
+		{
+			synchronized (this)
+			{
+				if (!w.woken)
+				{
+					wake(w);
+					nRunnable++;
+				}
+			}
+			throw x;
+		}
+	}
+	
+	
+	// Caller holds monitor. Every waiter on it counts as runnable again before it's notified, so the
+	// clock can't advance in between.
+	protected void doNotifyAll(Object monitor)
+	{
+		synchronized (this)
+		{
+			List<Waiter> waiters = monitorToWaiters.remove(monitor);
+			if (waiters != null)
+			{
+				for (Waiter w: waiters)
+				{
+					w.woken = true;
+					timed.remove(w);
+					nRunnable++;
+				}
+			}
+		}
+		monitor.notifyAll();
+	}
+	
+	
+	private synchronized boolean isWoken(Waiter w)
+	{
+		return w.woken;
+	}
+	
+	
+	// Caller holds this. Doesn't count the waiter as runnable.
+	private void wake(Waiter w)
+	{
+		w.woken = true;
+		timed.remove(w);
+		List<Waiter> waiters = monitorToWaiters.get(w.monitor);
+		if (waiters != null)
+		{
+			waiters.remove(w);
+			if (waiters.isEmpty())
+				monitorToWaiters.remove(w.monitor);
+		}
+	}
+	
+	
+	// Whenever every participant is blocked, advances to the earliest deadline and wakes everything due 
+	// then. Monitors are notified after releasing this, one at a time.
+	private void drive()
+	{
+		try
+		{
+			while (true)
+			{
+				List<Object> toNotify = new ArrayList<Object>();
+				synchronized (this)
+				{
+					while (nRunnable > 0  ||  timed.isEmpty())
+					{
+						if (nRunnable == 0  &&  !monitorToWaiters.isEmpty()  &&  !warnedStuck)
+						{
+							warnedStuck = true;
+							Log.warn("Virtual clock: every participant is waiting with no timeout");
+						}
+						wait();
+					}
+					warnedStuck = false;
+					now = Math.max(now, timed.peek().deadline);
+					nAdvances++;
+					while (!timed.isEmpty()  &&  timed.peek().deadline <= now)
+					{
+						Waiter w = timed.peek();
+						wake(w);
+						nRunnable++;
+						toNotify.add(w.monitor);
+					}
+				}
+				for (Object monitor: toNotify)
+				{
+					synchronized (monitor)
+					{
+						monitor.notifyAll();
+					}
+				}
+			}
+		}
+		catch (InterruptedException x)
+		{
+			// Daemon; exits with the JVM.
+		}
+	}
+}
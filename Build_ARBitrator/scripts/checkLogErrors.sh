@@ -21,3 +21,11 @@ echo "There were a total of $convFailed failures to convert protein records to n
 echo "Here is the breakdown of errors"
 grep "Conversion failure" failures.tmp | sed 's/^.*Conversion failure: //' | cut -d' ' -f1 | sort | uniq -c
 rm failures.tmp
+
+# ARBitrator prints a one-line METRICS summary every few minutes (see -metricsinterval).
+lastMetrics=`grep ': METRICS ' $logFile | tail -n 1`
+if [ ! -z "$lastMetrics" ] ; then
+    echo
+    echo "Most recent metrics summary:"
+    echo "$lastMetrics" | sed 's/ METRICS /\n  /' | tr ' ' '\n' | sed 's/^/  /' | grep -v '^  $'
+fi